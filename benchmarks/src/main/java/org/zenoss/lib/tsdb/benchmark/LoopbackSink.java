@@ -0,0 +1,98 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A loopback server that reads and discards whatever clients send, answering
+ * "version" commands so that clients validate.
+ */
+class LoopbackSink implements Runnable {
+
+    static final byte[] COMMAND = "version".getBytes(StandardCharsets.UTF_8);
+    static final byte[] VERSION = "net.opentsdb.tools 2.2.0 built at revision loopback\nBuilt on 2016/01/01\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    LoopbackSink() throws IOException {
+        this.server = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this, "loopback-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                Thread reader = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain(socket);
+                    }
+                }, "loopback-sink-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Discard input, answering every "version" line
+     */
+    static void drain(Socket socket) {
+        try (InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int lineLength = 0;
+            int matched = 0;
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                for (int i = 0; i < len; ++i) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        if (lineLength == COMMAND.length && matched == COMMAND.length) {
+                            out.write(VERSION);
+                            out.flush();
+                        }
+                        lineLength = 0;
+                        matched = 0;
+                    } else {
+                        if (lineLength == matched && matched < COMMAND.length && COMMAND[matched] == b) {
+                            matched++;
+                        }
+                        lineLength++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    void close() throws IOException {
+        server.close();
+    }
+
+    private final ServerSocket server;
+}
@@ -0,0 +1,128 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.lib.tsdb.OpenTsdbClient;
+import org.zenoss.lib.tsdb.OpenTsdbClientConfiguration;
+import org.zenoss.lib.tsdb.OpenTsdbClientFactory;
+import org.zenoss.lib.tsdb.OpenTsdbClientPool;
+import org.zenoss.lib.tsdb.OpenTsdbClientPoolConfiguration;
+import org.zenoss.lib.tsdb.OpenTsdbPoolType;
+
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool borrow/return overhead under contention, for each pool type. Clients are
+ * never connected and always validate, so only the pool itself is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PoolBenchmark {
+
+    static final int CONNECTIONS = 16;
+
+    /**
+     * A factory of unconnected clients that always validate
+     */
+    static class StubFactory extends OpenTsdbClientFactory {
+
+        StubFactory(OpenTsdbClientPoolConfiguration configuration) {
+            super(configuration);
+        }
+
+        @Override
+        public OpenTsdbClient makeObject(SocketAddress address) {
+            return new OpenTsdbClient(new Socket(), 8192);
+        }
+
+        @Override
+        public boolean validateObject(OpenTsdbClient client) {
+            return true;
+        }
+    }
+
+    static OpenTsdbClientPoolConfiguration configuration(int connections) {
+        OpenTsdbClientConfiguration endpoint = new OpenTsdbClientConfiguration();
+        endpoint.setHost("127.0.0.1");
+        endpoint.setPort(4242);
+        endpoint.setMaxConnections(connections);
+        OpenTsdbClientPoolConfiguration configuration = new OpenTsdbClientPoolConfiguration();
+        configuration.setClientConfiguration(Collections.singletonList(endpoint));
+        configuration.setMaxWaitTime(60_000L);
+        return configuration;
+    }
+
+    @Param({"GENERIC", "STRIPED"})
+    OpenTsdbPoolType poolType;
+
+    OpenTsdbClientPool pool;
+
+    @Setup
+    public void setUp() {
+        OpenTsdbClientPoolConfiguration configuration = configuration(CONNECTIONS);
+        configuration.setPoolType(poolType);
+        pool = new OpenTsdbClientPool(configuration, new StubFactory(configuration));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        pool.close();
+    }
+
+    private void borrowReturn() throws Exception {
+        OpenTsdbClient client = pool.borrowObject();
+        pool.returnObject(client);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void borrowReturn01() throws Exception {
+        borrowReturn();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void borrowReturn04() throws Exception {
+        borrowReturn();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void borrowReturn16() throws Exception {
+        borrowReturn();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void borrowReturn64() throws Exception {
+        borrowReturn();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.lib.tsdb.OpenTsdbClient;
+import org.zenoss.lib.tsdb.PutEncoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning one data point into put command bytes, with varying tag counts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PutEncodingBenchmark {
+
+    static final int SERIES_LENGTH = 100;
+
+    @Param({"0", "4", "16"})
+    int tagCount;
+
+    @Param({"42.0", "0.123456789"})
+    double value;
+
+    Map<String, String> tags;
+    PutEncoder encoder;
+    long timestamp;
+
+    @Setup
+    public void setUp() {
+        tags = new HashMap<>();
+        for (int i = 0; i < tagCount; ++i) {
+            tags.put("tag" + i, "device-" + i + ".zenoss.loc");
+        }
+        encoder = new PutEncoder();
+        timestamp = 1398325180L;
+    }
+
+    /** The String message, as built before PutEncoder */
+    @Benchmark
+    public String toPutMessage() {
+        return OpenTsdbClient.toPutMessage("zenoss.device.cpu", timestamp, value, tags);
+    }
+
+    /** The String message encoded the way put(String) does */
+    @Benchmark
+    public byte[] toPutMessageBytes() {
+        return OpenTsdbClient.toPutMessage("zenoss.device.cpu", timestamp, value, tags).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Encoding into a reused buffer */
+    @Benchmark
+    public int putEncoder() {
+        encoder.reset();
+        return encoder.encode("zenoss.device.cpu", timestamp, value, tags);
+    }
+
+    /** Encoding a series of samples, the metric and tags once */
+    @Benchmark
+    @OperationsPerInvocation(SERIES_LENGTH)
+    public int putEncoderSeries() {
+        encoder.reset();
+        encoder.beginSeries("zenoss.device.cpu", tags);
+        int bytes = 0;
+        for (int i = 0; i < SERIES_LENGTH; ++i) {
+            bytes += encoder.encodeSample(timestamp + i, value);
+        }
+        return bytes;
+    }
+}
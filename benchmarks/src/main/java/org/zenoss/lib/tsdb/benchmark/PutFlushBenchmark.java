@@ -0,0 +1,122 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.lib.tsdb.OpenTsdbClient;
+import org.zenoss.lib.tsdb.OpenTsdbClientConfiguration;
+import org.zenoss.lib.tsdb.OpenTsdbClientFactory;
+import org.zenoss.lib.tsdb.OpenTsdbClientPoolConfiguration;
+import org.zenoss.lib.tsdb.OpenTsdbTransport;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per point of writing batches of 100 puts and a flush through a single
+ * connection to a loopback sink.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PutFlushBenchmark {
+
+    static final int BATCH = 100;
+
+    @Param({"BLOCKING", "NIO"})
+    OpenTsdbTransport transport;
+
+    LoopbackSink sink;
+    OpenTsdbClientFactory factory;
+    OpenTsdbClient client;
+    Map<String, String> tags;
+    String[] messages;
+    long timestamp;
+
+    @Setup
+    public void setUp() throws Exception {
+        sink = new LoopbackSink();
+        OpenTsdbClientConfiguration endpoint = new OpenTsdbClientConfiguration();
+        endpoint.setHost("127.0.0.1");
+        endpoint.setPort(sink.getPort());
+        OpenTsdbClientPoolConfiguration configuration = new OpenTsdbClientPoolConfiguration();
+        configuration.setClientConfiguration(Collections.singletonList(endpoint));
+        configuration.setTransport(transport);
+        factory = new OpenTsdbClientFactory(configuration);
+        client = factory.makeObject();
+
+        tags = new HashMap<>();
+        tags.put("device", "device-1.zenoss.loc");
+        tags.put("component", "eth0");
+        tags.put("key", "Devices/device-1");
+        messages = new String[BATCH];
+        for (int i = 0; i < BATCH; ++i) {
+            messages[i] = OpenTsdbClient.toPutMessage("zenoss.device.ifInOctets", 1398325180L + i, i * 1.5, tags);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        factory.destroyObject(client);
+        factory.close();
+        sink.close();
+    }
+
+    /** Pre-built String messages, as callers of put(String) send them */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putStringAndFlush() throws IOException {
+        for (int i = 0; i < BATCH; ++i) {
+            client.put(messages[i]);
+        }
+        client.flush();
+    }
+
+    /** Messages built with toPutMessage and sent with put(String) */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void toPutMessageAndFlush() throws IOException {
+        long ts = ++timestamp;
+        for (int i = 0; i < BATCH; ++i) {
+            client.put(OpenTsdbClient.toPutMessage("zenoss.device.ifInOctets", ts, i * 1.5, tags));
+        }
+        client.flush();
+    }
+
+    /** Points encoded straight into the client's buffer */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void putEncodedAndFlush() throws IOException {
+        long ts = ++timestamp;
+        for (int i = 0; i < BATCH; ++i) {
+            client.put("zenoss.device.ifInOctets", ts, i * 1.5, tags);
+        }
+        client.flush();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zenoss.lib.tsdb.ChunkedTsdbWriter;
+import org.zenoss.lib.tsdb.ChunkedTsdbWriterConfiguration;
+import org.zenoss.lib.tsdb.OpenTsdbClient;
+import org.zenoss.lib.tsdb.OpenTsdbClientFactory;
+import org.zenoss.lib.tsdb.OpenTsdbClientPool;
+import org.zenoss.lib.tsdb.OpenTsdbClientPoolConfiguration;
+import org.zenoss.lib.tsdb.PointSink;
+import org.zenoss.lib.tsdb.TsdbWriter;
+import org.zenoss.lib.tsdb.TsdbWriterConfiguration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Points per second accepted by a writer from 1, 4 and 16 producer threads: the
+ * TsdbWriter's shared queue against the thread-local chunks of ChunkedTsdbWriter.
+ * Clients discard what they are sent, so the writers' producer side is measured.
+ * TsdbWriter's producers only enqueue and its workers encode, while ChunkedTsdbWriter's
+ * producers encode themselves; run on at least as many cores as producers and writers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriterBenchmark {
+
+    public enum WriterType {
+        QUEUE, CHUNKED
+    }
+
+    /**
+     * A factory of unconnected clients that discard their output and always validate
+     */
+    static class DiscardFactory extends OpenTsdbClientFactory {
+
+        DiscardFactory(OpenTsdbClientPoolConfiguration configuration) {
+            super(configuration);
+        }
+
+        @Override
+        public OpenTsdbClient makeObject(SocketAddress address) {
+            return new OpenTsdbClient(new Socket(), 8192) {
+                @Override
+                protected OutputStream newOutputStream() {
+                    return new OutputStream() {
+                        @Override
+                        public void write(int b) {
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) {
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public boolean validateObject(OpenTsdbClient client) {
+            return true;
+        }
+    }
+
+    @Param({"QUEUE", "CHUNKED"})
+    WriterType writerType;
+
+    OpenTsdbClientPool pool;
+    PointSink writer;
+    Map<String, String> tags;
+
+    @Setup
+    public void setUp() {
+        OpenTsdbClientPoolConfiguration configuration = PoolBenchmark.configuration(4);
+        pool = new OpenTsdbClientPool(configuration, new DiscardFactory(configuration));
+        if (writerType == WriterType.QUEUE) {
+            TsdbWriterConfiguration config = new TsdbWriterConfiguration();
+            config.setWorkers(4);
+            config.setEnqueueTimeout(60_000L);
+            writer = new TsdbWriter(config, pool);
+        } else {
+            ChunkedTsdbWriterConfiguration config = new ChunkedTsdbWriterConfiguration();
+            config.setWriters(4);
+            writer = new ChunkedTsdbWriter(config, pool);
+        }
+        tags = new HashMap<>();
+        tags.put("device", "device-1.zenoss.loc");
+        tags.put("component", "eth0");
+        tags.put("key", "Devices/device-1");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        ((Closeable) writer).close();
+        pool.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        long timestamp = 1398325180L;
+    }
+
+    private boolean write(Producer producer) {
+        return writer.write("zenoss.device.ifInOctets", producer.timestamp++, 1.5, tags);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean write01(Producer producer) throws IOException {
+        return write(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean write04(Producer producer) throws IOException {
+        return write(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean write16(Producer producer) throws IOException {
+        return write(producer);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.ObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes batches of points to a pool of OpenTsdbClients without blocking the caller.
+ * #writeAsync hands the batch to an I/O thread and returns a WriteFuture at once;
+ * the I/O thread borrows a client, which may wait for the pool, writes and flushes
+ * the batch, and then asks OpenTSDB for its version on the same connection so the
+ * errors it reports for the batch arrive before the answer. The future is flushed
+ * after the flush and confirmed after the answer, or fails with the errors. A batch
+ * that cannot be written is retried on another client up to maxRetries times; one
+ * OpenTSDB answered with errors is not, since its other points were stored.
+ * <p>When no I/O thread is free the batch waits in a queue of queueSize batches,
+ * and a batch that does not fit fails immediately instead of parking the caller.
+ * The I/O threads are created from the configuration unless an executor is given.
+ * When the pool is an OpenTsdbClientPool with series affinity, the batch goes to
+ * the endpoint of its first point.</p>
+ */
+public class AsyncTsdbWriter implements Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(AsyncTsdbWriter.class);
+
+    public AsyncTsdbWriter(AsyncTsdbWriterConfiguration configuration, ObjectPool<OpenTsdbClient> pool) {
+        this(configuration, pool, newExecutor(configuration), true);
+    }
+
+    /**
+     * Write batches on the given executor, which is not shut down when the writer is closed
+     */
+    public AsyncTsdbWriter(AsyncTsdbWriterConfiguration configuration, ObjectPool<OpenTsdbClient> pool, ExecutorService executor) {
+        this(configuration, pool, executor, false);
+    }
+
+    private AsyncTsdbWriter(AsyncTsdbWriterConfiguration configuration, ObjectPool<OpenTsdbClient> pool,
+                            ExecutorService executor, boolean ownsExecutor) {
+        this.pool = pool;
+        this.affinityPool = (pool instanceof OpenTsdbClientPool && ((OpenTsdbClientPool) pool).hasAffinity())
+                ? (OpenTsdbClientPool) pool : null;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxRetries = Math.max(configuration.getMaxRetries(), 0);
+        this.confirm = configuration.isConfirm();
+        this.pending = new AtomicInteger();
+        this.written = new AtomicLong();
+        this.confirmed = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.failed = new AtomicLong();
+    }
+
+    private static ExecutorService newExecutor(AsyncTsdbWriterConfiguration configuration) {
+        int threads = Math.max(configuration.getThreads(), 1);
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(configuration.getQueueSize(), 1)),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "tsdb-async-writer-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Write the points on an I/O thread. The points are copied, so the collection
+     * may be reused once this returns; their tag maps must not be modified.
+     * @return the future of the batch, failed already when the writer is closed or its queue is full
+     */
+    public WriteFuture writeAsync(Collection<Point> points) {
+        final List<Point> batch = new ArrayList<>(points);
+        final WriteFuture future = new WriteFuture(batch.size());
+        if (batch.isEmpty()) {
+            future.setFlushed();
+            future.setConfirmed();
+            return future;
+        }
+        if (closed) {
+            reject(future, "Writer is closed");
+            return future;
+        }
+        pending.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliver(batch, future);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            reject(future, "Writer queue is full");
+        }
+        return future;
+    }
+
+    /**
+     * Write the points on an I/O thread and report its progress to the listener,
+     * which is called from the I/O thread and must not block
+     */
+    public WriteFuture writeAsync(Collection<Point> points, WriteListener listener) {
+        WriteFuture future = writeAsync(points);
+        future.addListener(listener);
+        return future;
+    }
+
+    /**
+     * Stop accepting batches and wait up to timeout ms for the queued ones to complete.
+     * An executor given to the writer is left running.
+     * @return true if every batch completed
+     */
+    public boolean close(long timeout) {
+        closed = true;
+        long start = System.nanoTime();
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            if (ownsExecutor) {
+                executor.shutdown();
+                return executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+            }
+            while (pending.get() > 0) {
+                if (System.nanoTime() - start >= timeoutNanos) {
+                    return false;
+                }
+                Thread.sleep(1);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stop accepting batches and wait for the queued ones to complete, leaving the pool open
+     */
+    @Override
+    public void close() {
+        close(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the number of batches queued or being written
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of points flushed to a client
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of flushed points OpenTSDB answered for without errors
+     */
+    public long getConfirmedCount() {
+        return confirmed.get();
+    }
+
+    /**
+     * @return the number of points rejected because the queue was full or the writer closed
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of points in batches that could not be written or had errors
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Write the batch to a borrowed client, retrying on another client when that fails,
+     * then confirm it
+     */
+    void deliver(List<Point> batch, WriteFuture future) {
+        Exception cause = null;
+        for (int attempt = 0; attempt <= maxRetries; ++attempt) {
+            OpenTsdbClient client;
+            try {
+                Point first = batch.get(0);
+                client = (affinityPool != null)
+                        ? affinityPool.borrowObject(first.getMetric(), first.getTags())
+                        : pool.borrowObject();
+            } catch (Exception e) {
+                log.warn("Unable to borrow an OpenTSDB client: {}", e.toString());
+                cause = e;
+                continue;
+            }
+            try {
+                for (Point point : batch) {
+                    client.put(point.getMetric(), point.getTimestamp(), point.getValue(), point.getTags());
+                }
+                client.flush();
+            } catch (Exception e) {
+                log.warn("Failed writing {} points: {}", batch.size(), e.toString());
+                invalidate(client);
+                cause = e;
+                continue;
+            }
+            written.addAndGet(batch.size());
+            future.setFlushed();
+            confirm(client, batch.size(), future);
+            return;
+        }
+        failed.addAndGet(batch.size());
+        future.setFailed(cause);
+    }
+
+    /**
+     * Wait for OpenTSDB to answer on the client and complete the future with the errors
+     * it reported, then return the client
+     */
+    private void confirm(OpenTsdbClient client, int points, WriteFuture future) {
+        if (!confirm) {
+            release(client);
+            confirmed.addAndGet(points);
+            future.setConfirmed();
+            return;
+        }
+        List<String> errors;
+        try {
+            errors = client.checkForErrors();
+        } catch (IOException | RuntimeException e) {
+            invalidate(client);
+            failed.addAndGet(points);
+            future.setFailed(e);
+            return;
+        }
+        release(client);
+        if (errors.isEmpty()) {
+            confirmed.addAndGet(points);
+            future.setConfirmed();
+        } else {
+            failed.addAndGet(points);
+            future.setFailed(new IOException("OpenTSDB reported " + errors.size() + " errors: " + errors));
+        }
+    }
+
+    private void reject(WriteFuture future, String reason) {
+        rejected.addAndGet(future.getPoints());
+        future.setFailed(new RejectedExecutionException(reason));
+    }
+
+    private void release(OpenTsdbClient client) {
+        try {
+            pool.returnObject(client);
+        } catch (Exception e) {
+            log.warn("Exception returning client to pool", e);
+        }
+    }
+
+    private void invalidate(OpenTsdbClient client) {
+        try {
+            pool.invalidateObject(client);
+        } catch (Exception e) {
+            log.warn("Exception invalidating client", e);
+        }
+    }
+
+    // Dependencies
+    private final ObjectPool<OpenTsdbClient> pool;
+    private final OpenTsdbClientPool affinityPool;
+    private final ExecutorService executor;
+
+    // Internal state
+    private final AtomicInteger pending;
+    private final AtomicLong written;
+    private final AtomicLong confirmed;
+    private final AtomicLong rejected;
+    private final AtomicLong failed;
+    private volatile boolean closed;
+
+    // Configuration
+    private final boolean ownsExecutor;
+    private final int maxRetries;
+    private final boolean confirm;
+}
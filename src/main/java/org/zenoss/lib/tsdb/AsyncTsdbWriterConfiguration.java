@@ -0,0 +1,110 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Configuration for the AsyncTsdbWriter.
+ *
+ * @see AsyncTsdbWriter
+ */
+public class AsyncTsdbWriterConfiguration {
+
+    /**
+     * I/O threads writing batches to clients
+     */
+    @JsonProperty
+    private int threads = 4;
+
+    /**
+     * batches that may wait for an I/O thread
+     */
+    @JsonProperty
+    private int queueSize = 10_000;
+
+    /**
+     * how many more times a batch is tried on another client when writing it fails
+     */
+    @JsonProperty
+    private int maxRetries = 1;
+
+    /**
+     * whether each batch waits for OpenTSDB to answer before it is confirmed
+     */
+    @JsonProperty
+    private boolean confirm = true;
+
+    /**
+     * The number of I/O threads writing batches to clients
+     * @return thread count
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * The maximum number of batches waiting for an I/O thread
+     * @return queue size
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * The number of times a batch is retried on another client when writing it fails
+     * @return retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Whether a batch is confirmed only once OpenTSDB answered a version request
+     * sent after it without errors, rather than as soon as it is flushed
+     * @return true to confirm batches
+     */
+    public boolean isConfirm() {
+        return confirm;
+    }
+
+    /**
+     * The number of I/O threads writing batches to clients
+     * @param threads thread count
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * The maximum number of batches waiting for an I/O thread
+     * @param queueSize queue size
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The number of times a batch is retried on another client when writing it fails
+     * @param maxRetries retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Whether a batch is confirmed only once OpenTSDB answered without errors
+     * @param confirm true to confirm batches
+     */
+    public void setConfirm(boolean confirm) {
+        this.confirm = confirm;
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the clients borrowed from an OpenTsdbClientPool at once while HBase is
+ * struggling, using additive increase / multiplicative decrease. The limit starts
+ * at the total maxConnections of the endpoints. A collision ("RPCs waiting on ...
+ * to come back online") or throttle response multiplies it by backoffFactor, at
+ * most once per rampUpInterval since the responses to one region split arrive in
+ * bursts; every rampUpInterval without one raises it by one. Borrows beyond the
+ * limit wait for a client to be returned.
+ * <p>When collisions keep coming with only one borrow allowed, circuitOpenAfter
+ * backoffs open the circuit: for circuitOpenTime ms borrows fail immediately so
+ * writers stop hammering the TSDs while the region comes back. Then a single borrow
+ * is allowed again and the next collision reopens the circuit.</p>
+ * <p>Other error responses are only counted; the endpoints eject themselves on
+ * bursts of them.</p>
+ */
+public final class BackpressureController {
+
+    static final Logger log = LoggerFactory.getLogger(BackpressureController.class);
+
+    BackpressureController(OpenTsdbClientPoolConfiguration config, int maxLimit) {
+        this.enabled = config.isBackpressure();
+        this.backoffFactor = Math.min(Math.max(config.getBackoffFactor(), 0.0), 1.0);
+        this.rampUpInterval = Math.max(config.getRampUpInterval(), 1);
+        this.circuitOpenAfter = Math.max(config.getCircuitOpenAfter(), 1);
+        this.circuitOpenTime = config.getCircuitOpenTime();
+        this.maxLimit = Math.max(maxLimit, 1);
+        this.limit = new AtomicInteger(this.maxLimit);
+        this.inFlight = new AtomicInteger();
+        this.waiting = new AtomicInteger();
+        this.lastBackoff = new AtomicLong();
+        this.lastChange = new AtomicLong();
+        this.backoffsAtMinimum = new AtomicInteger();
+        this.collisions = new AtomicLong();
+        this.errors = new AtomicLong();
+        this.throttled = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.lock = new ReentrantLock();
+        this.available = lock.newCondition();
+    }
+
+    /**
+     * Admit a borrow, waiting while the limit is reached
+     * @param timeout how long to wait in ms, zero or less waits forever
+     * @return true if the borrow was admitted and must be released, false when disabled
+     * @throws NoSuchElementException when the circuit is open or the wait timed out
+     * @throws InterruptedException when interrupted while waiting
+     */
+    boolean acquire(long timeout) throws InterruptedException {
+        if (!enabled) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        checkCircuit(now);
+        rampUp(now);
+        if (tryAcquire()) {
+            return true;
+        }
+
+        throttled.incrementAndGet();
+        long deadline = now + timeout;
+        lock.lockInterruptibly();
+        waiting.incrementAndGet();
+        try {
+            while (!tryAcquire()) {
+                now = System.currentTimeMillis();
+                checkCircuit(now);
+                rampUp(now);
+                // wake up for the next ramp up even if nothing is returned
+                long wait = rampUpInterval;
+                if (timeout > 0) {
+                    long remaining = deadline - now;
+                    if (remaining <= 0) {
+                        throw new NoSuchElementException("Timeout waiting for OpenTSDB backpressure, "
+                                + inFlight.get() + " of " + limit.get() + " clients in use");
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                available.await(wait, TimeUnit.MILLISECONDS);
+            }
+            return true;
+        } finally {
+            waiting.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The endpoints changed. A limit at the old maximum follows the new one, a
+     * throttled limit keeps ramping up to it.
+     * @param maxLimit the total maxConnections of the endpoints
+     */
+    void setMaxLimit(int maxLimit) {
+        maxLimit = Math.max(maxLimit, 1);
+        int previous = this.maxLimit;
+        this.maxLimit = maxLimit;
+        int current;
+        int next;
+        do {
+            current = limit.get();
+            next = (current >= previous || current > maxLimit) ? maxLimit : current;
+        } while (!limit.compareAndSet(current, next));
+        signalWaiters();
+    }
+
+    /**
+     * A borrow admitted by #acquire has ended
+     */
+    void release() {
+        inFlight.decrementAndGet();
+        signalWaiters();
+    }
+
+    /**
+     * OpenTSDB reported a collision or asked to throttle writes
+     */
+    void onCollision() {
+        collisions.incrementAndGet();
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastBackoff.get();
+        if (now - last < rampUpInterval || !lastBackoff.compareAndSet(last, now)) {
+            return;
+        }
+        lastChange.set(now);
+
+        int current;
+        int reduced;
+        do {
+            current = limit.get();
+            reduced = Math.max((int) (current * backoffFactor), 1);
+        } while (!limit.compareAndSet(current, reduced));
+
+        if (current > 1) {
+            backoffsAtMinimum.set(0);
+            log.warn("HBase collisions, backing off OpenTSDB writes to {} concurrent clients", reduced);
+        } else if (backoffsAtMinimum.incrementAndGet() >= circuitOpenAfter) {
+            openCircuit(now);
+        }
+    }
+
+    /**
+     * OpenTSDB answered with any other error
+     */
+    void onError() {
+        errors.incrementAndGet();
+    }
+
+    private void openCircuit(long now) {
+        long until = now + circuitOpenTime;
+        log.warn("HBase collisions persist, suspending OpenTSDB writes for {} ms", circuitOpenTime);
+        // after the circuit closes one borrow is allowed, and one more backoff reopens it
+        backoffsAtMinimum.set(circuitOpenAfter - 1);
+        lastBackoff.set(until - rampUpInterval);
+        lastChange.set(until);
+        openUntil = until;
+    }
+
+    private void checkCircuit(long now) {
+        long until = openUntil;
+        if (now < until) {
+            rejected.incrementAndGet();
+            throw new NoSuchElementException("OpenTSDB writes are suspended for another "
+                    + (until - now) + " ms after HBase collisions");
+        }
+    }
+
+    private void rampUp(long now) {
+        long last = lastChange.get();
+        if (now - last < rampUpInterval || limit.get() >= maxLimit || !lastChange.compareAndSet(last, now)) {
+            return;
+        }
+        int raised = limit.incrementAndGet();
+        backoffsAtMinimum.set(0);
+        if (raised >= maxLimit) {
+            log.info("No more HBase collisions, OpenTSDB writes are back to {} concurrent clients", raised);
+        }
+        signalWaiters();
+    }
+
+    private boolean tryAcquire() {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit.get()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void signalWaiters() {
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Whether writes flow freely, are throttled or suspended
+     */
+    public BackpressureState getState() {
+        if (System.currentTimeMillis() < openUntil) {
+            return BackpressureState.OPEN;
+        }
+        return (limit.get() < maxLimit) ? BackpressureState.THROTTLED : BackpressureState.NORMAL;
+    }
+
+    /**
+     * Whether collisions throttle borrows at all
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * The number of clients that may currently be borrowed at once
+     */
+    public int getLimit() {
+        return limit.get();
+    }
+
+    /**
+     * The limit without collisions, the total maxConnections of the endpoints
+     */
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * The number of admitted borrows not yet returned
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * The number of borrows waiting for the limit
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * The number of collision and throttle responses received
+     */
+    public long getCollisionCount() {
+        return collisions.get();
+    }
+
+    /**
+     * The number of other error responses received
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * The number of borrows that had to wait for the limit
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * The number of borrows refused while the circuit was open
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return getState() + " " + inFlight.get() + "/" + limit.get();
+    }
+
+    // Internal state
+    private final AtomicInteger limit;
+    private final AtomicInteger inFlight;
+    private final AtomicInteger waiting;
+    private final AtomicLong lastBackoff;
+    private final AtomicLong lastChange;
+    private final AtomicInteger backoffsAtMinimum;
+    private final AtomicLong collisions;
+    private final AtomicLong errors;
+    private final AtomicLong throttled;
+    private final AtomicLong rejected;
+    private final ReentrantLock lock;
+    private final Condition available;
+    private volatile long openUntil;
+
+    // Configuration
+    private final boolean enabled;
+    private final double backoffFactor;
+    private final long rampUpInterval;
+    private final int circuitOpenAfter;
+    private final long circuitOpenTime;
+    private volatile int maxLimit;
+}
@@ -0,0 +1,28 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * What the BackpressureController of a pool is doing to writers.
+ *
+ * @see BackpressureController#getState()
+ */
+public enum BackpressureState {
+
+    /** Every connection of every endpoint may be borrowed */
+    NORMAL,
+
+    /** Concurrent borrows are limited after collisions, borrows beyond the limit wait */
+    THROTTLED,
+
+    /** Writes are suspended for circuitOpenTime, borrows fail immediately */
+    OPEN
+}
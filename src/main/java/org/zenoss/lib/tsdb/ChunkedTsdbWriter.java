@@ -0,0 +1,408 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.ObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A PointSink for many producer threads. Every producer thread encodes its points
+ * into a chunk of its own, chunkSize bytes, so writing a point touches no state
+ * shared with other producers. Full chunks are handed off whole through a
+ * lock-free queue to writer threads, which write each to a borrowed client as a
+ * single write, flush it and return the client, so every chunk goes through the
+ * pool's endpoint selection, keep-alive and admission. Idle writers sleep until a
+ * chunk is handed off.
+ * With chunkSize equal to the pool's clientBufferSize the chunk goes to the
+ * socket without being copied into the client's buffer.
+ * <p>A chunk that is not full after lingerTime ms is handed off by a background
+ * thread, which takes it from its producer with compare-and-set. A chunk that
+ * fails is retried on another client up to maxRetries times. Full chunks beyond
+ * queueSize are dropped, their points counted as dropped. Chunks mix the series
+ * of a thread, so series affinity of the pool does not apply. Closing the
+ * writer delivers every chunk, but leaves the pool open.</p>
+ */
+public class ChunkedTsdbWriter implements PointSink, Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(ChunkedTsdbWriter.class);
+
+    public ChunkedTsdbWriter(ChunkedTsdbWriterConfiguration configuration, ObjectPool<OpenTsdbClient> pool) {
+        this.pool = pool;
+        this.chunkSize = Math.max(configuration.getChunkSize(), 64);
+        this.queueSize = Math.max(configuration.getQueueSize(), 1);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(configuration.getLingerTime(), 1));
+        this.maxRetries = Math.max(configuration.getMaxRetries(), 0);
+        this.full = new ConcurrentLinkedQueue<>();
+        this.free = new ConcurrentLinkedQueue<>();
+        this.queued = new AtomicInteger();
+        this.freeCount = new AtomicInteger();
+        this.slots = new ConcurrentLinkedQueue<>();
+        this.idle = new ConcurrentLinkedQueue<>();
+        this.local = new ThreadLocal<Slot>() {
+            @Override
+            protected Slot initialValue() {
+                Slot slot = new Slot(Thread.currentThread());
+                slots.add(slot);
+                return slot;
+            }
+        };
+        this.written = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.failed = new AtomicLong();
+
+        this.flusher = new Thread(new Flusher(), "tsdb-chunk-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        this.writers = new Thread[Math.max(configuration.getWriters(), 1)];
+        for (int i = 0; i < writers.length; ++i) {
+            writers[i] = new Thread(new Writer(), "tsdb-chunk-writer-" + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+        }
+    }
+
+    /**
+     * Encode the point into the chunk of the calling thread
+     * @return true if the point was encoded, false if the writer is closed
+     */
+    @Override
+    public boolean write(String metric, long timestamp, double value, Map<String, String> tags) {
+        if (closed) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        Slot slot = local.get();
+        PutEncoder encoder = slot.encoder;
+        encoder.reset();
+        int length = encoder.encode(metric, timestamp, value, tags);
+
+        // the chunk is ours until it's set back, the flusher only takes it from the slot
+        Chunk chunk = slot.current.getAndSet(null);
+        if (chunk != null && chunk.length + length > chunk.data.length) {
+            handOff(chunk);
+            chunk = null;
+        }
+        if (chunk == null) {
+            chunk = newChunk(length);
+        }
+        System.arraycopy(encoder.array(), 0, chunk.data, chunk.length, length);
+        chunk.length += length;
+        ++chunk.points;
+        if (chunk.length == chunk.data.length) {
+            handOff(chunk);
+        } else {
+            slot.current.set(chunk);
+            if (closed) {
+                // close may have collected the chunks already
+                discard(slot);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting points, hand off every partial chunk and wait for the writers
+     * to deliver them
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            flusher.interrupt();
+            flusher.join();
+            handOffIdle(0, true);
+            drained = true;
+            for (Thread writer : writers) {
+                LockSupport.unpark(writer);
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of points flushed to a client
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of points rejected because the queue was full or the writer closed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of points lost because every attempt to deliver their chunk failed
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of full chunks waiting for a writer thread
+     */
+    public int getQueuedChunks() {
+        return queued.get();
+    }
+
+    /**
+     * Hand off the partial chunks older than lingerTime, or all of them
+     */
+    void handOffIdle(long now, boolean all) {
+        Iterator<Slot> it = slots.iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next();
+            Chunk chunk = slot.current.get();
+            if (chunk != null && (all || now - chunk.started >= lingerNanos) && slot.current.compareAndSet(chunk, null)) {
+                handOff(chunk);
+            }
+            if (!slot.thread.isAlive() && slot.current.get() == null) {
+                it.remove();
+            }
+        }
+    }
+
+    private Chunk newChunk(int length) {
+        Chunk chunk = null;
+        if (length <= chunkSize) {
+            chunk = free.poll();
+        }
+        if (chunk != null) {
+            freeCount.decrementAndGet();
+            chunk.length = 0;
+            chunk.points = 0;
+        } else {
+            chunk = new Chunk(Math.max(length, chunkSize));
+        }
+        chunk.started = System.nanoTime();
+        return chunk;
+    }
+
+    /**
+     * Keep a chunk of the usual size for reuse, up to as many as may be queued
+     */
+    private void recycle(Chunk chunk) {
+        if (chunk.data.length != chunkSize) {
+            return;
+        }
+        if (freeCount.incrementAndGet() <= queueSize) {
+            free.offer(chunk);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    private void handOff(Chunk chunk) {
+        if (queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            dropped.addAndGet(chunk.points);
+            recycle(chunk);
+            return;
+        }
+        full.offer(chunk);
+        if (drained && full.remove(chunk)) {
+            // the writers may be gone
+            queued.decrementAndGet();
+            dropped.addAndGet(chunk.points);
+            return;
+        }
+        Thread writer = idle.poll();
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void discard(Slot slot) {
+        Chunk chunk = slot.current.getAndSet(null);
+        if (chunk != null) {
+            if (drained) {
+                dropped.addAndGet(chunk.points);
+            } else {
+                handOff(chunk);
+            }
+        }
+    }
+
+    /**
+     * Write the chunk to a borrowed client, retrying on another one when that fails
+     */
+    private void send(Chunk chunk) {
+        for (int attempt = 0; attempt <= maxRetries; ++attempt) {
+            OpenTsdbClient client;
+            try {
+                client = pool.borrowObject();
+            } catch (Exception e) {
+                log.warn("Unable to borrow an OpenTSDB client: {}", e.toString());
+                continue;
+            }
+            try {
+                client.write(chunk.data, 0, chunk.length, chunk.points);
+                client.flush();
+            } catch (Exception e) {
+                log.warn("Failed writing {} points: {}", chunk.points, e.toString());
+                invalidate(client);
+                continue;
+            }
+            written.addAndGet(chunk.points);
+            release(client);
+            return;
+        }
+        failed.addAndGet(chunk.points);
+        log.error("Dropped {} points after {} attempts", chunk.points, maxRetries + 1);
+    }
+
+    private void release(OpenTsdbClient client) {
+        try {
+            pool.returnObject(client);
+        } catch (Exception e) {
+            log.warn("Exception returning client to pool", e);
+        }
+    }
+
+    private void invalidate(OpenTsdbClient client) {
+        try {
+            pool.invalidateObject(client);
+        } catch (Exception e) {
+            log.warn("Exception invalidating client", e);
+        }
+    }
+
+    /**
+     * Encoded put lines and how many there are
+     */
+    private static final class Chunk {
+
+        Chunk(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        final byte[] data;
+        int length;
+        int points;
+        long started;
+    }
+
+    /**
+     * The encoder and the chunk being filled of one producer thread
+     */
+    private static final class Slot {
+
+        Slot(Thread thread) {
+            this.thread = thread;
+            this.encoder = new PutEncoder();
+            this.current = new AtomicReference<>();
+        }
+
+        final Thread thread;
+        final PutEncoder encoder;
+        final AtomicReference<Chunk> current;
+    }
+
+    /**
+     * Hands off the chunks of producers that stopped writing
+     */
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            long period = Math.max(TimeUnit.NANOSECONDS.toMillis(lingerNanos) / 2, 1L);
+            while (!closed) {
+                try {
+                    Thread.sleep(period);
+                    handOffIdle(System.nanoTime(), false);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Unexpected exception handing off idle chunks", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes chunks, sleeping until one is handed off when there are none
+     */
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            Thread self = Thread.currentThread();
+            while (true) {
+                Chunk chunk = full.poll();
+                if (chunk == null) {
+                    if (drained && full.isEmpty()) {
+                        return;
+                    }
+                    // register before looking again, so a hand-off in between wakes us
+                    idle.offer(self);
+                    if (full.isEmpty() && !drained) {
+                        LockSupport.parkNanos(lingerNanos);
+                    }
+                    idle.remove(self);
+                    continue;
+                }
+                queued.decrementAndGet();
+                try {
+                    send(chunk);
+                } catch (RuntimeException e) {
+                    log.error("Unexpected exception writing {} points", chunk.points, e);
+                    failed.addAndGet(chunk.points);
+                } finally {
+                    recycle(chunk);
+                }
+            }
+        }
+    }
+
+    // Dependencies
+    private final ObjectPool<OpenTsdbClient> pool;
+
+    // Internal state
+    private final Queue<Chunk> full;
+    private final Queue<Chunk> free;
+    private final AtomicInteger queued;
+    private final AtomicInteger freeCount;
+    private final Queue<Slot> slots;
+    private final Queue<Thread> idle;
+    private final ThreadLocal<Slot> local;
+    private final Thread flusher;
+    private final Thread[] writers;
+    private final AtomicLong written;
+    private final AtomicLong dropped;
+    private final AtomicLong failed;
+    private volatile boolean closed;
+    private volatile boolean drained;
+
+    // Configuration
+    private final int chunkSize;
+    private final int queueSize;
+    private final long lingerNanos;
+    private final int maxRetries;
+}
@@ -0,0 +1,132 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Configuration for the ChunkedTsdbWriter.
+ *
+ * @see ChunkedTsdbWriter
+ */
+public class ChunkedTsdbWriterConfiguration {
+
+    /**
+     * bytes each producer thread encodes before handing a chunk off, best the clientBufferSize
+     */
+    @JsonProperty
+    private int chunkSize = 8192;
+
+    /**
+     * full chunks that may wait for a writer thread
+     */
+    @JsonProperty
+    private int queueSize = 1024;
+
+    /**
+     * background threads writing chunks to clients
+     */
+    @JsonProperty
+    private int writers = 2;
+
+    /**
+     * how long a partial chunk may wait for more points in ms
+     */
+    @JsonProperty
+    private long lingerTime = 100L;
+
+    /**
+     * how many more times a failed chunk is tried on another client
+     */
+    @JsonProperty
+    private int maxRetries = 1;
+
+    /**
+     * The number of bytes a producer thread encodes before handing the chunk to a
+     * writer; with the clientBufferSize of the pool every chunk is a single write
+     * @return size in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * The maximum number of full chunks waiting for a writer thread
+     * @return queue size in chunks
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * The number of background threads writing chunks to clients
+     * @return writer count
+     */
+    public int getWriters() {
+        return writers;
+    }
+
+    /**
+     * The maximum time a partial chunk waits for more points
+     * @return time in milliseconds
+     */
+    public long getLingerTime() {
+        return lingerTime;
+    }
+
+    /**
+     * The number of times a failed chunk is retried on another client
+     * @return retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * The number of bytes a producer thread encodes before handing the chunk to a writer
+     * @param chunkSize size in bytes
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * The maximum number of full chunks waiting for a writer thread
+     * @param queueSize queue size in chunks
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The number of background threads writing chunks to clients
+     * @param writers writer count
+     */
+    public void setWriters(int writers) {
+        this.writers = writers;
+    }
+
+    /**
+     * The maximum time a partial chunk waits for more points
+     * @param lingerTime time in milliseconds
+     */
+    public void setLingerTime(long lingerTime) {
+        this.lingerTime = lingerTime;
+    }
+
+    /**
+     * The number of times a failed chunk is retried on another client
+     * @param maxRetries retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+}
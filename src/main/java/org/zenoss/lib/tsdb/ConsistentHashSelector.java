@@ -0,0 +1,156 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Chooses the endpoint a series hashes to on a consistent-hash ring, so the points
+ * of a series keep going to the same TSD and each TSD caches the UIDs and compacts
+ * the rows of fewer series. Every endpoint owns VIRTUAL_NODES positions on the
+ * ring per unit of weight, placed by hashing its host and port, so adding or
+ * removing an endpoint only moves the series next to its positions. A series
+ * whose endpoint is ejected goes to the next endpoint along the ring until it
+ * recovers. Borrows without a series fall back to the least outstanding endpoint.
+ * The ring is rebuilt when the pool's endpoints change.
+ */
+public final class ConsistentHashSelector implements EndpointSelector {
+
+    /** Ring positions per unit of endpoint weight */
+    static final int VIRTUAL_NODES = 128;
+
+    public ConsistentHashSelector() {
+        this.fallback = new LeastOutstandingSelector();
+    }
+
+    @Override
+    public OpenTsdbEndpoint select(OpenTsdbEndpoint[] endpoints) {
+        return fallback.select(endpoints);
+    }
+
+    /**
+     * Choose the endpoint of the series, skipping ejected endpoints
+     * @param seriesHash the #seriesHash of the series
+     * @return the endpoint, or null if every endpoint is ejected
+     */
+    public OpenTsdbEndpoint select(OpenTsdbEndpoint[] endpoints, long seriesHash) {
+        Ring ring = ring(endpoints);
+        int i = Arrays.binarySearch(ring.positions, seriesHash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        // walk clockwise past the positions of ejected endpoints
+        for (int n = 0; n < ring.positions.length; ++n) {
+            OpenTsdbEndpoint endpoint = ring.owners[(i + n) % ring.positions.length];
+            if (!endpoint.isEjected()) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hash a series by its metric and tags. The tags are combined independently of
+     * their order, so equal tag sets hash alike like the sorted tags of
+     * OpenTsdbClient#toPutMessage, without sorting them.
+     */
+    public static long seriesHash(String metric, Map<String, String> tags) {
+        long tagHash = 0;
+        for (Map.Entry<String, String> entry : tags.entrySet()) {
+            tagHash += mix(((long) hash(entry.getKey()) << 32) ^ (hash(entry.getValue()) & 0xffffffffL));
+        }
+        return mix(mix(hash(metric)) ^ tagHash);
+    }
+
+    private static int hash(String s) {
+        return (s != null) ? s.hashCode() : 0;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreads every bit of the input over the output
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private Ring ring(OpenTsdbEndpoint[] endpoints) {
+        Ring ring = this.ring;
+        if (ring == null || ring.endpoints != endpoints) {
+            ring = new Ring(endpoints);
+            this.ring = ring;
+        }
+        return ring;
+    }
+
+    /**
+     * The sorted positions of the endpoints of one endpoints array
+     */
+    private static final class Ring {
+
+        Ring(OpenTsdbEndpoint[] endpoints) {
+            int count = 0;
+            for (OpenTsdbEndpoint endpoint : endpoints) {
+                count += VIRTUAL_NODES * endpoint.getWeight();
+            }
+            long[] positions = new long[count];
+            OpenTsdbEndpoint[] owners = new OpenTsdbEndpoint[count];
+            int n = 0;
+            for (OpenTsdbEndpoint endpoint : endpoints) {
+                long base = mix(hash(endpoint.getHost()) * 31L + endpoint.getPort());
+                for (int i = 0; i < VIRTUAL_NODES * endpoint.getWeight(); ++i) {
+                    positions[n] = mix(base + i * 0x9e3779b97f4a7c15L);
+                    owners[n] = endpoint;
+                    ++n;
+                }
+            }
+            sort(positions, owners);
+            this.endpoints = endpoints;
+            this.positions = positions;
+            this.owners = owners;
+        }
+
+        private static void sort(long[] positions, OpenTsdbEndpoint[] owners) {
+            Integer[] order = new Integer[positions.length];
+            for (int i = 0; i < order.length; ++i) {
+                order[i] = i;
+            }
+            final long[] keys = positions.clone();
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(keys[a], keys[b]);
+                }
+            });
+            OpenTsdbEndpoint[] sortedOwners = owners.clone();
+            for (int i = 0; i < order.length; ++i) {
+                positions[i] = keys[order[i]];
+                owners[i] = sortedOwners[order[i]];
+            }
+        }
+
+        final OpenTsdbEndpoint[] endpoints;
+        final long[] positions;
+        final OpenTsdbEndpoint[] owners;
+    }
+
+    // Dependencies
+    private final LeastOutstandingSelector fallback;
+
+    // Internal state
+    private volatile Ring ring;
+}
@@ -0,0 +1,361 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.math.BigInteger;
+
+/**
+ * Formats doubles and longs as ASCII straight into a byte array, without allocating.
+ * Doubles are written in the format of Double#toString with the shortest decimal
+ * that rounds back to the same double, closest to it when there are several,
+ * found with Raffaello Giulietti's Schubfach algorithm ("The Schubfach way to
+ * render doubles", 2020). This is what Double#toString returns since JDK 19. Older
+ * JDKs return the same for every normal double that is not an integer, but render
+ * some large integers and some subnormals with more digits than needed, or with
+ * digits further from the double. Put lines must match Double#toString of the
+ * running JDK, so on those JDKs subnormals, which are rare, are formatted with it.
+ */
+final class DoubleFormatter {
+
+    /** Enough room for any double, like "-2.2250738585072014E-308" */
+    static final int MAX_LENGTH = 24;
+
+    /** Enough room for any long, like "-9223372036854775808" */
+    static final int MAX_LONG_LENGTH = 20;
+
+    private static final int Q_MIN = -1074;
+    private static final long C_MIN = 1L << 52;
+    private static final long C_TINY = 3;
+    private static final int K_MIN = -324;
+    private static final int K_MAX = 292;
+    private static final long MASK_63 = 0x7fffffffffffffffL;
+
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes();
+
+    /** Whether Double#toString predates JDK 19, where 2 * Double.MIN_VALUE is "1.0E-323" */
+    private static final boolean LEGACY_SUBNORMALS = !"9.9E-324".equals(Double.toString(2 * Double.MIN_VALUE));
+
+    /** Two digit pairs "00" to "99" */
+    private static final byte[] DIGIT_PAIRS = new byte[200];
+
+    /** The powers of ten up to 10^18 */
+    private static final long[] POW10 = new long[19];
+
+    /**
+     * Approximations g1 2^63 + g0 of 10^-k scaled to 126 bits, for k from K_MIN
+     * to K_MAX: floor(10^-k 2^(125 - flog2pow10(-k))) + 1
+     */
+    private static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+    static {
+        for (int i = 0; i < 100; ++i) {
+            DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+            DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+        }
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; ++i) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+        BigInteger mask63 = BigInteger.valueOf(MASK_63);
+        for (int k = K_MIN; k <= K_MAX; ++k) {
+            int e = -k;
+            int shift = 125 - flog2pow10(e);
+            BigInteger g;
+            if (e >= 0) {
+                BigInteger pow = BigInteger.TEN.pow(e);
+                g = (shift >= 0) ? pow.shiftLeft(shift) : pow.shiftRight(-shift);
+            } else {
+                g = BigInteger.ONE.shiftLeft(shift).divide(BigInteger.TEN.pow(-e));
+            }
+            g = g.add(BigInteger.ONE);
+            G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+            G[2 * (k - K_MIN) + 1] = g.and(mask63).longValue();
+        }
+    }
+
+    private DoubleFormatter() {
+    }
+
+    /**
+     * Write the double like Double#toString
+     * @param buf array with at least MAX_LENGTH bytes of room after pos
+     * @return the position after the last byte written
+     */
+    static int format(double v, byte[] buf, int pos) {
+        long bits = Double.doubleToRawLongBits(v);
+        long t = bits & 0x000fffffffffffffL;
+        int bq = (int) (bits >>> 52) & 0x7ff;
+        if (bq == 0x7ff) {
+            if (t != 0) {
+                return put(NAN, buf, pos);
+            }
+            if (bits < 0) {
+                buf[pos++] = '-';
+            }
+            return put(INFINITY, buf, pos);
+        }
+        if (bits < 0) {
+            buf[pos++] = '-';
+        }
+        if (bq != 0) {
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            // integers below 2^53 are their own decimal
+            if (0 < mq && mq < 53) {
+                long f = c >> mq;
+                if (f << mq == c) {
+                    return toChars(f, 0, buf, pos);
+                }
+            }
+            return toDecimal(-mq, c, 0, buf, pos);
+        }
+        if (t != 0) {
+            if (LEGACY_SUBNORMALS) {
+                return putLegacy(Math.abs(v), buf, pos);
+            }
+            // subnormal, the smallest are scaled so the algorithm has room
+            return (t < C_TINY) ? toDecimal(Q_MIN, 10 * t, -1, buf, pos) : toDecimal(Q_MIN, t, 0, buf, pos);
+        }
+        buf[pos++] = '0';
+        buf[pos++] = '.';
+        buf[pos++] = '0';
+        return pos;
+    }
+
+    /**
+     * Write the long in decimal
+     * @param buf array with at least MAX_LONG_LENGTH bytes of room after pos
+     * @return the position after the last byte written
+     */
+    static int formatLong(long value, byte[] buf, int pos) {
+        if (value == Long.MIN_VALUE) {
+            return put(LONG_MIN_VALUE, buf, pos);
+        }
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int end = pos + digits(value);
+        writeDigits(value, buf, end);
+        return end;
+    }
+
+    /**
+     * Find the decimal for c 2^q and write it
+     * @param dk the decimal exponent correction for a scaled c
+     */
+    private static int toDecimal(int q, long c, int dk, byte[] buf, int pos) {
+        // an odd c excludes the bounds of its rounding interval
+        int out = (int) c & 0x1;
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            // the interval below a power of two is half as wide
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long g1 = G[2 * (k - K_MIN)];
+        long g0 = G[2 * (k - K_MIN) + 1];
+
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            // one digit less when a multiple of ten is in the interval
+            long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                return toChars(upin ? sp10 : tp10, k, buf, pos);
+            }
+        }
+
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            return toChars(uin ? s : t, k + dk, buf, pos);
+        }
+        // both are in the interval, take the closest, the even one on a tie
+        long cmp = vb - ((s + t) << 1);
+        return toChars((cmp < 0 || (cmp == 0 && (s & 0x1) == 0)) ? s : t, k + dk, buf, pos);
+    }
+
+    /**
+     * Write f 10^e in the format of Double#toString
+     */
+    private static int toChars(long f, int e, byte[] buf, int pos) {
+        // drop trailing zeros, then f = 0.d1...dn 10^e
+        while (f % 10 == 0) {
+            f /= 10;
+            ++e;
+        }
+        int n = digits(f);
+        e += n;
+
+        if (0 < e && e <= 7) {
+            // plain, "123.45" or "1234.0"
+            if (n <= e) {
+                writeDigits(f, buf, pos + n);
+                pos += n;
+                for (int i = n; i < e; ++i) {
+                    buf[pos++] = '0';
+                }
+                buf[pos++] = '.';
+                buf[pos++] = '0';
+                return pos;
+            }
+            long high = f / POW10[n - e];
+            writeDigits(high, buf, pos + e);
+            pos += e;
+            buf[pos++] = '.';
+            writeDigits(f - high * POW10[n - e], buf, pos + n - e, pos);
+            return pos + n - e;
+        }
+        if (-3 < e && e <= 0) {
+            // plain, "0.00123"
+            buf[pos++] = '0';
+            buf[pos++] = '.';
+            for (int i = e; i < 0; ++i) {
+                buf[pos++] = '0';
+            }
+            writeDigits(f, buf, pos + n);
+            return pos + n;
+        }
+
+        // computerized scientific notation, "1.2345E-5" or "1.0E10"
+        long first = f / POW10[n - 1];
+        buf[pos++] = (byte) ('0' + first);
+        buf[pos++] = '.';
+        if (n == 1) {
+            buf[pos++] = '0';
+        } else {
+            writeDigits(f - first * POW10[n - 1], buf, pos + n - 1, pos);
+            pos += n - 1;
+        }
+        buf[pos++] = 'E';
+        int exponent = e - 1;
+        if (exponent < 0) {
+            buf[pos++] = '-';
+            exponent = -exponent;
+        }
+        int end = pos + digits(exponent);
+        writeDigits(exponent, buf, end);
+        return end;
+    }
+
+    /**
+     * @return the number of decimal digits of the non-negative value
+     */
+    private static int digits(long value) {
+        // 1233/4096 approximates log10(2)
+        int log10 = (64 - Long.numberOfLeadingZeros(value)) * 1233 >>> 12;
+        return (value >= POW10[log10]) ? log10 + 1 : Math.max(log10, 1);
+    }
+
+    /**
+     * Write the digits of the non-negative value backwards, ending before end
+     */
+    private static void writeDigits(long value, byte[] buf, int end) {
+        writeDigits(value, buf, end, end - digits(value));
+    }
+
+    /**
+     * Write the value backwards from end, padded with leading zeros down to start
+     */
+    private static void writeDigits(long value, byte[] buf, int end, int start) {
+        int pos = end;
+        while (value >= 100) {
+            long q = value / 100;
+            int r = (int) (value - q * 100);
+            value = q;
+            buf[--pos] = DIGIT_PAIRS[2 * r + 1];
+            buf[--pos] = DIGIT_PAIRS[2 * r];
+        }
+        if (value >= 10) {
+            buf[--pos] = DIGIT_PAIRS[2 * (int) value + 1];
+            buf[--pos] = DIGIT_PAIRS[2 * (int) value];
+        } else {
+            buf[--pos] = (byte) ('0' + value);
+        }
+        while (pos > start) {
+            buf[--pos] = '0';
+        }
+    }
+
+    private static int put(byte[] bytes, byte[] buf, int pos) {
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    /**
+     * Write the double with Double#toString, which allocates
+     */
+    private static int putLegacy(double v, byte[] buf, int pos) {
+        String s = Double.toString(v);
+        for (int i = 0; i < s.length(); ++i) {
+            buf[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    /**
+     * The approximation of g cp 2^-127 rounded to odd, g = g1 2^63 + g0
+     */
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (((z & MASK_63) + MASK_63) >>> 63);
+    }
+
+    /**
+     * The high 64 bits of the 128 bit product of non-negative longs
+     */
+    static long multiplyHigh(long x, long y) {
+        long x1 = x >>> 32;
+        long x0 = x & 0xffffffffL;
+        long y1 = y >>> 32;
+        long y0 = y & 0xffffffffL;
+        long t = x1 * y0 + ((x0 * y0) >>> 32);
+        long u = x0 * y1 + (t & 0xffffffffL);
+        return x1 * y1 + (t >>> 32) + (u >>> 32);
+    }
+
+    /** floor(q log10(2)) */
+    static int flog10pow2(int q) {
+        return (int) (q * 661971961083L >> 41);
+    }
+
+    /** floor(log10(3/4 2^q)) */
+    static int flog10threeQuartersPow2(int q) {
+        return (int) (q * 661971961083L - 274743187321L >> 41);
+    }
+
+    /** floor(e log2(10)) */
+    static int flog2pow10(int e) {
+        return (int) (e * 913124641741L >> 38);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * How a Downsampler combines the samples of a bucket into the point it emits.
+ *
+ * @see DownsamplerConfiguration#getAggregator()
+ */
+public enum DownsampleAggregator {
+
+    /** The mean of the samples */
+    AVG,
+
+    /** The sum of the samples */
+    SUM,
+
+    /** The smallest sample */
+    MIN,
+
+    /** The largest sample */
+    MAX,
+
+    /** The sample with the latest timestamp, the last one received on a tie */
+    LAST
+}
@@ -0,0 +1,452 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the points of each series into buckets of interval ms and writes one
+ * point per bucket to the downstream sink, timestamped with the start of the
+ * bucket. Timestamps are taken as seconds, or as milliseconds when they do not
+ * fit in 32 bits like OpenTSDB does, and emitted in the same unit.
+ * <p>A bucket closes once a sample of its series is lateness ms past the end of
+ * the bucket; samples for a closed bucket are dropped as late. A series that is
+ * not written to for interval + lateness ms has its buckets closed by a
+ * background thread, and when more than maxSeries series have open buckets the
+ * least recently written is closed early. Buckets are kept in primitive arrays
+ * per series, so aggregating a sample allocates nothing.</p>
+ * <p>Series are split into stripes behind their own locks. Points are written
+ * downstream while the lock of their stripe is held, so a blocking downstream
+ * only holds up the series of that stripe. Closing the downsampler emits every
+ * open bucket but leaves the downstream sink open. This class is thread safe.</p>
+ */
+public class Downsampler implements PointSink, Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(Downsampler.class);
+
+    static final int STRIPES = 16;
+
+    /** Timestamps with any of these bits set are in milliseconds */
+    private static final long SECOND_MASK = 0xffffffff00000000L;
+
+    public Downsampler(DownsamplerConfiguration configuration, PointSink downstream) {
+        if (configuration.getInterval() <= 0) {
+            throw new IllegalArgumentException("Downsampling interval must be positive");
+        }
+        this.downstream = downstream;
+        this.interval = configuration.getInterval();
+        this.lateness = Math.max(configuration.getLateness(), 0);
+        this.aggregator = configuration.getAggregator();
+        // buckets that can be open at once: those ending within lateness of the latest sample
+        this.slots = (int) Math.min(1 + (lateness + interval - 1) / interval, 64);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(interval + lateness);
+        this.received = new AtomicLong();
+        this.emitted = new AtomicLong();
+        this.late = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.evicted = new AtomicLong();
+
+        int maxSeries = Math.max(configuration.getMaxSeries() / STRIPES, 1);
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i] = new Stripe(maxSeries);
+        }
+
+        this.flusher = new Thread(new Flusher(), "tsdb-downsampler");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Add the sample to the bucket of its series
+     * @return true if the sample was aggregated, false if it was late or the downsampler is closed
+     */
+    @Override
+    public boolean write(String metric, long timestamp, double value, Map<String, String> tags) {
+        if (closed) {
+            return false;
+        }
+        int hash = Objects.hashCode(metric) * 31 + tags.hashCode();
+        Stripe stripe = stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+        synchronized (stripe) {
+            Series series = stripe.get(metric, tags, hash);
+            if (!series.add(timestamp, value)) {
+                late.incrementAndGet();
+                return false;
+            }
+        }
+        received.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Emit every open bucket and stop the background thread
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flusher.interrupt();
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * Close the buckets of the series not written to since before the deadline
+     */
+    void flush(long deadline) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Series> it = stripe.map.values().iterator();
+                while (it.hasNext()) {
+                    Series series = it.next();
+                    if (deadline == Long.MAX_VALUE || series.lastWrite - deadline < 0) {
+                        series.emitAll();
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples aggregated
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of points written downstream, one per bucket
+     */
+    public long getEmittedCount() {
+        return emitted.get();
+    }
+
+    /**
+     * @return the number of samples dropped because their bucket was closed
+     */
+    public long getLateCount() {
+        return late.get();
+    }
+
+    /**
+     * @return the number of emitted points the downstream sink dropped
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of series closed early to stay within maxSeries
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * @return the number of series with open buckets
+     */
+    public int getSeriesCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.map.size();
+            }
+        }
+        return count;
+    }
+
+    private void emit(String metric, long timestamp, double value, Map<String, String> tags) {
+        if (downstream.write(metric, timestamp, value, tags)) {
+            emitted.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Identifies a series; the map of a stripe is probed with a reused instance
+     */
+    private static final class Key {
+
+        Key(String metric, Map<String, String> tags, int hash) {
+            this.metric = metric;
+            this.tags = tags;
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Objects.equals(metric, other.metric) && tags.equals(other.tags);
+        }
+
+        String metric;
+        Map<String, String> tags;
+        int hash;
+    }
+
+    private final class Stripe {
+
+        Stripe(int maxSeries) {
+            this.maxSeries = maxSeries;
+            this.map = new LinkedHashMap<>(16, 0.75f, true);
+            this.probe = new Key(null, null, 0);
+        }
+
+        Series get(String metric, Map<String, String> tags, int hash) {
+            probe.metric = metric;
+            probe.tags = tags;
+            probe.hash = hash;
+            Series series = map.get(probe);
+            probe.metric = null;
+            probe.tags = null;
+            if (series != null) {
+                return series;
+            }
+            if (map.size() >= maxSeries) {
+                Iterator<Series> eldest = map.values().iterator();
+                eldest.next().emitAll();
+                eldest.remove();
+                evicted.incrementAndGet();
+            }
+            series = new Series(metric, tags);
+            map.put(new Key(metric, tags, hash), series);
+            return series;
+        }
+
+        final LinkedHashMap<Key, Series> map;
+        final int maxSeries;
+        final Key probe;
+    }
+
+    /**
+     * The open buckets of a series, sorted by start
+     */
+    private final class Series {
+
+        Series(String metric, Map<String, String> tags) {
+            this.metric = metric;
+            this.tags = tags;
+            this.latest = Long.MIN_VALUE;
+            this.starts = new long[slots];
+            this.counts = new long[slots];
+            this.sums = new double[slots];
+            this.mins = new double[slots];
+            this.maxs = new double[slots];
+            this.lasts = new double[slots];
+            this.lastTimes = new long[slots];
+        }
+
+        /**
+         * @return false if the bucket of the sample is closed
+         */
+        boolean add(long timestamp, double value) {
+            boolean seconds = (timestamp & SECOND_MASK) == 0;
+            long time = seconds ? timestamp * 1000 : timestamp;
+            if (open == 0) {
+                millis = !seconds;
+            }
+            lastWrite = System.nanoTime();
+            if (time > latest) {
+                latest = time;
+                // close the buckets that are now too far behind
+                int closing = 0;
+                while (closing < open && starts[closing] + interval + lateness <= latest) {
+                    emit(closing++);
+                }
+                remove(closing);
+            }
+
+            long start = time - floorMod(time, interval);
+            if (start + interval + lateness <= latest) {
+                return false;
+            }
+            int i = 0;
+            while (i < open && starts[i] < start) {
+                ++i;
+            }
+            if (i == open || starts[i] != start) {
+                insert(i, start);
+            }
+            if (counts[i] == 0) {
+                sums[i] = value;
+                mins[i] = value;
+                maxs[i] = value;
+                lasts[i] = value;
+                lastTimes[i] = time;
+            } else {
+                sums[i] += value;
+                mins[i] = Math.min(mins[i], value);
+                maxs[i] = Math.max(maxs[i], value);
+                if (time >= lastTimes[i]) {
+                    lasts[i] = value;
+                    lastTimes[i] = time;
+                }
+            }
+            ++counts[i];
+            return true;
+        }
+
+        void emitAll() {
+            for (int i = 0; i < open; ++i) {
+                emit(i);
+            }
+            open = 0;
+        }
+
+        private void emit(int i) {
+            double value;
+            switch (aggregator) {
+                case SUM:
+                    value = sums[i];
+                    break;
+                case MIN:
+                    value = mins[i];
+                    break;
+                case MAX:
+                    value = maxs[i];
+                    break;
+                case LAST:
+                    value = lasts[i];
+                    break;
+                default:
+                    value = sums[i] / counts[i];
+            }
+            Downsampler.this.emit(metric, millis ? starts[i] : starts[i] / 1000, value, tags);
+        }
+
+        /**
+         * Drop the first count buckets
+         */
+        private void remove(int count) {
+            if (count == 0) {
+                return;
+            }
+            int remaining = open - count;
+            System.arraycopy(starts, count, starts, 0, remaining);
+            System.arraycopy(counts, count, counts, 0, remaining);
+            System.arraycopy(sums, count, sums, 0, remaining);
+            System.arraycopy(mins, count, mins, 0, remaining);
+            System.arraycopy(maxs, count, maxs, 0, remaining);
+            System.arraycopy(lasts, count, lasts, 0, remaining);
+            System.arraycopy(lastTimes, count, lastTimes, 0, remaining);
+            open = remaining;
+        }
+
+        /**
+         * Open an empty bucket at index i, the earliest is closed when all are in use
+         */
+        private void insert(int i, long start) {
+            if (open == slots) {
+                // only with more than 64 intervals of lateness
+                emit(0);
+                remove(1);
+                --i;
+                if (i < 0) {
+                    i = 0;
+                }
+            }
+            int moving = open - i;
+            System.arraycopy(starts, i, starts, i + 1, moving);
+            System.arraycopy(counts, i, counts, i + 1, moving);
+            System.arraycopy(sums, i, sums, i + 1, moving);
+            System.arraycopy(mins, i, mins, i + 1, moving);
+            System.arraycopy(maxs, i, maxs, i + 1, moving);
+            System.arraycopy(lasts, i, lasts, i + 1, moving);
+            System.arraycopy(lastTimes, i, lastTimes, i + 1, moving);
+            starts[i] = start;
+            counts[i] = 0;
+            ++open;
+        }
+
+        final String metric;
+        final Map<String, String> tags;
+        boolean millis;
+        long latest;
+        long lastWrite;
+        int open;
+        final long[] starts;
+        final long[] counts;
+        final double[] sums;
+        final double[] mins;
+        final double[] maxs;
+        final double[] lasts;
+        final long[] lastTimes;
+    }
+
+    private static long floorMod(long x, long y) {
+        long mod = x % y;
+        return (mod < 0) ? mod + y : mod;
+    }
+
+    /**
+     * Closes the buckets of series that stopped being written to
+     */
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            long period = Math.max(Math.min(interval / 4, 1000L), 10L);
+            while (!closed) {
+                try {
+                    Thread.sleep(period);
+                    flush(System.nanoTime() - idleNanos);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Unexpected exception closing idle series", e);
+                }
+            }
+        }
+    }
+
+    // Dependencies
+    private final PointSink downstream;
+
+    // Internal state
+    private final Stripe[] stripes;
+    private final Thread flusher;
+    private final AtomicLong received;
+    private final AtomicLong emitted;
+    private final AtomicLong late;
+    private final AtomicLong dropped;
+    private final AtomicLong evicted;
+    private volatile boolean closed;
+
+    // Configuration
+    private final long interval;
+    private final long lateness;
+    private final DownsampleAggregator aggregator;
+    private final int slots;
+    private final long idleNanos;
+}
@@ -0,0 +1,110 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Configuration for a Downsampler. A TsdbWriter downsamples the points written
+ * to it only when an interval is set.
+ *
+ * @see Downsampler
+ */
+public class DownsamplerConfiguration {
+
+    /**
+     * width of the buckets in ms, 0 to disable downsampling
+     */
+    @JsonProperty
+    private long interval = 0L;
+
+    /**
+     * how the samples of a bucket are combined
+     */
+    @JsonProperty
+    private DownsampleAggregator aggregator = DownsampleAggregator.AVG;
+
+    /**
+     * how far behind the latest sample of a series a bucket still accepts samples in ms
+     */
+    @JsonProperty
+    private long lateness = 0L;
+
+    /**
+     * series with open buckets, beyond that the least recently written are emitted
+     */
+    @JsonProperty
+    private int maxSeries = 100_000;
+
+    /**
+     * The width of the buckets
+     * @return time in milliseconds, 0 when downsampling is disabled
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * How the samples of a bucket are combined
+     * @return aggregator
+     */
+    public DownsampleAggregator getAggregator() {
+        return aggregator;
+    }
+
+    /**
+     * How far behind the latest sample of a series a bucket still accepts samples
+     * @return time in milliseconds
+     */
+    public long getLateness() {
+        return lateness;
+    }
+
+    /**
+     * The maximum number of series with open buckets
+     * @return series count
+     */
+    public int getMaxSeries() {
+        return maxSeries;
+    }
+
+    /**
+     * The width of the buckets
+     * @param interval time in milliseconds, 0 when downsampling is disabled
+     */
+    public void setInterval(long interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * How the samples of a bucket are combined
+     * @param aggregator aggregator
+     */
+    public void setAggregator(DownsampleAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    /**
+     * How far behind the latest sample of a series a bucket still accepts samples
+     * @param lateness time in milliseconds
+     */
+    public void setLateness(long lateness) {
+        this.lateness = lateness;
+    }
+
+    /**
+     * The maximum number of series with open buckets
+     * @param maxSeries series count
+     */
+    public void setMaxSeries(int maxSeries) {
+        this.maxSeries = maxSeries;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * Chooses the endpoint an OpenTsdbClientPool borrows from. Selectors are called
+ * by every borrowing thread at once and should not lock.
+ *
+ * @see OpenTsdbEndpointSelection
+ */
+public interface EndpointSelector {
+
+    /**
+     * Choose the endpoint for the next borrow, skipping ejected endpoints.
+     * @param endpoints the pool's endpoints, never empty and not to be modified
+     * @return the endpoint, or null if every endpoint is ejected
+     */
+    OpenTsdbEndpoint select(OpenTsdbEndpoint[] endpoints);
+}
@@ -0,0 +1,114 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reloads the endpoints of an OpenTsdbClientPool from a JSON file, a list of
+ * clients like the "clients" of the pool configuration:
+ * <pre>[{"host": "tsd1", "port": 4242, "maxConnections": 4}, {"host": "tsd2", "port": 4242}]</pre>
+ * The file is read when the discovery is created and again whenever its size or
+ * modification time changes, checked every interval ms by a daemon thread. A file
+ * that is missing, cannot be parsed or lists no clients leaves the endpoints as
+ * they are, so a half-written or deleted file never empties the pool.
+ *
+ * @see OpenTsdbClientPool#reload(List)
+ */
+public final class FileEndpointDiscovery implements Runnable, Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(FileEndpointDiscovery.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public FileEndpointDiscovery(File file, long interval, OpenTsdbClientPool pool) {
+        this.file = file;
+        this.interval = Math.max(interval, 1);
+        this.pool = pool;
+        poll();
+        this.thread = new Thread(this, "tsdb-discovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(interval);
+                poll();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception reloading OpenTSDB endpoints from {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Reload the endpoints if the file changed since the last poll
+     * @return true if the endpoints were reloaded
+     */
+    boolean poll() {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == 0L || (modified == lastModified && length == lastLength)) {
+            return false;
+        }
+        lastModified = modified;
+        lastLength = length;
+        List<OpenTsdbClientConfiguration> clients;
+        try {
+            clients = MAPPER.readValue(file, new TypeReference<List<OpenTsdbClientConfiguration>>() { });
+        } catch (IOException e) {
+            log.warn("Unable to read OpenTSDB endpoints from {}: {}", file, e.toString());
+            return false;
+        }
+        if (clients == null || clients.isEmpty()) {
+            log.warn("No OpenTSDB endpoints in {}, keeping the current ones", file);
+            return false;
+        }
+        try {
+            pool.reload(clients);
+        } catch (IllegalArgumentException e) {
+            log.warn("Invalid OpenTSDB endpoints in {}: {}", file, e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    // Dependencies
+    private final OpenTsdbClientPool pool;
+
+    // Internal state
+    private final Thread thread;
+    private long lastModified;
+    private long lastLength;
+    private volatile boolean closed;
+
+    // Configuration
+    private final File file;
+    private final long interval;
+}
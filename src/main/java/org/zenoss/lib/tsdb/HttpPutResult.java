@@ -0,0 +1,76 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The acknowledgement of a batch posted to /api/put. Individual failures are only
+ * known when details were requested.
+ *
+ * @see OpenTsdbHttpClient
+ */
+public class HttpPutResult {
+
+    /**
+     * A data point OpenTSDB refused, and why
+     */
+    public static class Failure {
+
+        Failure(Point point, String error) {
+            this.point = point;
+            this.error = error;
+        }
+
+        public Point getPoint() {
+            return point;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        private final Point point;
+        private final String error;
+    }
+
+    HttpPutResult(int success, int failed, List<Failure> failures) {
+        this.success = success;
+        this.failed = failed;
+        this.failures = (failures == null) ? Collections.<Failure>emptyList() : Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @return the number of data points stored
+     */
+    public int getSuccess() {
+        return success;
+    }
+
+    /**
+     * @return the number of data points refused
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the refused data points, empty unless details were requested
+     */
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    private final int success;
+    private final int failed;
+    private final List<Failure> failures;
+}
@@ -0,0 +1,126 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.Map;
+
+/**
+ * Encodes data points as the JSON array accepted by OpenTSDB's /api/put, straight
+ * into the reusable buffer of a PutEncoder. Values follow the same integer rule as
+ * the telnet put. This class is not thread safe.
+ */
+class JsonPutEncoder extends PutEncoder {
+
+    private static final byte[] METRIC = bytes("{\"metric\":");
+    private static final byte[] TIMESTAMP = bytes(",\"timestamp\":");
+    private static final byte[] VALUE = bytes(",\"value\":");
+    private static final byte[] TAGS = bytes(",\"tags\":{");
+    private static final byte[] NAN = bytes("\"NaN\"");
+    private static final byte[] HEX = bytes("0123456789abcdef");
+
+    JsonPutEncoder(int initialCapacity) {
+        super(initialCapacity);
+    }
+
+    /**
+     * Start the array of data points
+     */
+    void beginArray() {
+        writeByte('[');
+        first = true;
+    }
+
+    /**
+     * Close the array of data points
+     */
+    void endArray() {
+        writeByte(']');
+    }
+
+    /**
+     * Append a data point object to the current array
+     * @return the number of bytes appended
+     */
+    int encodeJson(String name, long timestamp, double value, Map<String, String> tags) {
+        int start = size();
+        if (!first) {
+            writeByte(',');
+        }
+        first = false;
+        writeBytes(METRIC);
+        writeJsonString(name);
+        writeBytes(TIMESTAMP);
+        writeLong(timestamp);
+        writeBytes(VALUE);
+        if (Double.isNaN(value)) {
+            writeBytes(NAN);
+        } else {
+            writeValue(value);
+        }
+        writeBytes(TAGS);
+        boolean firstTag = true;
+        for (Map.Entry<String, String> entry : tags.entrySet()) {
+            if (!firstTag) {
+                writeByte(',');
+            }
+            firstTag = false;
+            writeJsonString(entry.getKey());
+            writeByte(':');
+            writeJsonString(entry.getValue());
+        }
+        writeByte('}');
+        writeByte('}');
+        return size() - start;
+    }
+
+    /**
+     * Write a quoted JSON string, escaping quotes, backslashes and control characters
+     */
+    void writeJsonString(String s) {
+        if (s == null) {
+            writeString(null);
+            return;
+        }
+        writeByte('"');
+        int run = 0;
+        int length = s.length();
+        for (int i = 0; i < length; ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                writeString(s, run, i);
+                run = i + 1;
+                writeByte('\\');
+                if (c == '"' || c == '\\') {
+                    writeByte(c);
+                } else {
+                    writeByte('u');
+                    writeByte('0');
+                    writeByte('0');
+                    writeByte(HEX[c >> 4]);
+                    writeByte(HEX[c & 0xf]);
+                }
+            }
+        }
+        writeString(s, run, length);
+        writeByte('"');
+    }
+
+    private static byte[] bytes(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    // Internal state
+    private boolean first;
+}
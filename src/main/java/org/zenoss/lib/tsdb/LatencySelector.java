@@ -0,0 +1,48 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the endpoint with the lowest expected cost: its latency average times
+ * one more than its borrowed connections, per weight. An endpoint whose latency
+ * has not been measured yet costs nothing, so new and restored endpoints are
+ * tried right away. Ties rotate.
+ */
+public final class LatencySelector implements EndpointSelector {
+
+    public LatencySelector() {
+        this.next = new AtomicInteger();
+    }
+
+    @Override
+    public OpenTsdbEndpoint select(OpenTsdbEndpoint[] endpoints) {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length;
+        OpenTsdbEndpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < endpoints.length; ++i) {
+            OpenTsdbEndpoint endpoint = endpoints[(start + i) % endpoints.length];
+            if (endpoint.isEjected()) {
+                continue;
+            }
+            double cost = endpoint.getLatency() * (endpoint.getOutstanding() + 1) / endpoint.getWeight();
+            if (best == null || cost < bestCost) {
+                best = endpoint;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    // Internal state
+    private final AtomicInteger next;
+}
@@ -0,0 +1,58 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the endpoint with the fewest borrowed connections per weight. Ties go
+ * to the endpoint with more idle connections, so open connections are reused
+ * before new ones are made, and then rotate.
+ */
+public final class LeastOutstandingSelector implements EndpointSelector {
+
+    public LeastOutstandingSelector() {
+        this.next = new AtomicInteger();
+    }
+
+    @Override
+    public OpenTsdbEndpoint select(OpenTsdbEndpoint[] endpoints) {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length;
+        OpenTsdbEndpoint best = null;
+        long bestOutstanding = 0;
+        long bestIdle = 0;
+        for (int i = 0; i < endpoints.length; ++i) {
+            OpenTsdbEndpoint endpoint = endpoints[(start + i) % endpoints.length];
+            if (endpoint.isEjected()) {
+                continue;
+            }
+            long outstanding = endpoint.getOutstanding();
+            long idle = Math.max(endpoint.getOpen() - outstanding, 0);
+            if (best == null) {
+                best = endpoint;
+                bestOutstanding = outstanding;
+                bestIdle = idle;
+                continue;
+            }
+            // compare outstanding / weight without dividing
+            long cmp = outstanding * best.getWeight() - bestOutstanding * endpoint.getWeight();
+            if (cmp < 0 || (cmp == 0 && idle > bestIdle)) {
+                best = endpoint;
+                bestOutstanding = outstanding;
+                bestIdle = idle;
+            }
+        }
+        return best;
+    }
+
+    // Internal state
+    private final AtomicInteger next;
+}
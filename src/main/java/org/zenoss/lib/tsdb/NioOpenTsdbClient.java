@@ -0,0 +1,407 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An OpenTsdbClient over a non-blocking socket channel driven by a SelectorLoop.
+ * Puts are encoded into direct buffers of the client buffer size; full buffers and
+ * #flush hand them to the selector thread without waiting for the socket, so
+ * flush only guarantees the bytes are queued. Writers wait only when more than
+ * maxPendingBytes are queued. Closing the client waits up to readTimeout for the
+ * queued bytes to be written. Responses are read and parsed by the selector as
+ * they arrive; when the client's thread is waiting on #read or #checkForErrors
+ * they are served to it from memory instead. Like OpenTsdbClient, this class is
+ * not thread safe.
+ */
+class NioOpenTsdbClient extends OpenTsdbClient {
+
+    static final int MAX_INBOUND_BYTES = 1024 * 1024;
+
+    NioOpenTsdbClient(SocketChannel channel, SelectorLoop loop, int bufferSize, int maxPendingBytes, int readTimeout) {
+        super(channel.socket(), bufferSize);
+        this.channel = channel;
+        this.loop = loop;
+        this.bufferSize = bufferSize;
+        this.maxPendingBytes = maxPendingBytes;
+        this.readTimeout = readTimeout;
+        this.scheduled = new AtomicBoolean(false);
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.pendingBytes = new AtomicLong();
+        this.lock = new ReentrantLock();
+        this.drained = lock.newCondition();
+        this.readable = lock.newCondition();
+        this.inbound = new byte[1024];
+        loop.schedule(this);
+    }
+
+    @Override
+    protected OutputStream newOutputStream() {
+        return new ChannelOutputStream();
+    }
+
+    @Override
+    protected InputStream newInputStream() {
+        return new ChannelInputStream();
+    }
+
+    @Override
+    public void close() {
+        if (!isClosed()) {
+            awaitDrained();
+        }
+        super.close();
+        wakeAll();
+        loop.schedule(this);
+    }
+
+    /**
+     * The number of bytes handed to the selector and not yet written to the socket
+     */
+    long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /*
+     * Called from the selector thread
+     */
+
+    int interestOps() {
+        int ops = 0;
+        if (!outbound.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        lock.lock();
+        try {
+            if (inboundCount < MAX_INBOUND_BYTES && !eof) {
+                ops |= SelectionKey.OP_READ;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return ops;
+    }
+
+    void onWritable() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = outbound.peek()) != null) {
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            outbound.poll();
+            pendingBytes.addAndGet(-buffer.limit());
+            loop.recycle(buffer);
+        }
+        if (writersWaiting > 0) {
+            signal(drained);
+        }
+    }
+
+    void onReadable(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int len = channel.read(readBuffer);
+        if (len == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (len < 0) {
+                eof = true;
+            } else {
+                readBuffer.flip();
+                int end = inboundStart + inboundCount;
+                if (end + len > inbound.length) {
+                    if (inboundCount + len <= inbound.length) {
+                        System.arraycopy(inbound, inboundStart, inbound, 0, inboundCount);
+                    } else {
+                        byte[] grown = new byte[Math.max(inbound.length * 2, inboundCount + len)];
+                        System.arraycopy(inbound, inboundStart, grown, 0, inboundCount);
+                        inbound = grown;
+                    }
+                    inboundStart = 0;
+                    end = inboundCount;
+                }
+                readBuffer.get(inbound, end, len);
+                inboundCount += len;
+            }
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // Parse responses right away unless the client's thread is reading them
+        drain();
+    }
+
+    void fail(Exception e) {
+        if (failure == null) {
+            failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+            log.debug("Nio client failed: {}", e.toString());
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.debug("Exception closing failed channel", ex);
+        }
+        outbound.clear();
+        wakeAll();
+    }
+
+    private void wakeAll() {
+        lock.lock();
+        try {
+            drained.signalAll();
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal(Condition condition) {
+        lock.lock();
+        try {
+            condition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Channel to " + socketAddress() + " failed", e);
+        }
+        if (isClosed()) {
+            throw new SocketException("Socket closed");
+        }
+    }
+
+    /*
+     * Called from the client's thread
+     */
+
+    private void handOff(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        int len = buffer.remaining();
+        awaitCapacity(len);
+        pendingBytes.addAndGet(len);
+        outbound.add(buffer);
+        loop.schedule(this);
+    }
+
+    private void awaitCapacity(int len) throws IOException {
+        checkOpen();
+        if (pendingBytes.get() + len <= maxPendingBytes) {
+            return;
+        }
+        lock.lock();
+        writersWaiting++;
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+            while (pendingBytes.get() > 0 && pendingBytes.get() + len > maxPendingBytes) {
+                checkOpen();
+                if (readTimeout > 0) {
+                    if (nanos <= 0) {
+                        throw new SocketTimeoutException("Write timed out");
+                    }
+                    nanos = drained.awaitNanos(nanos);
+                } else {
+                    drained.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for channel to drain");
+        } finally {
+            writersWaiting--;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the selector to write what flush queued, so closing doesn't drop it
+     */
+    private void awaitDrained() {
+        lock.lock();
+        writersWaiting++;
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+            while (pendingBytes.get() > 0 && failure == null) {
+                if (readTimeout > 0) {
+                    if (nanos <= 0) {
+                        log.warn("Closing channel to {} with {} bytes unwritten", socketAddress(), pendingBytes.get());
+                        return;
+                    }
+                    nanos = drained.awaitNanos(nanos);
+                } else {
+                    drained.await();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted closing channel to {} with {} bytes unwritten", socketAddress(), pendingBytes.get());
+        } finally {
+            writersWaiting--;
+            lock.unlock();
+        }
+    }
+
+    private class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current == null) {
+                current = loop.allocate(bufferSize);
+            }
+            current.put((byte) b);
+            if (!current.hasRemaining()) {
+                flush();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current == null) {
+                    current = loop.allocate(bufferSize);
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+                if (!current.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkOpen();
+            if (current != null && current.position() > 0) {
+                ByteBuffer buffer = current;
+                current = null;
+                handOff(buffer);
+            }
+        }
+
+        private ByteBuffer current;
+    }
+
+    private class ChannelInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            boolean resume;
+            int n;
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+                while (inboundCount == 0) {
+                    checkOpen();
+                    if (eof) {
+                        return -1;
+                    }
+                    if (readTimeout > 0) {
+                        if (nanos <= 0) {
+                            throw new SocketTimeoutException("Read timed out");
+                        }
+                        nanos = readable.awaitNanos(nanos);
+                    } else {
+                        readable.await();
+                    }
+                }
+                resume = inboundCount >= MAX_INBOUND_BYTES;
+                n = Math.min(len, inboundCount);
+                System.arraycopy(inbound, inboundStart, b, off, n);
+                inboundStart += n;
+                inboundCount -= n;
+                if (inboundCount == 0) {
+                    inboundStart = 0;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a response");
+            } finally {
+                lock.unlock();
+            }
+            if (resume) {
+                loop.schedule(NioOpenTsdbClient.this);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            lock.lock();
+            try {
+                return inboundCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Dependencies
+    final SocketChannel channel;
+    private final SelectorLoop loop;
+
+    // Selector state
+    final AtomicBoolean scheduled;
+    SelectionKey key;
+
+    // Internal state
+    private final Queue<ByteBuffer> outbound;
+    private final AtomicLong pendingBytes;
+    private final ReentrantLock lock;
+    private final Condition drained;
+    private final Condition readable;
+    private volatile int writersWaiting;
+    private volatile IOException failure;
+    private byte[] inbound;
+    private int inboundStart;
+    private int inboundCount;
+    private boolean eof;
+
+    // Configuration
+    private final int bufferSize;
+    private final int maxPendingBytes;
+    private final int readTimeout;
+}
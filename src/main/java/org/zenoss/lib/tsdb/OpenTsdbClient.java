@@ -25,17 +25,36 @@ import java.util.Map;
 
 import java.util.Comparator;
 import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * OpenTsdbClient provides a socket interface to the OpenTsdb telnet service.  The client
  * provides #put to publish metrics, a method to read the #version.  This class is not thread safe.
  * Furthermore, the socket's assumed to be opened before using this class.
+ * <p>Server responses are parsed into lines from raw bytes. Besides the reads done by
+ * #checkForErrors and #version, a ResponseDrainer (or the selector of an nio client) may
+ * call #drain from its own thread, which reads whatever has arrived without blocking and
+ * hands error lines to the ResponseListener as they come in.</p>
+ * <p>The telnet protocol does not acknowledge puts. #flushWithSentinel follows the
+ * puts with a version request; the server answers requests in order, so once
+ * #pollConfirmed reaches the sentinel's sequence number every put before it has
+ * been read by the server.</p>
  */
 public class OpenTsdbClient {
     
     static final Logger log = LoggerFactory.getLogger(OpenTsdbClient.class);
 
+    /** Longer response lines are truncated */
+    static final int MAX_LINE_LENGTH = 4096;
+
+    /** Errors beyond this many are only reported to the listener until they are collected */
+    static final int MAX_PENDING_ERRORS = 100;
+
+    private static final byte[] VERSION_REQUEST = "version\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VERSION_RESPONSE = "net.opentsdb".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BUILT_ON = "Built on ".getBytes(StandardCharsets.US_ASCII);
+
     /**
      * @param socket use provided socket for connection
      */
@@ -44,7 +63,13 @@ public class OpenTsdbClient {
         this.closed = false;
         this.bufferSize = bufferSize;
         this.allocated = System.currentTimeMillis();
+        this.lastValidated = allocated;
+        this.expiresAt = Long.MAX_VALUE;
         this.charset = StandardCharsets.UTF_8; // Make configurable?
+        this.inputLock = new ReentrantLock();
+        this.chunk = new byte[1024];
+        this.line = new byte[MAX_LINE_LENGTH];
+        this.errors = new ArrayList<>();
     }
 
     /**
@@ -58,80 +83,223 @@ public class OpenTsdbClient {
      * Write a metric to the tsdb socket and read it's response
      */
     public void put(String bugger) throws IOException {
-        getOutput().write(bugger.getBytes(charset));
+        byte[] bytes = bugger.getBytes(charset);
+        getOutput().write(bytes);
+        ++unflushedPoints;
+        unflushedBytes += bytes.length;
+    }
+
+    /**
+     * Encode a metric straight into the tsdb socket's output buffer. The bytes written
+     * are identical to #toPutMessage but no intermediate String is built.
+     */
+    public void put(String name, long timestamp, double value, Map<String, String> tags) throws IOException {
+        PutEncoder encoder = getEncoder();
+        encoder.reset();
+        int bytes = encoder.encode(name, timestamp, value, tags);
+        encoder.writeTo(getOutput());
+        ++unflushedPoints;
+        unflushedBytes += bytes;
+    }
+
+    /**
+     * Encode samples of a single series straight into the tsdb socket's output buffer.
+     * The metric and tags are encoded once; the bytes written are identical to a
+     * #toPutMessage per sample.
+     * @throws IndexOutOfBoundsException when the range is outside either array
+     */
+    public void putSeries(String metric, Map<String, String> tags, long[] timestamps, double[] values, int offset, int length) throws IOException {
+        SeriesBatch.checkRange(timestamps, values, offset, length);
+        PutEncoder encoder = getEncoder();
+        encoder.reset();
+        encoder.beginSeries(metric, tags);
+        OutputStream out = getOutput();
+        long bytes = 0;
+        for (int i = offset, end = offset + length; i < end; ++i) {
+            bytes += encoder.encodeSample(timestamps[i], values[i]);
+            if (encoder.size() >= bufferSize) {
+                encoder.writeTo(out);
+                encoder.reset();
+            }
+        }
+        encoder.writeTo(out);
+        unflushedPoints += length;
+        unflushedBytes += bytes;
+    }
+
+    /**
+     * Encode every series of the batch like #putSeries
+     */
+    public void put(SeriesBatch batch) throws IOException {
+        long[] timestamps = batch.getTimestamps();
+        double[] values = batch.getValues();
+        for (int series = 0, count = batch.getSeriesCount(); series < count; ++series) {
+            putSeries(batch.getMetric(series), batch.getTags(series), timestamps, values,
+                    batch.getOffset(series), batch.getLength(series));
+        }
     }
 
     /**
-     * flush the output stream
+     * Write put lines already encoded, like those kept by a SpillJournal
+     * @param points the number of put lines
+     */
+    void write(byte[] lines, int offset, int length, int points) throws IOException {
+        getOutput().write(lines, offset, length);
+        unflushedPoints += points;
+        unflushedBytes += length;
+    }
+
+    /**
+     * flush the output stream, timing and counting flushes of written data for the endpoint
+     * after waiting for its rate limits to admit them
      */
     public void flush() throws IOException {
+        if (unflushedPoints == 0) {
+            getOutput().flush();
+            return;
+        }
+        int points = unflushedPoints;
+        long bytes = unflushedBytes;
+        OpenTsdbEndpoint e = endpoint;
+        if (e != null) {
+            e.pace(points, bytes);
+        }
+        long start = System.nanoTime();
         getOutput().flush();
+        unflushedPoints = 0;
+        unflushedBytes = 0;
+        if (e != null) {
+            e.recordFlush(points, bytes, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Flush the puts written so far followed by a sentinel version request, without
+     * waiting for its answer
+     * @return the sequence number of the sentinel, confirmed once #pollConfirmed reaches it
+     */
+    public long flushWithSentinel() throws IOException {
+        getOutput().write(VERSION_REQUEST);
+        long sentinel = ++versionRequests;
+        flush();
+        return sentinel;
+    }
+
+    /**
+     * Parse the responses that have arrived, without blocking or waiting for another
+     * thread reading them
+     * @return the sequence number of the last sentinel or version request answered
+     * @throws EOFException when the server closed the connection
+     */
+    public long pollConfirmed() throws IOException {
+        if (inputLock.tryLock()) {
+            try {
+                InputStream in = getInput();
+                while (fillAvailable(in) > 0) {
+                    // parse everything that arrived
+                }
+            } finally {
+                inputLock.unlock();
+            }
+        }
+        if (eof) {
+            throw new EOFException("Connection closed by server");
+        }
+        return versionResponses;
+    }
+
+    /**
+     * The answers parsed so far, without reading any input. Unlike #pollConfirmed this
+     * can be called once the client is closed, to tell which sentinels were answered
+     * before it was.
+     * @return the sequence number of the last sentinel or version request answered
+     */
+    public long getConfirmed() {
+        return versionResponses;
     }
 
     /**
      * Wait for input on the tsdb socket. As soon as any becomes available, return all that became available.
+     * Input already consumed by #drain is not returned.
      * @return All the input that became available, or null if the socket reached the end of its input.
      */
     public String read() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        BufferedReader in = getInput();
-        char[] buffer = new char[1024];
-        int len = in.read(buffer);
-        if (len <= 0)
-            return null;
-        else {
-            sb.append(buffer, 0, len);
-            while (in.ready()) {
-                len = in.read(buffer);
-                if (len > 0)
-                    sb.append(buffer, 0, len);
+        inputLock.lock();
+        try {
+            InputStream in = getInput();
+            int len = fill(in);
+            if (len < 0) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(len);
+            bytes.write(chunk, 0, len);
+            while ((len = fillAvailable(in)) > 0) {
+                bytes.write(chunk, 0, len);
             }
-            return sb.toString();
+            return new String(bytes.toByteArray(), charset);
+        } finally {
+            inputLock.unlock();
         }
     }
 
-    /** Flush the tsdb socket and see if any errors come back. */
+    /**
+     * Flush the tsdb socket and see if any errors come back. Waits for the answer to
+     * a version request, returning the errors received until then.
+     */
     public List<String> checkForErrors() throws IOException {
-        BufferedReader in = getInput();
-        OutputStream out = getOutput();
-        out.write("version\n".getBytes(charset));
-        out.flush();
-        boolean block = true;
-        String line = null;
-        List<String> errors = null;
-        while (block || line != null) {
-            if (block) {
-                line = in.readLine();
-                block = false;
-            } else if (in.ready()) {
-                line = in.readLine();
-            } else {
-                line = null;
+        inputLock.lock();
+        try {
+            InputStream in = getInput();
+            long request = requestVersion();
+            while (versionResponses < request && !eof) {
+                fill(in);
             }
-            if (line != null && !line.isEmpty() && !line.startsWith("net.opentsdb") && !line.startsWith("Built on ")) {
-                if (errors == null) {
-                    errors = new ArrayList<String>();
-                }
-                errors.add(line);
+            List<String> errors = takeErrors();
+            if (errors.isEmpty() && versionResponses < request) {
+                throw new EOFException("Connection closed by server");
+            }
+            return errors;
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    /**
+     * Collect the error lines the server has already sent without sending anything
+     * or waiting for more input.
+     */
+    public List<String> pollErrors() throws IOException {
+        inputLock.lock();
+        try {
+            InputStream in = getInput();
+            while (fillAvailable(in) > 0) {
+                // parse everything that arrived
+            }
+            List<String> errors = takeErrors();
+            if (errors.isEmpty() && eof) {
+                throw new EOFException("Connection closed by server");
             }
+            return errors;
+        } finally {
+            inputLock.unlock();
         }
-        return (errors == null) ? Collections.<String>emptyList() : errors;
     }
 
     /**
      * request version from socket server
      */
     public String version() throws IOException {
-        OutputStream out = getOutput();
-        out.write("version\n".getBytes(charset));
-        out.flush();
-
-        String version = read();
-        if (version == null) {
-            throw new IOException("no version response from server");
+        inputLock.lock();
+        try {
+            requestVersion();
+            String version = read();
+            if (version == null) {
+                throw new IOException("no version response from server");
+            }
+            return version;
+        } finally {
+            inputLock.unlock();
         }
-
-        return version;
     }
 
     /**
@@ -206,24 +374,202 @@ public class OpenTsdbClient {
         return builder.toString();
     }
     
+    /**
+     * Parse whatever input has arrived without blocking. Does nothing when another
+     * thread is reading or the client has not sent anything yet.
+     * @return true if any input was read
+     */
+    boolean drain() {
+        if (!active || isClosed() || !inputLock.tryLock()) {
+            return false;
+        }
+        try {
+            return fillAvailable(getInput()) > 0;
+        } catch (IOException e) {
+            log.debug("Exception draining responses: {}", e.toString());
+            eof = true;
+            return false;
+        } finally {
+            inputLock.unlock();
+        }
+    }
+
+    void setResponseListener(ResponseListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Share encoded series with other clients, before the first put
+     */
+    void setSeriesCache(SeriesCache seriesCache) {
+        this.seriesCache = seriesCache;
+    }
+
     long getAllocated() {
         return allocated;
     }
+
+    /**
+     * When the client is due to be discarded, set by the factory from its
+     * jittered lifetime, or earlier once a successor replaced it
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * When the server last answered a round-trip check, initially the time the
+     * client was created.
+     */
+    long getLastValidated() {
+        return lastValidated;
+    }
+
+    void setLastValidated(long lastValidated) {
+        this.lastValidated = lastValidated;
+    }
     
     SocketAddress socketAddress() {
         return socket.getRemoteSocketAddress();
     }
     
+    /**
+     * Open the buffered stream puts are written to
+     */
+    protected OutputStream newOutputStream() throws IOException {
+        return new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+    }
+
+    /**
+     * Open the stream server responses are read from
+     */
+    protected InputStream newInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
     private OutputStream getOutput() throws IOException {
         if (output == null) {
-            output = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+            output = newOutputStream();
+            active = true;
         }
         return output;
     }
 
-    private BufferedReader getInput() throws IOException {
+    /**
+     * Send a version request, its answer marks the end of the responses to what
+     * was sent before it.
+     * @return the sequence number of the request
+     */
+    private long requestVersion() throws IOException {
+        OutputStream out = getOutput();
+        out.write(VERSION_REQUEST);
+        out.flush();
+        return ++versionRequests;
+    }
+
+    /**
+     * Block for input and parse it
+     * @return the number of bytes read into the chunk, or -1 at the end of input
+     */
+    private int fill(InputStream in) throws IOException {
+        int len = in.read(chunk, 0, chunk.length);
+        if (len == 0) {
+            throw new IOException("Underlying input stream returned zero bytes");
+        }
+        parse(len);
+        return len;
+    }
+
+    /**
+     * Parse input that is available without blocking
+     * @return the number of bytes read into the chunk, 0 if none were available
+     */
+    private int fillAvailable(InputStream in) throws IOException {
+        int available = in.available();
+        if (available <= 0) {
+            return 0;
+        }
+        int len = in.read(chunk, 0, Math.min(available, chunk.length));
+        parse(len);
+        return len;
+    }
+
+    private void parse(int len) {
+        if (len < 0) {
+            if (lineLength > 0) {
+                endLine();
+            }
+            eof = true;
+            return;
+        }
+        for (int i = 0; i < len; ++i) {
+            byte b = chunk[i];
+            if (b == '\n') {
+                endLine();
+            } else if (lineLength < line.length) {
+                line[lineLength++] = b;
+            }
+        }
+    }
+
+    private void endLine() {
+        int len = lineLength;
+        lineLength = 0;
+        if (len > 0 && line[len - 1] == '\r') {
+            --len;
+        }
+        if (len == 0 || startsWith(BUILT_ON, len)) {
+            return;
+        }
+        if (startsWith(VERSION_RESPONSE, len)) {
+            ++versionResponses;
+            return;
+        }
+        String error = new String(line, 0, len, charset);
+        if (errors.size() < MAX_PENDING_ERRORS) {
+            errors.add(error);
+        }
+        ResponseListener l = listener;
+        if (l != null) {
+            l.onError(this, error);
+        }
+    }
+
+    private boolean startsWith(byte[] prefix, int len) {
+        if (len < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; ++i) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<String> takeErrors() {
+        if (errors.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> taken = new ArrayList<>(errors);
+        errors.clear();
+        return taken;
+    }
+
+    private PutEncoder getEncoder() {
+        if (encoder == null) {
+            encoder = new PutEncoder(PutEncoder.DEFAULT_CAPACITY, seriesCache);
+        }
+        return encoder;
+    }
+
+    private InputStream getInput() throws IOException {
         if (input == null) {
-            input = new BufferedReader(new InputStreamReader(socket.getInputStream(), charset));
+            input = newInputStream();
         }
         return input;
     }
@@ -232,10 +578,31 @@ public class OpenTsdbClient {
     private final Socket socket;
     
     // Internal state
+    OpenTsdbEndpoint endpoint;
+    volatile boolean admitted;
+    volatile boolean recycled;
     private OutputStream output;
-    private BufferedReader input;
-    private boolean closed;
+    private InputStream input;
+    private PutEncoder encoder;
+    private SeriesCache seriesCache;
+    private int unflushedPoints;
+    private long unflushedBytes;
+    private volatile boolean closed;
+    private volatile boolean active;
+    private volatile ResponseListener listener;
+
+    // Response state, guarded by inputLock
+    private final ReentrantLock inputLock;
+    private final byte[] chunk;
+    private final byte[] line;
+    private int lineLength;
+    private final List<String> errors;
+    private long versionRequests;
+    private volatile long versionResponses;
+    private volatile boolean eof;
     private final long allocated;
+    private long lastValidated;
+    private volatile long expiresAt;
     
     // Configuration
     private final int bufferSize;
@@ -29,6 +29,30 @@ public class OpenTsdbClientConfiguration {
     @JsonProperty
     private Integer maxConnections = 1;
 
+    @JsonProperty
+    private Integer weight = 1;
+
+    /**
+     * idle connections kept open, defaults to maxConnections
+     */
+    @JsonProperty
+    private Integer maxIdle;
+
+    @JsonProperty
+    private Integer minIdle = 0;
+
+    /**
+     * points per second flushed to this endpoint, 0 for no limit
+     */
+    @JsonProperty
+    private Long maxPointsPerSecond = 0L;
+
+    /**
+     * bytes per second flushed to this endpoint, 0 for no limit
+     */
+    @JsonProperty
+    private Long maxBytesPerSecond = 0L;
+
     /**
      * The name of the host running OpenTSDB
      * @return hostname
@@ -53,6 +77,48 @@ public class OpenTsdbClientConfiguration {
         return maxConnections;
     }
 
+    /**
+     * The share of borrows this endpoint gets relative to the others
+     * @return weight
+     */
+    public Integer getWeight() {
+        return weight;
+    }
+
+    /**
+     * The number of idle connections kept open, null for maxConnections
+     * @return max idle connections
+     */
+    public Integer getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * The number of idle connections the evictor tries to keep open
+     * @return min idle connections
+     */
+    public Integer getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * The points per second flushed to this endpoint, flushes beyond it wait
+     * for their turn
+     * @return rate, 0 for no limit
+     */
+    public Long getMaxPointsPerSecond() {
+        return maxPointsPerSecond;
+    }
+
+    /**
+     * The bytes per second flushed to this endpoint, flushes beyond it wait
+     * for their turn
+     * @return rate, 0 for no limit
+     */
+    public Long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
     /**
      * The name of the host running OpenTSDB
      * @param host hostname
@@ -76,4 +142,44 @@ public class OpenTsdbClientConfiguration {
     public void setMaxConnections(Integer maxConnections) {
         this.maxConnections = maxConnections;
     }
+
+    /**
+     * The share of borrows this endpoint gets relative to the others
+     * @param weight weight
+     */
+    public void setWeight(Integer weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * The number of idle connections kept open, null for maxConnections
+     * @param maxIdle max idle connections
+     */
+    public void setMaxIdle(Integer maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * The number of idle connections the evictor tries to keep open
+     * @param minIdle min idle connections
+     */
+    public void setMinIdle(Integer minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * The points per second flushed to this endpoint
+     * @param maxPointsPerSecond rate, 0 for no limit
+     */
+    public void setMaxPointsPerSecond(Long maxPointsPerSecond) {
+        this.maxPointsPerSecond = maxPointsPerSecond;
+    }
+
+    /**
+     * The bytes per second flushed to this endpoint
+     * @param maxBytesPerSecond rate, 0 for no limit
+     */
+    public void setMaxBytesPerSecond(Long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
 }
@@ -18,10 +18,13 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
@@ -35,6 +38,9 @@ public class OpenTsdbClientFactory extends BasePoolableObjectFactory<OpenTsdbCli
     //  put: HBase error: 1000 RPCs waiting on "tsdb,,1398325180794.54ad8182f2f2a0a1cc6d39ba26ca7f64." to come back online
     private static final Pattern COLLISION_ERROR_PATTERN = Pattern.compile(".*HBase error: .* RPCs waiting on .* to come back online");
 
+    //  put: Please throttle writes: 10000 RPCs waiting on "tsdb,,1398325180794.54ad8182f2f2a0a1cc6d39ba26ca7f64." to come back online
+    private static final Pattern THROTTLE_ERROR_PATTERN = Pattern.compile(".*(PleaseThrottleException|[Pp]lease throttle).*");
+
     public OpenTsdbClientFactory(OpenTsdbClientPoolConfiguration configuration) {
         this(configuration, new SocketFactory (configuration.getClientFactoryConfiguration()));
     }
@@ -45,9 +51,20 @@ public class OpenTsdbClientFactory extends BasePoolableObjectFactory<OpenTsdbCli
         this.addresses = new LinkedList<>();
         this.errorCount = new AtomicInteger();
         this.collision = new AtomicBoolean(false);
+        this.errorListener = new ErrorListener();
         
         this.maxKeepAliveTime = configuration.getMaxKeepAliveTime();
+        this.keepAliveJitter = Math.min(Math.max(configuration.getKeepAliveJitter(), 0.0), 1.0);
+        this.minTestTime = configuration.getMinTestTime();
+        this.validationMode = configuration.getValidationMode();
         this.clientBufferSize = configuration.getClientBufferSize();
+        this.transport = configuration.getTransport();
+        this.maxPendingWriteBytes = configuration.getMaxPendingWriteBytes();
+        this.selectorLoops = new SelectorLoop[(transport == OpenTsdbTransport.NIO) ? Math.max(configuration.getSelectorThreads(), 1) : 0];
+        this.nextLoop = new AtomicInteger();
+        this.seriesCache = (configuration.getSeriesCacheSize() > 0)
+                ? new SeriesCache(configuration.getSeriesCacheSize(), configuration.getSeriesCacheBytes())
+                : null;
         
         Collection<OpenTsdbClientConfiguration> clientConfigs = configuration.getClientConfigurations();
         for (OpenTsdbClientConfiguration clientConfig : clientConfigs) {
@@ -74,22 +91,93 @@ public class OpenTsdbClientFactory extends BasePoolableObjectFactory<OpenTsdbCli
             addresses.add(address);
         }
         
-        // Build a new client
-        Socket socket = socketFactory.newSocket(address);
-        return new OpenTsdbClient(socket, clientBufferSize);
+        return makeObject(address);
+    }
+
+    /**
+     * Create a new OpenTsdbClient connected to the address
+     * @return a new client with configured parameters
+     * @throws IOException when the connection cannot be opened
+     */
+    public OpenTsdbClient makeObject(SocketAddress address) throws IOException {
+        // Build a new client, nio clients' responses are drained by their selector
+        OpenTsdbMetrics m = metrics;
+        OpenTsdbClient client;
+        try {
+            if (transport == OpenTsdbTransport.NIO) {
+                SocketChannel channel = socketFactory.newChannel(address);
+                client = new NioOpenTsdbClient(channel, nextSelectorLoop(), clientBufferSize, maxPendingWriteBytes, socketFactory.getSoTimeout());
+                client.setResponseListener(errorListener);
+                client.setSeriesCache(seriesCache);
+            } else {
+                Socket socket = socketFactory.newSocket(address);
+                client = new OpenTsdbClient(socket, clientBufferSize);
+                client.setResponseListener(errorListener);
+                client.setSeriesCache(seriesCache);
+                responseDrainer().register(client);
+            }
+        } catch (IOException e) {
+            if (m != null) {
+                m.connectErrors.mark();
+            }
+            throw e;
+        }
+        if (m != null) {
+            m.connectionsOpened.mark();
+        }
+        client.setExpiresAt(client.getAllocated() + lifetime());
+        return client;
+    }
+
+    /**
+     * A lifetime up to keepAliveJitter shorter than maxKeepAliveTime, so clients
+     * opened together do not all expire together
+     */
+    long lifetime() {
+        long jitter = (long) (maxKeepAliveTime * keepAliveJitter);
+        return (jitter > 0) ? maxKeepAliveTime - ThreadLocalRandom.current().nextLong(jitter + 1) : maxKeepAliveTime;
+    }
+
+    private ResponseDrainer responseDrainer() throws IOException {
+        synchronized (selectorLoops) {
+            if (closed) {
+                throw new IOException("Client factory is closed");
+            }
+            if (drainer == null) {
+                drainer = new ResponseDrainer("opentsdb-response-drainer", ResponseDrainer.DEFAULT_POLL_INTERVAL);
+            }
+            return drainer;
+        }
+    }
+
+    private SelectorLoop nextSelectorLoop() throws IOException {
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % selectorLoops.length;
+        synchronized (selectorLoops) {
+            if (closed) {
+                throw new IOException("Client factory is closed");
+            }
+            if (selectorLoops[index] == null) {
+                selectorLoops[index] = new SelectorLoop("opentsdb-selector-" + index);
+            }
+            return selectorLoops[index];
+        }
     }
 
     /**
      * <p>Check that the specified client is still OK to use</p>
      * <p>This checks multiple factors:
      * <ul>
-     * <li>Has the client exceeded its maximum TTL?</li>
+     * <li>Has the client exceeded its lifetime, maxKeepAliveTime shortened by up to
+     * keepAliveJitter, or been replaced by a successor?</li>
      * <li>Has the client or its socket been closed?</li>
      * <li>Ping the OpenTSDB server. Any exceptions or error messages sent in response?</li>
      * </ul>
      * If the answer to any of these questions is "yes" the client will be
      * considered invalid and will not be used.
      * </p>
+     * <p>With {@link OpenTsdbValidationMode#BACKGROUND} validation the ping is only
+     * sent when the client was last validated minTestTime ago or more; otherwise
+     * only error messages already received are checked.</p>
      * @param client
      * @return true if client is alive, false otherwise
      */
@@ -97,31 +185,50 @@ public class OpenTsdbClientFactory extends BasePoolableObjectFactory<OpenTsdbCli
     public boolean validateObject(OpenTsdbClient client) {
         //client exceeded his liveliness
         long now = System.currentTimeMillis();
-        if ((now - client.getAllocated()) >= maxKeepAliveTime) {
+        OpenTsdbMetrics m = metrics;
+        if (now >= client.getExpiresAt()) {
             log.info("Client has exceeded its maximum lifetime and will be discarded.");
+            if (m != null) {
+                m.expired.mark();
+            }
             return false;
         }
 
         if (client.isClosed())
             return false;
 
+        boolean roundTrip = (validationMode == OpenTsdbValidationMode.ROUND_TRIP)
+                || (now - client.getLastValidated()) >= minTestTime;
+        OpenTsdbEndpoint endpoint = client.endpoint;
         try {
-            boolean anyErrors = false;
-            for (String error : client.checkForErrors()) {
-                anyErrors = true;
-                log.warn("Client returned error: {}", error);
-                errorCount.incrementAndGet();
-                if (COLLISION_ERROR_PATTERN.matcher(error).matches()) {
-                    collision.set(true);
+            // errors were counted by the listener as they were read
+            long start = System.nanoTime();
+            List<String> errors = roundTrip ? client.checkForErrors() : client.pollErrors();
+            if (roundTrip) {
+                long nanos = System.nanoTime() - start;
+                if (endpoint != null) {
+                    endpoint.recordLatency(nanos);
+                }
+                if (m != null) {
+                    m.validation.update(nanos, TimeUnit.NANOSECONDS);
                 }
             }
-            if (anyErrors)
+            if (!errors.isEmpty())
                 return false;
         } catch (IOException e) {
             log.warn("Caught IOException checking for errors", e);
             errorCount.incrementAndGet();
+            if (m != null) {
+                m.ioErrors.mark();
+            }
+            if (endpoint != null) {
+                endpoint.recordFailure();
+            }
             return false;
         }
+        if (roundTrip) {
+            client.setLastValidated(now);
+        }
         log.debug("Client tested out OK");
 
         return true;
@@ -134,6 +241,95 @@ public class OpenTsdbClientFactory extends BasePoolableObjectFactory<OpenTsdbCli
     @Override
     public void destroyObject(OpenTsdbClient client) {
         client.close();
+        OpenTsdbMetrics m = metrics;
+        if (m != null) {
+            m.connectionsClosed.mark();
+        }
+        synchronized (selectorLoops) {
+            if (drainer != null) {
+                drainer.unregister(client);
+            }
+        }
+    }
+
+    /**
+     * Stops the selector threads used by nio clients and the response drainer.
+     */
+    public void close() {
+        synchronized (selectorLoops) {
+            closed = true;
+            for (SelectorLoop loop : selectorLoops) {
+                if (loop != null) {
+                    loop.close();
+                }
+            }
+            if (drainer != null) {
+                drainer.close();
+            }
+        }
+    }
+
+    /**
+     * Counts and logs error lines as clients read them
+     */
+    private class ErrorListener implements ResponseListener {
+
+        @Override
+        public void onError(OpenTsdbClient client, String error) {
+            log.warn("Client returned error: {}", error);
+            errorCount.incrementAndGet();
+            OpenTsdbEndpoint endpoint = client.endpoint;
+            if (endpoint != null) {
+                endpoint.recordError();
+            }
+            BackpressureController controller = backpressure;
+            OpenTsdbMetrics m = metrics;
+            if (COLLISION_ERROR_PATTERN.matcher(error).matches()) {
+                collision.set(true);
+                if (controller != null) {
+                    controller.onCollision();
+                }
+                if (m != null) {
+                    m.collisionErrors.mark();
+                }
+            } else if (THROTTLE_ERROR_PATTERN.matcher(error).matches()) {
+                if (controller != null) {
+                    controller.onCollision();
+                }
+                if (m != null) {
+                    m.throttleErrors.mark();
+                }
+            } else {
+                if (controller != null) {
+                    controller.onError();
+                }
+                if (m != null) {
+                    m.responseErrors.mark();
+                }
+            }
+        }
+    }
+
+    /**
+     * Report collision and error responses to the controller of the pool
+     */
+    void setBackpressureController(BackpressureController backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * Record connections, validations and errors in the metrics of the pool
+     */
+    void setMetrics(OpenTsdbMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The encoded series shared by the clients
+     * @return the cache, or null when seriesCacheSize is 0
+     */
+    public SeriesCache getSeriesCache() {
+        return seriesCache;
     }
 
     public int clearErrorCount() {
@@ -156,9 +352,23 @@ public class OpenTsdbClientFactory extends BasePoolableObjectFactory<OpenTsdbCli
     private final SocketFactory socketFactory;
     private final Queue<SocketAddress> addresses;
     
+    private final SeriesCache seriesCache;
+    private final SelectorLoop[] selectorLoops;
+    private final AtomicInteger nextLoop;
+    private ResponseDrainer drainer;
+    private boolean closed;
+    
     private final long maxKeepAliveTime;
+    private final double keepAliveJitter;
+    private final long minTestTime;
+    private final OpenTsdbValidationMode validationMode;
     private final int clientBufferSize;
+    private final OpenTsdbTransport transport;
+    private final int maxPendingWriteBytes;
     
     private final AtomicInteger errorCount;
     private final AtomicBoolean collision;
+    private final ResponseListener errorListener;
+    private volatile BackpressureController backpressure;
+    private volatile OpenTsdbMetrics metrics;
 }
@@ -10,28 +10,533 @@
  */
 package org.zenoss.lib.tsdb;
 
-import org.apache.commons.pool.impl.GenericObjectPool;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricsRegistry;
+import org.apache.commons.pool.BaseObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Pools connections to OpenTSDB
+ * Pools connections to OpenTSDB. Every configured client becomes an
+ * OpenTsdbEndpoint with its own pool of up to maxConnections connections. A borrow
+ * tries the endpoint chosen by the configured EndpointSelector, then any other
+ * endpoint that is not ejected and has room; when every endpoint is busy it waits
+ * up to maxWaitTime in the queue of the chosen one.
+ * <p>Borrows are admitted by a BackpressureController first, which throttles them
+ * while OpenTSDB reports HBase collisions and fails them while writes are
+ * suspended.</p>
+ * <p>With a ConsistentHashSelector, #borrowObject(String, Map) borrows from the
+ * endpoint the series hashes to, and waits for it rather than spreading to
+ * other endpoints while it is healthy.</p>
+ * <p>With prewarmConnections, the constructor opens that many connections to
+ * every endpoint in parallel and waits up to prewarmTimeout for them, so the
+ * first borrows do not each pay for a connect. The same threads refill an
+ * endpoint in the background when it comes back from ejection.</p>
+ * <p>#reload replaces the endpoints while the pool is in use. Endpoints that are
+ * still listed keep their connections, new ones are pre-warmed in the background,
+ * and removed ones are retired: they take no more borrows and close once the
+ * clients borrowed from them are returned. With a discoveryFile the endpoints are
+ * reloaded from that file whenever it changes.</p>
+ * <p>Flushes are paced by token buckets: maxPointsPerSecond and maxBytesPerSecond
+ * of the pool limit all endpoints together, those of each client configuration
+ * its endpoint, so bursts are spread out at the limits instead of reaching every
+ * TSD at once.</p>
+ * <p>Client lifetimes are spread over maxKeepAliveTime less up to keepAliveJitter
+ * of it, so connections opened together do not all reconnect together. With
+ * recycleAhead, a background thread opens the replacement of each connection
+ * that expires within recycleAhead ms before retiring it, so borrowers find a
+ * connected client instead of paying for the reconnect.</p>
  * @author cschellenger
  */
-public class OpenTsdbClientPool extends GenericObjectPool<OpenTsdbClient> {
+public class OpenTsdbClientPool extends BaseObjectPool<OpenTsdbClient> {
     
     static final Logger log = LoggerFactory.getLogger(OpenTsdbClientPool.class);
 
+    /** Upper bound on the threads opening pre-warmed connections */
+    static final int MAX_PREWARM_THREADS = 32;
+
     public OpenTsdbClientPool(OpenTsdbClientPoolConfiguration configuration) {
         this(configuration, new OpenTsdbClientFactory(configuration));
     }
 
     public OpenTsdbClientPool(OpenTsdbClientPoolConfiguration config, OpenTsdbClientFactory clientFactory) {
-        super(clientFactory, config.getClientConfigurations().size(), WHEN_EXHAUSTED_BLOCK, config.getMaxWaitTime());
-        setTestOnBorrow(true);
-        this.tsdbFactory = clientFactory;
+        this(config, clientFactory, newSelector(config.getEndpointSelection()));
     }
-    
+
+    public OpenTsdbClientPool(OpenTsdbClientPoolConfiguration config, OpenTsdbClientFactory clientFactory, EndpointSelector selector) {
+        this(config, clientFactory, selector, Metrics.defaultRegistry());
+    }
+
+    /**
+     * @param registry where the pool's OpenTsdbMetrics are registered, unless metrics are disabled
+     */
+    public OpenTsdbClientPool(OpenTsdbClientPoolConfiguration config, OpenTsdbClientFactory clientFactory, EndpointSelector selector, MetricsRegistry registry) {
+        this.metrics = config.isMetrics() ? newMetrics(config, registry) : null;
+        try {
+            this.config = config;
+            this.tsdbFactory = clientFactory;
+            List<OpenTsdbEndpoint> endpoints = new ArrayList<>();
+            for (OpenTsdbClientConfiguration clientConfig : config.getClientConfigurations()) {
+                endpoints.add(new OpenTsdbEndpoint(clientConfig, config, clientFactory, metrics));
+            }
+            this.endpoints = endpoints.toArray(new OpenTsdbEndpoint[endpoints.size()]);
+            this.pointBucket = new TokenBucket(config.getMaxPointsPerSecond(), config.getRateBurst());
+            this.byteBucket = new TokenBucket(config.getMaxBytesPerSecond(), config.getRateBurst());
+            for (OpenTsdbEndpoint endpoint : this.endpoints) {
+                endpoint.setPoolBuckets(pointBucket, byteBucket);
+            }
+            this.backpressure = new BackpressureController(config, maxConnections(this.endpoints));
+            clientFactory.setBackpressureController(backpressure);
+            if (metrics != null) {
+                clientFactory.setMetrics(metrics);
+                metrics.registerPool(this, clientFactory.getSeriesCache());
+            }
+            this.next = new AtomicInteger();
+            this.maxWaitTime = config.getMaxWaitTime();
+            this.selector = selector;
+
+            int prewarm = Math.max(config.getPrewarmConnections(), 0) * this.endpoints.length;
+            this.prewarmer = (prewarm > 0) ? newPrewarmer(Math.min(prewarm, MAX_PREWARM_THREADS)) : null;
+            if (prewarmer != null) {
+                for (OpenTsdbEndpoint endpoint : this.endpoints) {
+                    endpoint.setPrewarmer(prewarmer);
+                }
+                prewarm(config.getPrewarmTimeout());
+            }
+
+            this.discovery = (config.getDiscoveryFile() != null)
+                    ? new FileEndpointDiscovery(new File(config.getDiscoveryFile()), config.getDiscoveryInterval(), this)
+                    : null;
+
+            long recycleAhead = config.getRecycleAhead();
+            if (recycleAhead > 0 && config.getMaxKeepAliveTime() > recycleAhead) {
+                this.recycler = new Thread(new Recycler(recycleAhead), "tsdb-recycler");
+                recycler.setDaemon(true);
+                recycler.start();
+            } else {
+                this.recycler = null;
+            }
+        } catch (RuntimeException e) {
+            if (metrics != null) {
+                metrics.remove();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * The metrics under the configured scope, or under one of the pool's own named
+     * after its first endpoint
+     */
+    private static OpenTsdbMetrics newMetrics(OpenTsdbClientPoolConfiguration config, MetricsRegistry registry) {
+        if (config.getMetricsScope() != null) {
+            return new OpenTsdbMetrics(registry, config.getMetricsScope());
+        }
+        String scope = "default";
+        List<OpenTsdbClientConfiguration> clientConfigs = config.getClientConfigurations();
+        if (!clientConfigs.isEmpty() && clientConfigs.get(0).getHost() != null) {
+            scope = clientConfigs.get(0).getHost() + "_" + clientConfigs.get(0).getPort();
+        }
+        return new OpenTsdbMetrics(registry, scope, true);
+    }
+
+    private static int maxConnections(OpenTsdbEndpoint[] endpoints) {
+        int maxConnections = 0;
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            maxConnections += endpoint.getMaxConnections();
+        }
+        return maxConnections;
+    }
+
+    private static ExecutorService newPrewarmer(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "tsdb-prewarm-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Open the pre-warmed connections of every endpoint in parallel, waiting up to timeout ms
+     */
+    private void prewarm(long timeout) {
+        long start = System.nanoTime();
+        List<Future<?>> tasks = new ArrayList<>();
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            tasks.addAll(endpoint.prewarm(prewarmer));
+        }
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(Math.max(timeout, 0));
+        try {
+            for (Future<?> task : tasks) {
+                task.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            }
+        } catch (TimeoutException e) {
+            log.warn("Gave up waiting for pre-warmed connections after {} ms", timeout);
+        } catch (ExecutionException e) {
+            log.warn("Unexpected exception pre-warming connections", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Opened {} of {} pre-warmed connections in {} ms", getNumIdle(), tasks.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    static EndpointSelector newSelector(OpenTsdbEndpointSelection selection) {
+        switch (selection) {
+            case ROUND_ROBIN:
+                return new WeightedRoundRobinSelector();
+            case LATENCY:
+                return new LatencySelector();
+            case AFFINITY:
+                return new ConsistentHashSelector();
+            default:
+                return new LeastOutstandingSelector();
+        }
+    }
+
+    /**
+     * Replace the endpoints without draining the pool. An endpoint whose host, port,
+     * maxConnections and weight are unchanged is kept with its connections and takes
+     * the new rate limits; others
+     * are created and pre-warmed in the background, and the endpoints no longer
+     * listed are retired once their borrowed clients are returned.
+     * @throws IllegalArgumentException when a client has no host or port
+     */
+    public synchronized void reload(List<OpenTsdbClientConfiguration> clients) {
+        assertOpen();
+        for (OpenTsdbClientConfiguration clientConfig : clients) {
+            if (clientConfig.getHost() == null || clientConfig.getPort() == null) {
+                throw new IllegalArgumentException("OpenTSDB endpoint without host or port");
+            }
+        }
+        Map<String, OpenTsdbEndpoint> current = new HashMap<>();
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            current.put(key(endpoint.getHost(), endpoint.getPort(), endpoint.getMaxConnections(), endpoint.getWeight()), endpoint);
+        }
+        List<OpenTsdbEndpoint> reloaded = new ArrayList<>();
+        List<OpenTsdbEndpoint> added = new ArrayList<>();
+        for (OpenTsdbClientConfiguration clientConfig : clients) {
+            int maxConnections = Math.max((clientConfig.getMaxConnections() != null) ? clientConfig.getMaxConnections() : 1, 1);
+            int weight = Math.max((clientConfig.getWeight() != null) ? clientConfig.getWeight() : 1, 1);
+            OpenTsdbEndpoint endpoint = current.remove(key(clientConfig.getHost(), clientConfig.getPort(), maxConnections, weight));
+            if (endpoint == null) {
+                endpoint = new OpenTsdbEndpoint(clientConfig, config, tsdbFactory, metrics);
+                endpoint.setPrewarmer(prewarmer);
+                endpoint.setPoolBuckets(pointBucket, byteBucket);
+                added.add(endpoint);
+            } else {
+                endpoint.setRateLimits(clientConfig);
+            }
+            reloaded.add(endpoint);
+        }
+        if (added.isEmpty() && current.isEmpty()) {
+            return;
+        }
+
+        // publish first so the retired endpoints see no more borrows
+        OpenTsdbEndpoint[] next = reloaded.toArray(new OpenTsdbEndpoint[reloaded.size()]);
+        this.endpoints = next;
+        backpressure.setMaxLimit(maxConnections(next));
+        log.info("Reloaded OpenTSDB endpoints, {} added and {} removed: {}", added.size(), current.size(), Arrays.toString(next));
+        for (OpenTsdbEndpoint endpoint : current.values()) {
+            endpoint.retire();
+        }
+        if (prewarmer != null) {
+            for (OpenTsdbEndpoint endpoint : added) {
+                endpoint.prewarm(prewarmer);
+            }
+        }
+        // wake borrowers waiting for any endpoint
+        notifyAll();
+    }
+
+    private static String key(String host, int port, int maxConnections, int weight) {
+        return host + ":" + port + "/" + maxConnections + "/" + weight;
+    }
+
+    /**
+     * Borrow a validated client from one of the endpoints
+     * @throws NoSuchElementException when no client became available within maxWaitTime,
+     * or writes are suspended by backpressure
+     * @throws InterruptedException when interrupted while waiting
+     * @throws Exception the last failure when no endpoint with room could connect
+     */
+    @Override
+    public OpenTsdbClient borrowObject() throws Exception {
+        return borrow(null, 0);
+    }
+
+    /**
+     * Borrow a validated client for writing the series, from the endpoint the series
+     * hashes to when the selector is a ConsistentHashSelector
+     * @see #borrowObject()
+     */
+    public OpenTsdbClient borrowObject(String metric, Map<String, String> tags) throws Exception {
+        if (!(selector instanceof ConsistentHashSelector)) {
+            return borrowObject();
+        }
+        return borrow((ConsistentHashSelector) selector, ConsistentHashSelector.seriesHash(metric, tags));
+    }
+
+    /**
+     * The endpoint the series is written to, for grouping points by endpoint
+     * @return the endpoint, or null when the selector has no series affinity or every endpoint is ejected
+     */
+    public OpenTsdbEndpoint getEndpoint(String metric, Map<String, String> tags) {
+        OpenTsdbEndpoint[] endpoints = this.endpoints;
+        if (!(selector instanceof ConsistentHashSelector) || endpoints.length == 0) {
+            return null;
+        }
+        return ((ConsistentHashSelector) selector).select(endpoints, ConsistentHashSelector.seriesHash(metric, tags));
+    }
+
+    /**
+     * @return true if clients for a series are borrowed from the endpoint chosen by a ConsistentHashSelector
+     */
+    boolean hasAffinity() {
+        return selector instanceof ConsistentHashSelector;
+    }
+
+    private OpenTsdbClient borrow(ConsistentHashSelector affinity, long seriesHash) throws Exception {
+        assertOpen();
+        OpenTsdbEndpoint[] endpoints = this.endpoints;
+        if (endpoints.length == 0) {
+            synchronized (this) {
+                if (this.endpoints.length == 0) {
+                    wait(Math.max(maxWaitTime, 0));
+                }
+                endpoints = this.endpoints;
+            }
+            if (endpoints.length == 0) {
+                throw new NoSuchElementException("No OpenTSDB endpoints configured");
+            }
+        }
+        long started = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        boolean admitted = false;
+        try {
+            admitted = backpressure.acquire(maxWaitTime);
+            OpenTsdbClient client = borrowClient(endpoints, started, affinity, seriesHash);
+            client.admitted = admitted;
+            if (metrics != null) {
+                metrics.borrowWait.update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            }
+            return client;
+        } catch (Exception e) {
+            if (admitted) {
+                backpressure.release();
+            }
+            if (metrics != null && e instanceof NoSuchElementException) {
+                metrics.borrowTimeouts.mark();
+            }
+            throw e;
+        }
+    }
+
+    private OpenTsdbClient borrowClient(OpenTsdbEndpoint[] endpoints, long started,
+                                        ConsistentHashSelector affinity, long seriesHash) throws Exception {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length;
+        OpenTsdbEndpoint selected = (affinity != null) ? affinity.select(endpoints, seriesHash) : selector.select(endpoints);
+        if (selected == null) {
+            // everything is ejected, a connection may still work
+            selected = endpoints[start];
+        }
+
+        // The selected endpoint first, then any healthy one with room; a series
+        // only moves when its endpoint fails to connect
+        Exception failure = null;
+        for (int i = -1; i < endpoints.length; ++i) {
+            if (i >= 0 && affinity != null && failure == null) {
+                break;
+            }
+            OpenTsdbEndpoint endpoint = (i < 0) ? selected : endpoints[(start + i) % endpoints.length];
+            if (i >= 0 && (endpoint == selected || endpoint.isEjected())) {
+                continue;
+            }
+            try {
+                OpenTsdbClient client = endpoint.tryBorrowClient();
+                if (client != null) {
+                    endpoint.recordSuccess();
+                    return client;
+                }
+            } catch (Exception e) {
+                log.debug("Unable to borrow a client for {}: {}", endpoint, e.toString());
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        long wait = maxWaitTime;
+        if (wait > 0) {
+            // part of maxWaitTime may have been spent waiting for backpressure
+            wait = Math.max(wait - (System.currentTimeMillis() - started), 1);
+        }
+        OpenTsdbClient client = selected.borrowClient(wait);
+        if (client == null) {
+            throw new NoSuchElementException("Timeout waiting for idle object");
+        }
+        selected.recordSuccess();
+        return client;
+    }
+
+    @Override
+    public void returnObject(OpenTsdbClient client) throws Exception {
+        release(client);
+        OpenTsdbEndpoint endpoint = client.endpoint;
+        if (endpoint == null) {
+            log.warn("Destroying a client that was not borrowed from this pool");
+            tsdbFactory.destroyObject(client);
+            return;
+        }
+        endpoint.returnClient(client);
+    }
+
+    @Override
+    public void invalidateObject(OpenTsdbClient client) throws Exception {
+        release(client);
+        OpenTsdbEndpoint endpoint = client.endpoint;
+        if (endpoint == null) {
+            tsdbFactory.destroyObject(client);
+            return;
+        }
+        endpoint.invalidateClient(client);
+    }
+
+    private void release(OpenTsdbClient client) {
+        if (client.admitted) {
+            client.admitted = false;
+            backpressure.release();
+        }
+    }
+
+    /**
+     * @return the number of clients borrowed from all endpoints
+     */
+    @Override
+    public int getNumActive() {
+        int active = 0;
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            active += endpoint.getNumActive();
+        }
+        return active;
+    }
+
+    /**
+     * @return the number of idle clients at all endpoints
+     */
+    @Override
+    public int getNumIdle() {
+        int idle = 0;
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            idle += endpoint.getNumIdle();
+        }
+        return idle;
+    }
+
+    /**
+     * Closes the idle clients of every endpoint
+     */
+    @Override
+    public void clear() {
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            endpoint.clear();
+        }
+    }
+
+    /**
+     * Closes the pool and releases the factory's selector threads.
+     */
+    @Override
+    public void close() throws Exception {
+        super.close();
+        if (discovery != null) {
+            discovery.close();
+        }
+        if (prewarmer != null) {
+            prewarmer.shutdownNow();
+        }
+        if (recycler != null) {
+            recycler.interrupt();
+            try {
+                recycler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            for (OpenTsdbEndpoint endpoint : endpoints) {
+                endpoint.close();
+            }
+        } finally {
+            tsdbFactory.close();
+            if (metrics != null) {
+                metrics.remove();
+            }
+        }
+    }
+
+    /**
+     * The endpoints clients are borrowed from, in configuration order
+     */
+    public List<OpenTsdbEndpoint> getEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(endpoints));
+    }
+
+    /**
+     * The controller throttling borrows after collisions, for monitoring
+     */
+    public BackpressureController getBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * The limit of points per second flushed to all endpoints together
+     */
+    public TokenBucket getPointBucket() {
+        return pointBucket;
+    }
+
+    /**
+     * The limit of bytes per second flushed to all endpoints together
+     */
+    public TokenBucket getByteBucket() {
+        return byteBucket;
+    }
+
+    /**
+     * The pool's metrics, null when disabled
+     */
+    public OpenTsdbMetrics getMetrics() {
+        return metrics;
+    }
+
     public int clearErrorCount() {
         return tsdbFactory.clearErrorCount();
     }
@@ -39,6 +544,55 @@ public class OpenTsdbClientPool extends GenericObjectPool<OpenTsdbClient> {
     public boolean hasCollision() {
         return tsdbFactory.hasCollision();
     }
+
+    /**
+     * Replaces the clients of every endpoint that expire within ahead ms
+     */
+    private class Recycler implements Runnable {
+
+        Recycler(long ahead) {
+            this.ahead = ahead;
+        }
+
+        @Override
+        public void run() {
+            long period = Math.max(ahead / 4, 100L);
+            while (!isClosed()) {
+                try {
+                    Thread.sleep(period);
+                    for (OpenTsdbEndpoint endpoint : endpoints) {
+                        endpoint.recycle(System.currentTimeMillis(), ahead);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Unexpected exception recycling connections", e);
+                }
+            }
+        }
+
+        private final long ahead;
+    }
     
+    // Dependencies
     private final OpenTsdbClientFactory tsdbFactory;
+
+    private final EndpointSelector selector;
+
+    private final ExecutorService prewarmer;
+
+    private final FileEndpointDiscovery discovery;
+
+    // Internal state
+    private volatile OpenTsdbEndpoint[] endpoints;
+    private final BackpressureController backpressure;
+    private final TokenBucket pointBucket;
+    private final TokenBucket byteBucket;
+    private final OpenTsdbMetrics metrics;
+    private final AtomicInteger next;
+    private final Thread recycler;
+
+    // Configuration
+    private final OpenTsdbClientPoolConfiguration config;
+    private final long maxWaitTime;
 }
@@ -25,6 +25,13 @@ public class OpenTsdbClientPoolConfiguration {
     @JsonProperty("clientFactory")
     private OpenTsdbClientFactoryConfiguration clientFactoryConfiguration = new OpenTsdbClientFactoryConfiguration();
 
+    /**
+     * Http api configuration
+     */
+    @Valid
+    @JsonProperty("http")
+    private OpenTsdbHttpConfiguration httpConfiguration = new OpenTsdbHttpConfiguration();
+
     /**
      * Clients to  create for pool
      */
@@ -38,17 +45,161 @@ public class OpenTsdbClientPoolConfiguration {
     @JsonProperty
     private long maxKeepAliveTime = 5 * 60 * 1000;
 
+    /**
+     * share of maxKeepAliveTime a client's lifetime is randomly shortened by
+     */
+    @JsonProperty
+    private double keepAliveJitter = 0.2;
+
+    /**
+     * how long before a client expires its successor is opened in ms, 0 to let it expire on a borrow
+     */
+    @JsonProperty
+    private long recycleAhead = 10_000L;
+
     /**
      * how long between testing a client's liveliness in ms
      */
     @JsonProperty
     private long minTestTime = 60 * 1000;
+
+    /**
+     * round-trip every borrow or validate in the background
+     */
+    @JsonProperty
+    private OpenTsdbValidationMode validationMode = OpenTsdbValidationMode.ROUND_TRIP;
+
+    /**
+     * how borrows are spread over the endpoints
+     */
+    @JsonProperty
+    private OpenTsdbEndpointSelection endpointSelection = OpenTsdbEndpointSelection.LEAST_OUTSTANDING;
+
+    /**
+     * endpoint health: ejection after failures or error bursts, for ejectionTime ms
+     */
+    @JsonProperty
+    private int ejectAfterFailures = 3;
+
+    @JsonProperty
+    private int ejectAfterErrors = 100;
+
+    @JsonProperty
+    private long ejectionTime = 30 * 1000;
+
+    /**
+     * backpressure: collisions cut the concurrent borrows by backoffFactor, at most once
+     * per rampUpInterval ms, which then grow by one per quiet rampUpInterval;
+     * circuitOpenAfter backoffs at one borrow suspend writes for circuitOpenTime ms
+     */
+    @JsonProperty
+    private boolean backpressure = true;
+
+    @JsonProperty
+    private double backoffFactor = 0.5;
+
+    @JsonProperty
+    private long rampUpInterval = 1000;
+
+    @JsonProperty
+    private int circuitOpenAfter = 3;
+
+    @JsonProperty
+    private long circuitOpenTime = 5 * 1000;
+
+    /**
+     * metrics registered by the pool, scoped by metricsScope
+     */
+    @JsonProperty
+    private boolean metrics = true;
+
+    /**
+     * scope of the metrics, owned by one live pool per registry, by default named after the first endpoint
+     */
+    @JsonProperty
+    private String metricsScope;
     
     @JsonProperty
     private long maxWaitTime = 10_000L;
     
     @JsonProperty
     private Integer clientBufferSize = 8192;
+
+    /**
+     * how each endpoint keeps its idle connections
+     */
+    @JsonProperty
+    private OpenTsdbPoolType poolType = OpenTsdbPoolType.GENERIC;
+
+    /**
+     * blocking sockets or nio channels
+     */
+    @JsonProperty
+    private OpenTsdbTransport transport = OpenTsdbTransport.BLOCKING;
+
+    /**
+     * number of selector threads shared by all nio clients
+     */
+    @JsonProperty
+    private int selectorThreads = 1;
+
+    /**
+     * bytes an nio client may queue for its selector before writers wait
+     */
+    @JsonProperty
+    private int maxPendingWriteBytes = 4 * 1024 * 1024;
+
+    /**
+     * series whose encoded metric and tags are shared by all clients, 0 to disable
+     */
+    @JsonProperty
+    private int seriesCacheSize = 0;
+
+    @JsonProperty
+    private long seriesCacheBytes = 64L * 1024 * 1024;
+
+    /**
+     * connections opened in parallel per endpoint when the pool starts and when an
+     * ejected endpoint comes back, waiting up to prewarmTimeout ms at startup
+     */
+    @JsonProperty
+    private int prewarmConnections = 0;
+
+    @JsonProperty
+    private long prewarmTimeout = 10_000L;
+
+    /**
+     * how long a host's address is used before it's resolved again in ms, 0 to resolve once
+     */
+    @JsonProperty
+    private long dnsTtl = 0L;
+
+    /**
+     * JSON file listing the clients, checked for changes every discoveryInterval ms
+     */
+    @JsonProperty
+    private String discoveryFile;
+
+    @JsonProperty
+    private long discoveryInterval = 10_000L;
+
+    /**
+     * points per second flushed to all endpoints together, 0 for no limit
+     */
+    @JsonProperty
+    private long maxPointsPerSecond = 0L;
+
+    /**
+     * bytes per second flushed to all endpoints together, 0 for no limit
+     */
+    @JsonProperty
+    private long maxBytesPerSecond = 0L;
+
+    /**
+     * how many ms worth of the pool and endpoint rate limits may be flushed at once
+     */
+    @JsonProperty
+    private long rateBurst = 100L;
     
     /**
      * The size of the output stream buffer.
@@ -58,6 +209,106 @@ public class OpenTsdbClientPoolConfiguration {
         return clientBufferSize;
     }
 
+    /**
+     * How each endpoint keeps its idle connections
+     * @return pool type
+     */
+    public OpenTsdbPoolType getPoolType() {
+        return poolType;
+    }
+
+    /**
+     * How long a resolved host address is used before resolving the host again
+     * @return time in milliseconds, 0 to resolve each host once
+     */
+    public long getDnsTtl() {
+        return dnsTtl;
+    }
+
+    /**
+     * A JSON file with the list of clients, replacing the configured ones while it exists
+     * @return path, null to disable discovery
+     */
+    public String getDiscoveryFile() {
+        return discoveryFile;
+    }
+
+    /**
+     * How often the discovery file is checked for changes
+     * @return time in milliseconds
+     */
+    public long getDiscoveryInterval() {
+        return discoveryInterval;
+    }
+
+    /**
+     * The points per second flushed to all endpoints together, flushes beyond it
+     * wait for their turn
+     * @return rate, 0 for no limit
+     */
+    public long getMaxPointsPerSecond() {
+        return maxPointsPerSecond;
+    }
+
+    /**
+     * The bytes per second flushed to all endpoints together, flushes beyond it
+     * wait for their turn
+     * @return rate, 0 for no limit
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * How much of the pool and endpoint rate limits may be flushed at once without
+     * waiting, as time at the limit
+     * @return time in milliseconds
+     */
+    public long getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * How clients talk to OpenTSDB
+     * @return transport
+     */
+    public OpenTsdbTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * The number of selector threads driving nio clients
+     * @return thread count
+     */
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    /**
+     * The number of bytes an nio client may have queued for writing before
+     * writers wait for the selector to catch up
+     * @return size in bytes
+     */
+    public int getMaxPendingWriteBytes() {
+        return maxPendingWriteBytes;
+    }
+
+    /**
+     * The number of series whose encoded metric and tags are cached, 0 to disable the cache
+     * @return series count
+     */
+    public int getSeriesCacheSize() {
+        return seriesCacheSize;
+    }
+
+    /**
+     * The approximate memory the series cache may use
+     * @return size in bytes
+     */
+    public long getSeriesCacheBytes() {
+        return seriesCacheBytes;
+    }
+
     /**
      * Client factory configuration
      * @return configuration
@@ -66,6 +317,14 @@ public class OpenTsdbClientPoolConfiguration {
         return clientFactoryConfiguration;
     }
 
+    /**
+     * Configuration for posting to the http api of the same clients
+     * @return configuration
+     */
+    public OpenTsdbHttpConfiguration getHttpConfiguration() {
+        return httpConfiguration;
+    }
+
     /**
      * Configuration details for OpenTSDB clients
      * @return list of client configurations
@@ -83,12 +342,129 @@ public class OpenTsdbClientPoolConfiguration {
     }
 
     /**
-     * @deprecated
+     * The share of maxKeepAliveTime each client's lifetime is randomly shortened by
+     * @return fraction from 0 to 1
+     */
+    public double getKeepAliveJitter() {
+        return keepAliveJitter;
+    }
+
+    /**
+     * How long before a client expires a successor is opened and validated in the
+     * background to take its place
+     * @return time in milliseconds, 0 to disable
+     */
+    public long getRecycleAhead() {
+        return recycleAhead;
+    }
+
+    /**
+     * How long a client may go without a round-trip validation when using
+     * background validation
+     * @return time in milliseconds
      */
-    @Deprecated
     public long getMinTestTime() {
         return minTestTime;
     }
+
+    /**
+     * How clients are checked before use
+     * @return validation mode
+     */
+    public OpenTsdbValidationMode getValidationMode() {
+        return validationMode;
+    }
+
+    /**
+     * How the endpoint for each borrow is chosen
+     * @return selection strategy
+     */
+    public OpenTsdbEndpointSelection getEndpointSelection() {
+        return endpointSelection;
+    }
+
+    /**
+     * The number of consecutive connect or validation failures that eject an endpoint
+     * @return failure count
+     */
+    public int getEjectAfterFailures() {
+        return ejectAfterFailures;
+    }
+
+    /**
+     * The number of error responses within a second that eject an endpoint
+     * @return error count
+     */
+    public int getEjectAfterErrors() {
+        return ejectAfterErrors;
+    }
+
+    /**
+     * How long an ejected endpoint is skipped before it is tried again
+     * @return time in milliseconds
+     */
+    public long getEjectionTime() {
+        return ejectionTime;
+    }
+
+    /**
+     * Whether borrows are throttled when OpenTSDB reports HBase collisions
+     * @return whether enabled
+     */
+    public boolean isBackpressure() {
+        return backpressure;
+    }
+
+    /**
+     * The factor concurrent borrows are multiplied by after a collision
+     * @return factor between 0 and 1
+     */
+    public double getBackoffFactor() {
+        return backoffFactor;
+    }
+
+    /**
+     * How long without collisions before one more concurrent borrow is allowed,
+     * also the minimum time between backoffs
+     * @return time in milliseconds
+     */
+    public long getRampUpInterval() {
+        return rampUpInterval;
+    }
+
+    /**
+     * The number of backoffs while limited to one borrow that suspend writes
+     * @return backoff count
+     */
+    public int getCircuitOpenAfter() {
+        return circuitOpenAfter;
+    }
+
+    /**
+     * How long writes are suspended, borrows fail immediately meanwhile
+     * @return time in milliseconds
+     */
+    public long getCircuitOpenTime() {
+        return circuitOpenTime;
+    }
+
+    /**
+     * Whether the pool registers OpenTsdbMetrics
+     * @return whether enabled
+     */
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The scope of the pool's metrics. A pool fails to start with the scope of another
+     * live pool in the same registry; without a scope each pool gets its own, named
+     * after its first endpoint, host_port, with a -2, -3 suffix when already owned.
+     * @return scope, or null for a scope of the pool's own
+     */
+    public String getMetricsScope() {
+        return metricsScope;
+    }
     
     /**
      * The maximum time to block when waiting for a client to become available
@@ -99,6 +475,22 @@ public class OpenTsdbClientPoolConfiguration {
         return maxWaitTime;
     }
     
+    /**
+     * The number of connections opened ahead of the first borrows at each endpoint
+     * @return connections per endpoint, 0 to open them lazily
+     */
+    public int getPrewarmConnections() {
+        return prewarmConnections;
+    }
+
+    /**
+     * The maximum time the pool's constructor waits for pre-warmed connections
+     * @return time in milliseconds
+     */
+    public long getPrewarmTimeout() {
+        return prewarmTimeout;
+    }
+
     /**
      * The size of the output stream buffer.
      * @param bufferSize size
@@ -107,6 +499,119 @@ public class OpenTsdbClientPoolConfiguration {
         this.clientBufferSize = bufferSize;
     }
 
+    /**
+     * How each endpoint keeps its idle connections
+     * @param poolType pool type
+     */
+    public void setPoolType(OpenTsdbPoolType poolType) {
+        this.poolType = poolType;
+    }
+
+    /**
+     * How long a resolved host address is used before resolving the host again
+     * @param dnsTtl time in milliseconds, 0 to resolve each host once
+     */
+    public void setDnsTtl(long dnsTtl) {
+        this.dnsTtl = dnsTtl;
+    }
+
+    /**
+     * A JSON file with the list of clients, replacing the configured ones while it exists
+     * @param discoveryFile path, null to disable discovery
+     */
+    public void setDiscoveryFile(String discoveryFile) {
+        this.discoveryFile = discoveryFile;
+    }
+
+    /**
+     * How often the discovery file is checked for changes
+     * @param discoveryInterval time in milliseconds
+     */
+    public void setDiscoveryInterval(long discoveryInterval) {
+        this.discoveryInterval = discoveryInterval;
+    }
+
+    /**
+     * The points per second flushed to all endpoints together
+     * @param maxPointsPerSecond rate, 0 for no limit
+     */
+    public void setMaxPointsPerSecond(long maxPointsPerSecond) {
+        this.maxPointsPerSecond = maxPointsPerSecond;
+    }
+
+    /**
+     * The bytes per second flushed to all endpoints together
+     * @param maxBytesPerSecond rate, 0 for no limit
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * How much of the pool and endpoint rate limits may be flushed at once
+     * @param rateBurst time in milliseconds
+     */
+    public void setRateBurst(long rateBurst) {
+        this.rateBurst = rateBurst;
+    }
+
+    /**
+     * How clients talk to OpenTSDB
+     * @param transport transport
+     */
+    public void setTransport(OpenTsdbTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * The number of selector threads driving nio clients
+     * @param selectorThreads thread count
+     */
+    public void setSelectorThreads(int selectorThreads) {
+        this.selectorThreads = selectorThreads;
+    }
+
+    /**
+     * The number of bytes an nio client may have queued for writing before
+     * writers wait for the selector to catch up
+     * @param maxPendingWriteBytes size in bytes
+     */
+    public void setMaxPendingWriteBytes(int maxPendingWriteBytes) {
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+    /**
+     * The number of series whose encoded metric and tags are cached, 0 to disable the cache
+     * @param seriesCacheSize series count
+     */
+    public void setSeriesCacheSize(int seriesCacheSize) {
+        this.seriesCacheSize = seriesCacheSize;
+    }
+
+    /**
+     * The approximate memory the series cache may use
+     * @param seriesCacheBytes size in bytes
+     */
+    public void setSeriesCacheBytes(long seriesCacheBytes) {
+        this.seriesCacheBytes = seriesCacheBytes;
+    }
+
+    /**
+     * The number of connections opened ahead of the first borrows at each endpoint
+     * @param prewarmConnections connections per endpoint, 0 to open them lazily
+     */
+    public void setPrewarmConnections(int prewarmConnections) {
+        this.prewarmConnections = prewarmConnections;
+    }
+
+    /**
+     * The maximum time the pool's constructor waits for pre-warmed connections
+     * @param prewarmTimeout time in milliseconds
+     */
+    public void setPrewarmTimeout(long prewarmTimeout) {
+        this.prewarmTimeout = prewarmTimeout;
+    }
+
     /**
      * The maximum time to block when waiting for a client to become available
      * from the pool
@@ -115,6 +620,22 @@ public class OpenTsdbClientPoolConfiguration {
     public void setMaxKeepAliveTime(long maxKeepAliveTime) {
         this.maxKeepAliveTime = maxKeepAliveTime;
     }
+
+    /**
+     * The share of maxKeepAliveTime each client's lifetime is randomly shortened by
+     * @param keepAliveJitter fraction from 0 to 1
+     */
+    public void setKeepAliveJitter(double keepAliveJitter) {
+        this.keepAliveJitter = keepAliveJitter;
+    }
+
+    /**
+     * How long before a client expires a successor is opened to take its place
+     * @param recycleAhead time in milliseconds, 0 to disable
+     */
+    public void setRecycleAhead(long recycleAhead) {
+        this.recycleAhead = recycleAhead;
+    }
     
     /**
      * The maximum time to block when waiting for a client to become available
@@ -126,13 +647,111 @@ public class OpenTsdbClientPoolConfiguration {
     }
 
     /**
-     * @deprecated
+     * How long a client may go without a round-trip validation when using
+     * background validation
+     * @param minTestTime time in milliseconds
      */
-    @Deprecated
     public void setMinTestTime(long minTestTime) {
         this.minTestTime = minTestTime;
     }
 
+    /**
+     * How clients are checked before use
+     * @param validationMode validation mode
+     */
+    public void setValidationMode(OpenTsdbValidationMode validationMode) {
+        this.validationMode = validationMode;
+    }
+
+    /**
+     * How the endpoint for each borrow is chosen
+     * @param endpointSelection selection strategy
+     */
+    public void setEndpointSelection(OpenTsdbEndpointSelection endpointSelection) {
+        this.endpointSelection = endpointSelection;
+    }
+
+    /**
+     * The number of consecutive connect or validation failures that eject an endpoint
+     * @param ejectAfterFailures failure count
+     */
+    public void setEjectAfterFailures(int ejectAfterFailures) {
+        this.ejectAfterFailures = ejectAfterFailures;
+    }
+
+    /**
+     * The number of error responses within a second that eject an endpoint
+     * @param ejectAfterErrors error count
+     */
+    public void setEjectAfterErrors(int ejectAfterErrors) {
+        this.ejectAfterErrors = ejectAfterErrors;
+    }
+
+    /**
+     * How long an ejected endpoint is skipped before it is tried again
+     * @param ejectionTime time in milliseconds
+     */
+    public void setEjectionTime(long ejectionTime) {
+        this.ejectionTime = ejectionTime;
+    }
+
+    /**
+     * Whether borrows are throttled when OpenTSDB reports HBase collisions
+     * @param backpressure whether enabled
+     */
+    public void setBackpressure(boolean backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * The factor concurrent borrows are multiplied by after a collision
+     * @param backoffFactor factor between 0 and 1
+     */
+    public void setBackoffFactor(double backoffFactor) {
+        this.backoffFactor = backoffFactor;
+    }
+
+    /**
+     * How long without collisions before one more concurrent borrow is allowed,
+     * also the minimum time between backoffs
+     * @param rampUpInterval time in milliseconds
+     */
+    public void setRampUpInterval(long rampUpInterval) {
+        this.rampUpInterval = rampUpInterval;
+    }
+
+    /**
+     * The number of backoffs while limited to one borrow that suspend writes
+     * @param circuitOpenAfter backoff count
+     */
+    public void setCircuitOpenAfter(int circuitOpenAfter) {
+        this.circuitOpenAfter = circuitOpenAfter;
+    }
+
+    /**
+     * How long writes are suspended, borrows fail immediately meanwhile
+     * @param circuitOpenTime time in milliseconds
+     */
+    public void setCircuitOpenTime(long circuitOpenTime) {
+        this.circuitOpenTime = circuitOpenTime;
+    }
+
+    /**
+     * Whether the pool registers OpenTsdbMetrics
+     * @param metrics whether enabled
+     */
+    public void setMetrics(boolean metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * The scope of the pool's metrics, unique per live pool in a registry
+     * @param metricsScope scope, or null for a scope of the pool's own
+     */
+    public void setMetricsScope(String metricsScope) {
+        this.metricsScope = metricsScope;
+    }
+
     /**
      * Client factory configuration
      * @param clientFactoryConfiguration 
@@ -142,6 +761,14 @@ public class OpenTsdbClientPoolConfiguration {
         this.clientFactoryConfiguration = clientFactoryConfiguration;
     }
 
+    /**
+     * Configuration for posting to the http api of the same clients
+     * @param httpConfiguration configuration
+     */
+    public void setHttpConfiguration(OpenTsdbHttpConfiguration httpConfiguration) {
+        this.httpConfiguration = httpConfiguration;
+    }
+
     /**
      * Configuration details for OpenTSDB clients
      * @param clients 
@@ -0,0 +1,642 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.impl.GenericObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One OpenTSDB server and the pool of connections to it. Each endpoint has the
+ * capacity, idle limits and wait queue of its OpenTsdbClientConfiguration;
+ * OpenTsdbClientPool chooses an endpoint for every borrow using an
+ * EndpointSelector.
+ * <p>The endpoint also keeps what selectors need, all readable without locking:
+ * outstanding and open connection counts, an exponentially weighted moving average
+ * of flush and validation latencies, and its health. ejectAfterFailures consecutive
+ * connect or validation failures, or ejectAfterErrors error responses within a
+ * second, eject the endpoint for ejectionTime ms. After that it is probed with
+ * regular traffic: one more failure ejects it again, a success restores it.</p>
+ * <p>With prewarmConnections, #prewarm opens connections until that many are
+ * open, one task each on the pool's pre-warming executor, and an endpoint that
+ * comes back from ejection pre-warms again in the background.</p>
+ * <p>With a dnsTtl, the host is resolved again before a connection is opened once
+ * the last resolution is that old, so new connections follow DNS changes while
+ * open ones run out their maxKeepAliveTime. A retired endpoint, one removed from
+ * the pool, takes no more borrows and destroys its clients as they are returned,
+ * closing once the last one is back.</p>
+ * <p>#recycle replaces clients about to reach the end of their lifetime: it opens
+ * and validates a successor first, then expires the old client so its next
+ * validation discards it. The successor waits in a handoff queue that the next
+ * connection the pool makes is taken from, so a recycled client never costs a
+ * borrower a connect.</p>
+ * <p>Flushes are paced by TokenBucket rate limits, the endpoint's maxPointsPerSecond
+ * and maxBytesPerSecond and those of the whole pool: a flush takes its points and
+ * bytes from every bucket and waits until all of them have paid off the debt, so
+ * a burst is spread out at the limit instead of rejected.</p>
+ */
+public final class OpenTsdbEndpoint {
+
+    static final Logger log = LoggerFactory.getLogger(OpenTsdbEndpoint.class);
+
+    /** Weight of a new sample in the latency average */
+    static final double LATENCY_ALPHA = 0.2;
+
+    OpenTsdbEndpoint(OpenTsdbClientConfiguration clientConfig, OpenTsdbClientPoolConfiguration config, OpenTsdbClientFactory clientFactory, OpenTsdbMetrics metrics) {
+        this.host = clientConfig.getHost();
+        this.port = clientConfig.getPort();
+        this.address = new InetSocketAddress(host, port);
+        this.resolvedAt = System.currentTimeMillis();
+        this.dnsTtl = config.getDnsTtl();
+        this.maxConnections = Math.max((clientConfig.getMaxConnections() != null) ? clientConfig.getMaxConnections() : 1, 1);
+        this.weight = Math.max((clientConfig.getWeight() != null) ? clientConfig.getWeight() : 1, 1);
+        this.ejectAfterFailures = Math.max(config.getEjectAfterFailures(), 1);
+        this.ejectAfterErrors = Math.max(config.getEjectAfterErrors(), 1);
+        this.ejectionTime = config.getEjectionTime();
+        this.prewarmConnections = Math.min(Math.max(config.getPrewarmConnections(), 0), maxConnections);
+        this.clientFactory = clientFactory;
+        this.open = new AtomicInteger();
+        this.latency = new AtomicLong(Double.doubleToRawLongBits(0.0));
+        this.failures = new AtomicInteger();
+        this.errorWindow = new AtomicLong();
+        this.errorsInWindow = new AtomicInteger();
+        this.warming = new AtomicInteger();
+        this.closing = new AtomicBoolean();
+        this.clients = Collections.newSetFromMap(new ConcurrentHashMap<OpenTsdbClient, Boolean>());
+        this.successors = new ConcurrentLinkedQueue<>();
+        this.endpointFactory = new EndpointClientFactory();
+        this.pointBucket = new TokenBucket(rate(clientConfig.getMaxPointsPerSecond()), config.getRateBurst());
+        this.byteBucket = new TokenBucket(rate(clientConfig.getMaxBytesPerSecond()), config.getRateBurst());
+
+        this.permits = new Semaphore(maxConnections);
+
+        // Borrowers wait on the permits, so the pool itself never runs out
+        int maxIdle = (clientConfig.getMaxIdle() != null) ? clientConfig.getMaxIdle() : maxConnections;
+        int minIdle = (clientConfig.getMinIdle() != null) ? clientConfig.getMinIdle() : 0;
+        boolean background = config.getValidationMode() == OpenTsdbValidationMode.BACKGROUND;
+        // Ping idle clients every half minTestTime so borrowers seldom find one due
+        // for a round-trip
+        long evictionPeriod = Math.max(config.getMinTestTime() / 2, 1);
+        if (config.getPoolType() == OpenTsdbPoolType.STRIPED) {
+            this.pool = new StripedClientPool(endpointFactory, maxConnections, maxIdle, minIdle,
+                    background, evictionPeriod);
+        } else {
+            GenericObjectPool<OpenTsdbClient> generic = new GenericObjectPool<>(endpointFactory,
+                    maxConnections, GenericObjectPool.WHEN_EXHAUSTED_FAIL, 0);
+            generic.setMaxIdle(maxIdle);
+            generic.setMinIdle(minIdle);
+            generic.setTestOnBorrow(true);
+            if (background || minIdle > 0) {
+                // a negative count tests all idle clients on each run
+                generic.setTestWhileIdle(background);
+                generic.setTimeBetweenEvictionRunsMillis(evictionPeriod);
+                generic.setNumTestsPerEvictionRun(-1);
+            }
+            this.pool = generic;
+        }
+        this.metrics = (metrics != null) ? metrics.registerEndpoint(this) : null;
+    }
+
+    /**
+     * The name of the host running OpenTSDB
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * The port used to connect to OpenTSDB
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * The address connections are opened to, as last resolved
+     */
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Whether the endpoint was removed from the pool and is draining
+     */
+    public boolean isRetired() {
+        return retired;
+    }
+
+    /**
+     * The address to connect to, resolving the host again when dnsTtl has passed.
+     * A failed resolution keeps the previous address.
+     */
+    SocketAddress resolve() {
+        long now = System.currentTimeMillis();
+        if (dnsTtl <= 0 || now - resolvedAt < dnsTtl) {
+            return address;
+        }
+        resolvedAt = now;
+        InetSocketAddress resolved = new InetSocketAddress(host, port);
+        if (resolved.isUnresolved()) {
+            log.warn("Unable to resolve {}, connecting to {}", host, address);
+        } else if (!resolved.equals(address)) {
+            log.info("OpenTSDB endpoint {} now resolves to {}", this, resolved);
+            address = resolved;
+        }
+        return address;
+    }
+
+    /**
+     * The number of connections that can be open at once
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * The share of borrows this endpoint gets relative to the others
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * The number of connections currently borrowed
+     */
+    public int getNumActive() {
+        return pool.getNumActive();
+    }
+
+    /**
+     * The number of connections borrowed or being borrowed, without locking
+     */
+    public int getOutstanding() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    /**
+     * The number of open connections, borrowed or idle, without locking
+     */
+    public int getOpen() {
+        return open.get();
+    }
+
+    /**
+     * Moving average of flush and validation latencies
+     * @return latency in nanoseconds, 0 until one has been measured
+     */
+    public double getLatency() {
+        return Double.longBitsToDouble(latency.get());
+    }
+
+    /**
+     * Whether the endpoint is ejected and should not be chosen
+     */
+    public boolean isEjected() {
+        long until = ejectedUntil;
+        return until != 0 && System.currentTimeMillis() < until;
+    }
+
+    private static long rate(Long rate) {
+        return (rate != null) ? rate : 0;
+    }
+
+    /**
+     * Wait for the rate limits of the endpoint and the pool to admit a flush
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    void pace(int points, long bytes) throws InterruptedIOException {
+        long wait = Math.max(pointBucket.reserve(points), byteBucket.reserve(bytes));
+        TokenBucket poolPoints = poolPointBucket;
+        if (poolPoints != null) {
+            wait = Math.max(wait, poolPoints.reserve(points));
+        }
+        TokenBucket poolBytes = poolByteBucket;
+        if (poolBytes != null) {
+            wait = Math.max(wait, poolBytes.reserve(bytes));
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing a flush to " + this);
+            }
+        }
+    }
+
+    /**
+     * The limits of the whole pool that flushes to this endpoint also wait for
+     */
+    void setPoolBuckets(TokenBucket points, TokenBucket bytes) {
+        this.poolPointBucket = points;
+        this.poolByteBucket = bytes;
+    }
+
+    /**
+     * Apply the rate limits of a reloaded configuration
+     */
+    void setRateLimits(OpenTsdbClientConfiguration clientConfig) {
+        pointBucket.setRate(rate(clientConfig.getMaxPointsPerSecond()));
+        byteBucket.setRate(rate(clientConfig.getMaxBytesPerSecond()));
+    }
+
+    /**
+     * The limit of points per second flushed to this endpoint
+     */
+    public TokenBucket getPointBucket() {
+        return pointBucket;
+    }
+
+    /**
+     * The limit of bytes per second flushed to this endpoint
+     */
+    public TokenBucket getByteBucket() {
+        return byteBucket;
+    }
+
+    /**
+     * Count a flush of written points, folding its time into the latency average
+     */
+    void recordFlush(int points, long bytes, long nanos) {
+        recordLatency(nanos);
+        if (metrics != null) {
+            metrics.recordFlush(points, bytes, nanos);
+        }
+    }
+
+    /**
+     * Fold a flush or validation time into the latency average
+     */
+    void recordLatency(long nanos) {
+        while (true) {
+            long bits = latency.get();
+            double current = Double.longBitsToDouble(bits);
+            double next = (current == 0.0) ? nanos : current + LATENCY_ALPHA * (nanos - current);
+            if (latency.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A connection was opened or validated
+     */
+    void recordSuccess() {
+        if (failures.get() != 0) {
+            failures.set(0);
+        }
+        if (ejectedUntil != 0) {
+            ejectedUntil = 0;
+            log.info("OpenTSDB endpoint {} is back", this);
+            ExecutorService executor = prewarmer;
+            if (executor != null) {
+                prewarm(executor);
+            }
+        }
+    }
+
+    /**
+     * A connection could not be opened or failed validation
+     */
+    void recordFailure() {
+        if (failures.incrementAndGet() >= ejectAfterFailures) {
+            eject("connection failures");
+        }
+    }
+
+    /**
+     * The server answered with an error
+     */
+    void recordError() {
+        long now = System.currentTimeMillis();
+        long window = errorWindow.get();
+        if (now - window >= 1000 && errorWindow.compareAndSet(window, now)) {
+            errorsInWindow.set(0);
+        }
+        if (errorsInWindow.incrementAndGet() == ejectAfterErrors) {
+            eject("error responses");
+        }
+    }
+
+    private void eject(String reason) {
+        long now = System.currentTimeMillis();
+        if (now >= ejectedUntil) {
+            log.warn("Ejecting OpenTSDB endpoint {} for {} ms after {}", this, ejectionTime, reason);
+        }
+        ejectedUntil = now + ejectionTime;
+    }
+
+    /**
+     * The number of open connections waiting to be borrowed
+     */
+    public int getNumIdle() {
+        return pool.getNumIdle();
+    }
+
+    /**
+     * Borrow a client if one of the maxConnections is free, without waiting
+     * @return the client, or null if all are in use
+     */
+    OpenTsdbClient tryBorrowClient() throws Exception {
+        return permits.tryAcquire() ? borrowPermitted() : null;
+    }
+
+    /**
+     * Borrow a client, waiting in this endpoint's queue for up to timeout ms when
+     * all maxConnections are in use; a timeout of 0 or less waits indefinitely
+     * @return the client, or null if none became free in time
+     */
+    OpenTsdbClient borrowClient(long timeout) throws Exception {
+        if (timeout > 0) {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                return null;
+            }
+        } else {
+            permits.acquire();
+        }
+        return borrowPermitted();
+    }
+
+    void returnClient(OpenTsdbClient client) throws Exception {
+        try {
+            if (retired) {
+                pool.invalidateObject(client);
+            } else {
+                pool.returnObject(client);
+            }
+        } finally {
+            permits.release();
+            closeIfDrained();
+        }
+    }
+
+    void invalidateClient(OpenTsdbClient client) throws Exception {
+        try {
+            pool.invalidateObject(client);
+        } finally {
+            permits.release();
+            closeIfDrained();
+        }
+    }
+
+    /**
+     * Stop lending clients, close the idle ones now and the borrowed ones as they
+     * are returned
+     */
+    void retire() {
+        retired = true;
+        clear();
+        closeIfDrained();
+    }
+
+    private void closeIfDrained() {
+        if (retired && pool.getNumActive() == 0 && closing.compareAndSet(false, true)) {
+            log.info("OpenTSDB endpoint {} drained and removed", this);
+            try {
+                close();
+            } catch (Exception e) {
+                log.warn("Exception closing endpoint {}", this, e);
+            }
+        }
+    }
+
+    private OpenTsdbClient borrowPermitted() throws Exception {
+        if (retired) {
+            permits.release();
+            throw new NoSuchElementException("OpenTSDB endpoint " + this + " was removed");
+        }
+        try {
+            return pool.borrowObject();
+        } catch (Exception e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * The executor that refills the connections of the endpoint when it comes back
+     */
+    void setPrewarmer(ExecutorService prewarmer) {
+        this.prewarmer = prewarmer;
+    }
+
+    /**
+     * Open connections on the executor, one task each, until prewarmConnections are
+     * open or being opened, submitting no more than prewarmConnections tasks even
+     * when the first ones fail before the last are submitted
+     * @return the tasks
+     */
+    List<Future<?>> prewarm(ExecutorService executor) {
+        List<Future<?>> tasks = new ArrayList<>();
+        while (!retired && tasks.size() < prewarmConnections) {
+            int pending = warming.get();
+            if (open.get() + pending >= prewarmConnections) {
+                return tasks;
+            }
+            if (!warming.compareAndSet(pending, pending + 1)) {
+                continue;
+            }
+            try {
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            pool.addObject();
+                        } catch (Exception e) {
+                            log.debug("Unable to pre-warm a connection to {}: {}", OpenTsdbEndpoint.this, e.toString());
+                        } finally {
+                            warming.decrementAndGet();
+                        }
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                warming.decrementAndGet();
+                return tasks;
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Open and validate a successor for every client that expires within ahead ms,
+     * then expire the client
+     * @return the number of clients replaced
+     */
+    int recycle(long now, long ahead) {
+        int replaced = 0;
+        for (OpenTsdbClient client : clients) {
+            if (retired || isEjected() || successors.size() >= maxConnections) {
+                break;
+            }
+            if (client.recycled || client.getExpiresAt() - ahead > now || successors.contains(client)) {
+                continue;
+            }
+            OpenTsdbClient successor;
+            try {
+                successor = endpointFactory.newClient();
+            } catch (Exception e) {
+                log.debug("Unable to open a successor connection to {}: {}", this, e.toString());
+                break;
+            }
+            if (!clientFactory.validateObject(successor)) {
+                endpointFactory.destroyObject(successor);
+                break;
+            }
+            client.recycled = true;
+            successors.add(successor);
+            client.setExpiresAt(now);
+            ++replaced;
+        }
+        return replaced;
+    }
+
+    /**
+     * The number of successors waiting to replace expired clients
+     */
+    int getSuccessorCount() {
+        return successors.size();
+    }
+
+    void clear() {
+        try {
+            pool.clear();
+        } catch (Exception e) {
+            log.warn("Exception clearing clients of {}", this, e);
+        }
+    }
+
+    void close() throws Exception {
+        try {
+            pool.close();
+        } finally {
+            OpenTsdbClient successor;
+            while ((successor = successors.poll()) != null) {
+                endpointFactory.destroyObject(successor);
+            }
+            if (metrics != null) {
+                metrics.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Makes this endpoint's clients and tags them with it so they find their way back
+     */
+    private class EndpointClientFactory extends BasePoolableObjectFactory<OpenTsdbClient> {
+
+        /**
+         * Take a waiting successor, or open a new client
+         */
+        @Override
+        public OpenTsdbClient makeObject() throws Exception {
+            OpenTsdbClient successor;
+            while ((successor = successors.poll()) != null) {
+                if (!successor.isClosed() && System.currentTimeMillis() < successor.getExpiresAt()) {
+                    return successor;
+                }
+                destroyObject(successor);
+            }
+            return newClient();
+        }
+
+        OpenTsdbClient newClient() throws Exception {
+            OpenTsdbClient client;
+            try {
+                client = clientFactory.makeObject(resolve());
+            } catch (Exception e) {
+                recordFailure();
+                throw e;
+            }
+            client.endpoint = OpenTsdbEndpoint.this;
+            open.incrementAndGet();
+            clients.add(client);
+            return client;
+        }
+
+        @Override
+        public boolean validateObject(OpenTsdbClient client) {
+            return clientFactory.validateObject(client);
+        }
+
+        @Override
+        public void destroyObject(OpenTsdbClient client) {
+            if (clients.remove(client)) {
+                open.decrementAndGet();
+            }
+            clientFactory.destroyObject(client);
+        }
+    }
+
+    // Dependencies
+    private final OpenTsdbClientFactory clientFactory;
+    private final OpenTsdbMetrics.EndpointMetrics metrics;
+
+    // Internal state
+    final ObjectPool<OpenTsdbClient> pool;
+    private final Semaphore permits;
+    private final AtomicInteger open;
+    private final AtomicLong latency;
+    private final AtomicInteger failures;
+    private final AtomicLong errorWindow;
+    private final AtomicInteger errorsInWindow;
+    private final AtomicInteger warming;
+    private volatile long ejectedUntil;
+    private volatile ExecutorService prewarmer;
+    private volatile SocketAddress address;
+    private volatile long resolvedAt;
+    private volatile boolean retired;
+    private final AtomicBoolean closing;
+    private final Set<OpenTsdbClient> clients;
+    private final Queue<OpenTsdbClient> successors;
+    private final EndpointClientFactory endpointFactory;
+    private final TokenBucket pointBucket;
+    private final TokenBucket byteBucket;
+    private volatile TokenBucket poolPointBucket;
+    private volatile TokenBucket poolByteBucket;
+
+    // Configuration
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final int weight;
+    private final int ejectAfterFailures;
+    private final int ejectAfterErrors;
+    private final long ejectionTime;
+    private final int prewarmConnections;
+    private final long dnsTtl;
+}
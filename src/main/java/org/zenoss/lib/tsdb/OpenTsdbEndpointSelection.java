@@ -0,0 +1,32 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * How OpenTsdbClientPool chooses the endpoint for a borrow.
+ *
+ * @see OpenTsdbClientPoolConfiguration#getEndpointSelection()
+ * @see EndpointSelector
+ */
+public enum OpenTsdbEndpointSelection {
+
+    /** Endpoints in turn, each as often as its weight */
+    ROUND_ROBIN,
+
+    /** The endpoint with the fewest borrowed connections per weight */
+    LEAST_OUTSTANDING,
+
+    /** The endpoint with the lowest flush and validation latency, given its load */
+    LATENCY,
+
+    /** The endpoint a series hashes to on a consistent-hash ring, see ConsistentHashSelector */
+    AFFINITY
+}
@@ -0,0 +1,219 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Posts batches of data points to OpenTSDB's /api/put as JSON arrays, an alternative
+ * to the telnet put. Each batch is acknowledged: the result tells how many points
+ * were stored and, when details are enabled, which ones failed and why. Points are
+ * serialized from the collection into the (optionally gzip compressed) request
+ * body in pieces of clientBufferSize bytes. The body is buffered and sent with its
+ * length, since OpenTSDB refuses chunked requests by default; when chunked is
+ * configured it is streamed instead. Endpoints are used round-robin
+ * and connections are kept alive between batches. This class is thread safe.
+ */
+public class OpenTsdbHttpClient {
+
+    static final Logger log = LoggerFactory.getLogger(OpenTsdbHttpClient.class);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    public OpenTsdbHttpClient(OpenTsdbClientPoolConfiguration configuration) {
+        OpenTsdbHttpConfiguration http = configuration.getHttpConfiguration();
+        SocketFactoryConfiguration sockets = configuration.getClientFactoryConfiguration();
+        this.gzip = http.isGzip();
+        this.details = http.isDetails();
+        this.chunked = http.isChunked();
+        this.bufferSize = configuration.getClientBufferSize();
+        this.connectTimeout = Math.max(sockets.getConnectTimeout(), 0);
+        this.readTimeout = Math.max(sockets.getSoTimeout(), 0);
+        this.next = new AtomicInteger();
+        this.encoders = new ThreadLocal<JsonPutEncoder>() {
+            @Override
+            protected JsonPutEncoder initialValue() {
+                return new JsonPutEncoder(bufferSize + 512);
+            }
+        };
+
+        String file = http.getPath() + (details ? "?details" : "?summary");
+        List<URL> urls = new ArrayList<>();
+        for (OpenTsdbClientConfiguration clientConfig : configuration.getClientConfigurations()) {
+            try {
+                urls.add(new URL("http", clientConfig.getHost(), clientConfig.getPort(), file));
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Invalid OpenTSDB endpoint " + clientConfig.getHost(), e);
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No OpenTSDB endpoints configured");
+        }
+        this.urls = urls.toArray(new URL[urls.size()]);
+    }
+
+    /**
+     * Post the data points to the next endpoint and wait for its acknowledgement
+     * @return how many points were stored, and the failures when details are enabled
+     * @throws IOException when the batch could not be delivered or was refused outright
+     */
+    public HttpPutResult put(Collection<Point> points) throws IOException {
+        URL url = urls[(next.getAndIncrement() & Integer.MAX_VALUE) % urls.length];
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setRequestProperty("Content-Type", "application/json");
+        if (gzip) {
+            connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+
+        if (chunked) {
+            connection.setChunkedStreamingMode(bufferSize);
+            writeBody(points, connection.getOutputStream());
+        } else {
+            // the body is bounded by the batch, buffer it to send its length
+            ByteArrayOutputStream body = new ByteArrayOutputStream(bufferSize);
+            writeBody(points, body);
+            connection.setFixedLengthStreamingMode(body.size());
+            try (OutputStream out = connection.getOutputStream()) {
+                body.writeTo(out);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        byte[] body = readFully((status >= 400) ? connection.getErrorStream() : connection.getInputStream());
+        if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+            return new HttpPutResult(points.size(), 0, null);
+        }
+        if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_BAD_REQUEST) {
+            HttpPutResult result = parseResult(body);
+            if (result != null) {
+                if (result.getFailed() > 0) {
+                    log.debug("{} of {} points refused by {}", result.getFailed(), points.size(), url);
+                }
+                return result;
+            }
+        }
+        throw new IOException("OpenTSDB " + url + " returned " + status + ": "
+                + new String(body, StandardCharsets.UTF_8));
+    }
+
+    private void writeBody(Collection<Point> points, OutputStream body) throws IOException {
+        try (OutputStream out = gzip ? new GZIPOutputStream(body, bufferSize) : body) {
+            writeJson(points, out);
+        }
+    }
+
+    void writeJson(Collection<Point> points, OutputStream out) throws IOException {
+        JsonPutEncoder encoder = encoders.get();
+        encoder.reset();
+        encoder.beginArray();
+        for (Point point : points) {
+            encoder.encodeJson(point.getMetric(), point.getTimestamp(), point.getValue(), point.getTags());
+            if (encoder.size() >= bufferSize) {
+                encoder.writeTo(out);
+                encoder.reset();
+            }
+        }
+        encoder.endArray();
+        encoder.writeTo(out);
+        encoder.reset();
+    }
+
+    /**
+     * Parse a summary or details response
+     * @return the result, or null if the body is not a put response
+     */
+    static HttpPutResult parseResult(byte[] body) throws IOException {
+        if (body.length == 0) {
+            return null;
+        }
+        JsonNode root = MAPPER.readTree(body);
+        if (root == null || !root.has("success") || !root.has("failed")) {
+            return null;
+        }
+        List<HttpPutResult.Failure> failures = null;
+        JsonNode errors = root.get("errors");
+        if (errors != null && errors.isArray()) {
+            failures = new ArrayList<>(errors.size());
+            for (JsonNode error : errors) {
+                failures.add(new HttpPutResult.Failure(toPoint(error.path("datapoint")), error.path("error").asText()));
+            }
+        }
+        return new HttpPutResult(root.get("success").asInt(), root.get("failed").asInt(), failures);
+    }
+
+    private static Point toPoint(JsonNode datapoint) {
+        Map<String, String> tags = new LinkedHashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = datapoint.path("tags").fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            tags.put(field.getKey(), field.getValue().asText());
+        }
+        return new Point(datapoint.path("metric").asText(), datapoint.path("timestamp").asLong(),
+                datapoint.path("value").asDouble(), tags);
+    }
+
+    /**
+     * Read the whole response so the connection can be reused
+     */
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // Internal state
+    private final URL[] urls;
+    private final AtomicInteger next;
+    private final ThreadLocal<JsonPutEncoder> encoders;
+
+    // Configuration
+    private final boolean gzip;
+    private final boolean details;
+    private final boolean chunked;
+    private final int bufferSize;
+    private final int connectTimeout;
+    private final int readTimeout;
+}
@@ -0,0 +1,115 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Configuration for posting batches to OpenTSDB's HTTP API. The endpoints are the
+ * client configurations of the enclosing OpenTsdbClientPoolConfiguration, since
+ * OpenTSDB serves telnet and HTTP on the same port.
+ *
+ * @see OpenTsdbHttpClient
+ */
+public class OpenTsdbHttpConfiguration {
+
+    /**
+     * path of the put endpoint
+     */
+    @JsonProperty
+    private String path = "/api/put";
+
+    /**
+     * compress request bodies
+     */
+    @JsonProperty
+    private boolean gzip = true;
+
+    /**
+     * ask OpenTSDB which data points failed
+     */
+    @JsonProperty
+    private boolean details = false;
+
+    /**
+     * stream request bodies chunked, needs tsd.http.request.enable_chunked and a large enough tsd.http.request.max_chunk
+     */
+    @JsonProperty
+    private boolean chunked = false;
+
+    /**
+     * The path of the put endpoint
+     * @return path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Whether request bodies are gzip compressed
+     * @return gzip
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Whether OpenTSDB is asked for the details of failed data points
+     * @return details
+     */
+    public boolean isDetails() {
+        return details;
+    }
+
+    /**
+     * Whether request bodies are streamed with chunked transfer encoding instead of
+     * being buffered and sent with their length. OpenTSDB refuses chunked requests
+     * unless tsd.http.request.enable_chunked is set, and refuses bodies larger than
+     * tsd.http.request.max_chunk (4096 bytes by default), so raise both first.
+     * @return chunked
+     */
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * The path of the put endpoint
+     * @param path path
+     */
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    /**
+     * Whether request bodies are gzip compressed
+     * @param gzip gzip
+     */
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * Whether OpenTSDB is asked for the details of failed data points
+     * @param details details
+     */
+    public void setDetails(boolean details) {
+        this.details = details;
+    }
+
+    /**
+     * Whether request bodies are streamed with chunked transfer encoding, which
+     * needs tsd.http.request.enable_chunked and tsd.http.request.max_chunk raised
+     * @param chunked chunked
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of one OpenTsdbClientPool, registered in a MetricsRegistry under
+ * the group org.zenoss.lib.tsdb with the pool's metricsScope as scope:
+ * <ul>
+ * <li>OpenTsdbClientPool: borrow-wait timer, borrow-timeouts meter, active and
+ * idle gauges, and gauges of the BackpressureController, SeriesCache and rate
+ * limit TokenBuckets</li>
+ * <li>OpenTsdbClientFactory: validation round-trip timer, connections-opened,
+ * connections-closed and expired (maxKeepAliveTime) meters, and error meters by
+ * type: collision-errors, throttle-errors, response-errors, io-errors and
+ * connect-errors</li>
+ * <li>OpenTsdbEndpoint, scoped by metricsScope.host_port: points and bytes
+ * meters, flush timer, and active, idle, outstanding, latency, ejected and rate
+ * limit fill gauges</li>
+ * </ul>
+ * Clients count points and bytes themselves and mark them once per flush, and
+ * timers are only updated per borrow, flush or validation, so puts never touch
+ * shared state. A scope belongs to one live pool per registry: a pool configured
+ * with the scope of another live pool fails, and a pool without a metricsScope
+ * gets one of its own, named after its first endpoint. Once the owner is closed a
+ * new pool takes over the scope and any metrics left under its names; closing the
+ * pool removes its metrics.
+ */
+public final class OpenTsdbMetrics {
+
+    static final String GROUP = "org.zenoss.lib.tsdb";
+
+    /** The scopes owned by live pools, per registry */
+    private static final Map<MetricsRegistry, Set<String>> SCOPES = new WeakHashMap<>();
+
+    /**
+     * Create the metrics under the scope
+     * @throws IllegalArgumentException if a live pool owns the scope
+     */
+    OpenTsdbMetrics(MetricsRegistry registry, String scope) {
+        this(registry, scope, false);
+    }
+
+    /**
+     * @param requested the scope to claim
+     * @param unique whether to pick requested-2, requested-3 and so on when the scope
+     *               is owned, instead of failing
+     */
+    OpenTsdbMetrics(MetricsRegistry registry, String requested, boolean unique) {
+        this.registry = registry;
+        this.scope = claim(registry, requested, unique);
+        this.metrics = new ConcurrentHashMap<>();
+
+        this.borrowWait = timer(metrics, "OpenTsdbClientPool", scope, "borrow-wait");
+        this.borrowTimeouts = meter(metrics, "OpenTsdbClientPool", scope, "borrow-timeouts", "borrows");
+
+        this.validation = timer(metrics, "OpenTsdbClientFactory", scope, "validation");
+        this.connectionsOpened = meter(metrics, "OpenTsdbClientFactory", scope, "connections-opened", "connections");
+        this.connectionsClosed = meter(metrics, "OpenTsdbClientFactory", scope, "connections-closed", "connections");
+        this.expired = meter(metrics, "OpenTsdbClientFactory", scope, "expired", "connections");
+        this.collisionErrors = meter(metrics, "OpenTsdbClientFactory", scope, "collision-errors", "errors");
+        this.throttleErrors = meter(metrics, "OpenTsdbClientFactory", scope, "throttle-errors", "errors");
+        this.responseErrors = meter(metrics, "OpenTsdbClientFactory", scope, "response-errors", "errors");
+        this.ioErrors = meter(metrics, "OpenTsdbClientFactory", scope, "io-errors", "errors");
+        this.connectErrors = meter(metrics, "OpenTsdbClientFactory", scope, "connect-errors", "errors");
+    }
+
+    /**
+     * Register the gauges reading the pool and its backpressure
+     */
+    void registerPool(final OpenTsdbClientPool pool, final SeriesCache seriesCache) {
+        final BackpressureController backpressure = pool.getBackpressure();
+        gauge(metrics, "OpenTsdbClientPool", scope, "active", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return pool.getNumActive();
+            }
+        });
+        gauge(metrics, "OpenTsdbClientPool", scope, "idle", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return pool.getNumIdle();
+            }
+        });
+        gauge(metrics, "OpenTsdbClientPool", scope, "backpressure-state", new Gauge<String>() {
+            @Override
+            public String value() {
+                return backpressure.getState().name();
+            }
+        });
+        gauge(metrics, "OpenTsdbClientPool", scope, "backpressure-limit", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return backpressure.getLimit();
+            }
+        });
+        gauge(metrics, "OpenTsdbClientPool", scope, "backpressure-waiting", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return backpressure.getWaiting();
+            }
+        });
+        gauge(metrics, "OpenTsdbClientPool", scope, "backpressure-rejected", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return backpressure.getRejectedCount();
+            }
+        });
+        gauge(metrics, "OpenTsdbClientPool", scope, "points-bucket-fill", new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return pool.getPointBucket().getFill();
+            }
+        });
+        gauge(metrics, "OpenTsdbClientPool", scope, "bytes-bucket-fill", new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return pool.getByteBucket().getFill();
+            }
+        });
+        if (seriesCache != null) {
+            gauge(metrics, "OpenTsdbClientPool", scope, "series-cache-hits", new Gauge<Long>() {
+                @Override
+                public Long value() {
+                    return seriesCache.getHitCount();
+                }
+            });
+            gauge(metrics, "OpenTsdbClientPool", scope, "series-cache-misses", new Gauge<Long>() {
+                @Override
+                public Long value() {
+                    return seriesCache.getMissCount();
+                }
+            });
+            gauge(metrics, "OpenTsdbClientPool", scope, "series-cache-evictions", new Gauge<Long>() {
+                @Override
+                public Long value() {
+                    return seriesCache.getEvictionCount();
+                }
+            });
+            gauge(metrics, "OpenTsdbClientPool", scope, "series-cache-size", new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return seriesCache.size();
+                }
+            });
+        }
+    }
+
+    /**
+     * Create the metrics of the endpoint, removed again by EndpointMetrics#remove
+     */
+    EndpointMetrics registerEndpoint(OpenTsdbEndpoint endpoint) {
+        return new EndpointMetrics(endpoint);
+    }
+
+    /**
+     * Remove the pool and factory metrics from the registry and give up the scope
+     */
+    void remove() {
+        remove(metrics);
+        synchronized (SCOPES) {
+            Set<String> owned = SCOPES.get(registry);
+            if (owned != null) {
+                owned.remove(scope);
+            }
+        }
+    }
+
+    /**
+     * The registry the metrics are registered in
+     */
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * The scope of the pool's metrics
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    /**
+     * The metrics of one endpoint
+     */
+    final class EndpointMetrics {
+
+        EndpointMetrics(final OpenTsdbEndpoint endpoint) {
+            String endpointScope = scope + "." + endpoint.getHost() + "_" + endpoint.getPort();
+            this.metrics = new ConcurrentHashMap<>();
+            this.points = meter(metrics, "OpenTsdbEndpoint", endpointScope, "points", "points");
+            this.bytes = meter(metrics, "OpenTsdbEndpoint", endpointScope, "bytes", "bytes");
+            this.flush = timer(metrics, "OpenTsdbEndpoint", endpointScope, "flush");
+            gauge(metrics, "OpenTsdbEndpoint", endpointScope, "active", new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return endpoint.getNumActive();
+                }
+            });
+            gauge(metrics, "OpenTsdbEndpoint", endpointScope, "idle", new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return endpoint.getNumIdle();
+                }
+            });
+            gauge(metrics, "OpenTsdbEndpoint", endpointScope, "outstanding", new Gauge<Integer>() {
+                @Override
+                public Integer value() {
+                    return endpoint.getOutstanding();
+                }
+            });
+            gauge(metrics, "OpenTsdbEndpoint", endpointScope, "latency", new Gauge<Double>() {
+                @Override
+                public Double value() {
+                    return endpoint.getLatency() / TimeUnit.MILLISECONDS.toNanos(1);
+                }
+            });
+            gauge(metrics, "OpenTsdbEndpoint", endpointScope, "ejected", new Gauge<Boolean>() {
+                @Override
+                public Boolean value() {
+                    return endpoint.isEjected();
+                }
+            });
+            gauge(metrics, "OpenTsdbEndpoint", endpointScope, "points-bucket-fill", new Gauge<Double>() {
+                @Override
+                public Double value() {
+                    return endpoint.getPointBucket().getFill();
+                }
+            });
+            gauge(metrics, "OpenTsdbEndpoint", endpointScope, "bytes-bucket-fill", new Gauge<Double>() {
+                @Override
+                public Double value() {
+                    return endpoint.getByteBucket().getFill();
+                }
+            });
+        }
+
+        void recordFlush(int pointCount, long byteCount, long nanos) {
+            points.mark(pointCount);
+            bytes.mark(byteCount);
+            flush.update(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        void remove() {
+            OpenTsdbMetrics.this.remove(metrics);
+        }
+
+        // Internal state
+        private final Map<MetricName, Metric> metrics;
+        final Meter points;
+        final Meter bytes;
+        final Timer flush;
+    }
+
+    private static String claim(MetricsRegistry registry, String scope, boolean unique) {
+        synchronized (SCOPES) {
+            Set<String> owned = SCOPES.get(registry);
+            if (owned == null) {
+                owned = new HashSet<>();
+                SCOPES.put(registry, owned);
+            }
+            String claimed = scope;
+            for (int i = 2; !owned.add(claimed); ++i) {
+                if (!unique) {
+                    throw new IllegalArgumentException("Metrics scope " + scope + " is in use by another OpenTsdbClientPool");
+                }
+                claimed = scope + "-" + i;
+            }
+            return claimed;
+        }
+    }
+
+    private MetricName name(String type, String scope, String name) {
+        MetricName metricName = new MetricName(GROUP, type, name, scope);
+        // the scope is ours, whatever is left under the name belongs to a closed pool
+        registry.removeMetric(metricName);
+        return metricName;
+    }
+
+    private <M extends Metric> M add(Map<MetricName, Metric> metrics, MetricName name, M metric) {
+        metrics.put(name, metric);
+        return metric;
+    }
+
+    private Meter meter(Map<MetricName, Metric> metrics, String type, String scope, String name, String eventType) {
+        MetricName metricName = name(type, scope, name);
+        return add(metrics, metricName, registry.newMeter(metricName, eventType, TimeUnit.SECONDS));
+    }
+
+    private Timer timer(Map<MetricName, Metric> metrics, String type, String scope, String name) {
+        MetricName metricName = name(type, scope, name);
+        return add(metrics, metricName, registry.newTimer(metricName, TimeUnit.MILLISECONDS, TimeUnit.SECONDS));
+    }
+
+    private <T> void gauge(Map<MetricName, Metric> metrics, String type, String scope, String name, Gauge<T> gauge) {
+        MetricName metricName = name(type, scope, name);
+        add(metrics, metricName, registry.newGauge(metricName, gauge));
+    }
+
+    /**
+     * Remove the metrics unless another pool took their names over
+     */
+    private void remove(Map<MetricName, Metric> metrics) {
+        Map<MetricName, Metric> registered = registry.allMetrics();
+        for (Map.Entry<MetricName, Metric> entry : metrics.entrySet()) {
+            if (registered.get(entry.getKey()) == entry.getValue()) {
+                registry.removeMetric(entry.getKey());
+            }
+        }
+        metrics.clear();
+    }
+
+    // Dependencies
+    private final MetricsRegistry registry;
+
+    // Internal state
+    private final Map<MetricName, Metric> metrics;
+    final Timer borrowWait;
+    final Meter borrowTimeouts;
+    final Timer validation;
+    final Meter connectionsOpened;
+    final Meter connectionsClosed;
+    final Meter expired;
+    final Meter collisionErrors;
+    final Meter throttleErrors;
+    final Meter responseErrors;
+    final Meter ioErrors;
+    final Meter connectErrors;
+
+    // Configuration
+    private final String scope;
+}
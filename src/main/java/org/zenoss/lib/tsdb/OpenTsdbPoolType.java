@@ -0,0 +1,25 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * How each endpoint keeps its idle connections.
+ *
+ * @see OpenTsdbClientPoolConfiguration#getPoolType()
+ */
+public enum OpenTsdbPoolType {
+
+    /** A commons-pool GenericObjectPool, locked on every borrow and return */
+    GENERIC,
+
+    /** A StripedClientPool of slots claimed with compare-and-set, each thread preferring its own */
+    STRIPED
+}
@@ -0,0 +1,25 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * How OpenTsdbClients talk to the telnet service.
+ *
+ * @see OpenTsdbClientPoolConfiguration#getTransport()
+ */
+public enum OpenTsdbTransport {
+
+    /** A blocking socket per client, written by the borrowing thread */
+    BLOCKING,
+
+    /** Non-blocking socket channels driven by a few shared selector threads */
+    NIO
+}
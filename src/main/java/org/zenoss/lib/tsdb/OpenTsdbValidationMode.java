@@ -0,0 +1,29 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * How pooled OpenTsdbClients are checked before use.
+ *
+ * @see OpenTsdbClientPoolConfiguration#getValidationMode()
+ */
+public enum OpenTsdbValidationMode {
+
+    /** Every borrow sends "version" and waits for the answer */
+    ROUND_TRIP,
+
+    /**
+     * Borrows only pick up error output already received; the "version" round-trip
+     * happens when a client was last validated more than minTestTime ago, and an
+     * evictor does it for idle clients in the background.
+     */
+    BACKGROUND
+}
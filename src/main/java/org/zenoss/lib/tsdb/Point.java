@@ -0,0 +1,53 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.Map;
+
+/**
+ * A single OpenTSDB data point. The tags map is not copied, callers must not
+ * modify it after handing the point over.
+ */
+public final class Point {
+
+    public Point(String metric, long timestamp, double value, Map<String, String> tags) {
+        this.metric = metric;
+        this.timestamp = timestamp;
+        this.value = value;
+        this.tags = tags;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    @Override
+    public String toString() {
+        return OpenTsdbClient.toPutMessage(metric, timestamp, value, tags).trim();
+    }
+
+    private final String metric;
+    private final long timestamp;
+    private final double value;
+    private final Map<String, String> tags;
+}
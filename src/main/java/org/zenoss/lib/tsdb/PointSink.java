@@ -0,0 +1,27 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.Map;
+
+/**
+ * Accepts data points bound for OpenTSDB. Implementations are thread safe.
+ *
+ * @see TsdbWriter
+ */
+public interface PointSink {
+
+    /**
+     * Accept a data point for delivery. The tags map must not be modified afterwards.
+     * @return true if the point was accepted, false if it was dropped
+     */
+    boolean write(String metric, long timestamp, double value, Map<String, String> tags);
+}
@@ -0,0 +1,358 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes OpenTSDB telnet put commands straight into a reusable byte buffer.
+ * The bytes produced are identical to
+ * {@link OpenTsdbClient#toPutMessage(String, long, double, Map)} encoded as UTF-8,
+ * without building the intermediate String. Puts are appended to the buffer until
+ * #reset is called, so several puts may be batched into a single write.
+ * Timestamps and values are formatted by DoubleFormatter without allocating.
+ * With a SeriesCache the encoded metric and tags of a series are reused, and
+ * only the timestamp and value are formatted for each put.
+ * <p>The samples of a single series are encoded by calling #beginSeries once and
+ * #encodeSample for each sample; the metric and tags are encoded only once.</p>
+ * This class is not thread safe.
+ */
+public class PutEncoder {
+
+    static final int DEFAULT_CAPACITY = 256;
+
+    private static final byte[] PUT = {'p', 'u', 't', ' '};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+    public PutEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity initial size of the buffer, it grows as needed
+     */
+    public PutEncoder(int initialCapacity) {
+        this(initialCapacity, null);
+    }
+
+    /**
+     * @param initialCapacity initial size of the buffer, it grows as needed
+     * @param cache encoded series shared with other encoders, or null
+     */
+    public PutEncoder(int initialCapacity, SeriesCache cache) {
+        this.buffer = new byte[Math.max(initialCapacity, 16)];
+        this.size = 0;
+        this.keys = new String[8];
+        this.values = new String[8];
+        this.cache = cache;
+        this.probe = (cache != null) ? new SeriesCache.Key() : null;
+    }
+
+    /**
+     * Append a put command for the metric data to the buffer
+     * @return the number of bytes appended
+     */
+    public int encode(String name, long timestamp, double value, Map<String, String> tags) {
+        if (cache != null) {
+            return encodeCached(name, timestamp, value, tags);
+        }
+        int start = size;
+        writeBytes(PUT);
+        writeString(name);
+        writeByte(' ');
+        writeLong(timestamp);
+        writeByte(' ');
+        writeValue(value);
+        writeTags(tags);
+        writeByte('\n');
+        return size - start;
+    }
+
+    private int encodeCached(String name, long timestamp, double value, Map<String, String> tags) {
+        int start = size;
+        SeriesCache.Entry entry = cache.get(probe, name, tags);
+        if (entry != null) {
+            writeBytes(entry.head);
+            writeLong(timestamp);
+            writeByte(' ');
+            writeValue(value);
+            writeBytes(entry.tail);
+            return size - start;
+        }
+
+        writeBytes(PUT);
+        writeString(name);
+        writeByte(' ');
+        int headEnd = size;
+        writeLong(timestamp);
+        writeByte(' ');
+        writeValue(value);
+        int tailStart = size;
+        writeTags(tags);
+        writeByte('\n');
+        cache.put(name, tags, Arrays.copyOfRange(buffer, start, headEnd), Arrays.copyOfRange(buffer, tailStart, size));
+        return size - start;
+    }
+
+    /**
+     * Encode the metric and tags of the series #encodeSample appends puts for,
+     * without appending anything to the buffer
+     */
+    public void beginSeries(String name, Map<String, String> tags) {
+        if (cache != null) {
+            SeriesCache.Entry entry = cache.get(probe, name, tags);
+            if (entry != null) {
+                seriesHead = entry.head;
+                seriesHeadLength = entry.head.length;
+                seriesTail = entry.tail;
+                seriesTailLength = entry.tail.length;
+                return;
+            }
+        }
+
+        // encode at the end of the buffer and take it back out
+        int start = size;
+        writeBytes(PUT);
+        writeString(name);
+        writeByte(' ');
+        int headEnd = size;
+        writeTags(tags);
+        writeByte('\n');
+        if (cache != null) {
+            seriesHead = Arrays.copyOfRange(buffer, start, headEnd);
+            seriesTail = Arrays.copyOfRange(buffer, headEnd, size);
+            cache.put(name, tags, seriesHead, seriesTail);
+        } else {
+            seriesHead = copy(seriesHead, start, headEnd);
+            seriesTail = copy(seriesTail, headEnd, size);
+        }
+        seriesHeadLength = headEnd - start;
+        seriesTailLength = size - headEnd;
+        size = start;
+    }
+
+    /**
+     * Append a put command for a sample of the series begun by #beginSeries
+     * @return the number of bytes appended
+     */
+    public int encodeSample(long timestamp, double value) {
+        if (seriesHead == null) {
+            throw new IllegalStateException("No series begun");
+        }
+        int start = size;
+        writeBytes(seriesHead, seriesHeadLength);
+        writeLong(timestamp);
+        writeByte(' ');
+        writeValue(value);
+        writeBytes(seriesTail, seriesTailLength);
+        return size - start;
+    }
+
+    /**
+     * Copy part of the buffer into the array, replacing it when too small
+     */
+    private byte[] copy(byte[] dst, int start, int end) {
+        if (dst == null || dst.length < end - start) {
+            dst = new byte[Math.max(end - start, 64)];
+        }
+        System.arraycopy(buffer, start, dst, 0, end - start);
+        return dst;
+    }
+
+    /**
+     * Discard the buffered bytes, keeping the buffer for reuse
+     */
+    public void reset() {
+        size = 0;
+    }
+
+    /**
+     * The number of bytes currently buffered
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The backing array; only the first #size bytes are valid
+     */
+    public byte[] array() {
+        return buffer;
+    }
+
+    /**
+     * Copy of the buffered bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Write the buffered bytes to the stream
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    /**
+     * Copy the buffered bytes into the byte buffer
+     * @throws java.nio.BufferOverflowException when there is not enough room remaining
+     */
+    public void writeTo(ByteBuffer dst) {
+        dst.put(buffer, 0, size);
+    }
+
+    void writeValue(double value) {
+        // As of opentsdb 2.2 float values are stored on 4 bytes. Integers
+        // however are stored in 64 bits if needed. That is why if the
+        // value has no decimals, we store it as an int. (ZEN-24550)
+        if (Math.ceil(value) == Math.floor(value)) {
+            writeLong((long) value);
+        } else {
+            ensureCapacity(DoubleFormatter.MAX_LENGTH);
+            size = DoubleFormatter.format(value, buffer, size);
+        }
+    }
+
+    void writeTags(Map<String, String> tags) {
+        int count = tags.size();
+        if (count > keys.length) {
+            keys = new String[Math.max(count, keys.length * 2)];
+            values = new String[keys.length];
+        }
+
+        // Insertion sort the entries by key, it beats a general sort for the
+        // handful of tags a data point usually carries.
+        int n = 0;
+        for (Map.Entry<String, String> entry : tags.entrySet()) {
+            String key = entry.getKey();
+            int i = n++;
+            while (i > 0 && keys[i - 1].compareTo(key) > 0) {
+                keys[i] = keys[i - 1];
+                values[i] = values[i - 1];
+                --i;
+            }
+            keys[i] = key;
+            values[i] = entry.getValue();
+        }
+
+        for (int i = 0; i < n; ++i) {
+            writeByte(' ');
+            writeString(keys[i]);
+            writeByte('=');
+            writeString(values[i]);
+            keys[i] = null;
+            values[i] = null;
+        }
+    }
+
+    void writeLong(long value) {
+        ensureCapacity(DoubleFormatter.MAX_LONG_LENGTH);
+        size = DoubleFormatter.formatLong(value, buffer, size);
+    }
+
+    /**
+     * Write the string as UTF-8, unpaired surrogates are replaced by '?' like
+     * String#getBytes does.
+     */
+    void writeString(String s) {
+        if (s == null) {
+            writeBytes(NULL);
+            return;
+        }
+        writeString(s, 0, s.length());
+    }
+
+    /**
+     * Write chars start (inclusive) to end (exclusive) of the string as UTF-8
+     */
+    void writeString(String s, int start, int end) {
+        ensureCapacity(end - start);
+        byte[] buf = buffer;
+        int pos = size;
+        int i = start;
+
+        // ASCII fast path
+        for (; i < end; ++i) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            buf[pos++] = (byte) c;
+        }
+        size = pos;
+
+        for (; i < end; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[size++] = (byte) (0xc0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buffer[size++] = (byte) (0xf0 | (cp >> 18));
+                buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                writeByte('?');
+            } else {
+                ensureCapacity(3);
+                buffer[size++] = (byte) (0xe0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    void writeBytes(byte[] bytes) {
+        writeBytes(bytes, bytes.length);
+    }
+
+    void writeBytes(byte[] bytes, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, 0, buffer, size, length);
+        size += length;
+    }
+
+    void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = size + extra;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+        }
+    }
+
+    // Dependencies
+    private final SeriesCache cache;
+
+    // Internal state
+    private byte[] buffer;
+    private int size;
+    private String[] keys;
+    private String[] values;
+    private final SeriesCache.Key probe;
+    private byte[] seriesHead;
+    private int seriesHeadLength;
+    private byte[] seriesTail;
+    private int seriesTailLength;
+}
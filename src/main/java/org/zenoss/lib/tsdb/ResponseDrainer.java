@@ -0,0 +1,90 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the responses of blocking OpenTsdbClients from one shared daemon thread, so
+ * errors are reported as they arrive and never pile up in the receive buffer. Each
+ * pass reads whatever every registered client has available without blocking, and
+ * the thread sleeps pollInterval ms after a pass that found nothing. Closed clients
+ * are dropped on the next pass.
+ */
+class ResponseDrainer implements Runnable, Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(ResponseDrainer.class);
+
+    static final long DEFAULT_POLL_INTERVAL = 10;
+
+    ResponseDrainer(String name, long pollInterval) {
+        this.clients = Collections.newSetFromMap(new ConcurrentHashMap<OpenTsdbClient, Boolean>());
+        this.pollInterval = Math.max(pollInterval, 1);
+        this.thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void register(OpenTsdbClient client) {
+        clients.add(client);
+    }
+
+    void unregister(OpenTsdbClient client) {
+        clients.remove(client);
+    }
+
+    int size() {
+        return clients.size();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            boolean any = false;
+            for (OpenTsdbClient client : clients) {
+                if (client.isClosed()) {
+                    clients.remove(client);
+                } else if (client.drain()) {
+                    any = true;
+                }
+            }
+            if (!any) {
+                try {
+                    Thread.sleep(pollInterval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        log.debug("Response drainer {} stopped", thread.getName());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        clients.clear();
+    }
+
+    // Internal state
+    private final Set<OpenTsdbClient> clients;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // Configuration
+    private final long pollInterval;
+}
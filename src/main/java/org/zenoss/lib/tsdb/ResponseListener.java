@@ -0,0 +1,22 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * Receives the error lines OpenTSDB sends back on a client's connection.
+ */
+interface ResponseListener {
+
+    /**
+     * Called for every error line as soon as it is read, from whichever thread read it
+     */
+    void onError(OpenTsdbClient client, String error);
+}
@@ -0,0 +1,177 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the non-blocking channels of NioOpenTsdbClients. Each loop owns a selector
+ * and a single thread; producers hand their buffers to the loop and never touch
+ * the channel themselves. Direct buffers are recycled between clients of a loop.
+ */
+class SelectorLoop implements Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_FREE_BUFFERS = 256;
+
+    SelectorLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.updates = new ConcurrentLinkedQueue<>();
+        this.freeBuffers = new ConcurrentLinkedQueue<>();
+        this.freeCount = new AtomicInteger();
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SelectorLoop.this.run();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Ask the selector thread to register the client or recompute its interest ops
+     */
+    void schedule(NioOpenTsdbClient client) {
+        if (client.scheduled.compareAndSet(false, true)) {
+            updates.add(client);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Take a cleared direct buffer of the given capacity
+     */
+    ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        freeCount.decrementAndGet();
+        if (buffer.capacity() != capacity) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer that has been written out back to the loop
+     */
+    void recycle(ByteBuffer buffer) {
+        if (freeCount.incrementAndGet() <= MAX_FREE_BUFFERS) {
+            freeBuffers.add(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                log.error("Selector failed, nio clients on {} will stall", thread.getName(), e);
+                break;
+            }
+
+            NioOpenTsdbClient client;
+            while ((client = updates.poll()) != null) {
+                client.scheduled.set(false);
+                update(client);
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                client = (NioOpenTsdbClient) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        client.onReadable(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        client.onWritable();
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    client.fail(e);
+                }
+                update(client);
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioOpenTsdbClient) key.attachment()).fail(new ClosedChannelException());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Exception closing selector", e);
+        }
+    }
+
+    private void update(NioOpenTsdbClient client) {
+        SelectionKey key = client.key;
+        if (client.isFailed() || !client.channel.isOpen()) {
+            if (key != null) {
+                key.cancel();
+            }
+            return;
+        }
+        try {
+            int ops = client.interestOps();
+            if (key == null) {
+                client.key = client.channel.register(selector, ops, client);
+            } else if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        } catch (ClosedChannelException | CancelledKeyException e) {
+            client.fail(e);
+        }
+    }
+
+    // Dependencies
+    private final Selector selector;
+    private final Thread thread;
+
+    // Internal state
+    private final Queue<NioOpenTsdbClient> updates;
+    private final Queue<ByteBuffer> freeBuffers;
+    private final AtomicInteger freeCount;
+    private final ByteBuffer readBuffer;
+    private volatile boolean closed;
+}
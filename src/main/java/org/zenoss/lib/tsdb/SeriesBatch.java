@@ -0,0 +1,201 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A reusable batch of samples from several series, kept as parallel arrays: the
+ * timestamps and values of all samples, and for each series its metric, tags and
+ * the range of samples that belong to it. Samples are added to the series last
+ * begun, so the samples of a series are contiguous. #clear empties the batch but
+ * keeps the arrays, so a batch refilled with a similar number of samples does not
+ * allocate. The tag maps are referenced, not copied, and must not change until
+ * the batch is cleared. This class is not thread safe.
+ * @see OpenTsdbClient#put(SeriesBatch)
+ */
+public final class SeriesBatch {
+
+    public SeriesBatch() {
+        this(16, 256);
+    }
+
+    /**
+     * @param seriesCapacity initial number of series, it grows as needed
+     * @param sampleCapacity initial number of samples, it grows as needed
+     */
+    @SuppressWarnings("unchecked")
+    public SeriesBatch(int seriesCapacity, int sampleCapacity) {
+        seriesCapacity = Math.max(seriesCapacity, 1);
+        sampleCapacity = Math.max(sampleCapacity, 1);
+        this.metrics = new String[seriesCapacity];
+        this.tags = new Map[seriesCapacity];
+        this.offsets = new int[seriesCapacity + 1];
+        this.timestamps = new long[sampleCapacity];
+        this.values = new double[sampleCapacity];
+    }
+
+    /**
+     * Begin a series, the samples added next belong to it
+     * @return the index of the series
+     */
+    public int beginSeries(String metric, Map<String, String> tags) {
+        if (seriesCount == metrics.length) {
+            int capacity = metrics.length * 2;
+            metrics = Arrays.copyOf(metrics, capacity);
+            this.tags = Arrays.copyOf(this.tags, capacity);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+        }
+        metrics[seriesCount] = metric;
+        this.tags[seriesCount] = tags;
+        offsets[seriesCount] = sampleCount;
+        offsets[seriesCount + 1] = sampleCount;
+        return seriesCount++;
+    }
+
+    /**
+     * Add a sample to the series last begun
+     * @throws IllegalStateException when no series was begun
+     */
+    public void add(long timestamp, double value) {
+        if (seriesCount == 0) {
+            throw new IllegalStateException("No series begun");
+        }
+        ensureCapacity(1);
+        timestamps[sampleCount] = timestamp;
+        values[sampleCount] = value;
+        offsets[seriesCount] = ++sampleCount;
+    }
+
+    /**
+     * Add length samples to the series last begun
+     * @throws IllegalStateException when no series was begun
+     * @throws IndexOutOfBoundsException when the range is outside either array
+     */
+    public void add(long[] timestamps, double[] values, int offset, int length) {
+        if (seriesCount == 0) {
+            throw new IllegalStateException("No series begun");
+        }
+        checkRange(timestamps, values, offset, length);
+        ensureCapacity(length);
+        System.arraycopy(timestamps, offset, this.timestamps, sampleCount, length);
+        System.arraycopy(values, offset, this.values, sampleCount, length);
+        sampleCount += length;
+        offsets[seriesCount] = sampleCount;
+    }
+
+    /**
+     * Begin a series and add length samples to it
+     * @return the index of the series
+     */
+    public int addSeries(String metric, Map<String, String> tags, long[] timestamps, double[] values, int offset, int length) {
+        checkRange(timestamps, values, offset, length);
+        int series = beginSeries(metric, tags);
+        add(timestamps, values, offset, length);
+        return series;
+    }
+
+    /**
+     * Remove every series and sample, keeping the arrays for reuse
+     */
+    public void clear() {
+        Arrays.fill(metrics, 0, seriesCount, null);
+        Arrays.fill(tags, 0, seriesCount, null);
+        seriesCount = 0;
+        sampleCount = 0;
+    }
+
+    /**
+     * @return the number of series
+     */
+    public int getSeriesCount() {
+        return seriesCount;
+    }
+
+    /**
+     * @return the number of samples of all series
+     */
+    public int size() {
+        return sampleCount;
+    }
+
+    public String getMetric(int series) {
+        checkSeries(series);
+        return metrics[series];
+    }
+
+    public Map<String, String> getTags(int series) {
+        checkSeries(series);
+        return tags[series];
+    }
+
+    /**
+     * @return the index of the first sample of the series in #getTimestamps and #getValues
+     */
+    public int getOffset(int series) {
+        checkSeries(series);
+        return offsets[series];
+    }
+
+    /**
+     * @return the number of samples of the series
+     */
+    public int getLength(int series) {
+        checkSeries(series);
+        return offsets[series + 1] - offsets[series];
+    }
+
+    /**
+     * The timestamps of all samples; only the first #size are valid
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * The values of all samples; only the first #size are valid
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    static void checkRange(long[] timestamps, double[] values, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > timestamps.length - length || offset > values.length - length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + " out of "
+                    + timestamps.length + " timestamps and " + values.length + " values");
+        }
+    }
+
+    private void checkSeries(int series) {
+        if (series < 0 || series >= seriesCount) {
+            throw new IndexOutOfBoundsException("series " + series + " of " + seriesCount);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = sampleCount + extra;
+        if (required > timestamps.length) {
+            int capacity = Math.max(required, timestamps.length * 2);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    // Internal state
+    private String[] metrics;
+    private Map<String, String>[] tags;
+    private int[] offsets;
+    private long[] timestamps;
+    private double[] values;
+    private int seriesCount;
+    private int sampleCount;
+}
@@ -0,0 +1,286 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A bounded cache of the encoded parts of put lines, keyed by metric and tag set:
+ * the head "put &lt;metric&gt; " and the tail " k=v...\n" with the tags sorted. A
+ * PutEncoder that finds a series here only formats the timestamp and value. The
+ * cache is split into stripes, each an LRU map with its share of the entry and
+ * byte budgets behind its own lock, so encoders on different threads seldom
+ * contend. The byte budget counts the encoded bytes plus an estimated overhead
+ * per entry. Tags are copied into the keys, so callers may reuse their maps.
+ * This class is thread safe.
+ */
+public final class SeriesCache {
+
+    /** Estimated bytes of an entry besides its encoded segments */
+    static final int ENTRY_OVERHEAD = 128;
+
+    static final int STRIPES = 16;
+
+    /**
+     * @param maxEntries the number of series kept
+     * @param maxBytes the approximate memory the series may use
+     */
+    public SeriesCache(int maxEntries, long maxBytes) {
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < stripes.length; ++i) {
+            stripes[i] = new Stripe(Math.max(maxEntries / STRIPES, 1), Math.max(maxBytes / STRIPES, 1));
+        }
+    }
+
+    /**
+     * Find the encoded parts of a series
+     * @param probe a key owned by the caller, refilled for this lookup
+     * @return the entry, or null on a miss
+     */
+    Entry get(Key probe, String metric, Map<String, String> tags) {
+        probe.probe(metric, tags);
+        try {
+            return stripe(probe.hash).get(probe);
+        } finally {
+            probe.probe(null, null);
+        }
+    }
+
+    /**
+     * Add the encoded parts of a series, evicting the least recently used
+     * series of its stripe beyond the budgets
+     */
+    void put(String metric, Map<String, String> tags, byte[] head, byte[] tail) {
+        Key key = Key.copyOf(metric, tags);
+        stripe(key.hash).put(key, new Entry(head, tail));
+    }
+
+    private Stripe stripe(int hash) {
+        int h = hash ^ (hash >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    /**
+     * @return the number of lookups that found their series
+     */
+    public long getHitCount() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that had to encode their series
+     */
+    public long getMissCount() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * @return the number of series evicted to stay within the budgets
+     */
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * @return the number of series cached
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.map.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the estimated memory used by the cached series
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The encoded head "put &lt;metric&gt; " and tail " k=v...\n" of a series
+     */
+    static final class Entry {
+
+        Entry(byte[] head, byte[] tail) {
+            this.head = head;
+            this.tail = tail;
+        }
+
+        int size() {
+            return head.length + tail.length + ENTRY_OVERHEAD;
+        }
+
+        final byte[] head;
+        final byte[] tail;
+    }
+
+    /**
+     * A metric and tag set. Cached keys hold copies of the tags in arrays; a
+     * probe refers to the caller's map for the duration of a lookup, so lookups
+     * allocate nothing.
+     */
+    static final class Key {
+
+        static Key copyOf(String metric, Map<String, String> tags) {
+            Key key = new Key();
+            key.metric = metric;
+            key.keys = new String[tags.size()];
+            key.values = new String[key.keys.length];
+            // sorted by tag name, so equal tag sets give equal keys
+            int n = 0;
+            for (Map.Entry<String, String> entry : tags.entrySet()) {
+                String name = entry.getKey();
+                int i = n++;
+                while (i > 0 && key.keys[i - 1].compareTo(name) > 0) {
+                    key.keys[i] = key.keys[i - 1];
+                    key.values[i] = key.values[i - 1];
+                    --i;
+                }
+                key.keys[i] = name;
+                key.values[i] = entry.getValue();
+            }
+            key.hash = hash(metric, tags);
+            return key;
+        }
+
+        private static int hash(String metric, Map<String, String> tags) {
+            return Objects.hashCode(metric) * 31 + tags.hashCode();
+        }
+
+        void probe(String metric, Map<String, String> tags) {
+            this.metric = metric;
+            this.tags = tags;
+            this.hash = (tags != null) ? hash(metric, tags) : 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (hash != other.hash || !Objects.equals(metric, other.metric)) {
+                return false;
+            }
+            if (tags != null && other.tags != null) {
+                return tags.equals(other.tags);
+            }
+            if (tags != null) {
+                return other.matches(tags);
+            }
+            if (other.tags != null) {
+                return matches(other.tags);
+            }
+            return Arrays.equals(keys, other.keys) && Arrays.equals(values, other.values);
+        }
+
+        private boolean matches(Map<String, String> map) {
+            if (map.size() != keys.length) {
+                return false;
+            }
+            for (int i = 0; i < keys.length; ++i) {
+                String value = map.get(keys[i]);
+                if (!Objects.equals(value, values[i]) || (value == null && !map.containsKey(keys[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String metric;
+        private Map<String, String> tags;
+        private String[] keys;
+        private String[] values;
+        private int hash;
+    }
+
+    private static final class Stripe {
+
+        Stripe(int maxEntries, long maxBytes) {
+            this.maxEntries = maxEntries;
+            this.maxBytes = maxBytes;
+            this.map = new LinkedHashMap<>(16, 0.75f, true);
+        }
+
+        synchronized Entry get(Key probe) {
+            Entry entry = map.get(probe);
+            if (entry != null) {
+                ++hits;
+            } else {
+                ++misses;
+            }
+            return entry;
+        }
+
+        synchronized void put(Key key, Entry entry) {
+            Entry previous = map.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size();
+            }
+            bytes += entry.size();
+            Iterator<Entry> eldest = map.values().iterator();
+            while ((map.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                bytes -= eldest.next().size();
+                eldest.remove();
+                ++evictions;
+            }
+        }
+
+        final LinkedHashMap<Key, Entry> map;
+        final int maxEntries;
+        final long maxBytes;
+        long bytes;
+        long hits;
+        long misses;
+        long evictions;
+    }
+
+    // Internal state
+    private final Stripe[] stripes;
+}
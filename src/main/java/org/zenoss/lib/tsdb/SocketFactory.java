@@ -12,6 +12,7 @@ package org.zenoss.lib.tsdb;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
 /**
  * Creates sockets and connects them
@@ -60,6 +61,45 @@ public class SocketFactory {
         return socket;
     }
 
+    /**
+     * create a new socket channel, connect it to provided address and switch
+     * it to non-blocking mode
+     * @param address address to connect
+     * @return a connected, non-blocking channel
+     * @throws IOException when unable to connect within provided timeout
+     */
+    public SocketChannel newChannel(SocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            socket.setKeepAlive( configuration.isKeepAlive());
+            if ( configuration.getReceiveBufferSize() > 0) {
+                socket.setReceiveBufferSize(configuration.getReceiveBufferSize());
+            }
+
+            if ( configuration.getSendBufferSize() > 0) {
+                socket.setSendBufferSize( configuration.getSendBufferSize());
+            }
+
+            if ( configuration.getConnectTimeout() < 0) {
+                socket.connect(address);
+            } else {
+                socket.connect(address, configuration.getConnectTimeout());
+            }
+            channel.configureBlocking(false);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the read timeout applied to sockets and channels, 0 for none
+     */
+    public int getSoTimeout() {
+        return Math.max(configuration.getSoTimeout(), 0);
+    }
 
     private final SocketFactoryConfiguration configuration;
 }
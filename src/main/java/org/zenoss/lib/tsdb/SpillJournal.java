@@ -0,0 +1,475 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * A bounded on-disk queue of encoded put lines. It keeps batches a TsdbWriter
+ * could not deliver until they can be replayed. Records are appended to
+ * memory-mapped segment files of segmentSize bytes, named spill-SEQUENCE.seg.
+ * Once maxSegments exist, the oldest segment is evicted to make room, together
+ * with its unreplayed points.
+ * <p>Every segment starts with a header holding a magic number, the format
+ * version, the sequence, and the replay position, with a CRC32. Every record
+ * carries its length, point count and a CRC32 of its payload, and the length
+ * is written last. A record cut short by a crash therefore reads as the end of
+ * the segment. A header whose CRC does not match is replayed from the start.
+ * Replay is at least once: a point may be sent twice after a crash, and
+ * OpenTSDB stores a repeated put as the same value. The pages are forced to
+ * disk when a segment fills up and when the journal closes. Writes in between
+ * survive a crash of the process, but not a crash of the host.</p>
+ * <p>When opened, the journal recovers the segments left in its directory and
+ * appends to new segments. This class is thread safe.</p>
+ */
+public class SpillJournal implements Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(SpillJournal.class);
+
+    static final int MAGIC = 0x5350494c;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 12;
+
+    private static final String PREFIX = "spill-";
+    private static final String SUFFIX = ".seg";
+
+    public SpillJournal(SpillJournalConfiguration configuration) throws IOException {
+        this(new File(configuration.getDirectory()), configuration.getSegmentSize(), configuration.getMaxSegments());
+    }
+
+    SpillJournal(File directory, int segmentSize, int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, HEADER_SIZE + RECORD_HEADER_SIZE + 1);
+        this.maxSegments = Math.max(maxSegments, 1);
+        this.segments = new ArrayDeque<>();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create spill directory " + directory);
+        }
+        recover();
+    }
+
+    /**
+     * Open the segments left by an earlier journal, oldest first
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX) && sequenceOf(name) >= 0;
+            }
+        });
+        if (files == null) {
+            throw new IOException("Unable to list spill directory " + directory);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long s1 = sequenceOf(f1.getName());
+                long s2 = sequenceOf(f2.getName());
+                return (s1 < s2) ? -1 : ((s1 == s2) ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            long sequence = sequenceOf(file.getName());
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            Segment segment = Segment.open(file, sequence);
+            if (segment == null || segment.unreadPoints == 0) {
+                delete(file);
+                continue;
+            }
+            segments.addLast(segment);
+            pendingPoints += segment.unreadPoints;
+        }
+        if (pendingPoints > 0) {
+            log.info("Recovered {} spilled points in {} segments from {}", pendingPoints, segments.size(), directory);
+        }
+    }
+
+    static long sequenceOf(String name) {
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Append encoded put lines as one record, evicting the oldest segment when
+     * the journal is full
+     * @param points the number of put lines in the record
+     * @return false if the record is larger than a segment can hold
+     * @throws IOException when a segment cannot be created
+     */
+    public synchronized boolean append(byte[] data, int offset, int length, int points) throws IOException {
+        checkOpen();
+        int required = RECORD_HEADER_SIZE + length;
+        if (required > segmentSize - HEADER_SIZE) {
+            return false;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || !tail.writable || tail.remaining() < required) {
+            if (tail != null && tail.writable) {
+                tail.force();
+            }
+            if (segments.size() >= maxSegments) {
+                evict();
+            }
+            long sequence = nextSequence++;
+            tail = Segment.create(new File(directory, PREFIX + sequence + SUFFIX), sequence, segmentSize);
+            segments.addLast(tail);
+        }
+        tail.append(data, offset, length, points);
+        pendingPoints += points;
+        return true;
+    }
+
+    private void evict() {
+        Segment head = segments.removeFirst();
+        log.warn("Spill journal {} is full, evicting {} points", directory, head.unreadPoints);
+        evictedPoints += head.unreadPoints;
+        pendingPoints -= head.unreadPoints;
+        delete(head.file);
+    }
+
+    /**
+     * The oldest record not yet committed, which stays in the journal until #commit
+     * @return the record, or null if the journal is empty
+     */
+    public synchronized Entry peek() {
+        checkOpen();
+        while (true) {
+            Segment head = segments.peekFirst();
+            if (head == null) {
+                return null;
+            }
+            Entry entry = head.peek();
+            if (entry != null) {
+                return entry;
+            }
+            if (head.writable) {
+                return null;
+            }
+            // a recovered segment that was fully replayed
+            segments.removeFirst();
+            delete(head.file);
+        }
+    }
+
+    /**
+     * Remove a record returned by #peek after it was delivered. Records evicted
+     * meanwhile are ignored.
+     */
+    public synchronized void commit(Entry entry) {
+        checkOpen();
+        Segment head = segments.peekFirst();
+        if (head == null || head.sequence != entry.segment || head.readPosition != entry.position) {
+            return;
+        }
+        head.commit(entry);
+        pendingPoints -= entry.points;
+        if (head.readPosition >= head.writePosition) {
+            // fully replayed, the next append starts a new segment
+            segments.removeFirst();
+            delete(head.file);
+        }
+    }
+
+    /**
+     * Force the segments to disk. The files are kept for the next journal.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            if (segment.writable) {
+                segment.force();
+            }
+        }
+        segments.clear();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Spill journal is closed");
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("Unable to delete spill segment {}", file);
+        }
+    }
+
+    /**
+     * The number of points waiting to be replayed
+     */
+    public synchronized long getPendingPoints() {
+        return pendingPoints;
+    }
+
+    /**
+     * The number of points lost to evictions
+     */
+    public synchronized long getEvictedPoints() {
+        return evictedPoints;
+    }
+
+    /**
+     * The number of segment files in use
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * The disk space used by the segments
+     * @return size in bytes
+     */
+    public synchronized long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.map.capacity();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return directory.toString();
+    }
+
+    /**
+     * A record of encoded put lines
+     */
+    public static final class Entry {
+
+        Entry(long segment, int position, int next, int points, byte[] data) {
+            this.segment = segment;
+            this.position = position;
+            this.next = next;
+            this.points = points;
+            this.data = data;
+        }
+
+        /**
+         * The encoded put lines
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * The number of put lines
+         */
+        public int getPoints() {
+            return points;
+        }
+
+        final long segment;
+        final int position;
+        final int next;
+        final int points;
+        private final byte[] data;
+    }
+
+    /**
+     * One memory-mapped segment file. Header: magic, version, sequence, replay
+     * position and the CRC32 of those. Records: length, points, payload CRC32 and
+     * the payload.
+     */
+    private static final class Segment {
+
+        static Segment create(File file, long sequence, int size) throws IOException {
+            Segment segment = new Segment(file, sequence, map(file, size), true);
+            ByteBuffer map = segment.map;
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putLong(8, sequence);
+            segment.setReadPosition(HEADER_SIZE);
+            segment.writePosition = HEADER_SIZE;
+            return segment;
+        }
+
+        /**
+         * @return the segment, or null if the file is not a usable segment
+         */
+        static Segment open(File file, long sequence) throws IOException {
+            long length = file.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                log.warn("Discarding spill segment {} of {} bytes", file, length);
+                return null;
+            }
+            MappedByteBuffer map = map(file, (int) length);
+            if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getLong(8) != sequence) {
+                log.warn("Discarding spill segment {} with an invalid header", file);
+                return null;
+            }
+            Segment segment = new Segment(file, sequence, map, false);
+            int read = map.getInt(16);
+            if (map.getInt(20) != segment.headerCrc()) {
+                log.warn("Spill segment {} has a damaged header, replaying it from the start", file);
+                read = HEADER_SIZE;
+            }
+
+            // find the end of the valid records, and whether read is one of their starts
+            CRC32 crc = new CRC32();
+            int position = HEADER_SIZE;
+            int unread = 0;
+            int all = 0;
+            boolean aligned = (read == HEADER_SIZE);
+            while (position + RECORD_HEADER_SIZE <= map.capacity()) {
+                int size = map.getInt(position);
+                if (size <= 0 || size > map.capacity() - position - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                byte[] data = new byte[size];
+                ByteBuffer payload = map.duplicate();
+                payload.position(position + RECORD_HEADER_SIZE);
+                payload.get(data);
+                crc.reset();
+                crc.update(data, 0, size);
+                if ((int) crc.getValue() != map.getInt(position + 8)) {
+                    break;
+                }
+                int points = map.getInt(position + 4);
+                all += points;
+                if (position >= read) {
+                    unread += points;
+                }
+                position += RECORD_HEADER_SIZE + size;
+                aligned |= (position == read);
+            }
+            segment.writePosition = position;
+            if (aligned) {
+                segment.readPosition = read;
+                segment.unreadPoints = unread;
+            } else {
+                log.warn("Spill segment {} has an invalid replay position, replaying it from the start", file);
+                segment.readPosition = HEADER_SIZE;
+                segment.unreadPoints = all;
+            }
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            // the mapping stays valid after the file is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        Segment(File file, long sequence, MappedByteBuffer map, boolean writable) {
+            this.file = file;
+            this.sequence = sequence;
+            this.map = map;
+            this.writable = writable;
+            this.crc = new CRC32();
+        }
+
+        int remaining() {
+            return map.capacity() - writePosition;
+        }
+
+        void append(byte[] data, int offset, int length, int points) {
+            int position = writePosition;
+            crc.reset();
+            crc.update(data, offset, length);
+            map.putInt(position + 4, points);
+            map.putInt(position + 8, (int) crc.getValue());
+            ByteBuffer payload = map.duplicate();
+            payload.position(position + RECORD_HEADER_SIZE);
+            payload.put(data, offset, length);
+            // the length makes the record visible, so it goes last
+            map.putInt(position, length);
+            writePosition = position + RECORD_HEADER_SIZE + length;
+            unreadPoints += points;
+        }
+
+        Entry peek() {
+            int position = readPosition;
+            if (position >= writePosition) {
+                return null;
+            }
+            int size = map.getInt(position);
+            byte[] data = new byte[size];
+            ByteBuffer payload = map.duplicate();
+            payload.position(position + RECORD_HEADER_SIZE);
+            payload.get(data);
+            return new Entry(sequence, position, position + RECORD_HEADER_SIZE + size, map.getInt(position + 4), data);
+        }
+
+        void commit(Entry entry) {
+            unreadPoints -= entry.points;
+            setReadPosition(entry.next);
+        }
+
+        private void setReadPosition(int position) {
+            readPosition = position;
+            map.putInt(16, position);
+            map.putInt(20, headerCrc());
+        }
+
+        private int headerCrc() {
+            byte[] header = new byte[20];
+            ByteBuffer bytes = map.duplicate();
+            bytes.position(0);
+            bytes.get(header);
+            crc.reset();
+            crc.update(header, 0, header.length);
+            return (int) crc.getValue();
+        }
+
+        void force() {
+            map.force();
+        }
+
+        final File file;
+        final long sequence;
+        final MappedByteBuffer map;
+        final boolean writable;
+        private final CRC32 crc;
+        int readPosition;
+        int writePosition;
+        int unreadPoints;
+    }
+
+    // Internal state
+    private final Deque<Segment> segments;
+    private long nextSequence;
+    private long pendingPoints;
+    private long evictedPoints;
+    private boolean closed;
+
+    // Configuration
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+}
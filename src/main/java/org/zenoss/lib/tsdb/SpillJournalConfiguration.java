@@ -0,0 +1,133 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Configuration for the SpillJournal of a TsdbWriter. Spilling is disabled
+ * unless a directory is set; the journal then uses at most
+ * segmentSize * maxSegments bytes of disk.
+ *
+ * @see SpillJournal
+ */
+public class SpillJournalConfiguration {
+
+    /**
+     * where segments are kept, null to disable spilling
+     */
+    @JsonProperty
+    private String directory = null;
+
+    /**
+     * size of each memory-mapped segment file in bytes
+     */
+    @JsonProperty
+    private int segmentSize = 16 * 1024 * 1024;
+
+    /**
+     * segments kept before the oldest is evicted
+     */
+    @JsonProperty
+    private int maxSegments = 64;
+
+    /**
+     * points per second replayed once OpenTSDB is back
+     */
+    @JsonProperty
+    private int replayRate = 10_000;
+
+    /**
+     * how long the replayer waits after a failed attempt in ms
+     */
+    @JsonProperty
+    private long retryInterval = 1000L;
+
+    /**
+     * The directory segments are kept in
+     * @return directory, null when spilling is disabled
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * The size of each segment file
+     * @return size in bytes
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * The number of segments kept before the oldest is evicted
+     * @return segment count
+     */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * The maximum rate spilled points are replayed at
+     * @return points per second
+     */
+    public int getReplayRate() {
+        return replayRate;
+    }
+
+    /**
+     * How long the replayer waits after failing to deliver
+     * @return time in milliseconds
+     */
+    public long getRetryInterval() {
+        return retryInterval;
+    }
+
+    /**
+     * The directory segments are kept in
+     * @param directory directory, null to disable spilling
+     */
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The size of each segment file
+     * @param segmentSize size in bytes
+     */
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * The number of segments kept before the oldest is evicted
+     * @param maxSegments segment count
+     */
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * The maximum rate spilled points are replayed at
+     * @param replayRate points per second
+     */
+    public void setReplayRate(int replayRate) {
+        this.replayRate = replayRate;
+    }
+
+    /**
+     * How long the replayer waits after failing to deliver
+     * @param retryInterval time in milliseconds
+     */
+    public void setRetryInterval(long retryInterval) {
+        this.retryInterval = retryInterval;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.BaseObjectPool;
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.NoSuchElementException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An object pool for the clients of one endpoint that never takes a lock. Idle
+ * clients sit in a fixed array of slots, one per connection; a borrow claims a
+ * client by swapping its slot to null with compare-and-set, and a return puts it
+ * into an empty slot the same way. Every thread starts looking at its own home
+ * slot, so a thread that borrows and returns in turn keeps getting the connection
+ * it had, and threads on different slots do not touch the same memory.
+ * <p>The caller bounds the clients borrowed at once to the number of slots, as
+ * OpenTsdbEndpoint does with its permits, so a borrow that finds no idle client
+ * makes one. Clients are validated on every borrow, including new ones, and
+ * clients beyond maxIdle are destroyed on return, like the GenericObjectPool it
+ * replaces. When testWhileIdle or minIdle is set, a background timer validates the
+ * idle clients and opens new ones every evictionPeriod ms, never more than the
+ * slots left by the borrowed clients.</p>
+ */
+final class StripedClientPool extends BaseObjectPool<OpenTsdbClient> {
+
+    static final Logger log = LoggerFactory.getLogger(StripedClientPool.class);
+
+    /**
+     * @param slots the number of clients that may be borrowed or idle at once
+     * @param maxIdle idle clients beyond this are destroyed on return
+     * @param minIdle idle clients the timer keeps open
+     * @param testWhileIdle whether the timer validates idle clients
+     * @param evictionPeriod how often the timer runs in ms, if it is needed
+     */
+    StripedClientPool(PoolableObjectFactory<OpenTsdbClient> factory, int slots, int maxIdle, int minIdle,
+                      boolean testWhileIdle, long evictionPeriod) {
+        this.factory = factory;
+        this.slots = new AtomicReferenceArray<>(Math.max(slots, 1));
+        this.idle = new AtomicInteger();
+        this.active = new AtomicInteger();
+        // a negative maxIdle is unlimited, as in GenericObjectPool
+        this.maxIdle = (maxIdle < 0) ? this.slots.length() : Math.min(maxIdle, this.slots.length());
+        this.minIdle = Math.min(Math.max(minIdle, 0), this.maxIdle);
+        this.testWhileIdle = testWhileIdle;
+        if (testWhileIdle || this.minIdle > 0) {
+            this.timer = new Timer("tsdb-striped-evictor", true);
+            timer.schedule(new Evictor(), evictionPeriod, evictionPeriod);
+        } else {
+            this.timer = null;
+        }
+    }
+
+    /**
+     * Claim an idle client, starting at the home slot of the thread, or make one
+     * @throws NoSuchElementException when a new client fails validation
+     */
+    @Override
+    public OpenTsdbClient borrowObject() throws Exception {
+        assertOpen();
+        int length = slots.length();
+        int home = home(length);
+        for (int i = 0; i < length; ++i) {
+            OpenTsdbClient client = claim((home + i) % length);
+            if (client == null) {
+                continue;
+            }
+            if (activate(client)) {
+                active.incrementAndGet();
+                return client;
+            }
+            destroy(client);
+        }
+
+        OpenTsdbClient client = factory.makeObject();
+        if (!activate(client)) {
+            destroy(client);
+            throw new NoSuchElementException("Could not create a validated object");
+        }
+        active.incrementAndGet();
+        return client;
+    }
+
+    @Override
+    public void returnObject(OpenTsdbClient client) throws Exception {
+        active.decrementAndGet();
+        if (isClosed() || !offer(client)) {
+            destroy(client);
+        }
+    }
+
+    @Override
+    public void invalidateObject(OpenTsdbClient client) throws Exception {
+        active.decrementAndGet();
+        destroy(client);
+    }
+
+    /**
+     * Make a client and leave it idle, or destroy it when maxIdle are idle already
+     */
+    @Override
+    public void addObject() throws Exception {
+        assertOpen();
+        OpenTsdbClient client = factory.makeObject();
+        if (!offer(client)) {
+            destroy(client);
+        }
+    }
+
+    @Override
+    public int getNumIdle() {
+        return idle.get();
+    }
+
+    @Override
+    public int getNumActive() {
+        return active.get();
+    }
+
+    /**
+     * Destroy every idle client
+     */
+    @Override
+    public void clear() {
+        for (int i = 0; i < slots.length(); ++i) {
+            OpenTsdbClient client = claim(i);
+            if (client != null) {
+                destroy(client);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        super.close();
+        if (timer != null) {
+            timer.cancel();
+        }
+        clear();
+    }
+
+    /**
+     * Validate every idle client, then open clients until minIdle are idle or every
+     * slot is taken by a borrowed or idle client, like GenericObjectPool#ensureMinIdle
+     */
+    void evict() {
+        if (testWhileIdle) {
+            for (int i = 0; i < slots.length(); ++i) {
+                OpenTsdbClient client = claim(i);
+                if (client == null) {
+                    continue;
+                }
+                if (!factory.validateObject(client) || !offer(client)) {
+                    destroy(client);
+                }
+            }
+        }
+        while (!isClosed() && idle.get() < minIdle && active.get() + idle.get() < slots.length()) {
+            try {
+                addObject();
+            } catch (Exception e) {
+                log.debug("Unable to open an idle client: {}", e.toString());
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the client in the slot, now taken out of it, or null if it was empty
+     */
+    private OpenTsdbClient claim(int slot) {
+        OpenTsdbClient client = slots.get(slot);
+        if (client != null && slots.compareAndSet(slot, client, null)) {
+            idle.decrementAndGet();
+            return client;
+        }
+        return null;
+    }
+
+    /**
+     * Put the client into an empty slot, starting at the home slot of the thread
+     * @return false if maxIdle clients are idle or no slot is empty
+     */
+    private boolean offer(OpenTsdbClient client) {
+        while (true) {
+            int count = idle.get();
+            if (count >= maxIdle) {
+                return false;
+            }
+            if (idle.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        int length = slots.length();
+        int home = home(length);
+        for (int i = 0; i < length; ++i) {
+            int slot = (home + i) % length;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, client)) {
+                return true;
+            }
+        }
+        idle.decrementAndGet();
+        return false;
+    }
+
+    private boolean activate(OpenTsdbClient client) {
+        try {
+            factory.activateObject(client);
+            return factory.validateObject(client);
+        } catch (Exception e) {
+            log.debug("Unable to activate a client: {}", e.toString());
+            return false;
+        }
+    }
+
+    private void destroy(OpenTsdbClient client) {
+        try {
+            factory.destroyObject(client);
+        } catch (Exception e) {
+            log.warn("Exception destroying client", e);
+        }
+    }
+
+    /**
+     * The slot a thread looks at first
+     */
+    private static int home(int length) {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 32)) & Integer.MAX_VALUE) % length;
+    }
+
+    /**
+     * Runs #evict on the timer
+     */
+    private class Evictor extends TimerTask {
+
+        @Override
+        public void run() {
+            try {
+                evict();
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception evicting idle clients", e);
+            }
+        }
+    }
+
+    // Dependencies
+    private final PoolableObjectFactory<OpenTsdbClient> factory;
+
+    // Internal state
+    private final AtomicReferenceArray<OpenTsdbClient> slots;
+    private final AtomicInteger idle;
+    private final AtomicInteger active;
+    private final Timer timer;
+
+    // Configuration
+    private final int maxIdle;
+    private final int minIdle;
+    private final boolean testWhileIdle;
+}
@@ -0,0 +1,113 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket that paces callers instead of rejecting them. Tokens accrue at
+ * rate per second up to burst ms worth of them, at least 1 ms. #reserve takes
+ * the tokens requested at once, going into debt when there are not enough, and
+ * returns how long the caller has to wait for the debt to be paid off, so callers
+ * are spread out at the rate however large their requests are.
+ * <p>The whole state is the time at which the bucket is full again, advanced by
+ * compare-and-set, so reserving never locks. A rate of 0 or less disables the
+ * bucket. This class is thread safe.</p>
+ */
+public final class TokenBucket {
+
+    TokenBucket(long rate, long burst) {
+        this.full = new AtomicLong(System.nanoTime());
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(burst, 1));
+        this.rate = rate;
+    }
+
+    /**
+     * Take tokens, waiting or not
+     * @return how long to wait in ns before using them, 0 if they were available
+     */
+    long reserve(long tokens) {
+        long r = rate;
+        if (r <= 0 || tokens <= 0) {
+            return 0;
+        }
+        long cost = (long) (tokens * 1e9 / r);
+        while (true) {
+            long now = System.nanoTime();
+            long at = full.get();
+            // a bucket full since before now has no more tokens than burst
+            long next = ((at - now > 0) ? at : now) + cost;
+            if (full.compareAndSet(at, next)) {
+                return Math.max(next - now - burstNanos, 0);
+            }
+        }
+    }
+
+    /**
+     * Change the rate, tokens reserved already are kept
+     */
+    void setRate(long rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * The tokens added per second, 0 or less when unlimited
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * The number of tokens the bucket holds when full
+     */
+    public long getBurst() {
+        long r = rate;
+        return (r > 0) ? (long) (r * (burstNanos / 1e9)) : 0;
+    }
+
+    /**
+     * The tokens available now, negative while reservations wait for theirs
+     * @return tokens, Long.MAX_VALUE when unlimited
+     */
+    public long getAvailable() {
+        long r = rate;
+        if (r <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long owed = Math.max(full.get() - System.nanoTime(), 0);
+        return (long) ((burstNanos - owed) / 1e9 * r);
+    }
+
+    /**
+     * How full the bucket is, negative while reservations wait for their tokens
+     * @return fraction of burst, 1 when unlimited or full
+     */
+    public double getFill() {
+        if (rate <= 0) {
+            return 1.0;
+        }
+        long owed = Math.max(full.get() - System.nanoTime(), 0);
+        return (double) (burstNanos - owed) / burstNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucket[rate=" + rate + "/s, available=" + getAvailable() + "]";
+    }
+
+    // Internal state
+    private final AtomicLong full;
+
+    // Configuration
+    private volatile long rate;
+    private final long burstNanos;
+}
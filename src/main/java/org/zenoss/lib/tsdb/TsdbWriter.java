@@ -0,0 +1,724 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.ObjectPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe facade over a pool of OpenTsdbClients. Points from any thread go
+ * into a bounded queue; background workers drain it in batches of up to batchSize
+ * points, or whatever arrived within lingerTime, and write each batch to a
+ * single borrowed client followed by one flush. A batch that fails is retried on
+ * another client up to maxRetries times before its points are counted as failed.
+ * Closing the writer delivers what is queued but leaves the pool open.
+ * <p>When a spill directory is configured, failed batches go to a SpillJournal
+ * instead and subsequent batches follow them there directly, without waiting
+ * for the pool, until a replayer thread delivers a spilled record again. The
+ * replayer drains the journal oldest first at up to replayRate points per
+ * second, so outages delay points instead of losing them.</p>
+ * <p>When the pool is an OpenTsdbClientPool with series affinity, each batch is
+ * split by the endpoint its series hash to and every part is written to a client
+ * of that endpoint.</p>
+ * <p>With confirmWrites, every batch is flushed with a sentinel version request
+ * (OpenTsdbClient#flushWithSentinel) and its points are kept until the server
+ * answers the sentinel. When a client fails, is closed, or the answer takes longer
+ * than confirmTimeout, only the batches sent on it since its last answered
+ * sentinel are written again on another client, and a client that timed out is
+ * closed so it gets no further batches. Points are then delivered at
+ * least once, and only the unconfirmed tail of a connection is sent twice. The
+ * replayer then commits a spilled record only once its sentinel is answered.</p>
+ * <p>When a downsampling interval is configured, points go through a Downsampler
+ * and only one point per series and bucket is queued.</p>
+ */
+public class TsdbWriter implements PointSink, Closeable {
+
+    static final Logger log = LoggerFactory.getLogger(TsdbWriter.class);
+
+    static final long IDLE_POLL_MILLIS = 100;
+
+    /** Spilled batches are split into records of about this many bytes */
+    static final int SPILL_RECORD_SIZE = 64 * 1024;
+
+    public TsdbWriter(TsdbWriterConfiguration configuration, ObjectPool<OpenTsdbClient> pool) {
+        this(configuration, pool, openJournal(configuration.getSpillConfiguration()));
+    }
+
+    TsdbWriter(TsdbWriterConfiguration configuration, ObjectPool<OpenTsdbClient> pool, SpillJournal journal) {
+        this.pool = pool;
+        this.affinityPool = (pool instanceof OpenTsdbClientPool && ((OpenTsdbClientPool) pool).hasAffinity())
+                ? (OpenTsdbClientPool) pool : null;
+        this.queue = new ArrayBlockingQueue<>(configuration.getQueueSize());
+        this.batchSize = Math.max(configuration.getBatchSize(), 1);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getLingerTime());
+        this.enqueueTimeout = configuration.getEnqueueTimeout();
+        this.maxRetries = Math.max(configuration.getMaxRetries(), 0);
+        this.written = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.spilled = new AtomicLong();
+        this.replayed = new AtomicLong();
+        this.confirmed = new AtomicLong();
+        this.resent = new AtomicLong();
+        this.unconfirmed = new ConcurrentLinkedQueue<>();
+        this.confirmWrites = configuration.isConfirmWrites();
+        this.confirmTimeout = TimeUnit.MILLISECONDS.toNanos(Math.max(configuration.getConfirmTimeout(), 1));
+
+        SpillJournalConfiguration spill = configuration.getSpillConfiguration();
+        this.replayRate = Math.max(spill.getReplayRate(), 1);
+        this.retryInterval = Math.max(spill.getRetryInterval(), 1);
+        this.journal = journal;
+        if (journal != null) {
+            this.replayer = new Thread(new Replayer(), "tsdb-writer-replayer");
+            replayer.setDaemon(true);
+            replayer.start();
+        } else {
+            this.replayer = null;
+        }
+
+        DownsamplerConfiguration downsample = configuration.getDownsampleConfiguration();
+        this.downsampler = (downsample.getInterval() > 0) ? new Downsampler(downsample, new QueueSink()) : null;
+
+        this.workers = new Thread[Math.max(configuration.getWorkers(), 1)];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = new Thread(new Worker(), "tsdb-writer-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    @Override
+    public boolean write(String metric, long timestamp, double value, Map<String, String> tags) {
+        if (downsampler != null) {
+            return downsampler.write(metric, timestamp, value, tags);
+        }
+        return enqueue(new Point(metric, timestamp, value, tags));
+    }
+
+    /**
+     * Queue a point for delivery, waiting up to enqueueTimeout for room
+     * @return true if the point was queued or downsampled, false if it was dropped
+     */
+    public boolean write(Point point) {
+        if (downsampler != null) {
+            return downsampler.write(point.getMetric(), point.getTimestamp(), point.getValue(), point.getTags());
+        }
+        return enqueue(point);
+    }
+
+    private boolean enqueue(Point point) {
+        boolean accepted = false;
+        if (!closed) {
+            try {
+                accepted = (enqueueTimeout > 0)
+                        ? queue.offer(point, enqueueTimeout, TimeUnit.MILLISECONDS)
+                        : queue.offer(point);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!accepted) {
+            dropped.incrementAndGet();
+        }
+        return accepted;
+    }
+
+    /**
+     * Stop accepting points and wait for the workers to deliver the queue, including
+     * the open buckets of the downsampler. Points still in the spill journal are kept
+     * there for the next writer.
+     */
+    @Override
+    public void close() {
+        if (downsampler != null) {
+            downsampler.close();
+        }
+        closed = true;
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (replayer != null) {
+                replayer.interrupt();
+                replayer.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (confirmWrites) {
+            awaitConfirmations();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * @return the number of points waiting for a worker
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of points flushed to a client
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of points rejected because the queue was full or the writer closed
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of points lost because every attempt to deliver them failed
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of points that went to the spill journal
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    /**
+     * @return the number of spilled points delivered by the replayer
+     */
+    public long getReplayedCount() {
+        return replayed.get();
+    }
+
+    /**
+     * @return the number of points whose sentinel was answered by the server
+     */
+    public long getConfirmedCount() {
+        return confirmed.get();
+    }
+
+    /**
+     * @return the number of unconfirmed points written again after their client failed
+     */
+    public long getResentCount() {
+        return resent.get();
+    }
+
+    /**
+     * @return the number of points flushed and waiting for their sentinel's answer
+     */
+    public int getUnconfirmedCount() {
+        int points = 0;
+        for (Unconfirmed batch : unconfirmed) {
+            points += batch.points.size();
+        }
+        return points;
+    }
+
+    /**
+     * The journal failed batches are spilled to, for monitoring
+     * @return the journal, or null if spilling is disabled
+     */
+    public SpillJournal getSpillJournal() {
+        return journal;
+    }
+
+    /**
+     * The downsampler points go through, for monitoring
+     * @return the downsampler, or null if downsampling is disabled
+     */
+    public Downsampler getDownsampler() {
+        return downsampler;
+    }
+
+    /**
+     * Fill the batch with the next points, waiting up to lingerTime after the
+     * first one for the batch to fill up.
+     */
+    void fill(List<Point> batch) throws InterruptedException {
+        // wait briefly for the first point so an idle worker notices #close
+        Point first = queue.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || closed) {
+                break;
+            }
+            // wait in slices so a lingering worker notices #close too
+            Point next = queue.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MILLIS)), TimeUnit.NANOSECONDS);
+            if (next != null) {
+                batch.add(next);
+            }
+        }
+    }
+
+    /**
+     * Deliver the batch, split by endpoint when the pool has series affinity
+     */
+    void send(List<Point> batch, PutEncoder encoder) {
+        if (affinityPool != null && batch.size() > 1) {
+            Map<OpenTsdbEndpoint, List<Point>> parts = new LinkedHashMap<>();
+            for (Point point : batch) {
+                OpenTsdbEndpoint endpoint = affinityPool.getEndpoint(point.getMetric(), point.getTags());
+                List<Point> part = parts.get(endpoint);
+                if (part == null) {
+                    part = new ArrayList<>();
+                    parts.put(endpoint, part);
+                }
+                part.add(point);
+            }
+            if (parts.size() > 1) {
+                for (List<Point> part : parts.values()) {
+                    sendPart(part, encoder);
+                }
+                return;
+            }
+        }
+        sendPart(batch, encoder);
+    }
+
+    /**
+     * Deliver the points, or spill them when that fails or an outage is ongoing
+     */
+    private void sendPart(List<Point> batch, PutEncoder encoder) {
+        if (journal != null && outage) {
+            spill(batch, encoder);
+            return;
+        }
+        if (deliver(batch)) {
+            return;
+        }
+        if (journal != null) {
+            spill(batch, encoder);
+            return;
+        }
+        failed.addAndGet(batch.size());
+        log.error("Dropped {} points after {} attempts", batch.size(), maxRetries + 1);
+    }
+
+    /**
+     * Write the batch to a borrowed client and flush it, retrying on another
+     * client when that fails. With confirmWrites, the unconfirmed points of a
+     * failed client are added to the batch.
+     * @return true if the batch was flushed
+     */
+    boolean deliver(List<Point> batch) {
+        for (int attempt = 0; attempt <= maxRetries; ++attempt) {
+            OpenTsdbClient client;
+            try {
+                Point first = batch.get(0);
+                client = (affinityPool != null)
+                        ? affinityPool.borrowObject(first.getMetric(), first.getTags())
+                        : pool.borrowObject();
+            } catch (Exception e) {
+                log.warn("Unable to borrow an OpenTSDB client: {}", e.toString());
+                continue;
+            }
+            try {
+                for (Point point : batch) {
+                    client.put(point.getMetric(), point.getTimestamp(), point.getValue(), point.getTags());
+                }
+                if (confirmWrites) {
+                    long sentinel = client.flushWithSentinel();
+                    unconfirmed.add(new Unconfirmed(client, sentinel, new ArrayList<>(batch)));
+                } else {
+                    client.flush();
+                }
+            } catch (Exception e) {
+                log.warn("Failed writing {} points: {}", batch.size(), e.toString());
+                invalidate(client);
+                if (confirmWrites) {
+                    // what the client was sent before may not have arrived either
+                    batch.addAll(takeUnconfirmed(client));
+                }
+                continue;
+            }
+            release(client);
+            written.addAndGet(batch.size());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remove the batches sent on the client that are still waiting for confirmation,
+     * releasing those whose sentinel was answered before the client failed
+     * @return the points of the others
+     */
+    private List<Point> takeUnconfirmed(OpenTsdbClient client) {
+        long answered = client.getConfirmed();
+        List<Point> points = new ArrayList<>();
+        Iterator<Unconfirmed> it = unconfirmed.iterator();
+        while (it.hasNext()) {
+            Unconfirmed batch = it.next();
+            if (batch.client != client || !unconfirmed.remove(batch)) {
+                continue;
+            }
+            if (answered >= batch.sentinel) {
+                confirmed.addAndGet(batch.points.size());
+            } else {
+                points.addAll(batch.points);
+            }
+        }
+        if (!points.isEmpty()) {
+            resent.addAndGet(points.size());
+            log.info("Resending {} unconfirmed points", points.size());
+        }
+        return points;
+    }
+
+    /**
+     * Release the batches whose sentinel was answered, including by clients the pool
+     * has closed since, and send again those whose client failed or did not answer
+     * within confirmTimeout. A client that did not answer in time is closed, so its
+     * holder invalidates it and the pool discards it instead of handing it out.
+     */
+    void confirm(PutEncoder encoder) {
+        long now = System.nanoTime();
+        List<Point> resend = null;
+        for (Unconfirmed batch : unconfirmed) {
+            OpenTsdbClient client = batch.client;
+            boolean lost = client.isClosed();
+            long answered;
+            if (lost) {
+                answered = client.getConfirmed();
+            } else {
+                try {
+                    answered = client.pollConfirmed();
+                } catch (IOException e) {
+                    lost = true;
+                    answered = client.getConfirmed();
+                }
+            }
+            if (answered >= batch.sentinel) {
+                if (unconfirmed.remove(batch)) {
+                    confirmed.addAndGet(batch.points.size());
+                }
+            } else if ((lost || now - batch.sent > confirmTimeout) && unconfirmed.remove(batch)) {
+                if (!lost) {
+                    log.warn("Closing an OpenTSDB client that did not answer sentinel {} within the confirm timeout",
+                            batch.sentinel);
+                    client.close();
+                }
+                if (resend == null) {
+                    resend = new ArrayList<>();
+                }
+                resend.addAll(batch.points);
+            }
+        }
+        if (resend != null) {
+            resent.addAndGet(resend.size());
+            log.info("Resending {} points whose client failed before confirming them", resend.size());
+            sendPart(resend, encoder);
+        }
+    }
+
+    /**
+     * Wait up to confirmTimeout for the answers to the last sentinels
+     */
+    private void awaitConfirmations() {
+        PutEncoder encoder = new PutEncoder();
+        long start = System.nanoTime();
+        try {
+            while (!unconfirmed.isEmpty() && System.nanoTime() - start < confirmTimeout) {
+                confirm(encoder);
+                if (!unconfirmed.isEmpty()) {
+                    Thread.sleep(IDLE_POLL_MILLIS / 10);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!unconfirmed.isEmpty()) {
+            log.warn("Closing with {} points flushed but not confirmed", getUnconfirmedCount());
+        }
+    }
+
+    /**
+     * Encode the batch into records of the spill journal
+     */
+    void spill(List<Point> batch, PutEncoder encoder) {
+        if (!outage) {
+            log.warn("Unable to deliver to OpenTSDB, spilling points to {}", journal);
+            outage = true;
+        }
+        encoder.reset();
+        int points = 0;
+        for (Point point : batch) {
+            encoder.encode(point.getMetric(), point.getTimestamp(), point.getValue(), point.getTags());
+            ++points;
+            if (encoder.size() >= SPILL_RECORD_SIZE) {
+                append(encoder, points);
+                points = 0;
+            }
+        }
+        if (points > 0) {
+            append(encoder, points);
+        }
+    }
+
+    private void append(PutEncoder encoder, int points) {
+        try {
+            if (journal.append(encoder.array(), 0, encoder.size(), points)) {
+                spilled.addAndGet(points);
+            } else {
+                failed.addAndGet(points);
+                log.error("Dropped {} points, the spill record of {} bytes is larger than a segment", points, encoder.size());
+            }
+        } catch (IOException | RuntimeException e) {
+            failed.addAndGet(points);
+            log.error("Dropped {} points, unable to spill them: {}", points, e.toString());
+        } finally {
+            encoder.reset();
+        }
+    }
+
+    /**
+     * Open the journal in the configured directory
+     * @return the journal, or null if spilling is disabled
+     */
+    private static SpillJournal openJournal(SpillJournalConfiguration spill) {
+        if (spill.getDirectory() == null) {
+            return null;
+        }
+        try {
+            return new SpillJournal(spill);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Unable to open spill journal in " + spill.getDirectory(), e);
+        }
+    }
+
+    /**
+     * Write a spilled record to a borrowed client and flush it
+     * @return true if the record was flushed
+     */
+    boolean replay(SpillJournal.Entry entry) {
+        OpenTsdbClient client;
+        try {
+            client = pool.borrowObject();
+        } catch (Exception e) {
+            log.debug("Unable to borrow an OpenTSDB client for replay: {}", e.toString());
+            return false;
+        }
+        try {
+            byte[] data = entry.getData();
+            client.write(data, 0, data.length, entry.getPoints());
+            if (confirmWrites) {
+                awaitSentinel(client, client.flushWithSentinel());
+            } else {
+                client.flush();
+            }
+        } catch (Exception e) {
+            log.debug("Failed replaying {} points: {}", entry.getPoints(), e.toString());
+            invalidate(client);
+            return false;
+        }
+        release(client);
+        return true;
+    }
+
+    /**
+     * Wait up to confirmTimeout for the server to answer the sentinel, so a spilled
+     * record is only committed once it is known to have arrived
+     */
+    private void awaitSentinel(OpenTsdbClient client, long sentinel) throws IOException {
+        long start = System.nanoTime();
+        while (client.pollConfirmed() < sentinel) {
+            if (System.nanoTime() - start >= confirmTimeout) {
+                throw new SocketTimeoutException("Sentinel " + sentinel + " not answered within the confirm timeout");
+            }
+            try {
+                Thread.sleep(IDLE_POLL_MILLIS / 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for sentinel " + sentinel);
+            }
+        }
+    }
+
+    private void release(OpenTsdbClient client) {
+        try {
+            pool.returnObject(client);
+        } catch (Exception e) {
+            log.warn("Exception returning client to pool", e);
+        }
+    }
+
+    private void invalidate(OpenTsdbClient client) {
+        try {
+            pool.invalidateObject(client);
+        } catch (Exception e) {
+            log.warn("Exception invalidating client", e);
+        }
+    }
+
+    /**
+     * A flushed batch waiting for the answer to the sentinel that followed it
+     */
+    private static final class Unconfirmed {
+
+        Unconfirmed(OpenTsdbClient client, long sentinel, List<Point> points) {
+            this.client = client;
+            this.sentinel = sentinel;
+            this.points = points;
+            this.sent = System.nanoTime();
+        }
+
+        final OpenTsdbClient client;
+        final long sentinel;
+        final List<Point> points;
+        final long sent;
+    }
+
+    /**
+     * Queues the points emitted by the downsampler
+     */
+    private class QueueSink implements PointSink {
+
+        @Override
+        public boolean write(String metric, long timestamp, double value, Map<String, String> tags) {
+            return enqueue(new Point(metric, timestamp, value, tags));
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            List<Point> batch = new ArrayList<>(batchSize);
+            PutEncoder encoder = new PutEncoder();
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    fill(batch);
+                    if (!batch.isEmpty()) {
+                        send(batch, encoder);
+                    }
+                    if (confirmWrites) {
+                        confirm(encoder);
+                    }
+                } catch (InterruptedException e) {
+                    log.debug("Writer interrupted, dropping {} points", batch.size());
+                    failed.addAndGet(batch.size());
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Unexpected exception writing {} points", batch.size(), e);
+                    failed.addAndGet(batch.size());
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers spilled records at up to replayRate points per second, and ends the
+     * outage with the first success
+     */
+    private class Replayer implements Runnable {
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    SpillJournal.Entry entry = journal.peek();
+                    if (entry == null) {
+                        Thread.sleep(IDLE_POLL_MILLIS);
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    if (!replay(entry)) {
+                        Thread.sleep(retryInterval);
+                        continue;
+                    }
+                    journal.commit(entry);
+                    replayed.addAndGet(entry.getPoints());
+                    if (outage) {
+                        log.info("OpenTSDB is back, replaying {} spilled points", journal.getPendingPoints());
+                        outage = false;
+                    }
+                    long pause = TimeUnit.SECONDS.toNanos(entry.getPoints()) / replayRate - (System.nanoTime() - start);
+                    if (pause > 0) {
+                        TimeUnit.NANOSECONDS.sleep(pause);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    log.error("Unexpected exception replaying spilled points", e);
+                    try {
+                        Thread.sleep(retryInterval);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // Dependencies
+    private final ObjectPool<OpenTsdbClient> pool;
+    private final OpenTsdbClientPool affinityPool;
+    private final SpillJournal journal;
+    private final Downsampler downsampler;
+
+    // Internal state
+    private final BlockingQueue<Point> queue;
+    private final Thread[] workers;
+    private final AtomicLong written;
+    private final AtomicLong dropped;
+    private final AtomicLong failed;
+    private final AtomicLong spilled;
+    private final AtomicLong replayed;
+    private final AtomicLong confirmed;
+    private final AtomicLong resent;
+    private final ConcurrentLinkedQueue<Unconfirmed> unconfirmed;
+    private final Thread replayer;
+    private volatile boolean closed;
+    private volatile boolean outage;
+
+    // Configuration
+    private final int batchSize;
+    private final long lingerNanos;
+    private final long enqueueTimeout;
+    private final int maxRetries;
+    private final int replayRate;
+    private final long retryInterval;
+    private final boolean confirmWrites;
+    private final long confirmTimeout;
+}
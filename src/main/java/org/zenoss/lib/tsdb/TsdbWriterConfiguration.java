@@ -0,0 +1,247 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import javax.validation.Valid;
+
+/**
+ * Configuration for the batching TsdbWriter.
+ *
+ * @see TsdbWriter
+ */
+public class TsdbWriterConfiguration {
+
+    /**
+     * points that may wait for a worker
+     */
+    @JsonProperty
+    private int queueSize = 100_000;
+
+    /**
+     * points written to a client before it's flushed
+     */
+    @JsonProperty
+    private int batchSize = 1000;
+
+    /**
+     * how long a partial batch may wait for more points in ms
+     */
+    @JsonProperty
+    private long lingerTime = 100L;
+
+    /**
+     * background threads draining the queue
+     */
+    @JsonProperty
+    private int workers = 2;
+
+    /**
+     * how long a writer waits for room in a full queue in ms, 0 to drop immediately
+     */
+    @JsonProperty
+    private long enqueueTimeout = 0L;
+
+    /**
+     * how many more times a failed batch is tried on another client
+     */
+    @JsonProperty
+    private int maxRetries = 1;
+
+    /**
+     * follow every batch with a sentinel and keep it until the server answers
+     */
+    @JsonProperty
+    private boolean confirmWrites = false;
+
+    /**
+     * how long a batch may wait for its sentinel's answer before it's resent in ms
+     */
+    @JsonProperty
+    private long confirmTimeout = 30_000L;
+
+    /**
+     * Disk journal for batches that could not be delivered
+     */
+    @Valid
+    @JsonProperty("spill")
+    private SpillJournalConfiguration spillConfiguration = new SpillJournalConfiguration();
+
+    /**
+     * Aggregation of the points of each series before they are queued
+     */
+    @Valid
+    @JsonProperty("downsample")
+    private DownsamplerConfiguration downsampleConfiguration = new DownsamplerConfiguration();
+
+    /**
+     * The maximum number of points waiting for a worker
+     * @return queue size
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * The number of points written to a client before it's flushed
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * The maximum time a partial batch waits for more points
+     * @return time in milliseconds
+     */
+    public long getLingerTime() {
+        return lingerTime;
+    }
+
+    /**
+     * The number of background threads draining the queue
+     * @return worker count
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * The maximum time a writer waits for room in a full queue
+     * @return time in milliseconds
+     */
+    public long getEnqueueTimeout() {
+        return enqueueTimeout;
+    }
+
+    /**
+     * The number of times a failed batch is retried on another client
+     * @return retries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Whether every batch is followed by a sentinel version request and kept until
+     * it's answered, so batches unconfirmed when a connection fails are resent
+     * @return true to confirm writes
+     */
+    public boolean isConfirmWrites() {
+        return confirmWrites;
+    }
+
+    /**
+     * The maximum time a batch waits for its sentinel's answer before it's resent
+     * @return time in milliseconds
+     */
+    public long getConfirmTimeout() {
+        return confirmTimeout;
+    }
+
+    /**
+     * The disk journal batches go to when they cannot be delivered
+     * @return spill configuration
+     */
+    public SpillJournalConfiguration getSpillConfiguration() {
+        return spillConfiguration;
+    }
+
+    /**
+     * The aggregation of the points of each series before they are queued
+     * @return downsample configuration
+     */
+    public DownsamplerConfiguration getDownsampleConfiguration() {
+        return downsampleConfiguration;
+    }
+
+    /**
+     * The maximum number of points waiting for a worker
+     * @param queueSize queue size
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * The number of points written to a client before it's flushed
+     * @param batchSize batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The maximum time a partial batch waits for more points
+     * @param lingerTime time in milliseconds
+     */
+    public void setLingerTime(long lingerTime) {
+        this.lingerTime = lingerTime;
+    }
+
+    /**
+     * The number of background threads draining the queue
+     * @param workers worker count
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * The maximum time a writer waits for room in a full queue
+     * @param enqueueTimeout time in milliseconds
+     */
+    public void setEnqueueTimeout(long enqueueTimeout) {
+        this.enqueueTimeout = enqueueTimeout;
+    }
+
+    /**
+     * The number of times a failed batch is retried on another client
+     * @param maxRetries retries
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Whether every batch is followed by a sentinel version request and kept until
+     * it's answered
+     * @param confirmWrites true to confirm writes
+     */
+    public void setConfirmWrites(boolean confirmWrites) {
+        this.confirmWrites = confirmWrites;
+    }
+
+    /**
+     * The maximum time a batch waits for its sentinel's answer before it's resent
+     * @param confirmTimeout time in milliseconds
+     */
+    public void setConfirmTimeout(long confirmTimeout) {
+        this.confirmTimeout = confirmTimeout;
+    }
+
+    /**
+     * The disk journal batches go to when they cannot be delivered
+     * @param spillConfiguration spill configuration
+     */
+    public void setSpillConfiguration(SpillJournalConfiguration spillConfiguration) {
+        this.spillConfiguration = spillConfiguration;
+    }
+
+    /**
+     * The aggregation of the points of each series before they are queued
+     * @param downsampleConfiguration downsample configuration
+     */
+    public void setDownsampleConfiguration(DownsamplerConfiguration downsampleConfiguration) {
+        this.downsampleConfiguration = downsampleConfiguration;
+    }
+}
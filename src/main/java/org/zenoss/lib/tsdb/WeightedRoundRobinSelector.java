@@ -0,0 +1,76 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the endpoints in turn, each as many times per cycle as its weight. The
+ * cycle interleaves the endpoints (smooth weighted round-robin) so a heavy endpoint
+ * does not get its share in one burst; it is computed once per endpoint array and
+ * walked with an atomic counter.
+ */
+public final class WeightedRoundRobinSelector implements EndpointSelector {
+
+    public WeightedRoundRobinSelector() {
+        this.next = new AtomicInteger();
+    }
+
+    @Override
+    public OpenTsdbEndpoint select(OpenTsdbEndpoint[] endpoints) {
+        Cycle cycle = this.cycle;
+        if (cycle == null || cycle.endpoints != endpoints) {
+            cycle = new Cycle(endpoints);
+            this.cycle = cycle;
+        }
+        int[] order = cycle.order;
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % order.length;
+        for (int i = 0; i < order.length; ++i) {
+            OpenTsdbEndpoint endpoint = endpoints[order[(start + i) % order.length]];
+            if (!endpoint.isEjected()) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private static final class Cycle {
+
+        Cycle(OpenTsdbEndpoint[] endpoints) {
+            int total = 0;
+            for (OpenTsdbEndpoint endpoint : endpoints) {
+                total += endpoint.getWeight();
+            }
+            int[] current = new int[endpoints.length];
+            int[] order = new int[total];
+            for (int slot = 0; slot < total; ++slot) {
+                int best = 0;
+                for (int i = 0; i < endpoints.length; ++i) {
+                    current[i] += endpoints[i].getWeight();
+                    if (current[i] > current[best]) {
+                        best = i;
+                    }
+                }
+                current[best] -= total;
+                order[slot] = best;
+            }
+            this.endpoints = endpoints;
+            this.order = order;
+        }
+
+        final OpenTsdbEndpoint[] endpoints;
+        final int[] order;
+    }
+
+    // Internal state
+    private final AtomicInteger next;
+    private volatile Cycle cycle;
+}
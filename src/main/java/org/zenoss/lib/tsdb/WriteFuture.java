@@ -0,0 +1,217 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a batch written with AsyncTsdbWriter#writeAsync. The future
+ * is done once the batch is confirmed or has failed, and #get returns the number of
+ * points; #isFlushed tells whether it already reached a socket. Listeners are
+ * called on the executor they were added with, and a listener added late is told
+ * what already happened. Write futures cannot be cancelled. This class is thread safe.
+ */
+public final class WriteFuture implements Future<Integer> {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    WriteFuture(int points) {
+        this.points = points;
+        this.listeners = new ArrayList<>(1);
+    }
+
+    /**
+     * Call the listener from the thread that completes each stage, which is an
+     * I/O thread of the writer; the listener must not block.
+     */
+    public void addListener(WriteListener listener) {
+        addListener(listener, DIRECT);
+    }
+
+    /**
+     * Call the listener on the executor for each stage of the batch
+     */
+    public void addListener(WriteListener listener, Executor executor) {
+        Registration registration = new Registration(listener, executor);
+        boolean flushed;
+        boolean done;
+        synchronized (this) {
+            listeners.add(registration);
+            flushed = this.flushed;
+            done = this.done;
+        }
+        if (flushed) {
+            registration.flushed();
+        }
+        if (done) {
+            registration.done();
+        }
+    }
+
+    /**
+     * @return the number of points in the batch
+     */
+    public int getPoints() {
+        return points;
+    }
+
+    /**
+     * @return true once the batch was flushed to a socket
+     */
+    public synchronized boolean isFlushed() {
+        return flushed;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Wait for the batch to be confirmed
+     * @return the number of points
+     * @throws ExecutionException with the cause of the failure
+     */
+    @Override
+    public synchronized Integer get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Integer get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    void setFlushed() {
+        List<Registration> registrations;
+        synchronized (this) {
+            if (flushed || done) {
+                return;
+            }
+            flushed = true;
+            registrations = new ArrayList<>(listeners);
+        }
+        for (Registration registration : registrations) {
+            registration.flushed();
+        }
+    }
+
+    void setConfirmed() {
+        complete(null);
+    }
+
+    void setFailed(Throwable cause) {
+        complete(cause);
+    }
+
+    private void complete(Throwable cause) {
+        List<Registration> registrations;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            failure = cause;
+            registrations = new ArrayList<>(listeners);
+            listeners.clear();
+            notifyAll();
+        }
+        for (Registration registration : registrations) {
+            registration.done();
+        }
+    }
+
+    private Integer result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return points;
+    }
+
+    /**
+     * A listener and the executor it is called on
+     */
+    private final class Registration {
+
+        Registration(WriteListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void flushed() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onFlushed(points);
+                }
+            });
+        }
+
+        void done() {
+            final Throwable cause;
+            synchronized (WriteFuture.this) {
+                cause = failure;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (cause == null) {
+                        listener.onConfirmed(points);
+                    } else {
+                        listener.onFailure(points, cause);
+                    }
+                }
+            });
+        }
+
+        final WriteListener listener;
+        final Executor executor;
+    }
+
+    // Internal state
+    private final int points;
+    private final List<Registration> listeners;
+    private boolean flushed;
+    private boolean done;
+    private Throwable failure;
+}
@@ -0,0 +1,36 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+/**
+ * Receives the progress of a batch written with AsyncTsdbWriter#writeAsync. Each
+ * batch either reaches #onFlushed and then #onConfirmed, or ends with #onFailure,
+ * possibly after #onFlushed when OpenTSDB answered with errors.
+ *
+ * @see WriteFuture#addListener(WriteListener, java.util.concurrent.Executor)
+ */
+public interface WriteListener {
+
+    /**
+     * The points of the batch were flushed to a socket
+     */
+    void onFlushed(int points);
+
+    /**
+     * OpenTSDB reported no errors for the points of the batch, or confirmation is disabled
+     */
+    void onConfirmed(int points);
+
+    /**
+     * The batch could not be delivered, or OpenTSDB rejected some of its points
+     */
+    void onFailure(int points, Throwable cause);
+}
@@ -0,0 +1,216 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.ObjectPool;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class AsyncTsdbWriterTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    AsyncTsdbWriterConfiguration config() {
+        AsyncTsdbWriterConfiguration c = new AsyncTsdbWriterConfiguration();
+        c.setThreads(1);
+        c.setQueueSize(10);
+        return c;
+    }
+
+    @SuppressWarnings("unchecked")
+    ObjectPool<OpenTsdbClient> pool(OpenTsdbClient client) throws Exception {
+        ObjectPool<OpenTsdbClient> pool = mock(ObjectPool.class);
+        when(pool.borrowObject()).thenReturn(client);
+        return pool;
+    }
+
+    static List<Point> points(int count) {
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            points.add(new Point("m", i, 1.0, EMPTY_MAP));
+        }
+        return points;
+    }
+
+    /**
+     * Records the calls it receives
+     */
+    static class Recorder implements WriteListener {
+
+        @Override
+        public synchronized void onFlushed(int points) {
+            events.add("flushed " + points);
+        }
+
+        @Override
+        public synchronized void onConfirmed(int points) {
+            events.add("confirmed " + points);
+            done.countDown();
+        }
+
+        @Override
+        public synchronized void onFailure(int points, Throwable cause) {
+            events.add("failed " + points);
+            done.countDown();
+        }
+
+        synchronized List<String> events() {
+            return new ArrayList<>(events);
+        }
+
+        final List<String> events = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    @Test
+    public void testFlushesThenConfirms() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(client.checkForErrors()).thenReturn(Collections.<String>emptyList());
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        AsyncTsdbWriter writer = new AsyncTsdbWriter(config(), pool);
+        Recorder recorder = new Recorder();
+        WriteFuture future = writer.writeAsync(points(3), recorder);
+
+        assertEquals(Integer.valueOf(3), future.get(5, TimeUnit.SECONDS));
+        assertTrue(future.isFlushed());
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("flushed 3", "confirmed 3"), recorder.events());
+        verify(client, times(3)).put(eq("m"), anyLong(), eq(1.0), eq(EMPTY_MAP));
+        verify(client).flush();
+        verify(client).checkForErrors();
+        verify(pool).returnObject(client);
+        writer.close();
+        assertEquals(3, writer.getWrittenCount());
+        assertEquals(3, writer.getConfirmedCount());
+    }
+
+    @Test
+    public void testLateListenerIsToldWhatHappened() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        AsyncTsdbWriterConfiguration config = config();
+        config.setConfirm(false);
+        AsyncTsdbWriter writer = new AsyncTsdbWriter(config, pool(client));
+        WriteFuture future = writer.writeAsync(points(2));
+        future.get(5, TimeUnit.SECONDS);
+        verify(client, never()).checkForErrors();
+
+        Recorder recorder = new Recorder();
+        future.addListener(recorder);
+        assertEquals(Arrays.asList("flushed 2", "confirmed 2"), recorder.events());
+        writer.close();
+    }
+
+    @Test
+    public void testErrorsFailTheBatchAfterFlush() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(client.checkForErrors()).thenReturn(Collections.singletonList("put: illegal argument"));
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        AsyncTsdbWriter writer = new AsyncTsdbWriter(config(), pool);
+        Recorder recorder = new Recorder();
+        WriteFuture future = writer.writeAsync(points(2), recorder);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().contains("illegal argument"));
+        }
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("flushed 2", "failed 2"), recorder.events());
+        // the points were written, so the batch is not retried
+        verify(client).flush();
+        verify(pool).returnObject(client);
+        writer.close();
+        assertEquals(2, writer.getFailedCount());
+    }
+
+    @Test
+    public void testRetriesOnAnotherClient() throws Exception {
+        OpenTsdbClient broken = mock(OpenTsdbClient.class);
+        doThrow(new IOException("broken pipe")).when(broken).flush();
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(client.checkForErrors()).thenReturn(Collections.<String>emptyList());
+        @SuppressWarnings("unchecked")
+        ObjectPool<OpenTsdbClient> pool = mock(ObjectPool.class);
+        when(pool.borrowObject()).thenReturn(broken, client);
+        AsyncTsdbWriter writer = new AsyncTsdbWriter(config(), pool);
+
+        assertEquals(Integer.valueOf(1), writer.writeAsync(points(1)).get(5, TimeUnit.SECONDS));
+        verify(pool).invalidateObject(broken);
+        verify(pool).returnObject(client);
+        writer.close();
+    }
+
+    @Test
+    public void testFullQueueFailsWithoutBlocking() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(client.checkForErrors()).thenReturn(Collections.<String>emptyList());
+        @SuppressWarnings("unchecked")
+        ObjectPool<OpenTsdbClient> pool = mock(ObjectPool.class);
+        // the pool is exhausted until released
+        when(pool.borrowObject()).thenAnswer(new Answer<OpenTsdbClient>() {
+            @Override
+            public OpenTsdbClient answer(InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return client;
+            }
+        });
+        AsyncTsdbWriterConfiguration config = config();
+        config.setQueueSize(1);
+        AsyncTsdbWriter writer = new AsyncTsdbWriter(config, pool);
+
+        WriteFuture running = writer.writeAsync(points(1));
+        WriteFuture queued;
+        // the first batch may not have left the queue yet
+        do {
+            queued = writer.writeAsync(points(1));
+        } while (queued.isDone());
+        WriteFuture rejected = writer.writeAsync(points(1));
+        assertTrue(rejected.isDone());
+        try {
+            rejected.get();
+            fail("expected rejection");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        assertFalse(running.isDone());
+        release.countDown();
+        writer.close();
+        assertTrue(running.isDone());
+        assertTrue(queued.isDone());
+        assertTrue(writer.getRejectedCount() >= 1);
+    }
+
+    @Test
+    public void testClosedWriterRejects() throws Exception {
+        AsyncTsdbWriter writer = new AsyncTsdbWriter(config(), pool(mock(OpenTsdbClient.class)));
+        writer.close();
+        WriteFuture future = writer.writeAsync(points(5));
+        assertTrue(future.isDone());
+        assertFalse(future.isFlushed());
+        assertEquals(5, writer.getRejectedCount());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Test;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class BackpressureControllerTest {
+
+    static final long INTERVAL = 100;
+
+    BackpressureController controller(int maxLimit) {
+        OpenTsdbClientPoolConfiguration c = new OpenTsdbClientPoolConfiguration();
+        c.setBackoffFactor(0.5);
+        c.setRampUpInterval(INTERVAL);
+        c.setCircuitOpenAfter(2);
+        c.setCircuitOpenTime(300);
+        return new BackpressureController(c, maxLimit);
+    }
+
+    @Test
+    public void testBacksOffOncePerInterval() throws Exception {
+        BackpressureController controller = controller(8);
+        assertEquals(BackpressureState.NORMAL, controller.getState());
+
+        controller.onCollision();
+        controller.onCollision();
+        assertEquals(4, controller.getLimit());
+        assertEquals(2, controller.getCollisionCount());
+        assertEquals(BackpressureState.THROTTLED, controller.getState());
+
+        Thread.sleep(INTERVAL + 10);
+        controller.onCollision();
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void testRampsUpWithoutCollisions() throws Exception {
+        BackpressureController controller = controller(4);
+        controller.onCollision();
+        assertEquals(2, controller.getLimit());
+
+        Thread.sleep(INTERVAL + 10);
+        assertTrue(controller.acquire(0));
+        assertEquals(3, controller.getLimit());
+        Thread.sleep(INTERVAL + 10);
+        assertTrue(controller.acquire(0));
+        assertEquals(4, controller.getLimit());
+        assertEquals(BackpressureState.NORMAL, controller.getState());
+        assertEquals(2, controller.getInFlight());
+    }
+
+    @Test
+    public void testLimitsConcurrentBorrows() throws Exception {
+        BackpressureController controller = controller(2);
+        controller.onCollision();
+        assertEquals(1, controller.getLimit());
+
+        assertTrue(controller.acquire(1000));
+        long start = System.currentTimeMillis();
+        try {
+            controller.acquire(10);
+            fail("admitted beyond the limit");
+        } catch (NoSuchElementException e) {
+            assertTrue(System.currentTimeMillis() - start >= 10);
+        }
+        assertEquals(1, controller.getInFlight());
+        assertEquals(1, controller.getThrottledCount());
+    }
+
+    @Test
+    public void testWaiterAdmittedOnRelease() throws Exception {
+        final BackpressureController controller = controller(1);
+        assertTrue(controller.acquire(0));
+
+        final CountDownLatch admitted = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    controller.acquire(5000);
+                    admitted.countDown();
+                } catch (Exception e) {
+                    failed.set(true);
+                }
+            }
+        };
+        waiter.start();
+        while (controller.getWaiting() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, admitted.getCount());
+        controller.release();
+        waiter.join(5000);
+        assertEquals(0, admitted.getCount());
+        assertFalse(failed.get());
+        assertEquals(1, controller.getInFlight());
+    }
+
+    @Test
+    public void testOpensCircuitWhenCollisionsPersist() throws Exception {
+        BackpressureController controller = controller(2);
+        controller.onCollision();
+        assertEquals(1, controller.getLimit());
+        Thread.sleep(INTERVAL + 10);
+        controller.onCollision();
+        assertEquals(BackpressureState.THROTTLED, controller.getState());
+        Thread.sleep(INTERVAL + 10);
+        controller.onCollision();
+        assertEquals(BackpressureState.OPEN, controller.getState());
+
+        try {
+            controller.acquire(1000);
+            fail("admitted while open");
+        } catch (NoSuchElementException e) {
+            assertEquals(1, controller.getRejectedCount());
+        }
+        // collisions from writes still in flight don't extend it
+        controller.onCollision();
+
+        Thread.sleep(320);
+        assertTrue(controller.acquire(0));
+        controller.release();
+        assertEquals(BackpressureState.THROTTLED, controller.getState());
+
+        // the first collision after reopens the circuit
+        controller.onCollision();
+        assertEquals(BackpressureState.OPEN, controller.getState());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        OpenTsdbClientPoolConfiguration c = new OpenTsdbClientPoolConfiguration();
+        c.setBackpressure(false);
+        BackpressureController controller = new BackpressureController(c, 1);
+        controller.onCollision();
+        controller.onError();
+        assertFalse(controller.acquire(0));
+        assertFalse(controller.acquire(0));
+        assertEquals(1, controller.getLimit());
+        assertEquals(1, controller.getCollisionCount());
+        assertEquals(1, controller.getErrorCount());
+        assertEquals(BackpressureState.NORMAL, controller.getState());
+    }
+
+    @Test
+    public void testMaxLimitFollowsEndpoints() throws Exception {
+        BackpressureController controller = controller(4);
+        controller.setMaxLimit(8);
+        assertEquals(8, controller.getMaxLimit());
+        assertEquals(8, controller.getLimit());
+
+        controller.onCollision();
+        assertEquals(4, controller.getLimit());
+        // a throttled limit keeps ramping up to the new maximum
+        controller.setMaxLimit(6);
+        assertEquals(4, controller.getLimit());
+        controller.setMaxLimit(2);
+        assertEquals(2, controller.getLimit());
+        assertEquals(BackpressureState.NORMAL, controller.getState());
+    }
+}
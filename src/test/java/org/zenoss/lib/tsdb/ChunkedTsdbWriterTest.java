@@ -0,0 +1,166 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.ObjectPool;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ChunkedTsdbWriterTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    final AtomicInteger chunks = new AtomicInteger();
+
+    ChunkedTsdbWriterConfiguration config(int chunkSize, long lingerTime) {
+        ChunkedTsdbWriterConfiguration c = new ChunkedTsdbWriterConfiguration();
+        c.setChunkSize(chunkSize);
+        c.setLingerTime(lingerTime);
+        c.setWriters(2);
+        return c;
+    }
+
+    @SuppressWarnings("unchecked")
+    ObjectPool<OpenTsdbClient> pool(OpenTsdbClient client, OpenTsdbClient... rest) throws Exception {
+        ObjectPool<OpenTsdbClient> pool = mock(ObjectPool.class);
+        when(pool.borrowObject()).thenReturn(client, rest);
+        return pool;
+    }
+
+    /**
+     * A client collecting the chunks written to it
+     */
+    OpenTsdbClient client(final ByteArrayOutputStream received) throws IOException {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                chunks.incrementAndGet();
+                synchronized (received) {
+                    received.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                }
+                return null;
+            }
+        }).when(client).write(any(byte[].class), anyInt(), anyInt(), anyInt());
+        return client;
+    }
+
+    @Test
+    public void testProducersHandOffWholeChunks() throws Exception {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OpenTsdbClient client = client(received);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        final ChunkedTsdbWriter writer = new ChunkedTsdbWriter(config(256, 60_000), pool);
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; ++i) {
+            final int producer = i;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 1000; ++n) {
+                        assertTrue(writer.write("m" + producer, n, 1.0, EMPTY_MAP));
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        writer.close();
+
+        Set<String> expected = new HashSet<>();
+        for (int producer = 0; producer < producers.length; ++producer) {
+            for (int n = 0; n < 1000; ++n) {
+                expected.add(OpenTsdbClient.toPutMessage("m" + producer, n, 1.0, EMPTY_MAP).trim());
+            }
+        }
+        String[] lines = received.toString("UTF-8").split("\n");
+        assertEquals(4000, lines.length);
+        assertEquals(expected, new HashSet<>(Arrays.asList(lines)));
+        // whole chunks only, every write but the last of each producer fills most of a chunk
+        verify(client, atMost(4000 * 20 / 256 + 8)).write(any(byte[].class), anyInt(), anyInt(), anyInt());
+        // the client goes back to the pool after every chunk
+        verify(pool, times(chunks.get())).borrowObject();
+        verify(pool, times(chunks.get())).returnObject(client);
+        assertEquals(4000, writer.getWrittenCount());
+        assertEquals(0, writer.getDroppedCount());
+        assertEquals(0, writer.getQueuedChunks());
+    }
+
+    @Test
+    public void testLingeringChunkIsHandedOff() throws Exception {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OpenTsdbClient client = client(received);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        ChunkedTsdbWriter writer = new ChunkedTsdbWriter(config(8192, 10), pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+
+        verify(client, timeout(5000)).flush();
+        verify(pool, timeout(5000)).returnObject(client);
+        synchronized (received) {
+            assertEquals("put m 1 1\n", received.toString("UTF-8"));
+        }
+        writer.close();
+        assertEquals(1, writer.getWrittenCount());
+    }
+
+    @Test
+    public void testRetriesFailedChunkOnAnotherClient() throws Exception {
+        OpenTsdbClient broken = mock(OpenTsdbClient.class);
+        doThrow(new IOException("broken pipe")).when(broken).flush();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OpenTsdbClient client = client(received);
+        ObjectPool<OpenTsdbClient> pool = pool(broken, client);
+        ChunkedTsdbWriterConfiguration config = config(8192, 60_000);
+        config.setWriters(1);
+        ChunkedTsdbWriter writer = new ChunkedTsdbWriter(config, pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+        writer.write("m", 2, 1.0, EMPTY_MAP);
+        writer.close();
+
+        verify(pool).invalidateObject(broken);
+        assertEquals("put m 1 1\nput m 2 1\n", received.toString("UTF-8"));
+        assertEquals(2, writer.getWrittenCount());
+        assertEquals(0, writer.getFailedCount());
+    }
+
+    @Test
+    public void testCountsPointsOfUndeliverableChunks() throws Exception {
+        @SuppressWarnings("unchecked")
+        ObjectPool<OpenTsdbClient> pool = mock(ObjectPool.class);
+        when(pool.borrowObject()).thenThrow(new IOException("Connection refused"));
+        ChunkedTsdbWriter writer = new ChunkedTsdbWriter(config(8192, 60_000), pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+        writer.write("m", 2, 1.0, EMPTY_MAP);
+        writer.close();
+
+        assertFalse(writer.write("m", 3, 1.0, EMPTY_MAP));
+        assertEquals(0, writer.getWrittenCount());
+        assertEquals(2, writer.getFailedCount());
+        assertEquals(1, writer.getDroppedCount());
+    }
+}
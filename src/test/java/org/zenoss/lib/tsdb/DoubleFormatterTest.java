@@ -0,0 +1,125 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DoubleFormatterTest {
+
+    static String format(double value) {
+        byte[] buf = new byte[DoubleFormatter.MAX_LENGTH + 2];
+        int end = DoubleFormatter.format(value, buf, 2);
+        assertTrue(end - 2 <= DoubleFormatter.MAX_LENGTH);
+        return new String(buf, 2, end - 2, StandardCharsets.US_ASCII);
+    }
+
+    static String formatLong(long value) {
+        byte[] buf = new byte[DoubleFormatter.MAX_LONG_LENGTH];
+        return new String(buf, 0, DoubleFormatter.formatLong(value, buf, 0), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * The shortest decimal that rounds back to the value. Double#toString before
+     * JDK 19 renders a few doubles with more digits than needed, or with the same
+     * number of digits but not the closest ones.
+     */
+    static void assertShortest(double value) {
+        String expected = Double.toString(value);
+        String actual = format(value);
+        if (!expected.equals(actual)) {
+            assertEquals(expected, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(actual)));
+            assertTrue(expected + " " + actual, actual.length() <= expected.length());
+        }
+    }
+
+    @Test
+    public void testSpecialValues() {
+        assertEquals("NaN", format(Double.NaN));
+        assertEquals("Infinity", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", format(Double.NEGATIVE_INFINITY));
+        assertEquals("0.0", format(0.0));
+        assertEquals("-0.0", format(-0.0));
+        assertEquals("4.9E-324", format(Double.MIN_VALUE));
+        assertEquals("1.7976931348623157E308", format(Double.MAX_VALUE));
+        assertEquals("2.2250738585072014E-308", format(Double.MIN_NORMAL));
+        assertEquals("-2.2250738585072014E-308", format(-Double.MIN_NORMAL));
+    }
+
+    @Test
+    public void testNotationBoundaries() {
+        double[] values = {
+            0.001, 0.0009999999999999998, 0.00123, 0.1, 0.5, 1.0, 1.5, 100.0, 123.456,
+            9999999.999999998, 1.0E7, 1.2345E7, 1.0E-4, 1.0E21, 1.0E22, 2.0E-3,
+            9.007199254740993E15, 4503599627370495.5, 0.30000000000000004, 1.0 / 3
+        };
+        for (double value : values) {
+            assertEquals(Double.toString(value), format(value));
+            assertEquals(Double.toString(-value), format(-value));
+        }
+        assertEquals("1.0E23", format(1.0E23));
+        for (int e = -325; e <= 308; ++e) {
+            assertShortest(Double.parseDouble("1e" + e));
+            assertShortest(Double.parseDouble("9.999999999999999e" + e));
+        }
+    }
+
+    @Test
+    public void testRandomValuesMatchToString() {
+        Random random = new Random(24550);
+        for (int i = 0; i < 500000; ++i) {
+            assertShortest(Double.longBitsToDouble(random.nextLong()));
+
+            // every non-integer, the values put writes with the formatter
+            double value = random.nextInt() / 1000.0;
+            assertEquals(Double.toString(value), format(value));
+            value = random.nextDouble() * Math.pow(10, random.nextInt(30) - 15);
+            assertEquals(Double.toString(value), format(value));
+            value = (float) random.nextGaussian();
+            assertEquals(Double.toString(value), format(value));
+            value = Double.longBitsToDouble(random.nextLong());
+            if (Math.ceil(value) != Math.floor(value)) {
+                assertEquals(Double.toString(value), format(value));
+            }
+        }
+    }
+
+    @Test
+    public void testSubnormalsMatchToString() {
+        Random random = new Random(24551);
+        for (long bits = 1; bits < 200000; ++bits) {
+            double value = Double.longBitsToDouble(bits);
+            assertEquals(Double.toString(value), format(value));
+            assertEquals(Double.toString(-value), format(-value));
+        }
+        for (int i = 0; i < 10000; ++i) {
+            double value = Double.longBitsToDouble(random.nextLong() & 0x000fffffffffffffL);
+            assertEquals(Double.toString(value), format(value));
+        }
+    }
+
+    @Test
+    public void testLongs() {
+        long[] values = {0, 1, -1, 9, 10, 99, 100, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1, 1000000000000000000L};
+        for (long value : values) {
+            assertEquals(Long.toString(value), formatLong(value));
+        }
+        Random random = new Random(24552);
+        for (int i = 0; i < 100000; ++i) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertEquals(Long.toString(value), formatLong(value));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class DownsamplerTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    /**
+     * Records the points written to it
+     */
+    static class RecordingSink implements PointSink {
+
+        final List<Point> points = new CopyOnWriteArrayList<>();
+
+        @Override
+        public boolean write(String metric, long timestamp, double value, Map<String, String> tags) {
+            points.add(new Point(metric, timestamp, value, tags));
+            return true;
+        }
+    }
+
+    RecordingSink sink = new RecordingSink();
+    Downsampler downsampler;
+
+    @After
+    public void tearDown() {
+        if (downsampler != null) {
+            downsampler.close();
+        }
+    }
+
+    Downsampler downsampler(long interval, long lateness, DownsampleAggregator aggregator) {
+        DownsamplerConfiguration c = new DownsamplerConfiguration();
+        c.setInterval(interval);
+        c.setLateness(lateness);
+        c.setAggregator(aggregator);
+        downsampler = new Downsampler(c, sink);
+        return downsampler;
+    }
+
+    static void assertPoint(Point point, String metric, long timestamp, double value) {
+        assertEquals(metric, point.getMetric());
+        assertEquals(timestamp, point.getTimestamp());
+        assertEquals(value, point.getValue(), 1e-9);
+    }
+
+    @Test
+    public void testAggregators() {
+        double[] expected = {4.5, 45, 0, 9, 9};
+        DownsampleAggregator[] aggregators = DownsampleAggregator.values();
+        for (int a = 0; a < aggregators.length; ++a) {
+            sink.points.clear();
+            Downsampler d = downsampler(10_000, 0, aggregators[a]);
+            for (int i = 0; i < 10; ++i) {
+                assertTrue(d.write("m", 1398325180L + i, i, EMPTY_MAP));
+            }
+            assertTrue(sink.points.isEmpty());
+
+            // the first sample of the next bucket closes this one
+            d.write("m", 1398325190L, 100, EMPTY_MAP);
+            assertEquals(1, sink.points.size());
+            assertPoint(sink.points.get(0), "m", 1398325180L, expected[a]);
+            d.close();
+            assertEquals(2, sink.points.size());
+            assertPoint(sink.points.get(1), "m", 1398325190L, 100);
+            assertEquals(11, d.getReceivedCount());
+            assertEquals(2, d.getEmittedCount());
+        }
+    }
+
+    @Test
+    public void testLastTakesLatestTimestamp() {
+        Downsampler d = downsampler(10_000, 0, DownsampleAggregator.LAST);
+        d.write("m", 1398325185L, 5, EMPTY_MAP);
+        d.write("m", 1398325181L, 1, EMPTY_MAP);
+        d.close();
+        assertPoint(sink.points.get(0), "m", 1398325180L, 5);
+    }
+
+    @Test
+    public void testMillisecondTimestamps() {
+        Downsampler d = downsampler(1000, 0, DownsampleAggregator.SUM);
+        d.write("m", 1398325180250L, 1, EMPTY_MAP);
+        d.write("m", 1398325180750L, 2, EMPTY_MAP);
+        d.write("m", 1398325181000L, 4, EMPTY_MAP);
+        d.close();
+        assertEquals(2, sink.points.size());
+        assertPoint(sink.points.get(0), "m", 1398325180000L, 3);
+        assertPoint(sink.points.get(1), "m", 1398325181000L, 4);
+    }
+
+    @Test
+    public void testSeparatesSeries() {
+        Downsampler d = downsampler(10_000, 0, DownsampleAggregator.SUM);
+        d.write("m", 1398325180L, 1, Collections.singletonMap("device", "a"));
+        d.write("m", 1398325180L, 2, Collections.singletonMap("device", "b"));
+        d.write("m", 1398325181L, 4, Collections.singletonMap("device", "a"));
+        d.write("other", 1398325181L, 8, Collections.singletonMap("device", "a"));
+        assertEquals(3, d.getSeriesCount());
+        d.close();
+        assertEquals(3, sink.points.size());
+        double total = 0;
+        for (Point point : sink.points) {
+            if (point.getMetric().equals("m") && point.getTags().get("device").equals("a")) {
+                assertEquals(5, point.getValue(), 0.0);
+            }
+            total += point.getValue();
+        }
+        assertEquals(15, total, 0.0);
+    }
+
+    @Test
+    public void testLateness() {
+        Downsampler d = downsampler(10_000, 5_000, DownsampleAggregator.SUM);
+        d.write("m", 1398325185L, 1, EMPTY_MAP);
+        d.write("m", 1398325192L, 10, EMPTY_MAP);
+        // within lateness of the latest sample, still aggregated
+        assertTrue(d.write("m", 1398325189L, 2, EMPTY_MAP));
+        assertTrue(sink.points.isEmpty());
+
+        d.write("m", 1398325195L, 20, EMPTY_MAP);
+        assertEquals(1, sink.points.size());
+        assertPoint(sink.points.get(0), "m", 1398325180L, 3);
+
+        assertFalse(d.write("m", 1398325188L, 4, EMPTY_MAP));
+        assertEquals(1, d.getLateCount());
+        d.close();
+        assertEquals(2, sink.points.size());
+        assertPoint(sink.points.get(1), "m", 1398325190L, 30);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyWrittenSeries() {
+        DownsamplerConfiguration c = new DownsamplerConfiguration();
+        c.setInterval(10_000);
+        c.setMaxSeries(Downsampler.STRIPES);
+        downsampler = new Downsampler(c, sink);
+        for (int i = 0; i < 1000; ++i) {
+            downsampler.write("m", 1398325180L, i, Collections.singletonMap("device", Integer.toString(i)));
+        }
+        assertTrue(downsampler.getSeriesCount() <= Downsampler.STRIPES);
+        assertEquals(1000 - downsampler.getSeriesCount(), downsampler.getEvictedCount());
+        assertEquals(downsampler.getEvictedCount(), sink.points.size());
+        downsampler.close();
+        assertEquals(1000, sink.points.size());
+    }
+
+    @Test
+    public void testClosesIdleSeries() throws Exception {
+        Downsampler d = downsampler(100, 0, DownsampleAggregator.AVG);
+        d.write("m", 1398325180L, 1, EMPTY_MAP);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.points.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sink.points.size());
+        assertEquals(0, d.getSeriesCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresInterval() {
+        new Downsampler(new DownsamplerConfiguration(), sink);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class EndpointSelectorTest {
+
+    OpenTsdbClientFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        factory = OpenTsdbEndpointTest.factory();
+    }
+
+    Map<OpenTsdbEndpoint, Integer> count(EndpointSelector selector, OpenTsdbEndpoint[] endpoints, int times) {
+        Map<OpenTsdbEndpoint, Integer> counts = new HashMap<>();
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            counts.put(endpoint, 0);
+        }
+        for (int i = 0; i < times; ++i) {
+            OpenTsdbEndpoint endpoint = selector.select(endpoints);
+            counts.put(endpoint, counts.get(endpoint) + 1);
+        }
+        return counts;
+    }
+
+    @Test
+    public void testWeightedRoundRobin() throws Exception {
+        OpenTsdbEndpoint a = OpenTsdbEndpointTest.endpoint(factory, 1, 3, 1);
+        OpenTsdbEndpoint b = OpenTsdbEndpointTest.endpoint(factory, 2, 1, 1);
+        OpenTsdbEndpoint[] endpoints = {a, b};
+        EndpointSelector selector = new WeightedRoundRobinSelector();
+
+        Map<OpenTsdbEndpoint, Integer> counts = count(selector, endpoints, 400);
+        assertEquals(300, (int) counts.get(a));
+        assertEquals(100, (int) counts.get(b));
+
+        // never more than the weight in a row
+        int run = 0;
+        for (int i = 0; i < 40; ++i) {
+            run = (selector.select(endpoints) == a) ? run + 1 : 0;
+            assertTrue(run <= 3);
+        }
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        OpenTsdbEndpoint a = OpenTsdbEndpointTest.endpoint(factory, 1, 1, 4);
+        OpenTsdbEndpoint b = OpenTsdbEndpointTest.endpoint(factory, 2, 2, 4);
+        OpenTsdbEndpoint[] endpoints = {a, b};
+        EndpointSelector selector = new LeastOutstandingSelector();
+
+        a.tryBorrowClient();
+        assertSame(b, selector.select(endpoints));
+        b.tryBorrowClient();
+        b.tryBorrowClient();
+        // 1/1 vs 2/2 ties, then b's extra weight wins once a has another
+        a.tryBorrowClient();
+        assertSame(b, selector.select(endpoints));
+    }
+
+    @Test
+    public void testLeastOutstandingPrefersIdle() throws Exception {
+        OpenTsdbEndpoint a = OpenTsdbEndpointTest.endpoint(factory, 1, 1, 4);
+        OpenTsdbEndpoint b = OpenTsdbEndpointTest.endpoint(factory, 2, 1, 4);
+        OpenTsdbEndpoint[] endpoints = {a, b};
+        EndpointSelector selector = new LeastOutstandingSelector();
+
+        b.returnClient(b.tryBorrowClient());
+        assertEquals(10, (int) count(selector, endpoints, 10).get(b));
+    }
+
+    @Test
+    public void testLatencyPrefersFastAndUnmeasured() throws Exception {
+        OpenTsdbEndpoint fast = OpenTsdbEndpointTest.endpoint(factory, 1, 1, 4);
+        OpenTsdbEndpoint slow = OpenTsdbEndpointTest.endpoint(factory, 2, 1, 4);
+        OpenTsdbEndpoint[] endpoints = {fast, slow};
+        EndpointSelector selector = new LatencySelector();
+        fast.recordLatency(1000);
+
+        assertSame("unmeasured endpoints are tried", slow, selector.select(endpoints));
+        slow.recordLatency(4000);
+        assertEquals(100, (int) count(selector, endpoints, 100).get(fast));
+
+        // load counts against the fast endpoint
+        for (int i = 0; i < 4; ++i) {
+            fast.tryBorrowClient();
+        }
+        assertSame(slow, selector.select(endpoints));
+    }
+
+    @Test
+    public void testSkipsEjected() throws Exception {
+        OpenTsdbEndpoint a = OpenTsdbEndpointTest.endpoint(factory, 1, 1, 1);
+        OpenTsdbEndpoint b = OpenTsdbEndpointTest.endpoint(factory, 2, 1, 1);
+        OpenTsdbEndpoint[] endpoints = {a, b};
+        a.recordFailure();
+        a.recordFailure();
+        EndpointSelector[] selectors = {new WeightedRoundRobinSelector(), new LeastOutstandingSelector(), new LatencySelector(),
+                new ConsistentHashSelector()};
+        for (EndpointSelector selector : selectors) {
+            assertEquals(20, (int) count(selector, endpoints, 20).get(b));
+        }
+        b.recordFailure();
+        b.recordFailure();
+        for (EndpointSelector selector : selectors) {
+            assertNull(selector.select(endpoints));
+        }
+    }
+
+    static Map<String, String> tags(int i) {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("device", "device-" + i);
+        tags.put("component", "eth" + (i % 4));
+        return tags;
+    }
+
+    @Test
+    public void testConsistentHashKeepsSeriesOnEndpoint() throws Exception {
+        OpenTsdbEndpoint[] endpoints = new OpenTsdbEndpoint[4];
+        for (int i = 0; i < endpoints.length; ++i) {
+            endpoints[i] = OpenTsdbEndpointTest.endpoint(factory, i + 1, 1, 1);
+        }
+        ConsistentHashSelector selector = new ConsistentHashSelector();
+        Map<OpenTsdbEndpoint, Integer> counts = new HashMap<>();
+        OpenTsdbEndpoint[] chosen = new OpenTsdbEndpoint[10000];
+        for (int i = 0; i < chosen.length; ++i) {
+            chosen[i] = selector.select(endpoints, ConsistentHashSelector.seriesHash("m", tags(i)));
+            assertSame(chosen[i], selector.select(endpoints, ConsistentHashSelector.seriesHash("m", tags(i))));
+            Integer count = counts.get(chosen[i]);
+            counts.put(chosen[i], (count != null) ? count + 1 : 1);
+        }
+        for (OpenTsdbEndpoint endpoint : endpoints) {
+            assertTrue(counts.get(endpoint) > 1500);
+        }
+
+        // only the series of a removed endpoint move
+        OpenTsdbEndpoint[] three = {endpoints[0], endpoints[1], endpoints[3]};
+        for (int i = 0; i < chosen.length; ++i) {
+            OpenTsdbEndpoint endpoint = selector.select(three, ConsistentHashSelector.seriesHash("m", tags(i)));
+            if (chosen[i] != endpoints[2]) {
+                assertSame(chosen[i], endpoint);
+            } else {
+                assertNotSame(endpoints[2], endpoint);
+            }
+        }
+
+        // same for an ejected one
+        endpoints[2].recordFailure();
+        endpoints[2].recordFailure();
+        for (int i = 0; i < chosen.length; ++i) {
+            OpenTsdbEndpoint endpoint = selector.select(endpoints, ConsistentHashSelector.seriesHash("m", tags(i)));
+            if (chosen[i] != endpoints[2]) {
+                assertSame(chosen[i], endpoint);
+            }
+        }
+    }
+
+    @Test
+    public void testConsistentHashWeights() throws Exception {
+        OpenTsdbEndpoint a = OpenTsdbEndpointTest.endpoint(factory, 1, 3, 1);
+        OpenTsdbEndpoint b = OpenTsdbEndpointTest.endpoint(factory, 2, 1, 1);
+        OpenTsdbEndpoint[] endpoints = {a, b};
+        ConsistentHashSelector selector = new ConsistentHashSelector();
+        int onA = 0;
+        for (int i = 0; i < 10000; ++i) {
+            if (selector.select(endpoints, ConsistentHashSelector.seriesHash("m", tags(i))) == a) {
+                ++onA;
+            }
+        }
+        assertTrue(onA > 6500 && onA < 8500);
+    }
+
+    @Test
+    public void testSeriesHashIgnoresTagOrder() {
+        Map<String, String> tags1 = new LinkedHashMap<>();
+        tags1.put("a", "1");
+        tags1.put("b", "2");
+        Map<String, String> tags2 = new LinkedHashMap<>();
+        tags2.put("b", "2");
+        tags2.put("a", "1");
+        assertEquals(ConsistentHashSelector.seriesHash("m", tags1), ConsistentHashSelector.seriesHash("m", tags2));
+        tags2.put("a", "2");
+        tags2.put("b", "1");
+        assertNotEquals(ConsistentHashSelector.seriesHash("m", tags1), ConsistentHashSelector.seriesHash("m", tags2));
+        assertNotEquals(ConsistentHashSelector.seriesHash("m", tags1), ConsistentHashSelector.seriesHash("n", tags1));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FileEndpointDiscoveryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    OpenTsdbClientPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        OpenTsdbClientConfiguration client = new OpenTsdbClientConfiguration();
+        client.setHost("localhost");
+        client.setPort(4242);
+        OpenTsdbClientPoolConfiguration configuration = new OpenTsdbClientPoolConfiguration();
+        configuration.getClientConfigurations().add(client);
+        configuration.setMetrics(false);
+        pool = new OpenTsdbClientPool(configuration, OpenTsdbEndpointTest.factory());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+    }
+
+    static void write(File file, String json, long modified) throws IOException {
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(modified));
+    }
+
+    @Test
+    public void testReloadsWhenTheFileChanges() throws Exception {
+        File file = folder.newFile("endpoints.json");
+        write(file, "[{\"host\": \"localhost\", \"port\": 4243, \"maxConnections\": 2, \"weight\": 3}]", 1_000_000L);
+        FileEndpointDiscovery discovery = new FileEndpointDiscovery(file, 60_000, pool);
+        List<OpenTsdbEndpoint> endpoints = pool.getEndpoints();
+        assertEquals(1, endpoints.size());
+        assertEquals(4243, endpoints.get(0).getPort());
+        assertEquals(2, endpoints.get(0).getMaxConnections());
+        assertEquals(3, endpoints.get(0).getWeight());
+
+        assertFalse(discovery.poll());
+        write(file, "[{\"host\": \"localhost\", \"port\": 4243, \"maxConnections\": 2, \"weight\": 3},"
+                + " {\"host\": \"localhost\", \"port\": 4244}]", 2_000_000L);
+        assertTrue(discovery.poll());
+        assertEquals(2, pool.getEndpoints().size());
+        assertSame(endpoints.get(0), pool.getEndpoints().get(0));
+        discovery.close();
+    }
+
+    @Test
+    public void testKeepsEndpointsOnBadFiles() throws Exception {
+        File file = new File(folder.getRoot(), "endpoints.json");
+        FileEndpointDiscovery discovery = new FileEndpointDiscovery(file, 60_000, pool);
+        assertEquals(4242, pool.getEndpoints().get(0).getPort());
+
+        write(file, "[{\"host\": \"localhost\", \"port\":", 1_000_000L);
+        assertFalse(discovery.poll());
+        write(file, "[]", 2_000_000L);
+        assertFalse(discovery.poll());
+        write(file, "[{\"host\": \"localhost\"}]", 3_000_000L);
+        assertFalse(discovery.poll());
+        assertEquals(1, pool.getEndpoints().size());
+        assertEquals(4242, pool.getEndpoints().get(0).getPort());
+        discovery.close();
+    }
+
+    @Test
+    public void testDefaultsNullLimits() throws Exception {
+        File file = folder.newFile("endpoints.json");
+        write(file, "[{\"host\": \"localhost\", \"port\": 4243, \"maxConnections\": null, \"weight\": null}]", 1_000_000L);
+        FileEndpointDiscovery discovery = new FileEndpointDiscovery(file, 60_000, pool);
+        assertEquals(1, pool.getEndpoints().size());
+        assertEquals(4243, pool.getEndpoints().get(0).getPort());
+        assertEquals(1, pool.getEndpoints().get(0).getMaxConnections());
+        assertEquals(1, pool.getEndpoints().get(0).getWeight());
+        discovery.close();
+    }
+
+    @Test
+    public void testPoolReadsTheConfiguredFile() throws Exception {
+        File file = folder.newFile("endpoints.json");
+        write(file, "[{\"host\": \"localhost\", \"port\": 4245}]", 1_000_000L);
+        OpenTsdbClientPoolConfiguration configuration = new OpenTsdbClientPoolConfiguration();
+        configuration.setDiscoveryFile(file.getPath());
+        configuration.setMetrics(false);
+        OpenTsdbClientPool discovered = new OpenTsdbClientPool(configuration, OpenTsdbEndpointTest.factory());
+        assertEquals(1, discovered.getEndpoints().size());
+        assertEquals(4245, discovered.getEndpoints().get(0).getPort());
+        discovered.close();
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioOpenTsdbClientTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    /**
+     * A single connection telnet stub, answering version with the given response
+     */
+    static class StubTsdb implements Runnable {
+
+        final ServerSocket server;
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        volatile String versionResponse = "net.opentsdb.tools 2.2.0 built at revision 1.2.3\nBuilt on 2016/01/01\n";
+        volatile String putResponse;
+        volatile Socket socket;
+
+        StubTsdb() throws IOException {
+            server = new ServerSocket(0, 50, null);
+            Thread thread = new Thread(this, "stub-tsdb");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        InetSocketAddress address() {
+            return new InetSocketAddress("127.0.0.1", server.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket = server.accept();
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream out = socket.getOutputStream();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.equals("version")) {
+                        out.write(versionResponse.getBytes(StandardCharsets.UTF_8));
+                        out.flush();
+                    } else {
+                        lines.add(line);
+                        String response = putResponse;
+                        if (response != null) {
+                            out.write(response.getBytes(StandardCharsets.UTF_8));
+                            out.flush();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // test is over
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    StubTsdb tsdb;
+    SelectorLoop loop;
+    SocketFactory socketFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        tsdb = new StubTsdb();
+        loop = new SelectorLoop("test-selector");
+        SocketFactoryConfiguration configuration = new SocketFactoryConfiguration();
+        configuration.setSoTimeout(5000);
+        socketFactory = new SocketFactory(configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        tsdb.close();
+        loop.close();
+    }
+
+    NioOpenTsdbClient newClient(int bufferSize, int maxPendingBytes) throws IOException {
+        return new NioOpenTsdbClient(socketFactory.newChannel(tsdb.address()), loop, bufferSize, maxPendingBytes, 5000);
+    }
+
+    @Test
+    public void testPutAndFlush() throws Exception {
+        NioOpenTsdbClient client = newClient(64, 1024 * 1024);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            String message = OpenTsdbClient.toPutMessage("m", i, i + 0.5, Collections.singletonMap("idx", "" + i));
+            expected.add(message.substring(0, message.length() - 1));
+            if (i % 2 == 0) {
+                client.put(message);
+            } else {
+                client.put("m", i, i + 0.5, Collections.singletonMap("idx", "" + i));
+            }
+        }
+        client.flush();
+        for (String line : expected) {
+            assertEquals(line, tsdb.lines.poll(5, TimeUnit.SECONDS));
+        }
+        client.close();
+        assertTrue(client.isClosed());
+    }
+
+    @Test
+    public void testSelectorReportsErrors() throws Exception {
+        tsdb.putResponse = "put: illegal argument: bad\n";
+        NioOpenTsdbClient client = newClient(64, 1024 * 1024);
+        final BlockingQueue<String> errors = new LinkedBlockingQueue<>();
+        client.setResponseListener(new ResponseListener() {
+            @Override
+            public void onError(OpenTsdbClient client, String error) {
+                errors.add(error);
+            }
+        });
+        client.put("m", 1, 1.0, EMPTY_MAP);
+        client.flush();
+
+        // parsed by the selector without the client reading
+        assertEquals("put: illegal argument: bad", errors.poll(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("put: illegal argument: bad"), client.pollErrors());
+        client.close();
+    }
+
+    @Test
+    public void testWritersWaitForSmallPendingLimit() throws Exception {
+        NioOpenTsdbClient client = newClient(16, 32);
+        for (int i = 0; i < 200; ++i) {
+            client.put("m", i, 1.0, EMPTY_MAP);
+            assertTrue(client.getPendingBytes() <= 32);
+        }
+        client.flush();
+        for (int i = 0; i < 200; ++i) {
+            assertEquals("put m " + i + " 1", tsdb.lines.poll(5, TimeUnit.SECONDS));
+        }
+        client.close();
+    }
+
+    @Test
+    public void testCloseWritesWhatFlushQueued() throws Exception {
+        NioOpenTsdbClient client = newClient(8192, 4 * 1024 * 1024);
+        for (int i = 0; i < 100000; ++i) {
+            client.put("m", i, 1.0, EMPTY_MAP);
+        }
+        client.flush();
+        client.close();
+        assertEquals(0, client.getPendingBytes());
+        for (int i = 0; i < 100000; ++i) {
+            assertEquals("put m " + i + " 1", tsdb.lines.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCheckForErrors() throws Exception {
+        NioOpenTsdbClient client = newClient(8192, 1024 * 1024);
+        assertEquals(Collections.<String>emptyList(), client.checkForErrors());
+        assertTrue(client.isAlive());
+
+        tsdb.versionResponse = "put: illegal argument\nnet.opentsdb.tools 2.2.0 built at revision 1.2.3\n";
+        assertEquals(Collections.singletonList("put: illegal argument"), client.checkForErrors());
+        client.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteFailsAfterServerCloses() throws Exception {
+        NioOpenTsdbClient client = newClient(64, 1024 * 1024);
+        client.put("m", 0, 1.0, EMPTY_MAP);
+        client.flush();
+        assertNotNull(tsdb.lines.poll(5, TimeUnit.SECONDS));
+        tsdb.close();
+        for (int i = 0; i < 100000; ++i) {
+            client.put("m", i, 1.0, EMPTY_MAP);
+            client.flush();
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testFactoryBuildsNioClients() throws Exception {
+        OpenTsdbClientConfiguration c1 = new OpenTsdbClientConfiguration();
+        c1.setHost("127.0.0.1");
+        c1.setPort(tsdb.address().getPort());
+
+        OpenTsdbClientPoolConfiguration configuration = new OpenTsdbClientPoolConfiguration();
+        configuration.setClientConfiguration(Collections.singletonList(c1));
+        configuration.setTransport(OpenTsdbTransport.NIO);
+        OpenTsdbClientFactory factory = new OpenTsdbClientFactory(configuration, socketFactory);
+        try {
+            OpenTsdbClient client = factory.makeObject();
+            assertTrue(client instanceof NioOpenTsdbClient);
+            assertTrue(factory.validateObject(client));
+            factory.destroyObject(client);
+        } finally {
+            factory.close();
+        }
+    }
+}
@@ -62,10 +62,10 @@ public class OpenTsdbClientFactoryTest {
         when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
         
         OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config(), socketFactory);
-        OpenTsdbClient c1 = factory.makeObject();
-        
         when (socket.getOutputStream()).thenReturn(os);
         when (socket.getInputStream()).thenReturn(is);
+        
+        OpenTsdbClient c1 = factory.makeObject();
 
         assertTrue(factory.validateObject(c1));
     }
@@ -79,11 +79,11 @@ public class OpenTsdbClientFactoryTest {
         when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
 
         OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config(), socketFactory);
-        OpenTsdbClient c1 = factory.makeObject();
-
         when (socket.getOutputStream()).thenReturn(os);
         when (socket.getInputStream()).thenReturn(is);
 
+        OpenTsdbClient c1 = factory.makeObject();
+
         assertTrue(factory.validateObject(c1));
     }
 
@@ -96,10 +96,10 @@ public class OpenTsdbClientFactoryTest {
         when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
         
         OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config(), socketFactory);
-        OpenTsdbClient c1 = factory.makeObject();
-        
         when (socket.getOutputStream()).thenReturn(os);
         when (socket.getInputStream()).thenReturn(is);
+        
+        OpenTsdbClient c1 = factory.makeObject();
 
         assertFalse( factory.hasCollision());
         assertFalse( factory.validateObject(c1));
@@ -117,14 +117,14 @@ public class OpenTsdbClientFactoryTest {
         when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
 
         OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config(), socketFactory);
-        OpenTsdbClient c1 = factory.makeObject();
-
         String message = "put: HBase error: 1000 RPCs waiting on \"tsdb,,1398325180794.54ad8182f2f2a0a1cc6d39ba26ca7f64.\" to come back online";
         InputStream is = new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8));
 
         when (socket.getOutputStream()).thenReturn(os);
         when (socket.getInputStream()).thenReturn(is);
 
+        OpenTsdbClient c1 = factory.makeObject();
+
         assertFalse( factory.hasCollision());
         assertFalse( factory.validateObject(c1));
         assertTrue( factory.hasCollision());
@@ -133,6 +133,32 @@ public class OpenTsdbClientFactoryTest {
         assertEquals( 0, factory.clearErrorCount());
     }
 
+    @Test
+    public void testCollisionsReportedToBackpressure() throws Exception {
+        Socket socket = mock(Socket.class);
+        SocketFactory socketFactory = mock(SocketFactory.class);
+        when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
+        when (socket.getOutputStream()).thenReturn(mock(OutputStream.class));
+
+        OpenTsdbClientPoolConfiguration config = config();
+        OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config, socketFactory);
+        BackpressureController backpressure = new BackpressureController(config, 4);
+        factory.setBackpressureController(backpressure);
+
+        String message = "put: HBase error: 1000 RPCs waiting on \"tsdb,,1398325180794.54ad8182f2f2a0a1cc6d39ba26ca7f64.\" to come back online\n"
+                + "put: Please throttle writes: 10000 RPCs waiting on \"tsdb,,1398325180794.54ad8182f2f2a0a1cc6d39ba26ca7f64.\" to come back online\n"
+                + "put: illegal argument: invalid value\n";
+        when (socket.getInputStream()).thenReturn(new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8)));
+        OpenTsdbClient c1 = factory.makeObject();
+
+        assertFalse( factory.validateObject(c1));
+        assertEquals( 2, backpressure.getCollisionCount());
+        assertEquals( 1, backpressure.getErrorCount());
+        assertEquals( 2, backpressure.getLimit());
+        assertTrue( factory.hasCollision());
+        factory.close();
+    }
+
     @Test
     public void testReadIOException() throws Exception {
         Socket socket = mock(Socket.class);
@@ -142,13 +168,14 @@ public class OpenTsdbClientFactoryTest {
         when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
         
         OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config(), socketFactory);
-        OpenTsdbClient c1 = factory.makeObject();
-        
         when (socket.getOutputStream()).thenReturn(os);
         when (socket.getInputStream()).thenReturn(is);
-        when (is.read(any(byte[].class))).thenThrow(new IOException());
+        when (is.read(any(byte[].class), anyInt(), anyInt())).thenThrow(new IOException());
+        
+        OpenTsdbClient c1 = factory.makeObject();
         
         assertFalse(factory.validateObject(c1));
+        verify(is).read(any(byte[].class), anyInt(), anyInt());
     }
     
     @Test
@@ -168,6 +195,90 @@ public class OpenTsdbClientFactoryTest {
         verify (socket, never()).getInputStream();
     }
     
+    OpenTsdbClientPoolConfiguration backgroundConfig(long minTestTime) {
+        OpenTsdbClientPoolConfiguration c = config();
+        c.setMaxKeepAliveTime(60_000L);
+        c.setMinTestTime(minTestTime);
+        c.setValidationMode(OpenTsdbValidationMode.BACKGROUND);
+        return c;
+    }
+
+    @Test
+    public void testBackgroundValidateSkipsRoundTrip() throws Exception {
+        Socket socket = mock(Socket.class);
+        SocketFactory socketFactory = mock(SocketFactory.class);
+        OutputStream os = mock(OutputStream.class);
+        InputStream is = new ByteArrayInputStream(new byte[0]);
+        when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
+        when (socket.getOutputStream()).thenReturn(os);
+        when (socket.getInputStream()).thenReturn(is);
+
+        OpenTsdbClientFactory factory = new OpenTsdbClientFactory(backgroundConfig(60_000L), socketFactory);
+        OpenTsdbClient c1 = factory.makeObject();
+
+        assertTrue(factory.validateObject(c1));
+        assertTrue(factory.validateObject(c1));
+        verifyZeroInteractions(os);
+    }
+
+    @Test
+    public void testBackgroundValidateReadsBufferedErrors() throws Exception {
+        Socket socket = mock(Socket.class);
+        SocketFactory socketFactory = mock(SocketFactory.class);
+        OutputStream os = mock(OutputStream.class);
+        InputStream is = new ByteArrayInputStream("put: illegal argument: bad value\n".getBytes(StandardCharsets.UTF_8));
+        when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
+        when (socket.getOutputStream()).thenReturn(os);
+        when (socket.getInputStream()).thenReturn(is);
+
+        OpenTsdbClientFactory factory = new OpenTsdbClientFactory(backgroundConfig(60_000L), socketFactory);
+        OpenTsdbClient c1 = factory.makeObject();
+
+        assertFalse(factory.validateObject(c1));
+        assertEquals(1, factory.clearErrorCount());
+        verifyZeroInteractions(os);
+    }
+
+    @Test
+    public void testBackgroundValidateRoundTripsWhenStale() throws Exception {
+        Socket socket = mock(Socket.class);
+        SocketFactory socketFactory = mock(SocketFactory.class);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        InputStream is = new ByteArrayInputStream("net.opentsdb 2.1.1 built at revision 1.2.3\n".getBytes(StandardCharsets.UTF_8));
+        when (socketFactory.newSocket (any (SocketAddress.class))).thenReturn(socket);
+        when (socket.getOutputStream()).thenReturn(os);
+        when (socket.getInputStream()).thenReturn(is);
+
+        OpenTsdbClientFactory factory = new OpenTsdbClientFactory(backgroundConfig(1L), socketFactory);
+        OpenTsdbClient c1 = factory.makeObject();
+        Thread.sleep(5);
+
+        assertTrue(factory.validateObject(c1));
+        assertEquals("version\n", os.toString("UTF-8"));
+        assertTrue(System.currentTimeMillis() - c1.getLastValidated() < 1000);
+    }
+
+    @Test
+    public void testJittersLifetime() throws Exception {
+        OpenTsdbClientPoolConfiguration config = config();
+        config.setMaxKeepAliveTime(1000);
+        config.setKeepAliveJitter(0.2);
+        OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config, mock(SocketFactory.class));
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 1000; ++i) {
+            long lifetime = factory.lifetime();
+            min = Math.min(min, lifetime);
+            max = Math.max(max, lifetime);
+        }
+        assertTrue(min >= 800);
+        assertTrue(max <= 1000);
+        assertTrue(max > min);
+
+        config.setKeepAliveJitter(0);
+        assertEquals(1000, new OpenTsdbClientFactory(config, mock(SocketFactory.class)).lifetime());
+    }
+
     static class ByteArrayWriter implements Answer<Integer> {
         
         private int count;
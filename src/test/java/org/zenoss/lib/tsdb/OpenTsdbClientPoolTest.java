@@ -10,14 +10,21 @@
  */
 package org.zenoss.lib.tsdb;
 
+import org.apache.commons.pool.impl.GenericObjectPool;
 import org.fest.util.Lists;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
@@ -35,7 +42,7 @@ public class OpenTsdbClientPoolTest {
         OpenTsdbClientPool pool = new OpenTsdbClientPool(config(), factory);
         OpenTsdbClient client = mock (OpenTsdbClient.class);
         
-        when (factory.makeObject()).thenReturn (client);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn (client);
         when (factory.validateObject (client)).thenReturn (Boolean.TRUE);
         
         assertSame (client, pool.borrowObject());
@@ -50,7 +57,7 @@ public class OpenTsdbClientPoolTest {
         OpenTsdbClientPool pool = new OpenTsdbClientPool(config(), factory);
         OpenTsdbClient client = mock(OpenTsdbClient.class);
         
-        when (factory.makeObject()).thenReturn (client);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn (client);
         when (factory.validateObject (client)).thenReturn (Boolean.FALSE);
         
         pool.borrowObject(); // Should fail!
@@ -64,7 +71,7 @@ public class OpenTsdbClientPoolTest {
         OpenTsdbClient c1 = mock(OpenTsdbClient.class);
         OpenTsdbClient c2 = mock(OpenTsdbClient.class);
         
-        when (factory.makeObject()).thenReturn(c1, c2);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn(c1, c2);
         when (factory.validateObject(c1)).thenReturn(Boolean.TRUE);
         when (factory.validateObject(c2)).thenReturn(Boolean.TRUE);
         
@@ -86,7 +93,7 @@ public class OpenTsdbClientPoolTest {
         OpenTsdbClient c1 = mock(OpenTsdbClient.class);
         OpenTsdbClient c2 = mock(OpenTsdbClient.class);
         
-        when (factory.makeObject()).thenReturn(c1, c2);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn(c1, c2);
         when (factory.validateObject(c1)).thenReturn(true, false);
         when (factory.validateObject(c2)).thenReturn(true);
         
@@ -107,7 +114,7 @@ public class OpenTsdbClientPoolTest {
         OpenTsdbClient c1 = mock(OpenTsdbClient.class);
         OpenTsdbClient c2 = mock(OpenTsdbClient.class);
         
-        when (factory.makeObject()).thenReturn(c1, c2);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn(c1, c2);
         when (factory.validateObject(c1)).thenReturn(Boolean.TRUE);
         when (factory.validateObject(c2)).thenReturn(Boolean.TRUE);
         
@@ -146,6 +153,150 @@ public class OpenTsdbClientPoolTest {
         assertTrue (didInterrupt.get());
     }
     
+    @Test
+    public void testBackpressureLimitsBorrows() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config();
+        configuration.getClientConfigurations().get(0).setMaxConnections(4);
+        configuration.setMaxWaitTime(10);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory);
+        OpenTsdbClient c1 = mock(OpenTsdbClient.class);
+        OpenTsdbClient c2 = mock(OpenTsdbClient.class);
+        OpenTsdbClient c3 = mock(OpenTsdbClient.class);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn(c1, c2, c3);
+        when (factory.validateObject(any(OpenTsdbClient.class))).thenReturn(Boolean.TRUE);
+
+        BackpressureController backpressure = pool.getBackpressure();
+        assertEquals(4, backpressure.getMaxLimit());
+        backpressure.onCollision();
+        assertEquals(BackpressureState.THROTTLED, backpressure.getState());
+
+        assertSame(c1, pool.borrowObject());
+        assertSame(c2, pool.borrowObject());
+        try {
+            pool.borrowObject();
+            fail("borrowed beyond the backpressure limit");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        assertEquals(2, backpressure.getInFlight());
+        pool.returnObject(c1);
+        pool.invalidateObject(c2);
+        assertEquals(0, backpressure.getInFlight());
+    }
+
+    @Test
+    public void testBorrowsFromSeriesEndpoint() throws Exception {
+        OpenTsdbClientConfiguration c1 = new OpenTsdbClientConfiguration();
+        c1.setHost("localhost");
+        c1.setPort(1);
+        OpenTsdbClientConfiguration c2 = new OpenTsdbClientConfiguration();
+        c2.setHost("localhost");
+        c2.setPort(2);
+        OpenTsdbClientPoolConfiguration config = new OpenTsdbClientPoolConfiguration();
+        config.setClientConfiguration(Lists.newArrayList(c1, c2));
+        config.setEndpointSelection(OpenTsdbEndpointSelection.AFFINITY);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        when(factory.makeObject(any(SocketAddress.class))).thenAnswer(new Answer<OpenTsdbClient>() {
+            @Override
+            public OpenTsdbClient answer(InvocationOnMock invocation) throws Throwable {
+                return mock(OpenTsdbClient.class);
+            }
+        });
+        when(factory.validateObject(any(OpenTsdbClient.class))).thenReturn(true);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(config, factory);
+
+        for (int i = 0; i < 20; ++i) {
+            Map<String, String> tags = Collections.singletonMap("device", "d" + i);
+            OpenTsdbEndpoint endpoint = pool.getEndpoint("m", tags);
+            assertNotNull(endpoint);
+            OpenTsdbClient client = pool.borrowObject("m", tags);
+            assertSame(endpoint, client.endpoint);
+            pool.returnObject(client);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void testStripedPoolKeepsClients() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config();
+        configuration.setPoolType(OpenTsdbPoolType.STRIPED);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(factory.makeObject(any(SocketAddress.class))).thenReturn(client);
+        when(factory.validateObject(client)).thenReturn(true);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory);
+        assertTrue(pool.getEndpoints().get(0).pool instanceof StripedClientPool);
+
+        for (int i = 0; i < 3; ++i) {
+            assertSame(client, pool.borrowObject());
+            assertEquals(1, pool.getNumActive());
+            pool.returnObject(client);
+            assertEquals(1, pool.getNumIdle());
+        }
+        verify(factory, times(1)).makeObject(any(SocketAddress.class));
+        pool.close();
+        verify(factory).destroyObject(client);
+    }
+
+    @Test
+    public void testPrewarmsEndpointsInParallel() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config2();
+        configuration.getClientConfigurations().get(1).setPort(456);
+        for (OpenTsdbClientConfiguration clientConfig : configuration.getClientConfigurations()) {
+            clientConfig.setMaxConnections(4);
+        }
+        configuration.setPrewarmConnections(3);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        when(factory.makeObject(any(SocketAddress.class))).thenAnswer(new Answer<OpenTsdbClient>() {
+            @Override
+            public OpenTsdbClient answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(200);
+                return mock(OpenTsdbClient.class);
+            }
+        });
+        when(factory.validateObject(any(OpenTsdbClient.class))).thenReturn(true);
+
+        long start = System.nanoTime();
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(6, pool.getNumIdle());
+        // six serial connects would take 1200 ms
+        assertTrue("took " + elapsed + " ms", elapsed < 1000);
+        for (OpenTsdbEndpoint endpoint : pool.getEndpoints()) {
+            assertEquals(3, endpoint.getNumIdle());
+        }
+        pool.close();
+    }
+
+    @Test
+    public void testPrewarmsEndpointThatComesBack() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config();
+        configuration.getClientConfigurations().get(0).setMaxConnections(4);
+        configuration.setEjectAfterFailures(1);
+        configuration.setPrewarmConnections(2);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(factory.makeObject(any(SocketAddress.class)))
+                .thenThrow(new IOException("Connection refused"), new IOException("Connection refused"))
+                .thenReturn(client, mock(OpenTsdbClient.class));
+        when(factory.validateObject(any(OpenTsdbClient.class))).thenReturn(true);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory);
+        OpenTsdbEndpoint endpoint = pool.getEndpoints().get(0);
+        assertTrue(endpoint.isEjected());
+
+        assertSame(client, pool.borrowObject());
+        assertFalse(endpoint.isEjected());
+        // the borrowed connection and one more opened in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while (endpoint.getOpen() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, endpoint.getNumIdle());
+        pool.returnObject(client);
+        pool.close();
+    }
+
     OpenTsdbClientPoolConfiguration config() {
         
         OpenTsdbClientConfiguration c1 = new OpenTsdbClientConfiguration();
@@ -159,6 +310,122 @@ public class OpenTsdbClientPoolTest {
         return c;
     }
     
+    @Test
+    public void testBackgroundValidationTestsIdleClients() throws Exception {
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClientPoolConfiguration config = config();
+        config.setValidationMode(OpenTsdbValidationMode.BACKGROUND);
+        config.setMinTestTime(20);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(config, factory);
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn (client);
+        when (factory.validateObject (client)).thenReturn (Boolean.TRUE);
+
+        OpenTsdbEndpoint endpoint = pool.getEndpoints().get(0);
+        GenericObjectPool<OpenTsdbClient> generic = (GenericObjectPool<OpenTsdbClient>) endpoint.pool;
+        assertTrue(generic.getTestWhileIdle());
+        assertEquals(10, generic.getTimeBetweenEvictionRunsMillis());
+        pool.returnObject(pool.borrowObject());
+
+        // the evictor validates the idle client without anyone borrowing it
+        verify(factory, timeout(5000).atLeast(2)).validateObject(client);
+        pool.close();
+    }
+
+    @Test
+    public void testHonoursMaxConnectionsPerEndpoint() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config2();
+        configuration.getClientConfigurations().get(0).setMaxConnections(3);
+        configuration.getClientConfigurations().get(1).setPort(456);
+        configuration.getClientConfigurations().get(1).setMaxConnections(2);
+        configuration.setMaxWaitTime(50);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory);
+        when (factory.makeObject(any(SocketAddress.class))).thenAnswer(new Answer<OpenTsdbClient>() {
+            @Override
+            public OpenTsdbClient answer(InvocationOnMock invocation) throws Throwable {
+                return mock(OpenTsdbClient.class);
+            }
+        });
+        when (factory.validateObject(any(OpenTsdbClient.class))).thenReturn(Boolean.TRUE);
+
+        List<OpenTsdbClient> clients = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            clients.add(pool.borrowObject());
+        }
+        assertEquals(5, pool.getNumActive());
+        assertEquals(3, pool.getEndpoints().get(0).getNumActive());
+        assertEquals(2, pool.getEndpoints().get(1).getNumActive());
+        verify(factory, times(3)).makeObject(new InetSocketAddress("localhost", 123));
+        verify(factory, times(2)).makeObject(new InetSocketAddress("localhost", 456));
+
+        try {
+            pool.borrowObject();
+            fail("all endpoints are at maxConnections");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+
+        // a returned client goes back to its own endpoint and is reused
+        OpenTsdbClient returned = clients.get(4);
+        pool.returnObject(returned);
+        assertEquals(1, returned.endpoint.getNumIdle());
+        assertSame(returned, pool.borrowObject());
+        pool.invalidateObject(returned);
+        verify(factory).destroyObject(returned);
+        assertEquals(4, pool.getNumActive());
+    }
+
+    @Test
+    public void testWaitsForReturnedClient() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config();
+        configuration.setMaxWaitTime(5000);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        final OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory);
+        final OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn(client);
+        when (factory.validateObject(client)).thenReturn(Boolean.TRUE);
+
+        assertSame(client, pool.borrowObject());
+        Thread returner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    pool.returnObject(client);
+                } catch (Exception e) {
+                    // the borrow below times out
+                }
+            }
+        };
+        returner.start();
+        assertSame(client, pool.borrowObject());
+        returner.join();
+    }
+
+    @Test
+    public void testSkipsFailingEndpoint() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config2();
+        configuration.getClientConfigurations().get(1).setPort(456);
+        configuration.setEjectAfterFailures(1);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory, new WeightedRoundRobinSelector());
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when (factory.makeObject(new InetSocketAddress("localhost", 123))).thenThrow(new IOException("Connection refused"));
+        when (factory.makeObject(new InetSocketAddress("localhost", 456))).thenReturn(client);
+        when (factory.validateObject(client)).thenReturn(Boolean.TRUE);
+
+        assertSame(client, pool.borrowObject());
+        pool.returnObject(client);
+        assertTrue(pool.getEndpoints().get(0).isEjected());
+        for (int i = 0; i < 4; ++i) {
+            assertSame(client, pool.borrowObject());
+            pool.returnObject(client);
+        }
+        verify(factory, times(1)).makeObject(new InetSocketAddress("localhost", 123));
+    }
+
     OpenTsdbClientPoolConfiguration config2() {
         
         OpenTsdbClientConfiguration c1 = new OpenTsdbClientConfiguration();
@@ -177,4 +444,79 @@ public class OpenTsdbClientPoolTest {
         
         return c;
     }
+
+    @Test
+    public void testReloadKeepsAddsAndDrainsEndpoints() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = config2();
+        configuration.getClientConfigurations().get(1).setPort(456);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        when(factory.makeObject(any(SocketAddress.class))).thenAnswer(new Answer<OpenTsdbClient>() {
+            @Override
+            public OpenTsdbClient answer(InvocationOnMock invocation) throws Throwable {
+                return mock(OpenTsdbClient.class);
+            }
+        });
+        when(factory.validateObject(any(OpenTsdbClient.class))).thenReturn(true);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory, new WeightedRoundRobinSelector());
+        OpenTsdbEndpoint kept = pool.getEndpoints().get(0);
+        OpenTsdbEndpoint removed = pool.getEndpoints().get(1);
+        OpenTsdbClient idle = pool.borrowObject();
+        OpenTsdbClient inFlight = pool.borrowObject();
+        assertSame(kept, idle.endpoint);
+        assertSame(removed, inFlight.endpoint);
+        pool.returnObject(idle);
+
+        OpenTsdbClientConfiguration c3 = new OpenTsdbClientConfiguration();
+        c3.setHost("localhost");
+        c3.setPort(789);
+        c3.setMaxConnections(3);
+        pool.reload(Lists.newArrayList(configuration.getClientConfigurations().get(0), c3));
+
+        List<OpenTsdbEndpoint> endpoints = pool.getEndpoints();
+        assertEquals(2, endpoints.size());
+        assertSame(kept, endpoints.get(0));
+        assertEquals(789, endpoints.get(1).getPort());
+        assertEquals(1, kept.getNumIdle());
+        assertEquals(4, pool.getBackpressure().getMaxLimit());
+        assertTrue(removed.isRetired());
+
+        // the in-flight client finishes, then its endpoint closes
+        pool.returnObject(inFlight);
+        verify(factory).destroyObject(inFlight);
+        assertEquals(0, removed.getOpen());
+        for (int i = 0; i < 4; ++i) {
+            OpenTsdbClient client = pool.borrowObject();
+            assertNotSame(removed, client.endpoint);
+            pool.returnObject(client);
+        }
+        pool.close();
+    }
+
+    @Test
+    public void testBorrowWaitsForReloadedEndpoints() throws Exception {
+        OpenTsdbClientPoolConfiguration configuration = new OpenTsdbClientPoolConfiguration();
+        configuration.setMaxWaitTime(5000);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        final OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(factory.makeObject(any(SocketAddress.class))).thenReturn(client);
+        when(factory.validateObject(client)).thenReturn(true);
+        final OpenTsdbClientPool pool = new OpenTsdbClientPool(configuration, factory);
+        final OpenTsdbClientPoolConfiguration added = config();
+        Thread reloader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                pool.reload(added.getClientConfigurations());
+            }
+        };
+        reloader.start();
+        assertSame(client, pool.borrowObject());
+        reloader.join();
+        pool.returnObject(client);
+        pool.close();
+    }
 }
@@ -18,11 +18,15 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -81,6 +85,20 @@ public class OpenTsdbClientTest {
         verify(output, times(1)).write(any(byte[].class), anyInt(), anyInt());
     }
 
+    @Test
+    public void testPutEncoded() throws IOException {
+        Map<String, String> tags = new HashMap<String, String>();
+        tags.put("tag-bravo", "yankee");
+        tags.put("tag-alpha", "zero");
+        final String message = OpenTsdbClient.toPutMessage("m", 10, 0.5, tags);
+        doAnswer(new BufferedWriteVerifier(message)).
+            when(output).write(any(byte[].class), anyInt(), anyInt());
+
+        client.put("m", 10, 0.5, tags);
+        client.flush();
+        verify(output, times(1)).write(any(byte[].class), eq(0), eq(message.length()));
+    }
+
     @Test
     public void testPutSortsKeys() throws IOException {
         final String expected = "put m 0 0.1 tag-alpha=zero tag-bravo=yankee tag-charlie=zulu\n";
@@ -109,6 +127,53 @@ public class OpenTsdbClientTest {
     }
 
 
+    @Test
+    public void testPutSeries() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        when(socket.getOutputStream()).thenReturn(bytes);
+        client = new OpenTsdbClient(socket, 64);
+        Map<String, String> tags = new HashMap<String, String>();
+        tags.put("tag-bravo", "yankee");
+        tags.put("tag-alpha", "zero");
+        long[] timestamps = new long[100];
+        double[] values = new double[100];
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < timestamps.length; ++i) {
+            timestamps[i] = 1000 + i;
+            values[i] = i * 0.25;
+            if (i >= 10 && i < 90) {
+                expected.append(OpenTsdbClient.toPutMessage("m", timestamps[i], values[i], tags));
+            }
+        }
+
+        client.putSeries("m", tags, timestamps, values, 10, 80);
+        client.flush();
+        assertEquals(expected.toString(), bytes.toString("UTF-8"));
+    }
+
+    @Test
+    public void testPutBatch() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        when(socket.getOutputStream()).thenReturn(bytes);
+        Map<String, String> tags = Collections.singletonMap("device", "d1");
+        SeriesBatch batch = new SeriesBatch(1, 1);
+        batch.beginSeries("a", tags);
+        batch.add(1, 1.0);
+        batch.add(2, 2.5);
+        batch.beginSeries("b", EMPTY_MAP);
+        batch.beginSeries("c", tags);
+        batch.add(3, 3.0);
+
+        client.put(batch);
+        client.flush();
+        assertEquals("put a 1 1 device=d1\nput a 2 2.5 device=d1\nput c 3 3 device=d1\n", bytes.toString("UTF-8"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testPutSeriesChecksRange() throws IOException {
+        client.putSeries("m", EMPTY_MAP, new long[10], new double[9], 0, 10);
+    }
+
     @Test
     public void testFlush() throws IOException {
         client.flush();
@@ -209,6 +274,57 @@ public class OpenTsdbClientTest {
         assertFalse(client.isAlive());
     }
     
+    @Test
+    public void testDrainParsesResponseLines() throws IOException {
+        String responses = "put: illegal argument: bad\r\nnet.opentsdb.tools 2.2.0\nBuilt on 2016\n\nput: unknown metric\npartial";
+        when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(responses.getBytes(StandardCharsets.UTF_8)));
+        ResponseListener listener = mock(ResponseListener.class);
+        client.setResponseListener(listener);
+
+        assertFalse("nothing sent yet", client.drain());
+        client.put("m", 1, 1.0, EMPTY_MAP);
+        assertTrue(client.drain());
+
+        verify(listener).onError(client, "put: illegal argument: bad");
+        verify(listener).onError(client, "put: unknown metric");
+        verifyNoMoreInteractions(listener);
+        assertEquals(Arrays.asList("put: illegal argument: bad", "put: unknown metric"), client.pollErrors());
+        assertEquals(Collections.emptyList(), client.pollErrors());
+    }
+
+    @Test
+    public void testCheckForErrorsWaitsForVersion() throws IOException {
+        String responses = "put: illegal argument: bad\nnet.opentsdb.tools 2.2.0\nBuilt on 2016\n";
+        when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(responses.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(Collections.singletonList("put: illegal argument: bad"), client.checkForErrors());
+        try {
+            client.checkForErrors();
+            fail("no version response");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSentinelsConfirmInOrder() throws IOException {
+        String responses = "put: illegal argument: bad\nnet.opentsdb.tools 2.2.0\nBuilt on 2016\n";
+        when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(responses.getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        when(socket.getOutputStream()).thenReturn(sent);
+
+        client.put("m", 1, 1.0, EMPTY_MAP);
+        assertEquals(1, client.flushWithSentinel());
+        client.put("m", 2, 1.0, EMPTY_MAP);
+        assertEquals(2, client.flushWithSentinel());
+        assertEquals("put m 1 1\nversion\nput m 2 1\nversion\n", sent.toString("UTF-8"));
+
+        // only the first sentinel was answered
+        assertEquals(1, client.pollConfirmed());
+        assertEquals(1, client.pollConfirmed());
+        assertEquals(Collections.singletonList("put: illegal argument: bad"), client.pollErrors());
+    }
+
     static class BufferedWriteVerifier implements Answer<Void> {
 
         private final String message;
@@ -0,0 +1,233 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class OpenTsdbEndpointTest {
+
+    /** Mock clients that do not expire unless stubbed to */
+    static final Answer<Object> UNEXPIRED = new Answer<Object>() {
+        @Override
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+            if (invocation.getMethod().getName().equals("getExpiresAt")) {
+                return Long.MAX_VALUE;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        }
+    };
+
+    static OpenTsdbClientFactory factory() throws Exception {
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        when (factory.makeObject(any(SocketAddress.class))).thenAnswer(new Answer<OpenTsdbClient>() {
+            @Override
+            public OpenTsdbClient answer(InvocationOnMock invocation) throws Throwable {
+                return mock(OpenTsdbClient.class, UNEXPIRED);
+            }
+        });
+        when (factory.validateObject(any(OpenTsdbClient.class))).thenReturn(Boolean.TRUE);
+        return factory;
+    }
+
+    static OpenTsdbEndpoint endpoint(OpenTsdbClientFactory factory, int port, int weight, int maxConnections) {
+        OpenTsdbClientConfiguration clientConfig = new OpenTsdbClientConfiguration();
+        clientConfig.setHost("localhost");
+        clientConfig.setPort(port);
+        clientConfig.setWeight(weight);
+        clientConfig.setMaxConnections(maxConnections);
+        OpenTsdbClientPoolConfiguration config = new OpenTsdbClientPoolConfiguration();
+        config.setEjectAfterFailures(2);
+        config.setEjectAfterErrors(3);
+        config.setEjectionTime(50);
+        return new OpenTsdbEndpoint(clientConfig, config, factory, null);
+    }
+
+    OpenTsdbClientFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        factory = factory();
+    }
+
+    @Test
+    public void testCountsWithoutLocking() throws Exception {
+        OpenTsdbEndpoint endpoint = endpoint(factory, 123, 1, 3);
+        OpenTsdbClient c1 = endpoint.tryBorrowClient();
+        OpenTsdbClient c2 = endpoint.tryBorrowClient();
+        assertSame(endpoint, c1.endpoint);
+        assertEquals(2, endpoint.getOutstanding());
+        assertEquals(2, endpoint.getOpen());
+
+        endpoint.returnClient(c1);
+        assertEquals(1, endpoint.getOutstanding());
+        assertEquals(2, endpoint.getOpen());
+        endpoint.invalidateClient(c2);
+        assertEquals(0, endpoint.getOutstanding());
+        assertEquals(1, endpoint.getOpen());
+    }
+
+    @Test
+    public void testLatencyAverage() {
+        OpenTsdbEndpoint endpoint = endpoint(factory, 123, 1, 1);
+        assertEquals(0.0, endpoint.getLatency(), 0.0);
+        endpoint.recordLatency(1000);
+        assertEquals(1000.0, endpoint.getLatency(), 0.0);
+        endpoint.recordLatency(2000);
+        assertEquals(1000.0 + OpenTsdbEndpoint.LATENCY_ALPHA * 1000, endpoint.getLatency(), 1e-9);
+    }
+
+    @Test
+    public void testEjectsAfterConnectFailuresAndProbesBack() throws Exception {
+        when (factory.makeObject(any(SocketAddress.class))).thenThrow(new IOException("Connection refused"));
+        OpenTsdbEndpoint endpoint = endpoint(factory, 123, 1, 1);
+        for (int i = 0; i < 2; ++i) {
+            try {
+                endpoint.tryBorrowClient();
+                fail("connect fails");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertTrue(endpoint.isEjected());
+        Thread.sleep(60);
+        assertFalse(endpoint.isEjected());
+
+        // one failed probe ejects it again, a success restores it
+        endpoint.recordFailure();
+        assertTrue(endpoint.isEjected());
+        endpoint.recordSuccess();
+        assertFalse(endpoint.isEjected());
+        endpoint.recordFailure();
+        assertFalse(endpoint.isEjected());
+    }
+
+    @Test
+    public void testEjectsAfterErrorBurst() {
+        OpenTsdbEndpoint endpoint = endpoint(factory, 123, 1, 1);
+        endpoint.recordError();
+        endpoint.recordError();
+        assertFalse(endpoint.isEjected());
+        endpoint.recordError();
+        assertTrue(endpoint.isEjected());
+    }
+
+    @Test
+    public void testRetiredEndpointDrains() throws Exception {
+        OpenTsdbEndpoint endpoint = endpoint(factory, 123, 1, 2);
+        OpenTsdbClient borrowed = endpoint.tryBorrowClient();
+        OpenTsdbClient idle = endpoint.tryBorrowClient();
+        endpoint.returnClient(idle);
+
+        endpoint.retire();
+        assertTrue(endpoint.isRetired());
+        verify(factory).destroyObject(idle);
+        try {
+            endpoint.tryBorrowClient();
+            fail("retired endpoints lend no clients");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        assertEquals(1, endpoint.getOutstanding());
+
+        endpoint.returnClient(borrowed);
+        verify(factory).destroyObject(borrowed);
+        assertEquals(0, endpoint.getOpen());
+        assertEquals(0, endpoint.getOutstanding());
+    }
+
+    @Test
+    public void testRecyclesBeforeExpiry() throws Exception {
+        OpenTsdbEndpoint endpoint = endpoint(factory, 123, 1, 2);
+        OpenTsdbClient old = endpoint.tryBorrowClient();
+        endpoint.returnClient(old);
+        long now = System.currentTimeMillis();
+        when (old.getExpiresAt()).thenReturn(now + 5000);
+
+        assertEquals(0, endpoint.recycle(now, 1000));
+        assertEquals(1, endpoint.recycle(now, 10000));
+        verify(old).setExpiresAt(now);
+        verify(factory, times(2)).makeObject(any(SocketAddress.class));
+        assertEquals(1, endpoint.getSuccessorCount());
+        assertEquals(2, endpoint.getOpen());
+        // a client is only replaced once
+        assertEquals(0, endpoint.recycle(now, 10000));
+
+        // the expired client fails validation and the successor takes its place without a connect
+        when (factory.validateObject(old)).thenReturn(Boolean.FALSE);
+        OpenTsdbClient successor = endpoint.tryBorrowClient();
+        assertNotSame(old, successor);
+        verify(factory).destroyObject(old);
+        verify(factory, times(2)).makeObject(any(SocketAddress.class));
+        assertEquals(0, endpoint.getSuccessorCount());
+        assertEquals(1, endpoint.getOpen());
+    }
+
+    @Test
+    public void testPacesFlushesAtEndpointAndPoolLimits() throws Exception {
+        OpenTsdbClientConfiguration clientConfig = new OpenTsdbClientConfiguration();
+        clientConfig.setHost("localhost");
+        clientConfig.setPort(123);
+        clientConfig.setMaxPointsPerSecond(1000L);
+        OpenTsdbClientPoolConfiguration config = new OpenTsdbClientPoolConfiguration();
+        config.setRateBurst(100);
+        OpenTsdbEndpoint endpoint = new OpenTsdbEndpoint(clientConfig, config, factory, null);
+
+        long start = System.nanoTime();
+        endpoint.pace(100, 1000);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+        endpoint.pace(100, 1000);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+
+        // the pool's byte limit applies as well
+        TokenBucket poolBytes = new TokenBucket(10_000, 100);
+        endpoint.setPoolBuckets(new TokenBucket(0, 100), poolBytes);
+        clientConfig.setMaxPointsPerSecond(0L);
+        endpoint.setRateLimits(clientConfig);
+        start = System.nanoTime();
+        endpoint.pace(1, 1000);
+        endpoint.pace(1, 1000);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+        assertTrue(poolBytes.getAvailable() < 100);
+    }
+
+    @Test
+    public void testResolvesAgainAfterTtl() throws Exception {
+        OpenTsdbClientConfiguration clientConfig = new OpenTsdbClientConfiguration();
+        clientConfig.setHost("localhost");
+        clientConfig.setPort(123);
+        OpenTsdbClientPoolConfiguration config = new OpenTsdbClientPoolConfiguration();
+        config.setDnsTtl(1);
+        OpenTsdbEndpoint endpoint = new OpenTsdbEndpoint(clientConfig, config, factory, null);
+        SocketAddress address = endpoint.getAddress();
+        Thread.sleep(5);
+        assertEquals(address, endpoint.resolve());
+        endpoint.tryBorrowClient();
+        verify(factory).makeObject(address);
+
+        // an unresolvable host keeps its last address
+        clientConfig.setHost("unresolvable.invalid");
+        endpoint = new OpenTsdbEndpoint(clientConfig, config, factory, null);
+        address = endpoint.getAddress();
+        Thread.sleep(5);
+        assertSame(address, endpoint.resolve());
+    }
+}
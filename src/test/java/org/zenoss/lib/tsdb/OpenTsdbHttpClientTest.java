@@ -0,0 +1,235 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class OpenTsdbHttpClientTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    /**
+     * Records requests and answers with a canned status and body; like a stock TSD
+     * it refuses chunked requests unless told otherwise
+     */
+    static class StubHandler implements HttpHandler {
+
+        final List<String> bodies = new CopyOnWriteArrayList<>();
+        final List<String> queries = new CopyOnWriteArrayList<>();
+        final List<Integer> clientPorts = new CopyOnWriteArrayList<>();
+        final List<String> encodings = new CopyOnWriteArrayList<>();
+        final List<String> lengths = new CopyOnWriteArrayList<>();
+        volatile boolean enableChunked = false;
+        volatile int status = 200;
+        volatile String response = "{\"success\":0,\"failed\":0}";
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            lengths.add(String.valueOf(exchange.getRequestHeaders().getFirst("Content-Length")));
+            if (!enableChunked && "chunked".equals(exchange.getRequestHeaders().getFirst("Transfer-Encoding"))) {
+                byte[] reply = "{\"error\":{\"code\":400,\"message\":\"Chunked request not supported\"}}"
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, reply.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(reply);
+                }
+                return;
+            }
+            String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+            encodings.add(String.valueOf(encoding));
+            queries.add(exchange.getRequestURI().getQuery());
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            InputStream in = exchange.getRequestBody();
+            if ("gzip".equals(encoding)) {
+                in = new GZIPInputStream(in);
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                body.write(buffer, 0, len);
+            }
+            bodies.add(body.toString("UTF-8"));
+
+            byte[] reply = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, reply.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(reply);
+            }
+        }
+    }
+
+    HttpServer server;
+    StubHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        handler = new StubHandler();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/put", handler);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    OpenTsdbClientPoolConfiguration config(boolean gzip, boolean details) {
+        OpenTsdbClientConfiguration c1 = new OpenTsdbClientConfiguration();
+        c1.setHost("127.0.0.1");
+        c1.setPort(server.getAddress().getPort());
+
+        OpenTsdbClientPoolConfiguration c = new OpenTsdbClientPoolConfiguration();
+        c.setClientConfiguration(Collections.singletonList(c1));
+        c.getHttpConfiguration().setGzip(gzip);
+        c.getHttpConfiguration().setDetails(details);
+        c.getClientFactoryConfiguration().setSoTimeout(5000);
+        return c;
+    }
+
+    List<Point> points(int count) {
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            Map<String, String> tags = new HashMap<>();
+            tags.put("device", "dev" + i);
+            tags.put("quote", "a\"b\\c\n");
+            points.add(new Point("metric." + i, 1000 + i, i + 0.25, tags));
+        }
+        return points;
+    }
+
+    @Test
+    public void testPostsGzippedJson() throws Exception {
+        handler.response = "{\"success\":2000,\"failed\":0}";
+        OpenTsdbHttpClient client = new OpenTsdbHttpClient(config(true, false));
+        List<Point> points = points(2000);
+        HttpPutResult result = client.put(points);
+
+        assertEquals(2000, result.getSuccess());
+        assertEquals(0, result.getFailed());
+        assertEquals("gzip", handler.encodings.get(0));
+        assertEquals("summary", handler.queries.get(0));
+
+        JsonNode array = new ObjectMapper().readTree(handler.bodies.get(0));
+        assertEquals(2000, array.size());
+        for (int i = 0; i < points.size(); ++i) {
+            JsonNode node = array.get(i);
+            Point point = points.get(i);
+            assertEquals(point.getMetric(), node.get("metric").asText());
+            assertEquals(point.getTimestamp(), node.get("timestamp").asLong());
+            assertEquals(point.getValue(), node.get("value").asDouble(), 0.0);
+            assertEquals(point.getTags().get("device"), node.get("tags").get("device").asText());
+            assertEquals(point.getTags().get("quote"), node.get("tags").get("quote").asText());
+        }
+    }
+
+    @Test
+    public void testPlainJsonUsesIntegerRule() throws Exception {
+        OpenTsdbHttpClient client = new OpenTsdbHttpClient(config(false, false));
+        client.put(Collections.singletonList(new Point("m", 1, 10.0, EMPTY_MAP)));
+        client.put(Collections.singletonList(new Point("m", 2, Double.NaN, Collections.singletonMap("k", "\u00e9\u0001"))));
+
+        assertEquals("null", handler.encodings.get(0));
+        assertEquals("[{\"metric\":\"m\",\"timestamp\":1,\"value\":10,\"tags\":{}}]", handler.bodies.get(0));
+        assertEquals("[{\"metric\":\"m\",\"timestamp\":2,\"value\":\"NaN\",\"tags\":{\"k\":\"\u00e9\\u0001\"}}]", handler.bodies.get(1));
+    }
+
+    @Test
+    public void testReusesConnection() throws Exception {
+        OpenTsdbHttpClient client = new OpenTsdbHttpClient(config(true, false));
+        for (int i = 0; i < 3; ++i) {
+            client.put(points(10));
+        }
+        assertEquals(3, handler.clientPorts.size());
+        assertEquals(handler.clientPorts.get(0), handler.clientPorts.get(1));
+        assertEquals(handler.clientPorts.get(0), handler.clientPorts.get(2));
+    }
+
+    @Test
+    public void testParsesDetails() throws Exception {
+        handler.status = 400;
+        handler.response = "{\"success\":1,\"failed\":1,\"errors\":[{\"datapoint\":"
+                + "{\"metric\":\"metric.1\",\"timestamp\":1001,\"value\":\"1.25\",\"tags\":{\"device\":\"dev1\"}},"
+                + "\"error\":\"Unable to parse value to a number\"}]}";
+        OpenTsdbHttpClient client = new OpenTsdbHttpClient(config(true, true));
+        HttpPutResult result = client.put(points(2));
+
+        assertEquals("details", handler.queries.get(0));
+        assertEquals(1, result.getSuccess());
+        assertEquals(1, result.getFailed());
+        assertEquals(1, result.getFailures().size());
+        HttpPutResult.Failure failure = result.getFailures().get(0);
+        assertEquals("Unable to parse value to a number", failure.getError());
+        assertEquals("metric.1", failure.getPoint().getMetric());
+        assertEquals(1001, failure.getPoint().getTimestamp());
+        assertEquals(1.25, failure.getPoint().getValue(), 0.0);
+        assertEquals("dev1", failure.getPoint().getTags().get("device"));
+    }
+
+    @Test
+    public void testSendsContentLengthToStockTsd() throws Exception {
+        handler.response = "{\"success\":2000,\"failed\":0}";
+        OpenTsdbHttpClient client = new OpenTsdbHttpClient(config(true, false));
+        assertEquals(2000, client.put(points(2000)).getSuccess());
+        assertEquals(2000, new ObjectMapper().readTree(handler.bodies.get(0)).size());
+        assertTrue(Integer.parseInt(handler.lengths.get(0)) > 0);
+    }
+
+    @Test
+    public void testChunkedIsOptIn() throws Exception {
+        OpenTsdbClientPoolConfiguration config = config(true, false);
+        config.getHttpConfiguration().setChunked(true);
+        OpenTsdbHttpClient client = new OpenTsdbHttpClient(config);
+        try {
+            client.put(points(10));
+            fail("stock TSD refuses chunked requests");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Chunked request not supported"));
+        }
+
+        handler.enableChunked = true;
+        handler.response = "{\"success\":10,\"failed\":0}";
+        assertEquals(10, client.put(points(10)).getSuccess());
+        assertEquals("null", handler.lengths.get(1));
+        assertEquals(10, new ObjectMapper().readTree(handler.bodies.get(0)).size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testThrowsOnServerError() throws Exception {
+        handler.status = 500;
+        handler.response = "{\"error\":{\"code\":500,\"message\":\"boom\"}}";
+        new OpenTsdbHttpClient(config(true, false)).put(points(1));
+    }
+}
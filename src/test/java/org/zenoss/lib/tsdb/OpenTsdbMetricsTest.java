@@ -0,0 +1,196 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class OpenTsdbMetricsTest {
+
+    MetricsRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new MetricsRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        registry.shutdown();
+    }
+
+    OpenTsdbClientPoolConfiguration config() {
+        OpenTsdbClientConfiguration c1 = new OpenTsdbClientConfiguration();
+        c1.setHost("localhost");
+        c1.setPort(4242);
+
+        OpenTsdbClientPoolConfiguration c = new OpenTsdbClientPoolConfiguration();
+        c.setClientConfiguration(Collections.singletonList(c1));
+        c.setMetricsScope("test");
+        c.setMaxWaitTime(10);
+        return c;
+    }
+
+    Metric metric(String type, String scope, String name) {
+        return registry.allMetrics().get(new MetricName(OpenTsdbMetrics.GROUP, type, name, scope));
+    }
+
+    @Test
+    public void testPoolMetrics() throws Exception {
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when (factory.makeObject(any(SocketAddress.class))).thenReturn(client);
+        when (factory.validateObject(client)).thenReturn(Boolean.TRUE);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(config(), factory,
+                new LeastOutstandingSelector(), registry);
+
+        assertSame(client, pool.borrowObject());
+        try {
+            pool.borrowObject();
+            fail("borrowed more than maxConnections");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        assertEquals(1, ((Gauge<?>) metric("OpenTsdbClientPool", "test", "active")).value());
+        assertEquals(1, ((Timer) metric("OpenTsdbClientPool", "test", "borrow-wait")).count());
+        assertEquals(1, ((Meter) metric("OpenTsdbClientPool", "test", "borrow-timeouts")).count());
+        assertEquals("NORMAL", ((Gauge<?>) metric("OpenTsdbClientPool", "test", "backpressure-state")).value());
+
+        pool.getEndpoints().get(0).recordFlush(10, 500, 2000000);
+        assertEquals(10, ((Meter) metric("OpenTsdbEndpoint", "test.localhost_4242", "points")).count());
+        assertEquals(500, ((Meter) metric("OpenTsdbEndpoint", "test.localhost_4242", "bytes")).count());
+        assertEquals(2.0, ((Timer) metric("OpenTsdbEndpoint", "test.localhost_4242", "flush")).max(), 0.001);
+        assertEquals(2.0, (Double) ((Gauge<?>) metric("OpenTsdbEndpoint", "test.localhost_4242", "latency")).value(), 0.001);
+        assertEquals(1, ((Gauge<?>) metric("OpenTsdbEndpoint", "test.localhost_4242", "outstanding")).value());
+
+        pool.returnObject(client);
+        pool.close();
+        assertTrue(registry.allMetrics().isEmpty());
+    }
+
+    @Test
+    public void testScopeOfLivePoolIsNotTakenOver() throws Exception {
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClientPool p1 = new OpenTsdbClientPool(config(), factory, new LeastOutstandingSelector(), registry);
+        Metric first = metric("OpenTsdbClientPool", "test", "active");
+        Metric validation = metric("OpenTsdbClientFactory", "test", "validation");
+        assertNotNull(validation);
+        try {
+            new OpenTsdbClientPool(config(), factory, new LeastOutstandingSelector(), registry);
+            fail("took over the scope of a live pool");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertSame(first, metric("OpenTsdbClientPool", "test", "active"));
+        assertSame(validation, metric("OpenTsdbClientFactory", "test", "validation"));
+        assertNotNull(metric("OpenTsdbEndpoint", "test.localhost_4242", "points"));
+
+        // once the owner is closed the scope is free again
+        p1.close();
+        OpenTsdbClientPool p2 = new OpenTsdbClientPool(config(), factory, new LeastOutstandingSelector(), registry);
+        assertNotNull(metric("OpenTsdbClientPool", "test", "active"));
+        p2.close();
+        assertTrue(registry.allMetrics().isEmpty());
+    }
+
+    @Test
+    public void testPoolsWithoutScopeGetTheirOwn() throws Exception {
+        OpenTsdbClientPoolConfiguration config = config();
+        config.setMetricsScope(null);
+        OpenTsdbClientFactory factory = mock(OpenTsdbClientFactory.class);
+        OpenTsdbClientPool p1 = new OpenTsdbClientPool(config, factory, new LeastOutstandingSelector(), registry);
+        Metric validation = metric("OpenTsdbClientFactory", "localhost_4242", "validation");
+        OpenTsdbClientPool p2 = new OpenTsdbClientPool(config, factory, new LeastOutstandingSelector(), registry);
+        assertEquals("localhost_4242", p1.getMetrics().getScope());
+        assertEquals("localhost_4242-2", p2.getMetrics().getScope());
+        assertNotNull(metric("OpenTsdbClientPool", "localhost_4242", "active"));
+        assertNotNull(metric("OpenTsdbClientPool", "localhost_4242-2", "active"));
+        assertNotNull(metric("OpenTsdbEndpoint", "localhost_4242-2.localhost_4242", "points"));
+        assertSame(validation, metric("OpenTsdbClientFactory", "localhost_4242", "validation"));
+        assertNotNull(metric("OpenTsdbClientPool", "localhost_4242-2", "borrow-wait"));
+        assertNotNull(metric("OpenTsdbClientFactory", "localhost_4242-2", "validation"));
+
+        p1.close();
+        assertNull(metric("OpenTsdbClientPool", "localhost_4242", "active"));
+        assertNull(metric("OpenTsdbClientFactory", "localhost_4242", "validation"));
+        assertNotNull(metric("OpenTsdbClientPool", "localhost_4242-2", "active"));
+        assertNotNull(metric("OpenTsdbClientFactory", "localhost_4242-2", "validation"));
+        p2.close();
+        assertTrue(registry.allMetrics().isEmpty());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        OpenTsdbClientPoolConfiguration config = config();
+        config.setMetrics(false);
+        OpenTsdbClientPool pool = new OpenTsdbClientPool(config, mock(OpenTsdbClientFactory.class),
+                new LeastOutstandingSelector(), registry);
+        assertNull(pool.getMetrics());
+        assertTrue(registry.allMetrics().isEmpty());
+    }
+
+    @Test
+    public void testFactoryMetrics() throws Exception {
+        Socket socket = mock(Socket.class);
+        SocketFactory socketFactory = mock(SocketFactory.class);
+        when (socketFactory.newSocket(any(SocketAddress.class)))
+                .thenThrow(new ConnectException("refused"))
+                .thenReturn(socket);
+        when (socket.getOutputStream()).thenReturn(mock(OutputStream.class));
+        String response = "put: HBase error: 1000 RPCs waiting on \"tsdb,,1398325180794.54ad8182f2f2a0a1cc6d39ba26ca7f64.\" to come back online\n"
+                + "put: illegal argument: invalid value\n"
+                + "net.opentsdb built at revision a000000\n";
+        when (socket.getInputStream()).thenReturn(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
+
+        OpenTsdbClientPoolConfiguration config = config();
+        OpenTsdbClientFactory factory = new OpenTsdbClientFactory(config, socketFactory);
+        OpenTsdbMetrics metrics = new OpenTsdbMetrics(registry, "test");
+        factory.setMetrics(metrics);
+
+        try {
+            factory.makeObject();
+            fail("connected");
+        } catch (IOException e) {
+            // expected
+        }
+        OpenTsdbClient client = factory.makeObject();
+        assertFalse(factory.validateObject(client));
+        factory.destroyObject(client);
+        factory.close();
+
+        assertEquals(1, metrics.connectErrors.count());
+        assertEquals(1, metrics.connectionsOpened.count());
+        assertEquals(1, metrics.connectionsClosed.count());
+        assertEquals(1, metrics.collisionErrors.count());
+        assertEquals(1, metrics.responseErrors.count());
+        assertEquals(1, metrics.validation.count());
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PutEncoderTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    static void assertSameAsPutMessage(String name, long timestamp, double value, Map<String, String> tags) {
+        byte[] expected = OpenTsdbClient.toPutMessage(name, timestamp, value, tags).getBytes(StandardCharsets.UTF_8);
+        PutEncoder encoder = new PutEncoder(16);
+        assertEquals(expected.length, encoder.encode(name, timestamp, value, tags));
+        assertArrayEquals(expected, encoder.toByteArray());
+    }
+
+    @Test
+    public void testEncodeMatchesPutMessage() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("tag-charlie", "zulu");
+        tags.put("tag-alpha", "zero");
+        tags.put("tag-bravo", "yankee");
+        assertSameAsPutMessage("m", 0, 0.1, tags);
+        assertSameAsPutMessage("m", 0, 10.0, tags);
+        assertSameAsPutMessage("m", 0, 0.0, EMPTY_MAP);
+        assertSameAsPutMessage("some.metric", 1398325180L, -12.5, tags);
+    }
+
+    @Test
+    public void testEncodeValues() {
+        double[] values = {
+            0.0, -0.0, 1.0, -1.0, 0.5, 1e-5, 1e-3, 1e7, 123456789.125, 1e300, -1e300,
+            Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN,
+            Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Long.MAX_VALUE, Long.MIN_VALUE, 9.007199254740993E15,
+            2 * Double.MIN_VALUE, 20 * Double.MIN_VALUE, 32 * Double.MIN_VALUE, 2048 * Double.MIN_VALUE
+        };
+        for (double value : values) {
+            assertSameAsPutMessage("m", 0, value, EMPTY_MAP);
+        }
+        Random random = new Random(24550);
+        for (int i = 0; i < 10000; ++i) {
+            assertSameAsPutMessage("m", random.nextLong(), Double.longBitsToDouble(random.nextLong()), EMPTY_MAP);
+            assertSameAsPutMessage("m", random.nextInt(), random.nextInt() / 1000.0, EMPTY_MAP);
+        }
+    }
+
+    @Test
+    public void testEncodeTimestamps() {
+        long[] timestamps = {0, 1, -1, 9, 10, 99, 100, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1, 1000000000000000000L};
+        for (long timestamp : timestamps) {
+            assertSameAsPutMessage("m", timestamp, 1.0, EMPTY_MAP);
+        }
+    }
+
+    @Test
+    public void testEncodeNonAscii() {
+        Map<String, String> tags = new LinkedHashMap<>();
+        tags.put("z\u00e9", "caf\u00e9");
+        tags.put("device", "\u6771\u4eac");
+        tags.put("emoji", "\ud83d\ude00");
+        tags.put("broken", "a\ud83db\ude00c");
+        assertSameAsPutMessage("m\u00e9trique", 1, 2.5, tags);
+    }
+
+    @Test
+    public void testEncodeNulls() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("key", null);
+        assertSameAsPutMessage(null, 1, 2.5, tags);
+    }
+
+    @Test
+    public void testEncodeManyTags() {
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 0; i < 40; ++i) {
+            tags.put("tag" + (i * 7919 % 40), "value" + i);
+        }
+        assertSameAsPutMessage("m", 1, 2.5, tags);
+        assertSameAsPutMessage("m", 1, 2.5, Collections.singletonMap("k", "v"));
+    }
+
+    @Test
+    public void testEncodeAppendsAndResets() throws Exception {
+        PutEncoder encoder = new PutEncoder();
+        encoder.encode("a", 1, 1.0, EMPTY_MAP);
+        encoder.encode("b", 2, 2.5, EMPTY_MAP);
+        String expected = "put a 1 1\nput b 2 2.5\n";
+        assertEquals(expected, new String(encoder.toByteArray(), StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.writeTo(out);
+        assertEquals(expected, out.toString("UTF-8"));
+
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        encoder.writeTo(dst);
+        assertEquals(expected.length(), dst.position());
+
+        encoder.reset();
+        assertEquals(0, encoder.size());
+        encoder.encode("c", 3, 3.0, EMPTY_MAP);
+        assertEquals("put c 3 3\n", new String(encoder.array(), 0, encoder.size(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeSeriesMatchesPutMessage() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("tag-charlie", "zulu");
+        tags.put("z\u00e9", "\u6771\u4eac");
+        SeriesCache[] caches = {null, new SeriesCache(100, 1 << 20)};
+        for (SeriesCache cache : caches) {
+            PutEncoder encoder = new PutEncoder(16, cache);
+            encoder.encode("before", 0, 0.0, EMPTY_MAP);
+            StringBuilder expected = new StringBuilder(OpenTsdbClient.toPutMessage("before", 0, 0.0, EMPTY_MAP));
+            for (int pass = 0; pass < 2; ++pass) {
+                encoder.beginSeries("m\u00e9trique", tags);
+                encoder.beginSeries("some.metric", tags);
+                for (int i = 0; i < 100; ++i) {
+                    String message = OpenTsdbClient.toPutMessage("some.metric", 1000 + i, i / 3.0, tags);
+                    expected.append(message);
+                    assertEquals(message.getBytes(StandardCharsets.UTF_8).length, encoder.encodeSample(1000 + i, i / 3.0));
+                }
+            }
+            assertArrayEquals(expected.toString().getBytes(StandardCharsets.UTF_8), encoder.toByteArray());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEncodeSampleWithoutSeries() {
+        new PutEncoder().encodeSample(1, 1.0);
+    }
+}
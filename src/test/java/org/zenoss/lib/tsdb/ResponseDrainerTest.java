@@ -0,0 +1,85 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ResponseDrainerTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    NioOpenTsdbClientTest.StubTsdb tsdb;
+    ResponseDrainer drainer;
+    SocketFactory socketFactory;
+
+    @Before
+    public void setUp() throws Exception {
+        tsdb = new NioOpenTsdbClientTest.StubTsdb();
+        drainer = new ResponseDrainer("test-drainer", 1);
+        SocketFactoryConfiguration configuration = new SocketFactoryConfiguration();
+        configuration.setSoTimeout(5000);
+        socketFactory = new SocketFactory(configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        drainer.close();
+        tsdb.close();
+    }
+
+    @Test
+    public void testReportsErrorsAsTheyArrive() throws Exception {
+        tsdb.putResponse = "put: illegal argument: bad\n";
+        OpenTsdbClient client = new OpenTsdbClient(socketFactory.newSocket(tsdb.address()), 1024);
+        final BlockingQueue<String> errors = new LinkedBlockingQueue<>();
+        client.setResponseListener(new ResponseListener() {
+            @Override
+            public void onError(OpenTsdbClient client, String error) {
+                errors.add(error);
+            }
+        });
+        drainer.register(client);
+
+        for (int i = 0; i < 3; ++i) {
+            client.put("m", i, 1.0, EMPTY_MAP);
+            client.flush();
+            assertEquals("put: illegal argument: bad", errors.poll(5, TimeUnit.SECONDS));
+        }
+        // still answers round-trips with the drainer reading
+        tsdb.putResponse = null;
+        assertEquals(3, client.checkForErrors().size());
+        assertTrue(client.checkForErrors().isEmpty());
+        client.close();
+    }
+
+    @Test
+    public void testDropsClosedClients() throws Exception {
+        OpenTsdbClient client = new OpenTsdbClient(socketFactory.newSocket(tsdb.address()), 1024);
+        drainer.register(client);
+        assertEquals(1, drainer.size());
+        client.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (drainer.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, drainer.size());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SeriesBatchTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    @Test
+    public void testSeriesRanges() {
+        Map<String, String> tags = Collections.singletonMap("device", "d1");
+        SeriesBatch batch = new SeriesBatch(1, 1);
+        assertEquals(0, batch.beginSeries("a", tags));
+        for (int i = 0; i < 5; ++i) {
+            batch.add(i, i * 2.0);
+        }
+        assertEquals(1, batch.beginSeries("empty", EMPTY_MAP));
+        assertEquals(2, batch.addSeries("c", EMPTY_MAP, new long[]{7, 8, 9}, new double[]{0.7, 0.8, 0.9}, 1, 2));
+
+        assertEquals(3, batch.getSeriesCount());
+        assertEquals(7, batch.size());
+        assertEquals("a", batch.getMetric(0));
+        assertSame(tags, batch.getTags(0));
+        assertEquals(0, batch.getOffset(0));
+        assertEquals(5, batch.getLength(0));
+        assertEquals(5, batch.getOffset(1));
+        assertEquals(0, batch.getLength(1));
+        assertEquals(5, batch.getOffset(2));
+        assertEquals(2, batch.getLength(2));
+        assertEquals(4, batch.getTimestamps()[4]);
+        assertEquals(8.0, batch.getValues()[4], 0.0);
+        assertEquals(9, batch.getTimestamps()[6]);
+        assertEquals(0.9, batch.getValues()[6], 0.0);
+    }
+
+    @Test
+    public void testClearKeepsArrays() {
+        SeriesBatch batch = new SeriesBatch(4, 100);
+        long[] timestamps = batch.getTimestamps();
+        batch.addSeries("a", EMPTY_MAP, new long[50], new double[50], 0, 50);
+        batch.clear();
+        assertEquals(0, batch.getSeriesCount());
+        assertEquals(0, batch.size());
+        batch.addSeries("b", EMPTY_MAP, new long[100], new double[100], 0, 100);
+        assertSame(timestamps, batch.getTimestamps());
+        assertEquals(100, batch.getLength(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAddWithoutSeries() {
+        new SeriesBatch().add(1, 1.0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testAddChecksRange() {
+        SeriesBatch batch = new SeriesBatch();
+        batch.addSeries("a", EMPTY_MAP, new long[3], new double[3], 2, 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testChecksSeries() {
+        SeriesBatch batch = new SeriesBatch();
+        batch.beginSeries("a", EMPTY_MAP);
+        batch.getLength(1);
+    }
+}
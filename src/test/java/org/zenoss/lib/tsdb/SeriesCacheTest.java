@@ -0,0 +1,152 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class SeriesCacheTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    static void assertSameAsPutMessage(PutEncoder encoder, String name, long timestamp, double value, Map<String, String> tags) {
+        byte[] expected = OpenTsdbClient.toPutMessage(name, timestamp, value, tags).getBytes(StandardCharsets.UTF_8);
+        encoder.reset();
+        assertEquals(expected.length, encoder.encode(name, timestamp, value, tags));
+        assertArrayEquals(expected, encoder.toByteArray());
+    }
+
+    @Test
+    public void testHitsMatchPutMessage() {
+        SeriesCache cache = new SeriesCache(1000, 1 << 20);
+        PutEncoder encoder = new PutEncoder(16, cache);
+        Map<String, String> tags = new HashMap<>();
+        tags.put("tag-charlie", "zulu");
+        tags.put("tag-alpha", "zero");
+        tags.put("z\u00e9", "\u6771\u4eac\ud83d\ude00");
+
+        assertSameAsPutMessage(encoder, "some.metric", 1398325180L, -12.5, tags);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        assertSameAsPutMessage(encoder, "some.metric", 1398325190L, 10.0, tags);
+        assertSameAsPutMessage(encoder, "some.metric", 1398325200L, Double.NaN, new TreeMap<>(tags));
+        assertSameAsPutMessage(encoder, "some.metric", 0, 0.1, EMPTY_MAP);
+        assertSameAsPutMessage(encoder, "some.metric", 1, 0.2, EMPTY_MAP);
+        assertEquals(3, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testRandomSeriesMatchPutMessage() {
+        SeriesCache cache = new SeriesCache(64, 1 << 20);
+        PutEncoder encoder = new PutEncoder(16, cache);
+        Random random = new Random(24551);
+        for (int i = 0; i < 20000; ++i) {
+            Map<String, String> tags = (random.nextBoolean()) ? new HashMap<String, String>() : new LinkedHashMap<String, String>();
+            int count = random.nextInt(4);
+            for (int t = 0; t < count; ++t) {
+                tags.put("k" + random.nextInt(3), (random.nextInt(10) == 0) ? "\u00e9" + t : "v" + random.nextInt(3));
+            }
+            String metric = "metric." + random.nextInt(20);
+            assertSameAsPutMessage(encoder, metric, random.nextLong(), Double.longBitsToDouble(random.nextLong()), tags);
+        }
+        assertTrue(cache.getHitCount() > 0);
+        assertTrue(cache.getEvictionCount() > 0);
+        assertEquals(20000, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void testReusedMapDoesNotChangeCachedSeries() {
+        SeriesCache cache = new SeriesCache(1000, 1 << 20);
+        PutEncoder encoder = new PutEncoder(16, cache);
+        Map<String, String> tags = new HashMap<>();
+        tags.put("device", "a");
+        assertSameAsPutMessage(encoder, "m", 1, 1.0, tags);
+        tags.put("device", "b");
+        assertSameAsPutMessage(encoder, "m", 2, 2.0, tags);
+        tags.put("device", "a");
+        assertSameAsPutMessage(encoder, "m", 3, 3.0, tags);
+        tags.put("other", "x");
+        assertSameAsPutMessage(encoder, "m", 4, 4.0, tags);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        SeriesCache cache = new SeriesCache(SeriesCache.STRIPES, 1 << 20);
+        PutEncoder encoder = new PutEncoder(16, cache);
+        // find two more series landing in the stripe of the first one
+        Map<String, String> first = Collections.singletonMap("device", "0");
+        SeriesCache.Key key = SeriesCache.Key.copyOf("m", first);
+        int stripe = stripeOf(key.hashCode());
+        Map<String, String> second = null;
+        Map<String, String> third = null;
+        for (int i = 1; third == null; ++i) {
+            Map<String, String> tags = Collections.singletonMap("device", Integer.toString(i));
+            if (stripeOf(SeriesCache.Key.copyOf("m", tags).hashCode()) == stripe) {
+                if (second == null) {
+                    second = tags;
+                } else {
+                    third = tags;
+                }
+            }
+        }
+
+        encoder.encode("m", 1, 1.0, first);
+        encoder.encode("m", 1, 1.0, second);
+        assertEquals(1, cache.getEvictionCount());
+        encoder.encode("m", 1, 1.0, second);
+        assertEquals(1, cache.getHitCount());
+        encoder.encode("m", 1, 1.0, third);
+        assertEquals(2, cache.getEvictionCount());
+        encoder.encode("m", 1, 1.0, third);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testByteBudget() {
+        SeriesCache cache = new SeriesCache(100000, SeriesCache.STRIPES * (SeriesCache.ENTRY_OVERHEAD + 64L));
+        PutEncoder encoder = new PutEncoder(16, cache);
+        for (int i = 0; i < 1000; ++i) {
+            encoder.encode("metric", i, i, Collections.singletonMap("device", "device-" + i));
+        }
+        assertTrue(cache.getBytes() <= SeriesCache.STRIPES * (SeriesCache.ENTRY_OVERHEAD + 64L));
+        assertTrue(cache.size() <= SeriesCache.STRIPES);
+        assertEquals(1000 - cache.size(), cache.getEvictionCount());
+    }
+
+    @Test
+    public void testFactorySharesCache() throws Exception {
+        OpenTsdbClientPoolConfiguration config = new OpenTsdbClientPoolConfiguration();
+        assertNull(new OpenTsdbClientFactory(config).getSeriesCache());
+        config.setSeriesCacheSize(1000);
+        assertNotNull(new OpenTsdbClientFactory(config).getSeriesCache());
+    }
+
+    private static int stripeOf(int hash) {
+        int h = hash ^ (hash >>> 16);
+        return h & (SeriesCache.STRIPES - 1);
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class SpillJournalTest {
+
+    static final int SEGMENT_SIZE = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    SpillJournal journal(int maxSegments) throws Exception {
+        return new SpillJournal(folder.getRoot(), SEGMENT_SIZE, maxSegments);
+    }
+
+    static byte[] record(int i) {
+        return ("put m " + i + " 1 host=a\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void append(SpillJournal journal, int i) throws Exception {
+        byte[] data = record(i);
+        assertTrue(journal.append(data, 0, data.length, 1));
+    }
+
+    static void assertNext(SpillJournal journal, int i) {
+        SpillJournal.Entry entry = journal.peek();
+        assertNotNull(entry);
+        assertEquals(new String(record(i), StandardCharsets.UTF_8), new String(entry.getData(), StandardCharsets.UTF_8));
+        assertEquals(1, entry.getPoints());
+        journal.commit(entry);
+    }
+
+    @Test
+    public void testReplaysInOrder() throws Exception {
+        SpillJournal journal = journal(10);
+        for (int i = 0; i < 20; ++i) {
+            append(journal, i);
+        }
+        assertEquals(20, journal.getPendingPoints());
+        assertTrue(journal.getSegmentCount() > 1);
+
+        SpillJournal.Entry entry = journal.peek();
+        assertEquals(entry.position, journal.peek().position);
+        for (int i = 0; i < 20; ++i) {
+            assertNext(journal, i);
+        }
+        assertNull(journal.peek());
+        assertEquals(0, journal.getPendingPoints());
+        assertEquals(0, journal.getSegmentCount());
+        assertEquals(0, folder.getRoot().listFiles().length);
+        journal.close();
+    }
+
+    @Test
+    public void testRecoversAfterReopen() throws Exception {
+        SpillJournal journal = journal(10);
+        for (int i = 0; i < 20; ++i) {
+            append(journal, i);
+        }
+        for (int i = 0; i < 5; ++i) {
+            assertNext(journal, i);
+        }
+        journal.close();
+
+        journal = journal(10);
+        assertEquals(15, journal.getPendingPoints());
+        append(journal, 20);
+        for (int i = 5; i <= 20; ++i) {
+            assertNext(journal, i);
+        }
+        assertNull(journal.peek());
+        journal.close();
+    }
+
+    @Test
+    public void testEvictsOldestSegment() throws Exception {
+        SpillJournal journal = journal(2);
+        for (int i = 0; i < 100; ++i) {
+            append(journal, i);
+        }
+        assertEquals(2, journal.getSegmentCount());
+        assertEquals(2L * SEGMENT_SIZE, journal.getSize());
+        assertEquals(100, journal.getPendingPoints() + journal.getEvictedPoints());
+        assertTrue(journal.getEvictedPoints() > 0);
+
+        // the newest points survive
+        int first = (int) journal.getEvictedPoints();
+        for (int i = first; i < 100; ++i) {
+            assertNext(journal, i);
+        }
+        journal.close();
+    }
+
+    @Test
+    public void testRejectsRecordLargerThanSegment() throws Exception {
+        SpillJournal journal = journal(2);
+        assertFalse(journal.append(new byte[SEGMENT_SIZE], 0, SEGMENT_SIZE, 1));
+        assertNull(journal.peek());
+        journal.close();
+    }
+
+    @Test
+    public void testIgnoresTornRecord() throws Exception {
+        SpillJournal journal = journal(10);
+        append(journal, 0);
+        append(journal, 1);
+        journal.close();
+
+        File segment = folder.getRoot().listFiles()[0];
+        int second = SpillJournal.HEADER_SIZE + SpillJournal.RECORD_HEADER_SIZE + record(0).length;
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            // corrupt the payload of the second record
+            raf.seek(second + SpillJournal.RECORD_HEADER_SIZE);
+            raf.write('X');
+        }
+
+        journal = journal(10);
+        assertEquals(1, journal.getPendingPoints());
+        assertNext(journal, 0);
+        assertNull(journal.peek());
+        journal.close();
+    }
+
+    @Test
+    public void testReplaysFromStartWhenHeaderIsDamaged() throws Exception {
+        SpillJournal journal = journal(10);
+        append(journal, 0);
+        append(journal, 1);
+        assertNext(journal, 0);
+        journal.close();
+
+        File segment = folder.getRoot().listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(20);
+            raf.writeInt(0);
+        }
+
+        journal = journal(10);
+        assertEquals(2, journal.getPendingPoints());
+        assertNext(journal, 0);
+        assertNext(journal, 1);
+        journal.close();
+    }
+
+    @Test
+    public void testDiscardsForeignFiles() throws Exception {
+        File junk = new File(folder.getRoot(), "spill-7.seg");
+        try (RandomAccessFile raf = new RandomAccessFile(junk, "rw")) {
+            raf.write(new byte[SEGMENT_SIZE]);
+        }
+        File other = new File(folder.getRoot(), "notes.txt");
+        assertTrue(other.createNewFile());
+
+        SpillJournal journal = journal(10);
+        assertFalse(junk.exists());
+        assertTrue(other.exists());
+        append(journal, 0);
+        assertTrue(new File(folder.getRoot(), "spill-8.seg").exists());
+        journal.close();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class StripedClientPoolTest {
+
+    /**
+     * Makes mock clients that are valid until marked invalid
+     */
+    static class Factory extends BasePoolableObjectFactory<OpenTsdbClient> {
+
+        @Override
+        public OpenTsdbClient makeObject() {
+            made.incrementAndGet();
+            return mock(OpenTsdbClient.class);
+        }
+
+        @Override
+        public boolean validateObject(OpenTsdbClient client) {
+            validated.incrementAndGet();
+            return !invalid.contains(client);
+        }
+
+        @Override
+        public void destroyObject(OpenTsdbClient client) {
+            destroyed.incrementAndGet();
+        }
+
+        final Set<OpenTsdbClient> invalid = Collections.newSetFromMap(new ConcurrentHashMap<OpenTsdbClient, Boolean>());
+        final AtomicInteger made = new AtomicInteger();
+        final AtomicInteger validated = new AtomicInteger();
+        final AtomicInteger destroyed = new AtomicInteger();
+    }
+
+    @Test
+    public void testThreadKeepsItsClient() throws Exception {
+        Factory factory = new Factory();
+        StripedClientPool pool = new StripedClientPool(factory, 4, 4, 0, false, 1000);
+        OpenTsdbClient client = pool.borrowObject();
+        assertEquals(1, pool.getNumActive());
+        pool.returnObject(client);
+        assertEquals(0, pool.getNumActive());
+        assertEquals(1, pool.getNumIdle());
+        for (int i = 0; i < 10; ++i) {
+            OpenTsdbClient again = pool.borrowObject();
+            assertSame(client, again);
+            pool.returnObject(again);
+        }
+        assertEquals(1, factory.made.get());
+        assertEquals(11, factory.validated.get());
+        pool.close();
+        assertEquals(1, factory.destroyed.get());
+    }
+
+    @Test
+    public void testReturnBeyondMaxIdleDestroys() throws Exception {
+        Factory factory = new Factory();
+        StripedClientPool pool = new StripedClientPool(factory, 4, 2, 0, false, 1000);
+        OpenTsdbClient[] clients = new OpenTsdbClient[4];
+        for (int i = 0; i < clients.length; ++i) {
+            clients[i] = pool.borrowObject();
+        }
+        for (OpenTsdbClient client : clients) {
+            pool.returnObject(client);
+        }
+        assertEquals(2, pool.getNumIdle());
+        assertEquals(2, factory.destroyed.get());
+        pool.close();
+    }
+
+    @Test
+    public void testInvalidIdleClientIsReplaced() throws Exception {
+        Factory factory = new Factory();
+        StripedClientPool pool = new StripedClientPool(factory, 2, 2, 0, false, 1000);
+        OpenTsdbClient client = pool.borrowObject();
+        pool.returnObject(client);
+        factory.invalid.add(client);
+
+        OpenTsdbClient replacement = pool.borrowObject();
+        assertNotSame(client, replacement);
+        assertEquals(1, factory.destroyed.get());
+        pool.invalidateObject(replacement);
+        assertEquals(0, pool.getNumActive());
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(2, factory.destroyed.get());
+        pool.close();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void testInvalidNewClientFails() throws Exception {
+        Factory factory = new Factory() {
+            @Override
+            public boolean validateObject(OpenTsdbClient client) {
+                return false;
+            }
+        };
+        new StripedClientPool(factory, 2, 2, 0, false, 1000).borrowObject();
+    }
+
+    @Test
+    public void testEvictorValidatesAndRefills() throws Exception {
+        Factory factory = new Factory();
+        StripedClientPool pool = new StripedClientPool(factory, 4, 4, 2, true, 60_000);
+        pool.evict();
+        assertEquals(2, pool.getNumIdle());
+        OpenTsdbClient client = pool.borrowObject();
+        pool.returnObject(client);
+        factory.invalid.add(client);
+        pool.evict();
+        assertEquals(2, pool.getNumIdle());
+        assertEquals(1, factory.destroyed.get());
+        assertEquals(3, factory.made.get());
+        pool.close();
+    }
+
+    @Test
+    public void testEvictorDoesNotOpenBeyondSlots() throws Exception {
+        Factory factory = new Factory();
+        StripedClientPool pool = new StripedClientPool(factory, 4, 4, 2, false, 60_000);
+        OpenTsdbClient[] clients = new OpenTsdbClient[4];
+        for (int i = 0; i < clients.length; ++i) {
+            clients[i] = pool.borrowObject();
+        }
+        pool.evict();
+        assertEquals(0, pool.getNumIdle());
+        assertEquals(4, factory.made.get());
+
+        pool.returnObject(clients[0]);
+        pool.returnObject(clients[1]);
+        pool.returnObject(clients[2]);
+        pool.evict();
+        assertEquals(3, pool.getNumIdle());
+        assertEquals(4, factory.made.get());
+
+        // three borrowed and one idle client take every slot: none to open
+        pool.returnObject(clients[3]);
+        pool.borrowObject();
+        pool.borrowObject();
+        pool.borrowObject();
+        pool.evict();
+        assertEquals(1, pool.getNumIdle());
+        assertEquals(4, factory.made.get());
+        pool.close();
+    }
+
+    @Test
+    public void testClientsAreNeverShared() throws Exception {
+        final Factory factory = new Factory();
+        final StripedClientPool pool = new StripedClientPool(factory, 4, 4, 0, false, 1000);
+        // the endpoint's permits bound the borrowed clients to the slots
+        final Semaphore permits = new Semaphore(4);
+        final Set<OpenTsdbClient> borrowed = Collections.newSetFromMap(new ConcurrentHashMap<OpenTsdbClient, Boolean>());
+        final AtomicBoolean shared = new AtomicBoolean();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; ++t) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10_000; ++i) {
+                            permits.acquire();
+                            OpenTsdbClient client = pool.borrowObject();
+                            if (!borrowed.add(client)) {
+                                shared.set(true);
+                            }
+                            borrowed.remove(client);
+                            pool.returnObject(client);
+                            permits.release();
+                        }
+                    } catch (Exception e) {
+                        shared.set(true);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(shared.get());
+        assertEquals(0, pool.getNumActive());
+        // a borrow racing a return may make a client the return then destroys
+        assertTrue(pool.getNumIdle() <= 4);
+        assertEquals(factory.made.get() - factory.destroyed.get(), pool.getNumIdle());
+        pool.close();
+    }
+}
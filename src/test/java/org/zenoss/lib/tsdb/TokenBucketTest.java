@@ -0,0 +1,82 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testUnlimitedNeverWaits() {
+        TokenBucket bucket = new TokenBucket(0, 100);
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+        assertEquals(Long.MAX_VALUE, bucket.getAvailable());
+        assertEquals(1.0, bucket.getFill(), 0.0);
+    }
+
+    @Test
+    public void testBurstIsFreeAndTheRestIsPaced() {
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        assertEquals(100, bucket.getBurst());
+        assertEquals(1.0, bucket.getFill(), 0.01);
+
+        assertEquals(0, bucket.reserve(100));
+        assertTrue(bucket.getAvailable() <= 1);
+        // a request beyond the burst waits for its tokens at the rate
+        long wait = bucket.reserve(200);
+        assertTrue("waited " + wait, wait > TimeUnit.MILLISECONDS.toNanos(190) && wait <= TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(bucket.getAvailable() < -190);
+        assertTrue(bucket.getFill() < -1.9);
+    }
+
+    @Test
+    public void testRateChangeAppliesToNextReservation() {
+        TokenBucket bucket = new TokenBucket(1000, 1);
+        bucket.setRate(0);
+        assertEquals(0, bucket.reserve(1_000_000));
+        bucket.setRate(1000);
+        long wait = bucket.reserve(1000);
+        assertTrue("waited " + wait, wait > TimeUnit.MILLISECONDS.toNanos(990));
+    }
+
+    @Test
+    public void testConcurrentReservationsAddUp() throws Exception {
+        final TokenBucket bucket = new TokenBucket(1000, 1);
+        final AtomicLong longest = new AtomicLong();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int n = 0; n < 250; ++n) {
+                        long wait = bucket.reserve(1);
+                        long max;
+                        while ((max = longest.get()) < wait && !longest.compareAndSet(max, wait)) {
+                            // retry
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // every token was reserved exactly once, the last one a second ahead
+        long millis = TimeUnit.NANOSECONDS.toMillis(longest.get());
+        assertTrue("longest wait " + millis, millis > 900 && millis <= 1000);
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * ****************************************************************************
+ *
+ *  Copyright (C) Zenoss, Inc. 2014, all rights reserved.
+ *
+ *  This content is made available according to terms specified in
+ *  License.zenoss distributed with this file.
+ *
+ * ***************************************************************************
+ */
+package org.zenoss.lib.tsdb;
+
+import org.apache.commons.pool.ObjectPool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TsdbWriterTest {
+
+    static final Map<String, String> EMPTY_MAP = Collections.emptyMap();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    TsdbWriterConfiguration config(int batchSize, long lingerTime) {
+        TsdbWriterConfiguration c = new TsdbWriterConfiguration();
+        c.setBatchSize(batchSize);
+        c.setLingerTime(lingerTime);
+        c.setWorkers(1);
+        c.setQueueSize(1000);
+        return c;
+    }
+
+    @SuppressWarnings("unchecked")
+    ObjectPool<OpenTsdbClient> pool(OpenTsdbClient... clients) throws Exception {
+        ObjectPool<OpenTsdbClient> pool = mock(ObjectPool.class);
+        if (clients.length > 0) {
+            OpenTsdbClient[] rest = new OpenTsdbClient[clients.length - 1];
+            System.arraycopy(clients, 1, rest, 0, rest.length);
+            when(pool.borrowObject()).thenReturn(clients[0], rest);
+        }
+        return pool;
+    }
+
+    @Test
+    public void testWritesBatchesToOneClient() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        TsdbWriter writer = new TsdbWriter(config(10, 60_000), pool);
+        for (int i = 0; i < 30; ++i) {
+            assertTrue(writer.write("m", i, 1.0, EMPTY_MAP));
+        }
+        writer.close();
+
+        for (int i = 0; i < 30; ++i) {
+            verify(client).put("m", i, 1.0, EMPTY_MAP);
+        }
+        verify(client, times(3)).flush();
+        verify(pool, times(3)).borrowObject();
+        verify(pool, times(3)).returnObject(client);
+        assertEquals(30, writer.getWrittenCount());
+        assertEquals(0, writer.getFailedCount());
+    }
+
+    @Test
+    public void testConfirmsBatchesWithSentinels() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(client.flushWithSentinel()).thenReturn(1L, 2L, 3L);
+        when(client.pollConfirmed()).thenReturn(3L);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        TsdbWriterConfiguration config = config(10, 60_000);
+        config.setConfirmWrites(true);
+        TsdbWriter writer = new TsdbWriter(config, pool);
+        for (int i = 0; i < 30; ++i) {
+            assertTrue(writer.write("m", i, 1.0, EMPTY_MAP));
+        }
+        writer.close();
+
+        verify(client, times(3)).flushWithSentinel();
+        verify(client, never()).flush();
+        assertEquals(30, writer.getWrittenCount());
+        assertEquals(30, writer.getConfirmedCount());
+        assertEquals(0, writer.getResentCount());
+        assertEquals(0, writer.getUnconfirmedCount());
+    }
+
+    @Test
+    public void testResendsOnlyUnconfirmedBatches() throws Exception {
+        OpenTsdbClient failing = mock(OpenTsdbClient.class);
+        when(failing.flushWithSentinel()).thenReturn(1L, 2L);
+        // the first sentinel is answered, the second never is
+        when(failing.pollConfirmed()).thenReturn(1L);
+        when(failing.getConfirmed()).thenReturn(1L);
+        doThrow(new IOException("broken pipe")).when(failing).put("m", 20, 1.0, EMPTY_MAP);
+        OpenTsdbClient healthy = mock(OpenTsdbClient.class);
+        when(healthy.flushWithSentinel()).thenReturn(1L);
+        when(healthy.pollConfirmed()).thenReturn(1L);
+        ObjectPool<OpenTsdbClient> pool = pool(failing, failing, failing, healthy);
+        TsdbWriterConfiguration config = config(10, 60_000);
+        config.setConfirmWrites(true);
+        TsdbWriter writer = new TsdbWriter(config, pool);
+        for (int i = 0; i < 30; ++i) {
+            assertTrue(writer.write("m", i, 1.0, EMPTY_MAP));
+        }
+        writer.close();
+
+        verify(pool).invalidateObject(failing);
+        for (int i = 0; i < 10; ++i) {
+            verify(healthy, never()).put("m", i, 1.0, EMPTY_MAP);
+        }
+        for (int i = 10; i < 30; ++i) {
+            verify(healthy).put("m", i, 1.0, EMPTY_MAP);
+        }
+        assertEquals(10, writer.getResentCount());
+        assertEquals(30, writer.getConfirmedCount());
+        assertEquals(0, writer.getFailedCount());
+    }
+
+    @Test
+    public void testClosedClientKeepsItsConfirmations() throws Exception {
+        // the pool closed the client after its sentinel's answer was parsed
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(client.flushWithSentinel()).thenReturn(1L);
+        when(client.isClosed()).thenReturn(true);
+        when(client.pollConfirmed()).thenThrow(new IOException("Socket is closed"));
+        when(client.getConfirmed()).thenReturn(1L);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        TsdbWriterConfiguration config = config(10, 60_000);
+        config.setConfirmWrites(true);
+        TsdbWriter writer = new TsdbWriter(config, pool);
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(writer.write("m", i, 1.0, EMPTY_MAP));
+        }
+        writer.close();
+
+        for (int i = 0; i < 10; ++i) {
+            verify(client).put("m", i, 1.0, EMPTY_MAP);
+        }
+        assertEquals(10, writer.getConfirmedCount());
+        assertEquals(0, writer.getResentCount());
+    }
+
+    @Test
+    public void testClosesClientThatTimesOut() throws Exception {
+        OpenTsdbClient slow = mock(OpenTsdbClient.class);
+        when(slow.flushWithSentinel()).thenReturn(1L);
+        when(slow.pollConfirmed()).thenReturn(0L);
+        OpenTsdbClient healthy = mock(OpenTsdbClient.class);
+        when(healthy.flushWithSentinel()).thenReturn(1L);
+        when(healthy.pollConfirmed()).thenReturn(1L);
+        ObjectPool<OpenTsdbClient> pool = pool(slow, healthy);
+        TsdbWriterConfiguration config = config(10, 60_000);
+        config.setConfirmWrites(true);
+        config.setConfirmTimeout(50);
+        TsdbWriter writer = new TsdbWriter(config, pool);
+        for (int i = 0; i < 10; ++i) {
+            assertTrue(writer.write("m", i, 1.0, EMPTY_MAP));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getConfirmedCount() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writer.close();
+
+        verify(slow).close();
+        for (int i = 0; i < 10; ++i) {
+            verify(healthy).put("m", i, 1.0, EMPTY_MAP);
+        }
+        assertEquals(10, writer.getResentCount());
+        assertEquals(10, writer.getConfirmedCount());
+    }
+
+    @Test
+    public void testDownsamplesBeforeQueueing() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        TsdbWriterConfiguration config = config(10, 60_000);
+        config.getDownsampleConfiguration().setInterval(10_000);
+        TsdbWriter writer = new TsdbWriter(config, pool);
+        for (int i = 0; i < 30; ++i) {
+            assertTrue(writer.write("m", 1398325180L + i, i, EMPTY_MAP));
+        }
+        writer.close();
+
+        verify(client).put("m", 1398325180L, 4.5, EMPTY_MAP);
+        verify(client).put("m", 1398325190L, 14.5, EMPTY_MAP);
+        verify(client).put("m", 1398325200L, 24.5, EMPTY_MAP);
+        verify(client, times(3)).put(anyString(), anyLong(), anyDouble(), anyMapOf(String.class, String.class));
+        assertEquals(3, writer.getWrittenCount());
+        assertEquals(30, writer.getDownsampler().getReceivedCount());
+    }
+
+    @Test
+    public void testLingerFlushesPartialBatch() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        TsdbWriter writer = new TsdbWriter(config(1000, 10), pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+
+        verify(client, timeout(5000)).flush();
+        verify(client).put("m", 1, 1.0, EMPTY_MAP);
+        writer.close();
+    }
+
+    @Test
+    public void testCloseDoesNotWaitForLinger() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        TsdbWriter writer = new TsdbWriter(config(1000, 60_000), pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+        // let the worker start lingering on the partial batch
+        while (writer.getQueueSize() > 0) {
+            Thread.sleep(1);
+        }
+        long start = System.currentTimeMillis();
+        writer.close();
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        verify(client).put("m", 1, 1.0, EMPTY_MAP);
+        assertEquals(1, writer.getWrittenCount());
+    }
+
+    @Test
+    public void testRetriesFailedBatchOnAnotherClient() throws Exception {
+        OpenTsdbClient c1 = mock(OpenTsdbClient.class);
+        OpenTsdbClient c2 = mock(OpenTsdbClient.class);
+        doThrow(new IOException("broken pipe")).when(c1).flush();
+        ObjectPool<OpenTsdbClient> pool = pool(c1, c2);
+        TsdbWriter writer = new TsdbWriter(config(10, 60_000), pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+        writer.close();
+
+        verify(pool).invalidateObject(c1);
+        verify(c2).put("m", 1, 1.0, EMPTY_MAP);
+        verify(c2).flush();
+        verify(pool).returnObject(c2);
+        assertEquals(1, writer.getWrittenCount());
+    }
+
+    @Test
+    public void testCountsFailuresWhenPoolIsExhausted() throws Exception {
+        ObjectPool<OpenTsdbClient> pool = pool();
+        when(pool.borrowObject()).thenThrow(new NoSuchElementException("Timeout waiting for idle object"));
+        TsdbWriter writer = new TsdbWriter(config(10, 60_000), pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+        writer.write("m", 2, 1.0, EMPTY_MAP);
+        writer.close();
+
+        verify(pool, times(2)).borrowObject();
+        assertEquals(0, writer.getWrittenCount());
+        assertEquals(2, writer.getFailedCount());
+    }
+
+    @Test
+    public void testDropsWhenQueueIsFullOrClosed() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        ObjectPool<OpenTsdbClient> pool = pool(client);
+        TsdbWriterConfiguration config = config(1, 60_000);
+        config.setQueueSize(1);
+        final Object gate = new Object();
+        TsdbWriter writer = new TsdbWriter(config, pool);
+        synchronized (gate) {
+            // Keep the worker busy on the first batch so the queue fills up
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws Throwable {
+                    synchronized (gate) {
+                        return null;
+                    }
+                }
+            }).when(client).flush();
+            assertTrue(writer.write("m", 1, 1.0, EMPTY_MAP));
+            verify(client, timeout(5000)).put("m", 1, 1.0, EMPTY_MAP);
+            assertTrue(writer.write("m", 2, 1.0, EMPTY_MAP));
+            assertFalse(writer.write("m", 3, 1.0, EMPTY_MAP));
+        }
+        writer.close();
+        assertFalse(writer.write("m", 4, 1.0, EMPTY_MAP));
+        assertEquals(2, writer.getDroppedCount());
+        assertEquals(2, writer.getWrittenCount());
+    }
+
+    @Test
+    public void testSpillsAndReplaysWhenUnreachable() throws Exception {
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        final ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Object[] args = invocation.getArguments();
+                replayed.write((byte[]) args[0], (Integer) args[1], (Integer) args[2]);
+                return null;
+            }
+        }).when(client).write(any(byte[].class), anyInt(), anyInt(), anyInt());
+        ObjectPool<OpenTsdbClient> pool = pool();
+        when(pool.borrowObject())
+                .thenThrow(new NoSuchElementException("Timeout waiting for idle object"))
+                .thenThrow(new NoSuchElementException("Timeout waiting for idle object"))
+                .thenReturn(client);
+
+        TsdbWriterConfiguration config = config(10, 10);
+        config.getSpillConfiguration().setDirectory(folder.getRoot().getPath());
+        config.getSpillConfiguration().setRetryInterval(10);
+        TsdbWriter writer = new TsdbWriter(config, pool);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+
+        verify(client, timeout(5000)).flush();
+        writer.close();
+        assertEquals(1, writer.getSpilledCount());
+        assertEquals(1, writer.getReplayedCount());
+        assertEquals(0, writer.getFailedCount());
+        assertEquals("put m 1 1\n", new String(replayed.toByteArray(), StandardCharsets.UTF_8));
+        verify(pool).returnObject(client);
+    }
+
+    @Test
+    public void testKeepsSpilledPointsForNextWriter() throws Exception {
+        ObjectPool<OpenTsdbClient> down = pool();
+        when(down.borrowObject()).thenThrow(new NoSuchElementException("Timeout waiting for idle object"));
+        TsdbWriterConfiguration config = config(10, 60_000);
+        config.getSpillConfiguration().setDirectory(folder.getRoot().getPath());
+        config.getSpillConfiguration().setRetryInterval(60_000);
+        TsdbWriter writer = new TsdbWriter(config, down);
+        writer.write("m", 1, 1.0, EMPTY_MAP);
+        writer.write("m", 2, 1.0, EMPTY_MAP);
+        writer.close();
+        assertEquals(2, writer.getSpilledCount());
+        assertEquals(0, writer.getFailedCount());
+
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        writer = new TsdbWriter(config, pool(client));
+        verify(client, timeout(5000)).write(any(byte[].class), eq(0), anyInt(), eq(2));
+        verify(client, timeout(5000)).flush();
+        writer.close();
+        assertEquals(2, writer.getReplayedCount());
+        assertEquals(0, writer.getSpillJournal().getPendingPoints());
+    }
+
+    @Test
+    public void testReplayerSurvivesUnexpectedException() throws Exception {
+        SpillJournal journal = spy(new SpillJournal(folder.getRoot(), 1024 * 1024, 4));
+        byte[] data = "put m 1 1\n".getBytes(StandardCharsets.UTF_8);
+        journal.append(data, 0, data.length, 1);
+        doThrow(new IllegalStateException("boom")).doCallRealMethod().when(journal).peek();
+
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        TsdbWriterConfiguration config = config(10, 10);
+        config.getSpillConfiguration().setRetryInterval(10);
+        TsdbWriter writer = new TsdbWriter(config, pool(client), journal);
+
+        verify(client, timeout(5000)).write(data, 0, data.length, 1);
+        verify(client, timeout(5000)).flush();
+        writer.close();
+        assertEquals(1, writer.getReplayedCount());
+        assertEquals(0, journal.getPendingPoints());
+    }
+
+    @Test
+    public void testReplayCommitsOnlyConfirmedRecords() throws Exception {
+        SpillJournal journal = new SpillJournal(folder.getRoot(), 1024 * 1024, 4);
+        byte[] data = "put m 1 1\n".getBytes(StandardCharsets.UTF_8);
+        journal.append(data, 0, data.length, 1);
+
+        OpenTsdbClient dying = mock(OpenTsdbClient.class);
+        when(dying.flushWithSentinel()).thenReturn(1L);
+        when(dying.pollConfirmed()).thenReturn(0L).thenThrow(new EOFException("Connection closed by server"));
+        OpenTsdbClient client = mock(OpenTsdbClient.class);
+        when(client.flushWithSentinel()).thenReturn(1L);
+        when(client.pollConfirmed()).thenReturn(0L, 1L);
+        ObjectPool<OpenTsdbClient> pool = pool(dying, client);
+
+        TsdbWriterConfiguration config = config(10, 10);
+        config.setConfirmWrites(true);
+        config.getSpillConfiguration().setRetryInterval(10);
+        TsdbWriter writer = new TsdbWriter(config, pool, journal);
+
+        verify(pool, timeout(5000)).returnObject(client);
+        verify(pool).invalidateObject(dying);
+        verify(dying, never()).flush();
+        verify(client).write(data, 0, data.length, 1);
+        writer.close();
+        assertEquals(1, writer.getReplayedCount());
+        assertEquals(0, journal.getPendingPoints());
+    }
+}